@@ -33,8 +33,8 @@ import freenet.support.MutableBoolean;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.compress.ChunkedCompressor;
 import freenet.support.compress.CompressionOutputSizeException;
-import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
@@ -307,13 +307,15 @@ public class ArchiveManager {
 				if(logMINOR) Logger.minor(this, "dealing with GZIP");
 				is = new GZIPInputStream(data.getInputStream());
 				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
+			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW || ctype.compressor instanceof ChunkedCompressor) {
 				// LZMA internally uses pipe streams, so we may as well do it here.
-				// In fact we need to for LZMA_NEW, because of the properties bytes.
+				// In fact we need to for LZMA_NEW, because of the properties bytes, and for the
+				// chunked codecs, which decompress on several threads.
 				PipedInputStream pis = new PipedInputStream();
 				PipedOutputStream pos = new PipedOutputStream();
 				pis.connect(pos);
 				final OutputStream os = new BufferedOutputStream(pos);
+				final COMPRESSOR_TYPE codec = ctype;
 				wrapper = new ExceptionWrapper();
 				context.mainExecutor.execute(new Runnable() {
 
@@ -321,7 +323,7 @@ public class ArchiveManager {
 					public void run() {
 						InputStream is = null;
 						try {
-							Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), os, data.size(), expectedSize);
+							codec.decompress(is = data.getInputStream(), os, data.size(), expectedSize);
 						} catch (CompressionOutputSizeException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
@@ -0,0 +1,351 @@
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import freenet.support.LRUMap;
+
+/**
+ * Reed-Solomon FEC codec which produces exactly the same check blocks as OnionFECCodec, and can
+ * decode them, but is considerably faster. Both are Rizzo's systematic Vandermonde code over
+ * GF(2^8) with the polynomial x^8+x^4+x^3+x^2+1: The check block with index k+i is the sum of
+ * the data blocks each multiplied by the corresponding entry of row k+i of V * inverse(V_top),
+ * where row 0 of V is (1, 0, 0, ...) and row r > 0 is (1, a^(r-1), a^(2(r-1)), ...). Since
+ * that matrix is uniquely determined, so are the check blocks, regardless of how we compute
+ * them.
+ *
+ * The differences from com.onionnetworks.fec.PureCode are:
+ * <ul><li>Multiplying a block by a constant uses one 256 byte row of a precomputed
+ * multiplication table, which is small enough to stay in L1 cache, and the common
+ * coefficients 0 and 1 are special-cased.</li>
+ * <li>The blocks are divided into stripes, so that all the inputs for one stripe fit in
+ * cache while we compute all the outputs for that stripe.</li>
+ * <li>Stripes are processed in parallel on a shared ForkJoinPool with one thread per core.
+ * Since the pool is shared, several segments decoding at once (see MemoryLimitedJobRunner)
+ * won't use more threads than we have cores.</li>
+ * <li>Decoding reads the check blocks where they are, rather than copying them into the data
+ * blocks first.</li></ul>
+ *
+ * @see OnionFECCodec
+ */
+public class ParallelFECCodec extends OnionFECCodec {
+
+    /** Size of a stripe, in bytes. Also the smallest unit of work for the pool. */
+    static final int STRIPE_SIZE = 4096;
+
+    private static final int GF_SIZE = 255;
+    /** Primitive polynomial x^8+x^4+x^3+x^2+1, the same as Rizzo's "101110001". */
+    private static final int POLYNOMIAL = 0x11d;
+    /** EXP[i] = a^i, doubled so we don't need to reduce i modulo 255 after adding logs. */
+    private static final int[] EXP = new int[GF_SIZE * 2];
+    /** LOG[EXP[i]] = i. LOG[0] is undefined. */
+    private static final int[] LOG = new int[GF_SIZE + 1];
+    /** MUL[a][b] = a * b. */
+    private static final byte[][] MUL = new byte[GF_SIZE + 1][GF_SIZE + 1];
+
+    static {
+        int x = 1;
+        for(int i=0;i<GF_SIZE;i++) {
+            EXP[i] = x;
+            EXP[i+GF_SIZE] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x > GF_SIZE) x ^= POLYNOMIAL;
+        }
+        for(int a=1;a<=GF_SIZE;a++)
+            for(int b=1;b<=GF_SIZE;b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    static int multiply(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        if(a == 0) throw new ArithmeticException();
+        return EXP[GF_SIZE - LOG[a]];
+    }
+
+    /** Invert a square matrix in place by Gauss-Jordan elimination.
+     * @throws IllegalArgumentException If the matrix is singular, which can only happen if the
+     * same block is given twice. */
+    private static void invert(int[][] matrix) {
+        int size = matrix.length;
+        int[][] result = new int[size][size];
+        for(int i=0;i<size;i++) result[i][i] = 1;
+        for(int col=0;col<size;col++) {
+            int pivot = col;
+            while(pivot < size && matrix[pivot][col] == 0) pivot++;
+            if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                int[] t = matrix[pivot]; matrix[pivot] = matrix[col]; matrix[col] = t;
+                t = result[pivot]; result[pivot] = result[col]; result[col] = t;
+            }
+            int[] row = matrix[col];
+            int[] resultRow = result[col];
+            int inv = inverse(row[col]);
+            if(inv != 1) {
+                for(int j=0;j<size;j++) {
+                    row[j] = multiply(row[j], inv);
+                    resultRow[j] = multiply(resultRow[j], inv);
+                }
+            }
+            for(int i=0;i<size;i++) {
+                if(i == col) continue;
+                int factor = matrix[i][col];
+                if(factor == 0) continue;
+                int[] r = matrix[i];
+                int[] rr = result[i];
+                for(int j=0;j<size;j++) {
+                    r[j] ^= multiply(factor, row[j]);
+                    rr[j] ^= multiply(factor, resultRow[j]);
+                }
+            }
+        }
+        for(int i=0;i<size;i++)
+            matrix[i] = result[i];
+    }
+
+    /** Compute the rows of the systematic encoding matrix for the check blocks.
+     * @return n-k rows of k coefficients. Row i gives check block k+i. */
+    static int[][] createCheckMatrix(int k, int n) {
+        if(k < 1 || n > GF_SIZE + 1 || k > n) throw new IllegalArgumentException();
+        int[][] vandermonde = new int[n][k];
+        vandermonde[0][0] = 1;
+        for(int row=1;row<n;row++)
+            for(int col=0;col<k;col++)
+                vandermonde[row][col] = EXP[((row-1) * col) % GF_SIZE];
+        int[][] top = new int[k][];
+        for(int i=0;i<k;i++) top[i] = vandermonde[i].clone();
+        invert(top);
+        int[][] check = new int[n-k][k];
+        for(int i=0;i<n-k;i++) {
+            int[] v = vandermonde[k+i];
+            for(int col=0;col<k;col++) {
+                int sum = 0;
+                for(int j=0;j<k;j++)
+                    sum ^= multiply(v[j], top[j][col]);
+                check[i][col] = sum;
+            }
+        }
+        return check;
+    }
+
+    private synchronized static int[][] getCheckMatrix(int k, int n) {
+        Integer key = (n << 16) | k;
+        SoftReference<int[][]> ref;
+        while((ref = recentlyUsedMatrices.peekValue()) != null) {
+            // Remove oldest matrices if they have been GC'ed.
+            if(ref.get() == null) {
+                recentlyUsedMatrices.popKey();
+            } else {
+                break;
+            }
+        }
+        ref = recentlyUsedMatrices.get(key);
+        if(ref != null) {
+            int[][] matrix = ref.get();
+            if(matrix != null) {
+                recentlyUsedMatrices.push(key, ref);
+                return matrix;
+            }
+        }
+        int[][] matrix = createCheckMatrix(k, n);
+        recentlyUsedMatrices.push(key, new SoftReference<int[][]>(matrix));
+        return matrix;
+    }
+
+    private static final LRUMap<Integer, SoftReference<int[][]>> recentlyUsedMatrices = LRUMap.createSafeMap();
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<k;i++)
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+        // Which block we use for each row of the decoding matrix. The data blocks we have are
+        // used for their own rows, the first check blocks we have fill in the gaps, in the
+        // same order as OnionFECCodec.
+        byte[][] inputs = new byte[k][];
+        int[] inputIndexes = new int[k];
+        int missing = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocksPresent[i]) {
+                inputs[i] = dataBlocks[i];
+                inputIndexes[i] = i;
+            } else {
+                missing++;
+            }
+        }
+        if(missing == 0) return;
+        int[] missingIndexes = new int[missing];
+        int target = 0;
+        int x = 0;
+        for(int i=0;i<checkBlocks.length && x < missing;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            while(inputs[target] != null) target++;
+            inputs[target] = checkBlocks[i];
+            inputIndexes[target] = i + k;
+            missingIndexes[x++] = target;
+        }
+        if(x < missing) throw new IllegalArgumentException("Not enough blocks to decode");
+        int[][] checkMatrix = getCheckMatrix(k, n);
+        int[][] decodeMatrix = new int[k][];
+        for(int i=0;i<k;i++) {
+            if(inputIndexes[i] < k) {
+                decodeMatrix[i] = new int[k];
+                decodeMatrix[i][inputIndexes[i]] = 1;
+            } else {
+                decodeMatrix[i] = checkMatrix[inputIndexes[i] - k].clone();
+            }
+        }
+        invert(decodeMatrix);
+        byte[][] outputs = new byte[missing][];
+        int[][] coefficients = new int[missing][];
+        for(int i=0;i<missing;i++) {
+            outputs[i] = dataBlocks[missingIndexes[i]];
+            coefficients[i] = decodeMatrix[missingIndexes[i]];
+        }
+        run(inputs, coefficients, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        int[][] checkMatrix = getCheckMatrix(k, n);
+        byte[][] outputs = new byte[mustEncode][];
+        int[][] coefficients = new int[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            outputs[x] = checkBlocks[i];
+            coefficients[x++] = checkMatrix[i];
+        }
+        run(dataBlocks, coefficients, outputs, blockLength);
+    }
+
+    /** Compute outputs[i] = sum over j of coefficients[i][j] * inputs[j], for each i. Outputs
+     * must not be the same arrays as inputs. */
+    private static void run(byte[][] inputs, int[][] coefficients, byte[][] outputs, int blockLength) {
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        StripeTask task = new StripeTask(inputs, coefficients, outputs, blockLength, 0, stripes);
+        if(stripes == 1)
+            task.compute();
+        else
+            pool.invoke(task);
+    }
+
+    /** Processes a range of stripes, splitting it in half until there is only one. */
+    private static class StripeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[][] inputs;
+        private final int[][] coefficients;
+        private final byte[][] outputs;
+        private final int blockLength;
+        private final int firstStripe;
+        private final int lastStripe;
+
+        StripeTask(byte[][] inputs, int[][] coefficients, byte[][] outputs, int blockLength,
+                int firstStripe, int lastStripe) {
+            this.inputs = inputs;
+            this.coefficients = coefficients;
+            this.outputs = outputs;
+            this.blockLength = blockLength;
+            this.firstStripe = firstStripe;
+            this.lastStripe = lastStripe;
+        }
+
+        @Override
+        protected void compute() {
+            if(lastStripe - firstStripe > 1) {
+                int middle = (firstStripe + lastStripe) >>> 1;
+                invokeAll(new StripeTask(inputs, coefficients, outputs, blockLength, firstStripe, middle),
+                        new StripeTask(inputs, coefficients, outputs, blockLength, middle, lastStripe));
+                return;
+            }
+            int from = firstStripe * STRIPE_SIZE;
+            int to = Math.min(blockLength, from + STRIPE_SIZE);
+            for(int i=0;i<outputs.length;i++)
+                multiplyAccumulate(inputs, coefficients[i], outputs[i], from, to);
+        }
+
+    }
+
+    /** output[from..to) = sum over j of coefficients[j] * inputs[j][from..to) */
+    private static void multiplyAccumulate(byte[][] inputs, int[] coefficients, byte[] output,
+            int from, int to) {
+        boolean first = true;
+        for(int j=0;j<inputs.length;j++) {
+            int c = coefficients[j];
+            if(c == 0) continue;
+            byte[] input = inputs[j];
+            if(c == 1) {
+                if(first) {
+                    System.arraycopy(input, from, output, from, to - from);
+                } else {
+                    for(int i=from;i<to;i++)
+                        output[i] ^= input[i];
+                }
+            } else {
+                byte[] table = MUL[c];
+                if(first) {
+                    for(int i=from;i<to;i++)
+                        output[i] = table[input[i] & 0xFF];
+                } else {
+                    int i = from;
+                    for(;i+4<=to;i+=4) {
+                        output[i] ^= table[input[i] & 0xFF];
+                        output[i+1] ^= table[input[i+1] & 0xFF];
+                        output[i+2] ^= table[input[i+2] & 0xFF];
+                        output[i+3] ^= table[input[i+3] & 0xFF];
+                    }
+                    for(;i<to;i++)
+                        output[i] ^= table[input[i] & 0xFF];
+                }
+            }
+            first = false;
+        }
+        if(first) {
+            // All coefficients were zero.
+            for(int i=from;i<to;i++)
+                output[i] = 0;
+        }
+    }
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int n = dataBlocks + checkBlocks;
+        int k = dataBlocks;
+        // Cached check matrix, decoding matrix and its inverse, all int[][].
+        return (long)n*k*4 + (long)k*k*4*3;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        int n = dataBlocks + checkBlocks;
+        int k = dataBlocks;
+        // Cached check matrix, plus the Vandermonde matrix and its top while creating it.
+        return (long)n*k*4*3;
+    }
+
+}
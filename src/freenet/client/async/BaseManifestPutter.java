@@ -934,7 +934,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		if (containerMode) throw new IllegalStateException();
 		if(logMINOR) Logger.minor(this, "Got all metadata");
 		baseMetadata = makeMetadata(rootDir);
-		context.jobRunner.setCheckpointASAP();
+		context.jobRunner.setCheckpointASAP(this);
 		resolveAndStartBase(context);
 	}
 
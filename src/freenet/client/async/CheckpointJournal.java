@@ -0,0 +1,129 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import freenet.clients.fcp.RequestIdentifier;
+
+/** Keeps track of what ClientLayerPersister has written since it last wrote client.dat: Which
+ * requests are in client.dat or one of the journal files, how big the journal is, and whether
+ * the next checkpoint must compact, i.e. write everything to client.dat.
+ *
+ * A request is remembered as written from the moment we try to write it, whether or not that
+ * succeeds, since an older version may be on disk. So its removal is always journalled, and it
+ * can't come back from client.dat after a restart. If writing a checkpoint fails, we don't know
+ * what is on disk, so the next checkpoint compacts.
+ *
+ * We also compact at least once every MAX_JOURNAL_AGE, so a change to a request which was not
+ * flagged (see ClientRequester.markDirty()) reaches disk within that time.
+ *
+ * LOCKING: Only used while checkpointing or loading, which are serialized by
+ * ClientLayerPersister.
+ */
+class CheckpointJournal {
+
+    /** Compact when there are this many journal files ... */
+    static final int MAX_JOURNAL_FILES = 100;
+    /** ... or when the journal is bigger than client.dat and at least this big. */
+    static final long MIN_JOURNAL_BYTES_COMPACT = 1024 * 1024;
+    /** ... or when we last compacted this long ago. */
+    static final long MAX_JOURNAL_AGE = HOURS.toMillis(1);
+
+    /** Requests in client.dat or the journal. */
+    private final Set<RequestIdentifier> written = new HashSet<RequestIdentifier>();
+    /** Sequence number of the next journal file. */
+    private int sequence;
+    /** Total size of the journal files written since the last full checkpoint. */
+    private volatile long journalBytes;
+    /** Size of client.dat when it was last written. */
+    private long baseBytes;
+    /** When client.dat was last written. */
+    private long baseTime;
+    /** If true, the next checkpoint will write everything to client.dat. */
+    private boolean mustCompact = true;
+
+    /** Start a checkpoint.
+     * @return True if this checkpoint must write every request to client.dat. False if it
+     * should write a journal file. */
+    boolean startCheckpoint() {
+        return startCheckpoint(System.currentTimeMillis());
+    }
+
+    boolean startCheckpoint(long now) {
+        if(!mustCompact) {
+            if(sequence >= MAX_JOURNAL_FILES || now - baseTime >= MAX_JOURNAL_AGE ||
+                    (journalBytes > baseBytes && journalBytes > MIN_JOURNAL_BYTES_COMPACT))
+                mustCompact = true;
+        }
+        if(mustCompact)
+            written.clear();
+        return mustCompact;
+    }
+
+    /** Called for each request we have when checkpointing.
+     * @return True if the request must be written even if it hasn't changed, because it isn't
+     * in client.dat or the journal yet. Always true when compacting. */
+    boolean add(RequestIdentifier reqID) {
+        return written.add(reqID);
+    }
+
+    /** Called after add() has been called for every request we have.
+     * @param live The requests we have.
+     * @return The requests which have been written but which we don't have any more, and whose
+     * removal must therefore be journalled. They are forgotten. */
+    Set<RequestIdentifier> removed(Set<RequestIdentifier> live) {
+        Set<RequestIdentifier> removed = new HashSet<RequestIdentifier>();
+        for(Iterator<RequestIdentifier> it = written.iterator(); it.hasNext();) {
+            RequestIdentifier reqID = it.next();
+            if(!live.contains(reqID)) {
+                removed.add(reqID);
+                it.remove();
+            }
+        }
+        return removed;
+    }
+
+    /** Make the next checkpoint write everything to client.dat, e.g. because a checkpoint
+     * failed, or because we are writing to a different file now. */
+    void mustCompact() {
+        mustCompact = true;
+    }
+
+    /** @return The sequence number of the journal file to write next. */
+    int getSequence() {
+        return sequence;
+    }
+
+    /** Called when we have written client.dat. The old journal files no longer apply. */
+    void onCompacted(long length) {
+        onCompacted(length, System.currentTimeMillis());
+    }
+
+    void onCompacted(long length, long now) {
+        baseBytes = length;
+        baseTime = now;
+        sequence = 0;
+        journalBytes = 0;
+        mustCompact = false;
+    }
+
+    /** Called when we have written the journal file for getSequence(). */
+    void onJournalWritten(long length) {
+        sequence++;
+        journalBytes += length;
+    }
+
+    /** @return The total size of the journal files since the last full checkpoint. */
+    long getJournalBytes() {
+        return journalBytes;
+    }
+
+    /** @return The number of requests in client.dat or the journal. */
+    int size() {
+        return written.size();
+    }
+
+}
@@ -8,11 +8,11 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -32,9 +32,11 @@ import freenet.client.events.EnterFiniteCooldownEvent;
 import freenet.client.events.ExpectedFileSizeEvent;
 import freenet.client.events.ExpectedHashesEvent;
 import freenet.client.events.ExpectedMIMEEvent;
+import freenet.client.events.PartialDataEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileCompatibilityModeEvent;
 import freenet.client.events.SplitfileProgressEvent;
+import freenet.client.events.StreamingDataEvent;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.UnsafeContentTypeException;
@@ -52,8 +54,10 @@ import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.io.NullOutputStream;
+import freenet.support.io.PooledPipe;
 import freenet.support.io.ResumeFailedException;
 import freenet.support.io.StorageFormatException;
+import freenet.support.io.StreamBroadcaster;
 
 /**
  * A high level data request. Follows redirects, downloads splitfiles, etc. Similar to what you get from FCP,
@@ -109,6 +113,13 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	 * be compatible with this extension. */
 	final String forceCompatibleExtension;
 	private transient boolean resumedFetcher;
+	/** Filtering the final data while it is being fetched. See filterWhileFetching(). */
+	private transient EarlyFilter earlyFilter;
+	/** How much of the data filtered early to keep for clients which start reading it late, e.g.
+	 * when a progress page refreshes. */
+	static final int STREAMING_HEAD = 8*1024*1024;
+	/** How far a client reading the data filtered early can fall behind before it is dropped. */
+	static final int STREAMING_BUFFER = 8*1024*1024;
 
 	// Shorter constructors for convenience and backwards compatibility.
 
@@ -299,118 +310,409 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
-		OutputStream output = null;
-
-		DecompressorThreadManager decompressorManager = null;
-		ClientGetWorkerThread worker = null;
-		Bucket finalResult = null;
-		FetchResult result = null;
+		EarlyFilter early;
+		synchronized(this) {
+			early = earlyFilter;
+			earlyFilter = null;
+		}
+		FetchResult result;
+		try {
+			if(early != null && early.state == state) {
+				if(logMINOR) Logger.minor(this, "Waiting for the data to finish filtering for "+this);
+				result = early.waitFinished();
+			} else {
+				if(early != null) early.abandon();
+				result = writeFinalData(streamGenerator, clientMetadata, decompressors, mimeType, null, context);
+			}
+		} catch (FetchException e) {
+			onFailure(e, state, context, true);
+			return;
+		}
+		context.getJobRunner(persistent()).setCheckpointASAP(ClientGetter.this);
+		clientCallback.onSuccess(result, ClientGetter.this);
+	}
 
-        long maxLen = -1;
-        synchronized(this) {
-            if(expectedSize > 0) {
-                maxLen = expectedSize;
-            }
-        }
-        if(ctx.filterData && maxLen >= 0) {
-            maxLen = expectedSize * 2 + 1024;
-        }
-        if(maxLen == -1) {
-            maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
-        }
-        
-		FetchException ex = null; // set on failure
+	/**
+	 * Decompress, hash, filter and write the final data.
+	 * @param mimeType The expected MIME type, unless overridden by the FetchContext.
+	 * @param copyTo If not null, the final data is also written to this as it is produced. It is
+	 * not closed.
+	 * @return The result, in the returnBucket if there is one.
+	 * @throws FetchException If it failed, in which case any bucket we created has been freed.
+	 */
+	private FetchResult writeFinalData(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, String mimeType, OutputStream copyTo, ClientContext context) throws FetchException {
+		FinalDataWriter writer = new FinalDataWriter(clientMetadata, mimeType);
+		writer.start(decompressors, copyTo, context);
 		try {
-			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
-			else finalResult = returnBucket;
-			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
-			result = new FetchResult(clientMetadata, finalResult);
-
-			// Decompress
-			if(decompressors != null) {
-				if(logMINOR) Logger.minor(this, "Decompressing...");
-				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
-				dataInput = decompressorManager.execute();
+			streamGenerator.writeTo(writer.getOutputStream(), context);
+		} catch(Throwable t) {
+			throw writer.failed(t);
+		}
+		return writer.finish();
+	}
+
+	/** Decompresses, hashes, filters and writes the final data. The data is written to 
+	 * getOutputStream() between start() and finish(), either all at once by writeFinalData(), or
+	 * segment by segment as it is fetched for an EarlyFilter. */
+	private class FinalDataWriter {
+
+		private final PooledPipe pipe = new PooledPipe();
+		private final OutputStream dataOutput = pipe.getOutputStream();
+		private final InputStream dataInput = pipe.getInputStream();
+		private ClientMetadata clientMetadata;
+		private String mimeType;
+		private OutputStream output;
+		private OutputStream streamOutput;
+		private DecompressorThreadManager decompressorManager;
+		private ClientGetWorkerThread worker;
+		private Bucket finalResult;
+		private FetchResult result;
+
+		FinalDataWriter(ClientMetadata clientMetadata, String mimeType) {
+			this.clientMetadata = clientMetadata;
+			this.mimeType = mimeType;
+		}
+
+		/** Create the bucket, and start the threads which decompress, hash and filter the data.
+		 * @param copyTo If not null, the final data is also written to this as it is produced.
+		 * It is not closed.
+		 * @throws FetchException If it failed, in which case any bucket we created has been 
+		 * freed. */
+		void start(List<? extends Compressor> decompressors, OutputStream copyTo, ClientContext context) throws FetchException {
+			long maxLen = -1;
+			synchronized(ClientGetter.this) {
+				if(expectedSize > 0) {
+					maxLen = expectedSize;
+				}
+			}
+			if(ctx.filterData && maxLen >= 0) {
+				maxLen = expectedSize * 2 + 1024;
+			}
+			if(maxLen == -1) {
+				maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
 			}
 
-			output = finalResult.getOutputStream();
-			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
-			worker.start();
 			try {
-				streamGenerator.writeTo(dataOutput, context);
-			} catch(IOException e) {
-				//Check if the worker thread caught an exception
-				worker.getError();
-				//If not, throw the original error
-				throw e;
+				if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
+				else finalResult = returnBucket;
+				if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
+				result = new FetchResult(clientMetadata, finalResult);
+
+				output = finalResult.getOutputStream();
+				if(copyTo != null) output = new CopyingOutputStream(output, copyTo);
+				if(decompressors != null && hashes == null && !ctx.filterData) {
+					// Nothing to check or filter, so decompress straight into the bucket.
+					if(logMINOR) Logger.minor(this, "Decompressing directly to "+finalResult);
+					decompressorManager = new DecompressorThreadManager(decompressors, output, maxLen, context.mainExecutor);
+					output = null;
+					streamOutput = decompressorManager.getOutputStream();
+				} else {
+					streamOutput = dataOutput;
+					// Decompress
+					if(decompressors != null) {
+						if(logMINOR) Logger.minor(this, "Decompressing...");
+						decompressorManager = new DecompressorThreadManager(decompressors, dataOutput, maxLen, context.mainExecutor);
+						streamOutput = decompressorManager.getOutputStream();
+					}
+
+					if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
+					worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+					worker.start();
+				}
+			} catch(Throwable t) {
+				throw failed(t);
 			}
+		}
+
+		/** Where to write the data to be decompressed, hashed and filtered. */
+		OutputStream getOutputStream() {
+			return streamOutput;
+		}
+
+		/** Called after all the data has been written to getOutputStream(). Waits for the rest 
+		 * of the data to be decompressed, hashed, filtered and written.
+		 * @return The result, in the returnBucket if there is one.
+		 * @throws FetchException If it failed, in which case any bucket we created has been 
+		 * freed. */
+		FetchResult finish() throws FetchException {
+			try {
+				streamOutput.close();
+
+				// An error will propagate backwards, so wait for the worker first.
 
-			// An error will propagate backwards, so wait for the worker first.
-			
-			if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
-			worker.waitFinished();
+				if(worker != null) {
+					if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
+					worker.waitFinished();
+				}
+
+				if(decompressorManager != null) {
+					if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
+					decompressorManager.waitFinished();
+				}
 
-			if(decompressorManager != null) {
-				if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
-				decompressorManager.waitFinished();
+				if(worker != null && worker.getClientMetadata() != null) {
+					clientMetadata = worker.getClientMetadata();
+					result = new FetchResult(clientMetadata, finalResult);
+				}
+				// These must be updated for ClientGet.
+				synchronized(ClientGetter.this) {
+					expectedMIME = result.getMimeType();
+					expectedSize = result.size();
+				}
+			} catch(Throwable t) {
+				throw failed(t);
 			}
+			closeStreams();
+			return result;
+		}
 
-			if(worker.getClientMetadata() != null) {
-				clientMetadata = worker.getClientMetadata();
-				result = new FetchResult(clientMetadata, finalResult);
+		/** Clean up after an error, freeing any bucket we created.
+		 * @return The error to report. */
+		FetchException failed(Throwable t) {
+			if(worker != null && t instanceof IOException) {
+				//Check if the worker thread caught an exception
+				try {
+					worker.getError();
+				} catch(Throwable e) {
+					t = e;
+				}
 			}
-			// These must be updated for ClientGet.
-			synchronized(this) {
-			    this.expectedMIME = result.getMimeType();
-			    this.expectedSize = result.size();
+			FetchException ex;
+			if(t instanceof UnsafeContentTypeException) {
+				Logger.normal(this, "Error filtering content: will not validate", t);
+				ex = ((UnsafeContentTypeException) t).createFetchException(ctx.overrideMIME != null ? ctx.overrideMIME : expectedMIME, expectedSize);
+				/*Not really the state's fault*/
+			} else if(t instanceof URISyntaxException) {
+				//Impossible
+				Logger.error(this, "URISyntaxException converting a FreenetURI to a URI!: "+t, t);
+				ex = new FetchException(FetchExceptionMode.INTERNAL_ERROR, t);
+				/*Not really the state's fault*/
+			} else if(t instanceof CompressionOutputSizeException) {
+				Logger.error(this, "Caught "+t, t);
+				ex = new FetchException(FetchExceptionMode.TOO_BIG, t);
+			} else if(t instanceof InsufficientDiskSpaceException) {
+				ex = new FetchException(FetchExceptionMode.NOT_ENOUGH_DISK_SPACE);
+			} else if(t instanceof InterruptedIOException) {
+				// The splitfile failed or was cancelled while we were filtering it. It will report
+				// the real error.
+				if(logMINOR) Logger.minor(this, "Caught "+t, t);
+				ex = new FetchException(FetchExceptionMode.CANCELLED, t);
+			} else if(t instanceof IOException) {
+				Logger.error(this, "Caught "+t, t);
+				ex = new FetchException(FetchExceptionMode.BUCKET_ERROR, t);
+			} else if(t instanceof FetchException) {
+				Logger.error(this, "Caught "+t, t);
+				ex = (FetchException) t;
+			} else {
+				Logger.error(this, "Caught "+t, t);
+				ex = new FetchException(FetchExceptionMode.INTERNAL_ERROR, t);
 			}
-		} catch(UnsafeContentTypeException e) {
-			Logger.normal(this, "Error filtering content: will not validate", e);
-			ex = e.createFetchException(ctx.overrideMIME != null ? ctx.overrideMIME : expectedMIME, expectedSize);
-			/*Not really the state's fault*/
-		} catch(URISyntaxException e) {
-			//Impossible
-			Logger.error(this, "URISyntaxException converting a FreenetURI to a URI!: "+e, e);
-			ex = new FetchException(FetchExceptionMode.INTERNAL_ERROR, e);
-			/*Not really the state's fault*/
-		} catch(CompressionOutputSizeException e) {
-			Logger.error(this, "Caught "+e, e);
-			ex = new FetchException(FetchExceptionMode.TOO_BIG, e);
-		} catch (InsufficientDiskSpaceException e) {
-		    ex = new FetchException(FetchExceptionMode.NOT_ENOUGH_DISK_SPACE);
-		} catch(IOException e) {
-			Logger.error(this, "Caught "+e, e);
-			ex = new FetchException(FetchExceptionMode.BUCKET_ERROR, e);
-		} catch(FetchException e) {
-			Logger.error(this, "Caught "+e, e);
-			ex = e;
-		} catch(Throwable t) {
-			Logger.error(this, "Caught "+t, t);
-			ex = new FetchException(FetchExceptionMode.INTERNAL_ERROR, t);
-		} finally {
+			closeStreams();
+			if(finalResult != null && finalResult != returnBucket) {
+				finalResult.free();
+			}
+			if(result != null) {
+				Bucket data = result.asBucket();
+				data.free();
+			}
+			return ex;
+		}
+
+		private void closeStreams() {
 			Closer.close(dataInput);
 			Closer.close(dataOutput);
+			if(decompressorManager != null)
+				Closer.close(decompressorManager.getOutputStream());
 			Closer.close(output);
 		}
-		if(ex != null) {
-			onFailure(ex, state, context, true);
-			if(finalResult != null && finalResult != returnBucket) {
-				finalResult.free();
+
+	}
+
+	/**
+	 * Called by SplitFileFetcher when it starts fetching the final data. If the file is big 
+	 * enough, and its filter writes its output as it reads its input, start filtering the data 
+	 * now, segment by segment as they are fetched, rather than waiting until the whole file has
+	 * been fetched. Then onSuccess() only has to wait for the last segment to be filtered, and
+	 * the filtered data can be sent to the client as it is produced (see StreamingDataEvent).
+	 * The segments are written to the filter by jobs started as they are fetched, so no thread 
+	 * waits for the download.
+	 * @param state The SplitFileFetcher. The filtered data is only used if it is the state which
+	 * calls onSuccess().
+	 * @param storage Writes each segment as soon as it and all before it are fetched. 
+	 * @return True if we are filtering the data early.
+	 */
+	boolean filterWhileFetching(ClientGetState state, SplitFileFetcherStorage storage, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientContext context) {
+		if(persistent() || !ctx.filterData || binaryBlobWriter != null || returnBucket != null || storage.segments.length < 2) return false;
+		String mimeType = ctx.overrideMIME != null ? ctx.overrideMIME : 
+			(clientMetadata == null ? null : clientMetadata.getMIMEType());
+		if(!ContentFilter.filtersIncrementally(mimeType)) return false;
+		if(forceCompatibleExtension != null) {
+			try {
+				checkCompatibleExtension(mimeType);
+			} catch (FetchException e) {
+				// Fail in onSuccess() as usual.
+				return false;
 			}
-			if(result != null) {
-			Bucket data = result.asBucket();
-			data.free();
+		}
+		EarlyFilter early = new EarlyFilter(state, clientMetadata, mimeType);
+		EarlyFilter old;
+		synchronized(this) {
+			if(finished || currentState != state) return false;
+			old = earlyFilter;
+			earlyFilter = early;
+		}
+		if(old != null) old.abandon();
+		try {
+			early.start(decompressors, context);
+		} catch (FetchException e) {
+			// Try again in onSuccess().
+			synchronized(this) {
+				if(earlyFilter == early) earlyFilter = null;
 			}
-			return;
+			return false;
 		}
-		context.getJobRunner(persistent()).setCheckpointASAP();
-		clientCallback.onSuccess(result, ClientGetter.this);
+		if(logMINOR) Logger.minor(this, "Filtering "+mimeType+" while fetching for "+this);
+		// Clients open() the broadcaster when they get the event, which must be before we start
+		// writing.
+		ctx.eventProducer.produceEvent(new StreamingDataEvent(early.broadcaster, mimeType), context);
+		storage.streamInOrder(early, context.mainExecutor);
+		return true;
 	}
-	
+
+	/**
+	 * Called by SplitFileFetcher when it starts fetching the final data. If the data doesn't 
+	 * need decompressing or filtering, the fetched segments are the final data, so let clients 
+	 * read any part of it as soon as the segments containing it have been fetched, e.g. so a 
+	 * browser can seek in a video without waiting for the whole file.
+	 * @param state The SplitFileFetcher.
+	 * @param ranges Reads parts of the data from the segments.
+	 */
+	void rangesWhileFetching(ClientGetState state, RangeSource ranges, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientContext context) {
+		if(persistent() || ctx.filterData || binaryBlobWriter != null) return;
+		if(decompressors != null && !decompressors.isEmpty()) return;
+		String mimeType = ctx.overrideMIME != null ? ctx.overrideMIME : 
+			(clientMetadata == null ? null : clientMetadata.getMIMEType());
+		if(forceCompatibleExtension != null) {
+			try {
+				checkCompatibleExtension(mimeType);
+			} catch (FetchException e) {
+				return;
+			}
+		}
+		synchronized(this) {
+			if(finished || currentState != state) return;
+		}
+		if(logMINOR) Logger.minor(this, "Parts of "+ranges.size()+" bytes of "+mimeType+" can be read while fetching for "+this);
+		ctx.eventProducer.produceEvent(new PartialDataEvent(ranges, mimeType), context);
+	}
+
+	/** Writes to two streams, but only closes the first. */
+	private static class CopyingOutputStream extends FilterOutputStream {
+
+		private final OutputStream copyTo;
+
+		CopyingOutputStream(OutputStream out, OutputStream copyTo) {
+			super(out);
+			this.copyTo = copyTo;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			copyTo.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			out.write(buf, offset, length);
+			copyTo.write(buf, offset, length);
+		}
+
+	}
+
+	/** Filters the data while the splitfile is still being fetched. */
+	private class EarlyFilter implements SplitFileFetcherStorage.OrderedStreamCallback {
+
+		final ClientGetState state;
+		private final FinalDataWriter writer;
+		private boolean finished;
+		private boolean abandoned;
+		private FetchResult result;
+		private FetchException error;
+		/** Passes the filtered data on to clients as it is written. Only keeps any data if a
+		 * client opens it. */
+		final StreamBroadcaster broadcaster = new StreamBroadcaster(STREAMING_HEAD, STREAMING_BUFFER);
+
+		EarlyFilter(ClientGetState state, ClientMetadata clientMetadata, String mimeType) {
+			this.state = state;
+			this.writer = new FinalDataWriter(clientMetadata, mimeType);
+		}
+
+		void start(List<? extends Compressor> decompressors, ClientContext context) throws FetchException {
+			writer.start(decompressors, broadcaster, context);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return writer.getOutputStream();
+		}
+
+		@Override
+		public void onWritten() {
+			try {
+				finish(writer.finish(), null);
+			} catch (FetchException e) {
+				finish(null, e);
+			}
+		}
+
+		@Override
+		public void onFailed(IOException e) {
+			finish(null, writer.failed(e));
+		}
+
+		private void finish(FetchResult r, FetchException e) {
+			if(e == null) broadcaster.finish();
+			else broadcaster.fail(new IOException("Fetch failed: "+e.getMessage()));
+			synchronized(this) {
+				finished = true;
+				notifyAll();
+				if(!abandoned) {
+					result = r;
+					error = e;
+					return;
+				}
+			}
+			if(r != null) r.asBucket().free();
+		}
+
+		/** The request failed or restarted, so nobody will use the data. The splitfile will 
+		 * call onFailed() when it is cancelled, if it hasn't finished yet. */
+		void abandon() {
+			FetchResult r;
+			synchronized(this) {
+				abandoned = true;
+				r = result;
+				result = null;
+			}
+			broadcaster.fail(new IOException("Request failed or restarted"));
+			if(r != null) r.asBucket().free();
+		}
+
+		synchronized FetchResult waitFinished() throws FetchException {
+			while(!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(error != null) throw error;
+			return result;
+		}
+
+	}
+
     @Override
     public void onSuccess(File tempFile, long length, ClientMetadata metadata,
             ClientGetState state, ClientContext context) {
@@ -492,7 +794,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
                 }
             tempFile.delete();
         } else {
-            context.getJobRunner(persistent()).setCheckpointASAP();
+            context.getJobRunner(persistent()).setCheckpointASAP(ClientGetter.this);
             clientCallback.onSuccess(result, ClientGetter.this);
         }
     }
@@ -517,10 +819,16 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		if(logMINOR)
 			Logger.minor(this, "Failed from "+state+" : "+e+" on "+this, e);
 		ClientGetState oldState = null;
+		EarlyFilter early;
+		synchronized(this) {
+			early = earlyFilter;
+			earlyFilter = null;
+		}
+		if(early != null) early.abandon();
 		if(expectedSize > 0 && (e.expectedSize <= 0 || finalBlocksTotal != 0))
 			e.expectedSize = expectedSize;
 		
-		context.getJobRunner(persistent()).setCheckpointASAP();
+		context.getJobRunner(persistent()).setCheckpointASAP(this);
 
 		if(e.mode == FetchExceptionMode.TOO_BIG && ctx.filterData) {
 			// Check for MIME type issues first. Because of the filtering behaviour the user needs to see these first.
@@ -709,8 +1017,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				return;
 			}
 		}
-		if(persistent())
-		    context.jobRunner.setCheckpointASAP();
+		context.getJobRunner(persistent()).setCheckpointASAP(this);
 	}
 
 	/**
@@ -973,6 +1280,26 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             return new byte[0];
     }
     
+    /** Claim the storage used by the current state, for a download whose resumption is 
+     * deferred. See ClientRequest.claimStorage(). Only a splitfile fetcher keeps anything on 
+     * disk; the states before it are restarted when we resume. The return bucket and initial 
+     * metadata belong to the callback.
+     * @return False if we don't know what storage we are using. */
+    public boolean claimStorage(ClientContext context) throws ResumeFailedException {
+        ClientGetState state;
+        synchronized(this) {
+            if(binaryBlobWriter != null) return false;
+            state = currentState;
+        }
+        if(state == null || state instanceof SingleFileFetcher || state instanceof USKFetcherTag)
+            return true;
+        if(state instanceof SplitFileFetcher) {
+            ((SplitFileFetcher) state).claimStorage(context);
+            return true;
+        }
+        return false;
+    }
+    
     /** Called for a persistent request after startup. 
      * @throws ResumeFailedException */
     @Override
@@ -1006,24 +1333,36 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
      * @throws IOException 
      */
     public boolean writeTrivialProgress(DataOutputStream dos) throws IOException {
-        if(!(this.binaryBlobWriter == null && this.snoopBucket == null && this.snoopMeta == null && initialMetadata == null)) {
+        SplitFileFetcher fetcher = getTrivialFetcher();
+        if(fetcher == null) {
             dos.writeBoolean(false);
             return false;
         }
+        return fetcher.writeTrivialProgress(dos);
+    }
+    
+    /** @return True if writeTrivialProgress() would record enough to resume the download exactly,
+     * i.e. we are down to a single splitfile which is not finished. */
+    public boolean canWriteTrivialProgress() {
+        SplitFileFetcher fetcher = getTrivialFetcher();
+        return fetcher != null && fetcher.canWriteTrivialProgress();
+    }
+    
+    /** @return The SplitFileFetcher if the request is now just a single splitfile whose data goes
+     * straight to us, otherwise null. */
+    private SplitFileFetcher getTrivialFetcher() {
+        if(!(this.binaryBlobWriter == null && this.snoopBucket == null && this.snoopMeta == null && initialMetadata == null))
+            return null;
         ClientGetState state = null;
         synchronized(this) {
             state = currentState;
         }
-        if(state == null || !(state instanceof SplitFileFetcher)) {
-            dos.writeBoolean(false);
-            return false;
-        }
+        if(state == null || !(state instanceof SplitFileFetcher))
+            return null;
         SplitFileFetcher fetcher = (SplitFileFetcher) state;
-        if(fetcher.cb != this) {
-            dos.writeBoolean(false);
-            return false;
-        }
-        return ((SplitFileFetcher)state).writeTrivialProgress(dos);
+        if(fetcher.cb != this)
+            return null;
+        return fetcher;
     }
 
     public boolean resumeFromTrivialProgress(DataInputStream dis, ClientContext context) throws IOException {
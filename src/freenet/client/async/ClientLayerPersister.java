@@ -13,9 +13,18 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
@@ -27,14 +36,18 @@ import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeInitException;
+import freenet.node.RequestStarter;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
@@ -50,7 +63,13 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * serialization, by this class.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
- * 
+ *
+ * COMPACT RECORDS: When the binary fallback is enough to restore a request completely (see
+ * ClientRequest.canRestoreFromClientDetail()), we write only that, not the serialized request.
+ * This is much smaller and much faster to read, which matters with tens of thousands of queued
+ * downloads. These requests are only restored once we have read client.dat and the journal, so
+ * we don't waste time on requests which have been superseded or removed.
+ *
  * The reason for this seemingly unnecessary complexity is:
  * 1) Robustness, even against (reasonable) data corruption (e.g. on writing frequently written 
  * parts of files), and against problems in serialization.
@@ -74,6 +93,18 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * should be relatively short-lived or they won't be much use to anyone as the data will have 
  * fallen out.
  * 
+ * CHECKPOINTS: Writing every request on every checkpoint is slow with a big queue. So most 
+ * checkpoints only append a journal file (client.dat.journal.N), containing the requests whose 
+ * serialized form has changed since they were last written, and the identifiers of requests 
+ * which have been removed. Requests are flagged when they change, see ClientRequest.markDirty()
+ * and setCheckpointASAP(ClientRequester), and CheckpointJournal tracks which requests are on 
+ * disk. When the journal gets too big or too old, and always after startup, we compact: Write 
+ * all the requests to client.dat and delete the journal. Each client.dat has a random 
+ * identifier, and journal files are only replayed on top of the client.dat they were written for.
+ * 
+ * USK EDITIONS: client.dat and each journal file also contain the latest known editions of the
+ * USKs we poll in the background, from USKManager, so they are encrypted along with the requests.
+ * 
  * SCHEMA MIGRATION: Note that changing classes that are Serializable can result in restarting 
  * downloads or losing uploads.
  * @author toad
@@ -100,9 +131,53 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** Non-null if we are writing encrypted files. Needed to create journal files. */
+    private DatabaseKey writeEncryptionKey;
+    private Random random;
+    
+    /** Identifies the client.dat that the current journal files apply to. */
+    private long baseID;
+    /** What is in client.dat and the journal files. */
+    private final CheckpointJournal journal = new CheckpointJournal();
+    /** Buckets to free which we failed to write to disk last time. */
+    private DelayedFree[] unwrittenBucketsToFree;
+    /** Requests whose resumption has been deferred, with the recovery data we loaded. Until they 
+     * are resumed we write this rather than calling getClientDetail(), which may need the request
+     * to have been resumed. Only accessed while loading or checkpointing. */
+    private final Map<RequestIdentifier, DeferredRequest> deferredRequests = 
+        new HashMap<RequestIdentifier, DeferredRequest>();
+    /** Deferred requests which we will resume in the background after startup. */
+    private final ArrayDeque<ClientRequest> resumeInBackground = new ArrayDeque<ClientRequest>();
+    
+    // Statistics. Written only while checkpointing.
+    private volatile long lastCheckpointTime;
+    private volatile long lastCheckpointBytes;
+    private volatile int lastCheckpointRequestsWritten;
+    private volatile int lastCheckpointRequests;
+    private volatile boolean lastCheckpointFull;
+    private volatile int fullCheckpoints;
+    private volatile int journalCheckpoints;
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
-    private static final int VERSION = 1;
+    private static final int VERSION = 2;
+    /** Version 1 did not have a base ID, a record type for each request, or the USK edition 
+     * index. */
+    private static final int VERSION_1 = 1;
+    private static final long JOURNAL_MAGIC = 0x9b3a1c6e7d52f084L;
+    private static final int JOURNAL_VERSION = 1;
+    /** Request record containing the serialized request followed by the recovery data. */
+    private static final byte RECORD_SERIALIZED = 0;
+    /** Request record containing only the recovery data, from which the request can be restored
+     * completely. See ClientRequest.canRestoreFromClientDetail(). Much smaller and much faster to
+     * read than a serialized request. */
+    private static final byte RECORD_BINARY = 1;
+    /** Requests at this priority or lower which we loaded completely are not resumed on startup.
+     * We only register a placeholder, so they show up on the queue. Prefetch requests are resumed
+     * in the background after startup, paused requests only when they are changed or cancelled. */
+    static final short DEFER_RESUME_PRIORITY = RequestStarter.PREFETCH_PRIORITY_CLASS;
+    /** Maximum number of threads resuming requests on startup. Resuming a download is mostly
+     * disk I/O, opening and checking its storage file. */
+    static final int MAX_RESUME_THREADS = 4;
     
     private static volatile boolean logMINOR;
     static {
@@ -138,6 +213,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         synchronized(serializeCheckpoints) {
             this.dir = dir;
             this.baseName = baseName;
+            this.random = random;
             if(noWrite) {
                 writeToBucket = null;
                 writeToFilename = null;
@@ -146,6 +222,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournalFiles(true);
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -164,6 +241,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                             requestStarters, random);
                 }
                 onStarted(noWrite);
+                resumeNextInBackground();
             } else {
                 innerSetFilesOnly(dir, baseName, writeEncrypted, encryptionKey);
                 onStarted(false);
@@ -190,10 +268,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         if(writeEncrypted && encryptionKey == null)
             throw new MasterKeysWrongPasswordException();
         File oldWriteToFilename = writeToFilename;
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeEncryptionKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        // The journal must be in the same format as client.dat.
+        journal.mustCompact();
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -226,6 +307,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 throw new MasterKeysWrongPasswordException();
         }
         boolean failedSerialize = false;
+        long startTime = System.currentTimeMillis();
         PartialLoad loaded = new PartialLoad();
         if(clientDatExists) {
             innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
@@ -239,11 +321,20 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         if(clientDatBakCryptExists && loaded.needsMore()) {
             innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
         }
+        if(loaded.baseID != 0)
+            replayJournal(loaded, encryptionKey, noSerialize, context);
+        Logger.normal(this, "Read "+loaded.partiallyLoadedRequests.size()+
+                " persistent requests in "+(System.currentTimeMillis() - startTime)+"ms");
+        restoreCompactRequests(loaded, context);
+        loadUSKEditions(loaded, context);
+        if(loaded.storedStats != null)
+            bandwidthStatsPutter.addFrom(loaded.storedStats);
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
         
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeEncryptionKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         
@@ -260,55 +351,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     salt = loaded.salt;
                 }
             }
-            int success = 0;
-            int restoredRestarted = 0;
-            int restoredFully = 0;
-            int failed = 0;
-            // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
-                ClientRequest req = partial.request;
-                if(req == null) continue;
-                try {
-                    req.onResume(context);
-                    if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
-                            partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
-                        req.start(context);
-                    }
-                    switch(partial.status) {
-                    case LOADED:
-                        success++;
-                        break;
-                    case RESTORED_FULLY:
-                        restoredFully++;
-                        break;
-                    case RESTORED_RESTARTED:
-                        restoredRestarted++;
-                        break;
-                    case FAILED:
-                        failed++;
-                        break;
-                    }
-                } catch (Throwable t) {
-                    if(partial.status == RequestLoadStatus.LOADED)
-                        failedSerialize = true;
-                    failed++;
-                    System.err.println("Unable to resume request "+req+" after loading it.");
-                    Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
-                    try {
-                        req.cancel(context);
-                    } catch (Throwable t1) {
-                        Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
-                    }
-                }
-            }
-            if(success > 0)
-                System.out.println("Resumed "+success+" requests ...");
-            if(restoredFully > 0)
-                System.out.println("Restored "+restoredFully+" requests (in spite of data corruption)");
-            if(restoredRestarted > 0)
-                System.out.println("Restarted "+restoredRestarted+" requests (due to data corruption)");
-            if(failed > 0)
-                System.err.println("Failed to restore "+failed+" requests due to data corruption");
+            ResumeStats stats = resumeRequests(loaded, context);
+            if(stats.success > 0)
+                System.out.println("Resumed "+stats.success+" requests ...");
+            if(stats.deferred > 0)
+                System.out.println("Deferred resuming "+stats.deferred+" paused or low priority requests");
+            if(stats.restoredFully > 0)
+                System.out.println("Restored "+stats.restoredFully+" requests (in spite of data corruption)");
+            if(stats.restoredRestarted > 0)
+                System.out.println("Restarted "+stats.restoredRestarted+" requests (due to data corruption)");
+            if(stats.failed > 0)
+                System.err.println("Failed to restore "+stats.failed+" requests due to data corruption");
+            failedSerialize = stats.failedSerialize;
             return failedSerialize;
         } else {
             // FIXME backups etc!
@@ -340,29 +394,73 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 
     }
 
-    private enum RequestLoadStatus {
+    enum RequestLoadStatus {
         // In order of preference, best first.
-        LOADED,
-        RESTORED_FULLY,
-        RESTORED_RESTARTED,
-        FAILED
+        LOADED(0, true),
+        /** Read in the compact binary format. As good as LOADED. */
+        LOADED_COMPACT(0, true),
+        RESTORED_FULLY(1, true),
+        RESTORED_RESTARTED(2, false),
+        FAILED(3, false);
+        
+        /** Lower is better. */
+        final int preference;
+        /** False if we lost some of the request's progress, or the whole request. */
+        final boolean complete;
+        
+        RequestLoadStatus(int preference, boolean complete) {
+            this.preference = preference;
+            this.complete = complete;
+        }
     }
     
-    private class PartiallyLoadedRequest {
+    static class PartiallyLoadedRequest {
         final ClientRequest request;
         final RequestLoadStatus status;
-        PartiallyLoadedRequest(ClientRequest request, RequestLoadStatus status) {
+        /** The recovery data, if we kept it. If the request is null, it was read in the compact 
+         * binary format and has not been restored yet. Otherwise we kept it so we can defer 
+         * resuming the request, see resumeRequests(). */
+        final byte[] clientDetail;
+        PartiallyLoadedRequest(ClientRequest request, RequestLoadStatus status, byte[] clientDetail) {
             this.request = request;
             this.status = status;
+            this.clientDetail = clientDetail;
+        }
+        PartiallyLoadedRequest(byte[] clientDetail) {
+            this.request = null;
+            this.status = RequestLoadStatus.LOADED_COMPACT;
+            this.clientDetail = clientDetail;
+        }
+        /** @return True if this is a compact record which has not been restored yet. */
+        boolean isCompact() {
+            return request == null && clientDetail != null;
         }
     }
     
-    private class PartialLoad {
+    static class PartialLoad {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
         
+        /** Requests removed according to the journal, which must not be restored from an older 
+         * client.dat. */
+        private final Set<RequestIdentifier> removedRequests = new HashSet<RequestIdentifier>();
+        
         private byte[] salt;
         
+        /** The ID of the first client.dat we loaded, whose journal we will replay. */
+        private long baseID;
+        
+        /** The most recent bandwidth stats. */
+        private PersistentStatsPutter storedStats;
+        
+        /** The most recent USK edition index, as written by USKEditionIndex.Snapshot. */
+        private byte[] uskEditions;
+        
+        /** The best serialized version of each request whose latest version is a compact 
+         * record, from an older file. Used if the compact record can't be restored fully. */
+        private final Map<RequestIdentifier, PartiallyLoadedRequest> fallbacks 
+            = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
+        
         private boolean somethingFailed;
         
         private boolean doneSomething;
@@ -371,7 +469,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
          * necessary. */
         void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
-                RequestLoadStatus status) {
+                RequestLoadStatus status, byte[] clientDetail) {
             if(reqID == null) {
                 if(request == null) {
                     somethingFailed = true;
@@ -380,14 +478,87 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     reqID = request.getRequestIdentifier();
                 }
             }
+            add(reqID, new PartiallyLoadedRequest(request, status, clientDetail));
+        }
+        
+        /** Add a request read in the compact binary format, to be restored later by 
+         * restoreCompactRequests(). */
+        void addCompactRequest(RequestIdentifier reqID, byte[] clientDetail) {
+            add(reqID, new PartiallyLoadedRequest(clientDetail));
+        }
+        
+        private void add(RequestIdentifier reqID, PartiallyLoadedRequest partial) {
+            if(removedRequests.contains(reqID)) return;
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
-            if(old == null || old.status.ordinal() > status.ordinal()) {
-                partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
-                if(!(status == RequestLoadStatus.LOADED || status == RequestLoadStatus.RESTORED_FULLY))
+            if(old == null || old.status.preference > partial.status.preference) {
+                partiallyLoadedRequests.put(reqID, partial);
+                if(!partial.status.complete)
                     somethingFailed = true;
                 doneSomething = true;
+                if(old != null && partial.isCompact())
+                    addFallback(reqID, old);
+            } else if(old.isCompact()) {
+                addFallback(reqID, partial);
             }
         }
+        
+        private void addFallback(RequestIdentifier reqID, PartiallyLoadedRequest partial) {
+            if(partial.isCompact() || partial.status == RequestLoadStatus.FAILED) return;
+            PartiallyLoadedRequest old = fallbacks.get(reqID);
+            if(old == null || old.status.preference > partial.status.preference)
+                fallbacks.put(reqID, partial);
+        }
+
+        /** Add a request from the journal. Since it is more recent than anything else we have 
+         * read, it replaces any earlier version, unless we were unable to load it at all. */
+        void addJournalledRequest(RequestIdentifier reqID, ClientRequest request, 
+                RequestLoadStatus status, byte[] clientDetail) {
+            if(reqID == null) {
+                if(request == null) {
+                    somethingFailed = true;
+                    return;
+                } else {
+                    reqID = request.getRequestIdentifier();
+                }
+            }
+            addJournalled(reqID, new PartiallyLoadedRequest(request, status, clientDetail));
+        }
+        
+        void addJournalledCompactRequest(RequestIdentifier reqID, byte[] clientDetail) {
+            addJournalled(reqID, new PartiallyLoadedRequest(clientDetail));
+        }
+        
+        private void addJournalled(RequestIdentifier reqID, PartiallyLoadedRequest partial) {
+            removedRequests.remove(reqID);
+            if(partial.status == RequestLoadStatus.FAILED && partiallyLoadedRequests.containsKey(reqID)) {
+                Logger.error(this, "Unable to load latest version of "+reqID+" from journal, using older version");
+                somethingFailed = true;
+                return;
+            }
+            PartiallyLoadedRequest old = partiallyLoadedRequests.put(reqID, partial);
+            if(!partial.status.complete)
+                somethingFailed = true;
+            doneSomething = true;
+            if(old != null && partial.isCompact())
+                addFallback(reqID, old);
+        }
+        
+        void removeRequest(RequestIdentifier reqID) {
+            partiallyLoadedRequests.remove(reqID);
+            fallbacks.remove(reqID);
+            removedRequests.add(reqID);
+        }
+        
+        /** @return The version of the request we will restore, or null. */
+        PartiallyLoadedRequest get(RequestIdentifier reqID) {
+            return partiallyLoadedRequests.get(reqID);
+        }
+        
+        /** @return The best serialized version of a request whose latest version is a compact
+         * record, or null. */
+        PartiallyLoadedRequest getFallback(RequestIdentifier reqID) {
+            return fallbacks.get(reqID);
+        }
 
         public boolean needsMore() {
             return somethingFailed || !doneSomething;
@@ -447,7 +618,12 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         long magic = ois.readLong();
         if(magic != MAGIC) throw new IOException("Bad magic");
         int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
+        if(version != VERSION && version != VERSION_1) 
+            throw new IOException("Bad version");
+        boolean version1 = version == VERSION_1;
+        long id = 0;
+        if(!version1)
+            id = ois.readLong();
         byte[] salt = new byte[32];
         try {
             checker.readAndChecksum(ois, salt, 0, salt.length);
@@ -457,87 +633,430 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
         requestStarters.setGlobalSalt(salt);
         int requestCount = ois.readInt();
-        for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
-            }
+        for(int i=0;i<requestCount;i++)
+            readRequest(loaded, ois, length, context, noSerialize, !version1, false);
+        if(latest) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
+                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
+                loaded.storedStats = readStatsAndBuckets(loaded, ois, length, context, 
+                        !version1);
+            } catch (Throwable t) {
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+            }
+        }
+        if(loaded.baseID == 0 && loaded.doneSomething())
+            loaded.baseID = id;
+        ois.close();
+        fis = null;
+    }
+    
+    /** Read one request, as written by writeImage(), and add it to the PartialLoad.
+     * @param hasRecordType False if reading a version 1 client.dat, which has no record type 
+     * because the request is always serialized.
+     * @param fromJournal True if the request was read from the journal, in which case it 
+     * supersedes any version we have already read. */
+    void readRequest(PartialLoad loaded, ObjectInputStream ois, long length, 
+            ClientContext context, boolean noSerialize, boolean hasRecordType, boolean fromJournal) 
+            throws IOException {
+        ClientRequest request = null;
+        byte type = hasRecordType ? ois.readByte() : RECORD_SERIALIZED;
+        if(type != RECORD_SERIALIZED && type != RECORD_BINARY)
+            throw new IOException("Unknown record type "+type);
+        RequestIdentifier reqID = readRequestIdentifier(ois);
+        if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+            Logger.warning(this, "Not reading request because already have it");
+            if(type == RECORD_SERIALIZED)
+                skipChecksummedObject(ois, length); // Request itself
+            skipChecksummedObject(ois, length); // Recovery data
+            return;
+        }
+        if(type == RECORD_BINARY) {
+            readCompactRequest(loaded, ois, length, reqID, fromJournal);
+            return;
+        }
+        boolean loadedRequest = false;
+        try {
+            if(!noSerialize) {
+                request = (ClientRequest) readChecksummedObject(ois, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loadedRequest = true;
                         }
                     }
-                } else
-                    skipChecksummedObject(ois, length);
+                }
+            } else
+                skipChecksummedObject(ois, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(loadedRequest && mayDeferResume(request)) {
+            // Keep the recovery data so we can write the request without resuming it. Checked
+            // before the test recovery, so the log level doesn't change what we defer.
+            byte[] clientDetail = null;
+            try {
+                clientDetail = readChecksummedBytes(ois, length);
             } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
+                Logger.error(this, "Checksum failed reading recovery data for "+reqID);
+            } finally {
+                addRequest(loaded, reqID, request, RequestLoadStatus.LOADED, clientDetail, fromJournal);
+            }
+            return;
+        }
+        if(request == null || logMINOR) {
+            try {
+                ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    addRequest(loaded, reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED, 
+                            null, fromJournal);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    addRequest(loaded, reqID, null, RequestLoadStatus.FAILED, null, fromJournal);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    addRequest(loaded, reqID, null, RequestLoadStatus.FAILED, null, fromJournal);
+            }
+        } else {
+            skipChecksummedObject(ois, length);
+        }
+        if(loadedRequest)
+            addRequest(loaded, reqID, request, RequestLoadStatus.LOADED, null, fromJournal);
+    }
+    
+    /** Read a request in the compact binary format. We only keep the data for now: It is restored 
+     * by restoreCompactRequests() once we have read everything, so that we don't restore requests
+     * which have been superseded or removed by the journal. */
+    private void readCompactRequest(PartialLoad loaded, ObjectInputStream ois, long length, 
+            RequestIdentifier reqID, boolean fromJournal) throws IOException {
+        byte[] clientDetail;
+        try {
+            clientDetail = readChecksummedBytes(ois, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load a request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+            addRequest(loaded, reqID, null, RequestLoadStatus.FAILED, null, fromJournal);
+            return;
+        }
+        if(reqID == null) {
+            // We can't restore it without knowing what kind of request it is.
+            Logger.error(this, "Failed to load a request (no request identifier)");
+            addRequest(loaded, null, null, RequestLoadStatus.FAILED, null, fromJournal);
+        } else if(fromJournal) {
+            loaded.addJournalledCompactRequest(reqID, clientDetail);
+        } else {
+            loaded.addCompactRequest(reqID, clientDetail);
+        }
+    }
+    
+    /** Restore the requests we read in the compact binary format. */
+    private void restoreCompactRequests(PartialLoad loaded, ClientContext context) {
+        long startTime = System.currentTimeMillis();
+        int restored = 0;
+        for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : 
+                loaded.partiallyLoadedRequests.entrySet()) {
+            PartiallyLoadedRequest partial = entry.getValue();
+            if(!partial.isCompact()) continue;
+            RequestIdentifier reqID = entry.getKey();
+            ClientRequest request = null;
+            try {
+                DataInputStream dis = 
+                    new DataInputStream(new ByteArrayInputStream(partial.clientDetail));
+                request = ClientRequest.restartFrom(dis, reqID, context, checker);
             } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to restore request "+reqID+" : "+t, t);
+                System.err.println("Failed to restore a request: "+t);
+            }
+            RequestLoadStatus status;
+            if(request == null)
+                status = RequestLoadStatus.FAILED;
+            else if(request.fullyResumed())
+                status = RequestLoadStatus.LOADED_COMPACT;
+            else
+                status = RequestLoadStatus.RESTORED_RESTARTED;
+            restored++;
+            if(!status.complete) {
+                loaded.setSomethingFailed();
+                PartiallyLoadedRequest fallback = loaded.getFallback(reqID);
+                if(fallback != null && fallback.status.preference < status.preference) {
+                    Logger.error(this, "Unable to restore "+reqID+" from its compact record, "+
+                            "using the serialized version from an older file");
+                    System.err.println("Unable to restore a request from its compact record, "+
+                            "using an older version");
+                    entry.setValue(fallback);
+                    continue;
+                }
+                if(request != null) {
+                    Logger.error(this, "Unable to restore "+reqID+" from its compact record, "+
+                            "restarting it");
+                    System.err.println("Unable to restore a request from its compact record, "+
+                            "restarting it");
+                }
             }
-            if(request == null || logMINOR) {
+            entry.setValue(new PartiallyLoadedRequest(request, status, 
+                    request == null ? null : partial.clientDetail));
+        }
+        if(restored > 0)
+            Logger.normal(this, "Restored "+restored+" requests from compact records in "+
+                    (System.currentTimeMillis() - startTime)+"ms");
+    }
+    
+    private static class ResumeStats {
+        int success;
+        int deferred;
+        int restoredFully;
+        int restoredRestarted;
+        int failed;
+        boolean failedSerialize;
+    }
+    
+    /** The recovery data of a request whose resumption was deferred, as we loaded it. */
+    private static class DeferredRequest {
+        final ClientRequest request;
+        final byte[] clientDetail;
+        /** True if it was read in the compact binary format, so we write it in that format. */
+        final boolean compact;
+        
+        DeferredRequest(ClientRequest request, byte[] clientDetail, boolean compact) {
+            this.request = request;
+            this.clientDetail = clientDetail;
+            this.compact = compact;
+        }
+    }
+    
+    /** @return True if we can register a placeholder for the request on startup and resume it 
+     * later, provided we have its recovery data. */
+    private boolean mayDeferResume(ClientRequest request) {
+        return request.isPersistentForever() && !request.hasFinished() &&
+            request.getPriority() >= DEFER_RESUME_PRIORITY;
+    }
+    
+    /** Resume the requests we have loaded. Paused and low priority requests which loaded 
+     * completely are only registered, see ClientRequest.onResumeDeferred(). The rest are resumed
+     * on up to MAX_RESUME_THREADS threads, most important first. */
+    private ResumeStats resumeRequests(PartialLoad loaded, ClientContext context) {
+        long startTime = System.currentTimeMillis();
+        ResumeStats stats = new ResumeStats();
+        ArrayList<PartiallyLoadedRequest> toResume = new ArrayList<PartiallyLoadedRequest>();
+        for(Map.Entry<RequestIdentifier, PartiallyLoadedRequest> entry : 
+                loaded.partiallyLoadedRequests.entrySet()) {
+            PartiallyLoadedRequest partial = entry.getValue();
+            ClientRequest req = partial.request;
+            if(req == null) continue;
+            if(partial.clientDetail != null && partial.status.preference == 0 && 
+                    mayDeferResume(req)) {
+                boolean compact = partial.status == RequestLoadStatus.LOADED_COMPACT;
                 try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                    // It may be resumed after startup has finished and unclaimed temp files 
+                    // have been deleted, so it must claim its storage now.
+                    if(!req.claimStorage(context)) {
+                        toResume.add(partial);
+                        continue;
                     }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                    req.onResumeDeferred(context, compact);
+                    deferredRequests.put(entry.getKey(), 
+                            new DeferredRequest(req, partial.clientDetail, compact));
+                    if(req.getPriority() < RequestStarter.PAUSED_PRIORITY_CLASS) {
+                        synchronized(resumeInBackground) {
+                            resumeInBackground.add(req);
+                        }
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                    stats.deferred++;
+                    continue;
+                } catch (Throwable t) {
+                    Logger.error(this, "Unable to register "+req+" : "+t, t);
+                    // Try to resume it now.
+                }
+            }
+            toResume.add(partial);
+        }
+        long deferredTime = System.currentTimeMillis();
+        Logger.normal(this, "Registered "+stats.deferred+" deferred requests in "+
+                (deferredTime - startTime)+"ms");
+        Collections.sort(toResume, new Comparator<PartiallyLoadedRequest>() {
+
+            @Override
+            public int compare(PartiallyLoadedRequest a, PartiallyLoadedRequest b) {
+                return a.request.getPriority() - b.request.getPriority();
+            }
+            
+        });
+        int threads = Math.min(MAX_RESUME_THREADS, toResume.size());
+        if(threads > 0)
+            new ParallelResume(toResume.iterator(), context, stats).runAndWait(threads);
+        Logger.normal(this, "Resumed "+toResume.size()+" requests on "+threads+" threads in "+
+                (System.currentTimeMillis() - deferredTime)+"ms");
+        return stats;
+    }
+    
+    /** Resumes requests on a bounded number of threads, including the caller's. */
+    private class ParallelResume implements Runnable {
+        
+        private final Iterator<PartiallyLoadedRequest> requests;
+        private final ClientContext context;
+        private final ResumeStats stats;
+        private int running;
+        
+        ParallelResume(Iterator<PartiallyLoadedRequest> requests, ClientContext context, 
+                ResumeStats stats) {
+            this.requests = requests;
+            this.context = context;
+            this.stats = stats;
+        }
+        
+        void runAndWait(int threads) {
+            synchronized(this) {
+                running = threads;
+            }
+            for(int i=1;i<threads;i++)
+                executor.execute(this, "Resuming persistent requests");
+            run();
+            synchronized(this) {
+                while(running > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Ignore.
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
                 }
-            } else {
-                skipChecksummedObject(ois, length);
             }
         }
-        if(latest) {
+
+        @Override
+        public void run() {
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
-            } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                while(true) {
+                    PartiallyLoadedRequest partial;
+                    synchronized(this) {
+                        if(!requests.hasNext()) return;
+                        partial = requests.next();
+                    }
+                    resumeRequest(partial, context, stats);
+                }
+            } finally {
+                synchronized(this) {
+                    running--;
+                    notifyAll();
+                }
             }
         }
-        ois.close();
-        fis = null;
+        
+    }
+    
+    private void resumeRequest(PartiallyLoadedRequest partial, ClientContext context, 
+            ResumeStats stats) {
+        ClientRequest req = partial.request;
+        try {
+            req.onResume(context);
+            if(partial.status == RequestLoadStatus.LOADED_COMPACT ||
+                    partial.status == RequestLoadStatus.RESTORED_FULLY || 
+                    partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
+                req.start(context);
+            }
+            synchronized(stats) {
+                switch(partial.status) {
+                case LOADED:
+                case LOADED_COMPACT:
+                    stats.success++;
+                    break;
+                case RESTORED_FULLY:
+                    stats.restoredFully++;
+                    break;
+                case RESTORED_RESTARTED:
+                    stats.restoredRestarted++;
+                    break;
+                case FAILED:
+                    stats.failed++;
+                    break;
+                }
+            }
+        } catch (Throwable t) {
+            synchronized(stats) {
+                if(partial.status == RequestLoadStatus.LOADED)
+                    stats.failedSerialize = true;
+                stats.failed++;
+            }
+            System.err.println("Unable to resume request "+req+" after loading it.");
+            Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
+            try {
+                req.cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+            }
+        }
+    }
+    
+    /** Resume the next deferred low priority request, in a persistent job at low priority. Each 
+     * job queues the next one, so they don't hold up anything more important. */
+    private void resumeNextInBackground() {
+        final ClientRequest req;
+        synchronized(resumeInBackground) {
+            req = resumeInBackground.poll();
+        }
+        if(req == null) return;
+        try {
+            queue(new PersistentJob() {
+
+                @Override
+                public boolean run(ClientContext context) {
+                    try {
+                        req.resumeDeferred(context);
+                    } catch (Throwable t) {
+                        Logger.error(this, "Unable to resume request "+req+" : "+t, t);
+                        try {
+                            req.cancel(context);
+                        } catch (Throwable t1) {
+                            Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+                        }
+                    }
+                    resumeNextInBackground();
+                    return false;
+                }
+                
+            }, NativeThread.LOW_PRIORITY);
+        } catch (PersistenceDisabledException e) {
+            // Shutting down.
+        }
+    }
+    
+    private void addRequest(PartialLoad loaded, RequestIdentifier reqID, ClientRequest request,
+            RequestLoadStatus status, byte[] clientDetail, boolean fromJournal) {
+        if(fromJournal)
+            loaded.addJournalledRequest(reqID, request, status, clientDetail);
+        else
+            loaded.addPartiallyLoadedRequest(reqID, request, status, clientDetail);
     }
 
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
+    /** @param hasUSKEditions True if the file includes the USK edition index, which is kept in 
+     * the PartialLoad until we have read everything. */
+    private PersistentStatsPutter readStatsAndBuckets(PartialLoad loaded, ObjectInputStream ois, 
+            long length, ClientContext context, boolean hasUSKEditions) throws IOException, ClassNotFoundException {
         PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
         int count = ois.readInt();
         DelayedFree[] buckets = new DelayedFree[count];
         for(int i=0;i<count;i++) {
@@ -548,6 +1067,141 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             }
         }
         persistentTempFactory.finishDelayedFree(buckets);
+        if(hasUSKEditions) {
+            try {
+                loaded.uskEditions = readChecksummedBytes(ois, length);
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Failed to load the USK edition index (checksum failed)");
+            }
+        }
+        return storedStatsPutter;
+    }
+    
+    /** Restore the latest known editions of the USKs we poll in the background. */
+    private void loadUSKEditions(PartialLoad loaded, ClientContext context) {
+        if(loaded.uskEditions == null || context.uskManager == null) return;
+        try {
+            context.uskManager.loadEditionIndex(
+                    new DataInputStream(new ByteArrayInputStream(loaded.uskEditions)));
+        } catch (IOException e) {
+            Logger.error(this, "Failed to load the USK edition index: "+e, e);
+        }
+    }
+    
+    /** Replay the journal files written after the client.dat we loaded, in order. Journal files 
+     * for a different client.dat are ignored: These are left over if we crashed after writing 
+     * client.dat but before deleting the old journal. */
+    private void replayJournal(PartialLoad loaded, DatabaseKey encryptionKey, boolean noSerialize, 
+            ClientContext context) {
+        TreeMap<Integer, File> files = listJournalFiles();
+        int replayed = 0;
+        for(Map.Entry<Integer, File> entry : files.entrySet()) {
+            File f = entry.getValue();
+            boolean encrypted = f.getName().endsWith(".crypt");
+            if(encrypted && encryptionKey == null) {
+                Logger.error(this, "Unable to read encrypted journal file "+f+" without a key");
+                loaded.setSomethingFailed();
+                continue;
+            }
+            Bucket bucket = new FileBucket(f, true, false, false, false);
+            if(encrypted)
+                bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
+            InputStream is = null;
+            try {
+                is = bucket.getInputStream();
+                ObjectInputStream ois = new ObjectInputStream(is);
+                if(ois.readLong() != JOURNAL_MAGIC) throw new IOException("Bad magic");
+                int version = ois.readInt();
+                if(version != JOURNAL_VERSION) throw new IOException("Bad version");
+                if(ois.readLong() != loaded.baseID) {
+                    if(logMINOR) Logger.minor(this, "Ignoring journal file for another client.dat: "+f);
+                    continue;
+                }
+                if(ois.readInt() != entry.getKey()) throw new IOException("Bad sequence number");
+                long length = bucket.size();
+                int removed = ois.readInt();
+                for(int i=0;i<removed;i++) {
+                    RequestIdentifier reqID = readRequestIdentifier(ois);
+                    if(reqID != null)
+                        loaded.removeRequest(reqID);
+                    else
+                        loaded.setSomethingFailed();
+                }
+                int count = ois.readInt();
+                for(int i=0;i<count;i++)
+                    readRequest(loaded, ois, length, context, noSerialize, true, true);
+                if(!noSerialize) {
+                    try {
+                        loaded.storedStats = readStatsAndBuckets(loaded, ois, length, context, 
+                                true);
+                    } catch (Throwable t) {
+                        Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                    }
+                }
+                ois.close();
+                is = null;
+                replayed++;
+            } catch (Throwable t) {
+                // Later journal files may still be usable, since each request is written in full.
+                Logger.error(this, "Failed to replay journal file "+f+" : "+t, t);
+                System.err.println("Failed to replay journal file "+f+" : "+t);
+                loaded.setSomethingFailed();
+            } finally {
+                try {
+                    if(is != null) is.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+        if(replayed > 0)
+            System.out.println("Replayed "+replayed+" journal files for persistent requests");
+    }
+    
+    /** @return All complete journal files, plain or encrypted, by sequence number. */
+    private TreeMap<Integer, File> listJournalFiles() {
+        TreeMap<Integer, File> ret = new TreeMap<Integer, File>();
+        if(dir == null) return ret;
+        File[] files = dir.listFiles();
+        if(files == null) return ret;
+        String prefix = baseName + ".journal.";
+        for(File f : files) {
+            String name = f.getName();
+            if(!name.startsWith(prefix)) continue;
+            name = name.substring(prefix.length());
+            if(name.endsWith(".crypt"))
+                name = name.substring(0, name.length() - ".crypt".length());
+            try {
+                ret.put(Integer.parseInt(name), f);
+            } catch (NumberFormatException e) {
+                // E.g. a temporary file left over after a crash.
+                continue;
+            }
+        }
+        return ret;
+    }
+    
+    private File makeJournalFilename(int seq, boolean encrypted) {
+        return new File(dir, baseName + ".journal." + seq + (encrypted ? ".crypt" : ""));
+    }
+    
+    /** Delete all journal files, including temporary files. */
+    private void deleteJournalFiles(boolean secure) {
+        if(dir == null) return;
+        File[] files = dir.listFiles();
+        if(files == null) return;
+        String prefix = baseName + ".journal.";
+        for(File f : files) {
+            if(!f.getName().startsWith(prefix)) continue;
+            if(secure) {
+                try {
+                    FileUtil.secureDelete(f);
+                } catch (IOException e) {
+                    // Fall through.
+                }
+            }
+            f.delete();
+        }
     }
 
     @Override
@@ -555,12 +1209,214 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         save(shutdown);
     }
     
+    @Override
+    protected CheckpointWriter prepareCheckpoint(boolean shutdown) {
+        return prepareSave(shutdown);
+    }
+    
     protected void save(boolean shutdown) {
-        if(writeToFilename == null) return;
-        if(writeToFilename.exists()) {
-            FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+        CheckpointWriter writer = prepareSave(shutdown);
+        if(writer != null) writer.write();
+    }
+    
+    /** Take a snapshot of the requests which need to be written, with no jobs running. We only
+     * capture an image of each changed request here: Its serialized form and its recovery data.
+     * Framing and checksumming the images, and writing them to client.dat or to a journal file,
+     * is done by the returned writer, while jobs are running again.
+     * @return Null if there is nothing to write. */
+    private CheckpointWriter prepareSave(boolean shutdown) {
+        if(writeToFilename == null) return null;
+        long startTime = System.currentTimeMillis();
+        ClientRequest[] requests = getRequests();
+        if(shutdown) {
+            for(ClientRequest req : requests) {
+                if(req == null) continue;
+                try {
+                    req.onShutdown(getClientContext());
+                } catch (Throwable t) {
+                    Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+                }
+            }
         }
-        if(innerSave(shutdown)) {
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        if(unwrittenBucketsToFree != null) {
+            // The last checkpoint failed.
+            buckets = concat(unwrittenBucketsToFree, buckets);
+            unwrittenBucketsToFree = null;
+        }
+        boolean full = journal.startCheckpoint();
+        ArrayList<RequestImage> images = new ArrayList<RequestImage>();
+        Set<RequestIdentifier> removed = null;
+        try {
+            Set<RequestIdentifier> live = new HashSet<RequestIdentifier>();
+            for(ClientRequest req : requests) {
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                live.add(reqID);
+                // Always clear the flag, even if we write it anyway.
+                boolean changed = req.clearDirty();
+                if(journal.add(reqID) || changed)
+                    images.add(snapshotRequest(req, reqID));
+            }
+            removed = journal.removed(live);
+            for(RequestIdentifier reqID : removed)
+                deferredRequests.remove(reqID);
+            if(full) {
+                // Forget requests which have been resumed and then removed.
+                for(Iterator<DeferredRequest> it = deferredRequests.values().iterator(); it.hasNext();) {
+                    if(!it.next().request.isResumeDeferred())
+                        it.remove();
+                }
+            } else if(images.isEmpty() && removed.isEmpty() && buckets == null && 
+                    !isUSKEditionIndexDirty()) {
+                // Nothing to write. Stats are written on the next real checkpoint.
+                lastCheckpointBytes = 0;
+                lastCheckpointRequests = requests.length;
+                lastCheckpointRequestsWritten = 0;
+                lastCheckpointFull = false;
+                lastCheckpointTime = System.currentTimeMillis() - startTime;
+                return null;
+            }
+        } catch (IOException e) {
+            // Probably out of disk space for temporary files.
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            for(RequestImage image : images)
+                image.free();
+            unwrittenBucketsToFree = buckets;
+            journal.mustCompact();
+            return null;
+        }
+        USKEditionIndex.Snapshot uskEditions = snapshotUSKEditionIndex();
+        if(logMINOR) Logger.minor(this, "Snapshot of "+images.size()+" requests took "+
+                (System.currentTimeMillis() - startTime)+"ms");
+        return new SnapshotWriter(full, images.toArray(new RequestImage[images.size()]), removed, 
+                buckets, uskEditions, requests.length, startTime);
+    }
+    
+    private boolean isUSKEditionIndexDirty() {
+        USKManager uskManager = getClientContext().uskManager;
+        return uskManager != null && uskManager.isEditionIndexDirty();
+    }
+    
+    private USKEditionIndex.Snapshot snapshotUSKEditionIndex() {
+        USKManager uskManager = getClientContext().uskManager;
+        if(uskManager == null) return USKEditionIndex.EMPTY_SNAPSHOT;
+        return uskManager.snapshotEditionIndex();
+    }
+    
+    private void onUSKEditionIndexWritten(USKEditionIndex.Snapshot snapshot) {
+        USKManager uskManager = getClientContext().uskManager;
+        if(uskManager != null) uskManager.onEditionIndexWritten(snapshot);
+    }
+    
+    private static DelayedFree[] concat(DelayedFree[] a, DelayedFree[] b) {
+        if(b == null) return a;
+        DelayedFree[] ret = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, ret, a.length, b.length);
+        return ret;
+    }
+    
+    /** Writes the request images taken by prepareSave(). Only accesses state which is not 
+     * changed by jobs, or which is only changed while checkpointing. */
+    private class SnapshotWriter implements CheckpointWriter {
+        
+        private final boolean full;
+        private final RequestImage[] images;
+        private final Set<RequestIdentifier> removed;
+        private final DelayedFree[] buckets;
+        private final USKEditionIndex.Snapshot uskEditions;
+        private final int requestCount;
+        private final long startTime;
+        
+        SnapshotWriter(boolean full, RequestImage[] images, Set<RequestIdentifier> removed, 
+                DelayedFree[] buckets, USKEditionIndex.Snapshot uskEditions, int requestCount, 
+                long startTime) {
+            this.full = full;
+            this.images = images;
+            this.removed = removed;
+            this.buckets = buckets;
+            this.uskEditions = uskEditions;
+            this.requestCount = requestCount;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void write() {
+            boolean success = false;
+            try {
+                if(writeToFilename == null) {
+                    // Write disabled since the snapshot.
+                    return;
+                }
+                if(full)
+                    success = writeFull();
+                else
+                    success = writeJournal();
+            } finally {
+                for(RequestImage image : images)
+                    image.free();
+                if(success) {
+                    persistentTempFactory.finishDelayedFree(buckets);
+                    onUSKEditionIndexWritten(uskEditions);
+                    lastCheckpointRequests = requestCount;
+                    lastCheckpointRequestsWritten = images.length;
+                    lastCheckpointFull = full;
+                    lastCheckpointTime = System.currentTimeMillis() - startTime;
+                    if(full) {
+                        fullCheckpoints++;
+                        Logger.normal(this, "Full checkpoint took "+lastCheckpointTime+"ms");
+                    } else {
+                        journalCheckpoints++;
+                        if(logMINOR) Logger.minor(this, "Journal checkpoint took "+lastCheckpointTime+"ms");
+                    }
+                } else {
+                    // Write everything, including the buckets to free, as soon as possible.
+                    unwrittenBucketsToFree = buckets;
+                    journal.mustCompact();
+                    setCheckpointASAP();
+                }
+            }
+        }
+        
+        private boolean writeFull() {
+            if(writeToFilename.exists()) {
+                FileUtil.renameTo(writeToFilename, writeToBackupFilename);
+            }
+            long newBaseID = newBaseID();
+            OutputStream fos = null;
+            try {
+                fos = writeToBucket.getOutputStream();
+                BufferedOutputStream bos = new BufferedOutputStream(fos);
+                ObjectOutputStream oos = new ObjectOutputStream(bos);
+                oos.writeLong(MAGIC);
+                oos.writeInt(VERSION);
+                oos.writeLong(newBaseID);
+                checker.writeAndChecksum(oos, salt);
+                oos.writeInt(images.length);
+                for(RequestImage image : images)
+                    writeImage(oos, image);
+                writeStatsAndBuckets(oos, buckets, uskEditions);
+                oos.close();
+                fos = null;
+                Logger.normal(this, "Saved "+images.length+" requests to "+writeToFilename);
+            } catch (IOException e) {
+                System.err.println("Failed to write persistent requests: "+e);
+                e.printStackTrace();
+                return false;
+            } finally {
+                try {
+                    if(fos != null) fos.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to write persistent requests: "+e);
+                    e.printStackTrace();
+                }
+            }
+            baseID = newBaseID;
+            lastCheckpointBytes = writeToFilename.length();
+            journal.onCompacted(lastCheckpointBytes);
+            // The journal applies to the old client.dat, which is now client.dat.bak. If we need 
+            // to fall back to the backup, it's out of date anyway.
+            deleteJournalFiles(false);
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -569,86 +1425,219 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite.delete();
                 otherDeleteAfterSuccessfulWrite = null;
             }
+            return true;
+        }
+        
+        /** Write the next journal file. This contains the requests which have changed since 
+         * they were last written, and those which have been removed. The file is written under a 
+         * temporary name and then renamed, so we never replay a partially written journal 
+         * file. */
+        private boolean writeJournal() {
+            boolean encrypted = writeEncryptionKey != null;
+            File target = makeJournalFilename(journal.getSequence(), encrypted);
+            File temp = new File(target.getPath()+".tmp");
+            Bucket bucket = new FileBucket(temp, false, false, false, false);
+            if(encrypted)
+                bucket = writeEncryptionKey.createEncryptedBucketForClientLayer(bucket);
+            OutputStream fos = null;
+            try {
+                fos = bucket.getOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+                oos.writeLong(JOURNAL_MAGIC);
+                oos.writeInt(JOURNAL_VERSION);
+                oos.writeLong(baseID);
+                oos.writeInt(journal.getSequence());
+                oos.writeInt(removed.size());
+                for(RequestIdentifier reqID : removed)
+                    writeRequestIdentifier(oos, reqID);
+                oos.writeInt(images.length);
+                for(RequestImage image : images)
+                    writeImage(oos, image);
+                writeStatsAndBuckets(oos, buckets, uskEditions);
+                oos.close();
+                fos = null;
+                if(!FileUtil.renameTo(temp, target))
+                    throw new IOException("Unable to rename "+temp+" to "+target);
+            } catch (IOException e) {
+                System.err.println("Failed to write persistent requests journal: "+e);
+                e.printStackTrace();
+                temp.delete();
+                return false;
+            } finally {
+                try {
+                    if(fos != null) fos.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to write persistent requests journal: "+e);
+                    e.printStackTrace();
+                }
+            }
+            long length = target.length();
+            journal.onJournalWritten(length);
+            lastCheckpointBytes = length;
+            if(logMINOR) Logger.minor(this, "Wrote "+images.length+" changed and "+removed.size()+
+                    " removed requests to "+target);
+            return true;
         }
+        
     }
     
-    private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
-        OutputStream fos = null;
+    private long newBaseID() {
+        long id;
+        do {
+            id = random == null ? System.nanoTime() : random.nextLong();
+        } while(id == 0 || id == baseID);
+        return id;
+    }
+    
+    /** An image of a request, taken while no jobs are running, which can be written after they
+     * have resumed. */
+    static class RequestImage {
+        final RequestIdentifier reqID;
+        /** True to write the compact binary format, i.e. only the recovery data. */
+        final boolean compact;
+        /** The serialized request, or null if compact or if we were unable to serialize it. */
+        final Bucket serialized;
+        /** The recovery data, or null if we were unable to get it. */
+        final byte[] clientDetail;
+        
+        RequestImage(RequestIdentifier reqID, boolean compact, Bucket serialized, 
+                byte[] clientDetail) {
+            this.reqID = reqID;
+            this.compact = compact;
+            this.serialized = serialized;
+            this.clientDetail = clientDetail;
+        }
+        
+        void free() {
+            if(serialized != null) serialized.free();
+        }
+    }
+    
+    /** Capture an image of a request. Must be called with no jobs running. If we are unable to
+     * capture part of it, we write what we have and try again on the next checkpoint.
+     * @throws IOException If we can't allocate temporary space. */
+    private RequestImage snapshotRequest(ClientRequest req, RequestIdentifier reqID) 
+    throws IOException {
+        DeferredRequest deferred = getDeferred(req, reqID);
+        boolean compact = 
+            deferred != null ? deferred.compact : req.canRestoreFromClientDetail();
+        // Write the actual request, unless we can restore it completely from the recovery data.
+        Bucket serialized = null;
+        if(!compact)
+            serialized = serializeRequest(req);
+        // Recovery data. This is just enough to restart the request from scratch, but may 
+        // support continuing the request in simple cases e.g. if a fetch is now just a single 
+        // splitfile.
+        byte[] clientDetail;
+        if(deferred != null)
+            clientDetail = deferred.clientDetail;
+        else
+            clientDetail = getClientDetail(req);
+        if((serialized == null && !compact) || clientDetail == null)
+            req.markDirty(); // Try again next time.
+        return new RequestImage(reqID, compact, serialized, clientDetail);
+    }
+    
+    /** @return The request serialized to a temporary bucket, or null if we were unable to 
+     * serialize it. */
+    private Bucket serializeRequest(ClientRequest req) throws IOException {
+        Bucket bucket = tempBucketFactory.makeBucket(-1);
+        OutputStream os = null;
         try {
-            fos = writeToBucket.getOutputStream();
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeLong(MAGIC);
-            oos.writeInt(VERSION);
-            checker.writeAndChecksum(oos, salt);
-            ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
-            }
-            oos.writeInt(requests.length);
-            for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
-            }
+            os = bucket.getOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+            oos.writeObject(req);
             oos.close();
-            fos = null;
-            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
-            persistentTempFactory.finishDelayedFree(buckets);
-            return true;
-        } catch (IOException e) {
-            System.err.println("Failed to write persistent requests: "+e);
-            e.printStackTrace();
-            return false;
+            os = null;
+            return bucket;
+        } catch (Throwable e) {
+            Logger.error(this, "Unable to serialize "+req+" : "+e, e);
+            bucket.free();
+            return null;
         } finally {
-            try {
-                if(fos != null) fos.close();
-            } catch (IOException e) {
-                System.err.println("Failed to write persistent requests: "+e);
-                e.printStackTrace();
+            if(os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // Ignore, already freed.
+                }
             }
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
-        PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
-        DataOutputStream dos = new DataOutputStream(oos);
+    /** @return The recovery data for a request, or null if we were unable to get it. */
+    private byte[] getClientDetail(ClientRequest req) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
+            DataOutputStream dos = new DataOutputStream(baos);
             req.getClientDetail(dos, checker);
             dos.close();
-            oos = null;
+            return baos.toByteArray();
         } catch (Throwable e) {
             Logger.error(this, "Unable to write recovery data for "+req+" : "+e, e);
             System.err.println("Unable to write recovery data for "+req+" : "+e);
             e.printStackTrace();
-            oos.abort();
-        } finally {
-            if(oos != null) oos.close();
+            return null;
         }
     }
     
+    /** Write one request image, in the format read by readRequest(). */
+    void writeImage(ObjectOutputStream oos, RequestImage image) throws IOException {
+        oos.writeByte(image.compact ? RECORD_BINARY : RECORD_SERIALIZED);
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(oos, image.reqID);
+        if(!image.compact)
+            writeChecksummedWithLength(oos, image.serialized);
+        writeChecksummedWithLength(oos, 
+                image.clientDetail == null ? null : new ArrayBucket(image.clientDetail));
+    }
+    
+    /** Write the length, the data and a checksum, in the same format as 
+     * ChecksumChecker.checksumWriterWithLength(). 
+     * @param data The data to write, or null to write an empty record, as if the writer had 
+     * been aborted. */
+    private void writeChecksummedWithLength(OutputStream os, Bucket data) throws IOException {
+        DataOutputStream dos = new DataOutputStream(checker.checksumWriter(os, 8));
+        if(data == null) {
+            dos.writeLong(0);
+        } else {
+            dos.writeLong(data.size());
+            BucketTools.copyTo(data, dos, Long.MAX_VALUE);
+        }
+        // Writes the checksum, but does not close the underlying stream.
+        dos.close();
+    }
+    
+    private void writeStatsAndBuckets(ObjectOutputStream oos, DelayedFree[] buckets, 
+            USKEditionIndex.Snapshot uskEditions) throws IOException {
+        bandwidthStatsPutter.updateData(node);
+        oos.writeObject(bandwidthStatsPutter);
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
+        PrependLengthOutputStream os = checker.checksumWriterWithLength(oos, tempBucketFactory);
+        DataOutputStream dos = new DataOutputStream(os);
+        uskEditions.writeTo(dos);
+        dos.close();
+    }
+    
+    /** @return The data we loaded for a request whose resumption has been deferred, or null if
+     * it has been resumed. */
+    private DeferredRequest getDeferred(ClientRequest req, RequestIdentifier reqID) {
+        if(deferredRequests.isEmpty()) return null;
+        DeferredRequest deferred = deferredRequests.get(reqID);
+        if(deferred == null) return null;
+        if(deferred.request != req || !req.isResumeDeferred()) {
+            deferredRequests.remove(reqID);
+            return null;
+        }
+        return deferred;
+    }
+    
     private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
@@ -666,16 +1655,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    /** @return False if we were unable to serialize the object. */
+    private boolean writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
             innerOOS.writeObject(req);
             innerOOS.close();
             oos = null;
+            return true;
         } catch (Throwable e) {
             Logger.error(this, "Unable to write recovery data for "+name+" : "+e, e);
             oos.abort();
+            return false;
         } finally {
             if(oos != null) oos.close();
         }
@@ -698,6 +1690,15 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
+    /** Read data written by checksumWriterWithLength() into memory, and verify the checksum. */
+    private byte[] readChecksummedBytes(DataInput is, long totalLength) throws IOException, ChecksumFailedException {
+        long length = is.readLong();
+        if(length < 0 || length > totalLength) throw new IOException("Bad length: "+length);
+        byte[] buf = new byte[(int)length];
+        checker.readAndChecksum(is, buf, 0, buf.length);
+        return buf;
+    }
+
     private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
         long length = is.readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
@@ -757,8 +1758,49 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournalFiles(true);
+            journal.mustCompact();
         }
     }
+    
+    /** @return The time taken by the last checkpoint, in milliseconds. */
+    public long getLastCheckpointTime() {
+        return lastCheckpointTime;
+    }
+    
+    /** @return The number of bytes written by the last checkpoint. */
+    public long getLastCheckpointBytes() {
+        return lastCheckpointBytes;
+    }
+    
+    /** @return The number of requests written by the last checkpoint. */
+    public int getLastCheckpointRequestsWritten() {
+        return lastCheckpointRequestsWritten;
+    }
+    
+    /** @return The number of requests in the queue at the last checkpoint. */
+    public int getLastCheckpointRequests() {
+        return lastCheckpointRequests;
+    }
+    
+    /** @return True if the last checkpoint wrote everything to client.dat rather than to the 
+     * journal. */
+    public boolean wasLastCheckpointFull() {
+        return lastCheckpointFull;
+    }
+    
+    public int getFullCheckpoints() {
+        return fullCheckpoints;
+    }
+    
+    public int getJournalCheckpoints() {
+        return journalCheckpoints;
+    }
+    
+    /** @return The total size of the journal files since the last full checkpoint. */
+    public long getJournalBytes() {
+        return journal.getJournalBytes();
+    }
 
     public void disableWrite() {
         synchronized(serializeCheckpoints) {
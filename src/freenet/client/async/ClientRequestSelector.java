@@ -26,6 +26,8 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.RemoveRandomParent;
@@ -44,13 +46,19 @@ import freenet.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * LOCKING: Consequently we need to lock the whole subtree for a priority whenever we access 
+ * either the tree or the wakeup times: When a request completes, we start at the request itself 
+ * and go up the tree until we stop updating the wakeup times. However when we choose a request to 
+ * send, we start at the top and go down (and update the cooldown times when backtracking back up 
+ * the tree if we don't find anything).
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
+ * **We lock on the per-priority lock** (priorityLocks[prio]) when using a priority's subtree, 
+ * including the cooldown times. Each subtree only ever takes its own lock, so registering, 
+ * waking up and choosing requests at different priorities do not contend with each other. A
+ * request only moves between subtrees in reregisterAll(), which never holds two priority locks 
+ * at once. The top level nodes are created in the constructor and never change, and their 
+ * isEmpty() and getWakeupTime() are readable without the lock, so choosePriority() is lock-free
+ * and we only take a lock once we have found a priority which probably has something to send.
  * 
  * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
  * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
@@ -77,24 +85,27 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	static class ClientRequestRGANode extends SectoredRandomGrabArraySimple<RequestClient,ClientRequestSchedulerGroup> {
 
         public ClientRequestRGANode(RequestClient object, RemoveRandomParent parent,
-                ClientRequestSelector root) {
-            super(object, parent, root);
+                ClientRequestSelector root, Object lock) {
+            super(object, parent, root, lock);
         }
 	    
 	}
 	
 	static class RequestClientRGANode extends SectoredRandomGrabArray<RequestClient,ClientRequestRGANode> {
 
-        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root) {
-            super(parent, root);
+        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+            super(parent, root, lock);
         }
 	    
 	}
 	
 	/**
-     * The base of the tree.
+     * The base of the tree. One node per priority, created up front and never replaced.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
+    
+    /** One lock per priority, protecting everything below priorities[prio]. */
+    private final Object[] priorityLocks;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +125,11 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		priorityLocks = new Object[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++) {
+		    priorityLocks[i] = new Object();
+		    priorities[i] = new RequestClientRGANode(null, this, priorityLocks[i]);
+		}
 	}
 	
 	private static volatile boolean logMINOR;
@@ -145,9 +161,10 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: Not synchronized. The priorities never change and we only look at their cached
+	 * wakeup times and emptiness, which don't need the lock. The caller will lock the priority 
+	 * when it actually tries to remove something from it. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -195,7 +212,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * running), so we may need to try repeatedly. FIXME this is only necessary because many 
 	 * classes only update their cooldown status when choosing a block to send, e.g. 
 	 * SplitFileInserter. */
-	ChosenBlock chooseRequest(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context) {
+	ChosenBlock chooseRequest(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList starter, boolean realTime, ClientContext context) {
 		long now = System.currentTimeMillis();
 		for(int i=0;i<5;i++) {
 			SelectorReturn r = chooseRequestInner(fuzz, random, offeredKeys, starter, realTime, context, now);
@@ -309,7 +326,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * most of the time.
 	 * @return Either a chosen request or the time at which we should try again if all priorities 
 	 * are waiting for requests to finish / cooldown periods to expire. */
-	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, long now) {
+	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList starter, boolean realTime, ClientContext context, long now) {
 		// Priorities start at 0
 		if(logMINOR) Logger.minor(this, "removeFirst()");
 		boolean tryOfferedKeys = offeredKeys != null && random.nextBoolean();
@@ -352,8 +369,8 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
 				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
+				synchronized(priorityLocks[choosenPriorityClass]) {
+				    // We must hold the priority's lock, just as in addToGrabArrays.
 				    // This is important for keeping the cooldown tracker consistent amongst other 
 				    // things: We can get a race condition between thread A reading the tree, 
 				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
@@ -386,7 +403,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
 							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
+							synchronized(priorityLocks[choosenPriorityClass]) {
 								baseRGA.remove(req, context);
 							}
 						} else {
@@ -618,25 +635,22 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        synchronized(priorityLocks[priorityClass]) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
-        sched.wakeStarter();
+        // Null in some unit tests which only exercise the tree.
+        if(sched != null) sched.wakeStarter();
     }
 
+    /** LOCKING: Caller must hold priorityLocks[priorityClass] */
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
-            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this);
+            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this, priorityLocks[priorityClass]);
             if(logMINOR)
                 Logger.minor(this, "Creating new grabber: "+requestGrabber+" for "+client+" from "+clientGrabber+" : prio="+priorityClass);
             clientGrabber.addGrabber(client, requestGrabber, context);
@@ -653,68 +667,84 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
+        RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga;
+        RandomGrabArrayItem[] items;
+        // The RGA's lock is that of the old priority, so we can't simply move it to the new 
+        // priority. Detach it under the old lock, then re-add its requests under the new lock.
+        // We never hold both locks at once, so there is no lock ordering to worry about.
+        synchronized(priorityLocks[oldPrio]) {
             // First by priority
             RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
             // Then by RequestClient
             ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
             if(requestGrabber == null) {
+                // Normal as most of the schedulers aren't relevant to any given insert/request.
                 if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
                 return;
             }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+            rga = requestGrabber.getGrabber(group);
             if(rga == null) {
                 if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
                 return;
             }
             requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
-                        " but want to insert "+rga, new Exception("error"));
-                requestGrabber.maybeRemove(rga, context);
+            items = new RandomGrabArrayItem[rga.size()];
+            for(int i=0;i<items.length;i++)
+                items[i] = rga.get(i);
+        }
+        synchronized(priorityLocks[newPrio]) {
+            ClientRequestRGANode requestGrabber = makeSRGAForClient(newPrio, client, context);
+            for(RandomGrabArrayItem item : items) {
+                if(item == null) continue;
+                // May have been unregistered while we weren't holding either lock.
+                if(item.getParentGrabArray() != rga) continue;
+                requestGrabber.add(group, item, context);
             }
-            requestGrabber.addGrabber(group, rga, context);
         }
+        if(sched != null) sched.wakeStarter();
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
-            RequestClientRGANode prio = priorities[i];
-            if(prio == null || prio.isEmpty())
-                System.out.println("Priority "+i+" : empty");
-            else {
-                System.out.println("Priority "+i+" : "+prio.size());
-                    System.out.println("Clients: "+prio.size()+" for "+prio);
-                    for(int k=0;k<prio.size();k++) {
-                        RequestClient client = prio.getClient(k);
-                        System.out.println("Client "+k+" : "+client);
-                        ClientRequestRGANode requestGrabber = prio.getGrabber(client);
-                        System.out.println("SRGA for client: "+requestGrabber);
-                        for(int l=0;l<requestGrabber.size();l++) {
-                            ClientRequestSchedulerGroup cr = requestGrabber.getClient(l);
-                            System.out.println("Request "+l+" : "+cr);
-                            RandomGrabArray rga = requestGrabber.getGrabber(cr);
-                            System.out.println("Queued SendableRequests: "+rga.size()+" on "+rga);
-                            long sendable = 0;
-                            long all = 0;
-                            for(int m=0;m<rga.size();m++) {
-                                SendableRequest req = (SendableRequest) rga.get(m);
-                                if(req == null) continue;
-                                sendable += req.countSendableKeys(context);
-                                all += req.countAllKeys(context);
-                            }
-                            System.out.println("Sendable keys: "+sendable+" all keys "+all+" diff "+(all-sendable));
-                            total += all;
+            synchronized(priorityLocks[i]) {
+                total += countQueuedRequests(i, context);
+            }
+        }
+        return total;
+    }
+
+    /** LOCKING: Caller must hold priorityLocks[i] */
+    private long countQueuedRequests(int i, ClientContext context) {
+        long total = 0;
+        RequestClientRGANode prio = priorities[i];
+        if(prio.isEmpty())
+            System.out.println("Priority "+i+" : empty");
+        else {
+            System.out.println("Priority "+i+" : "+prio.size());
+                System.out.println("Clients: "+prio.size()+" for "+prio);
+                for(int k=0;k<prio.size();k++) {
+                    RequestClient client = prio.getClient(k);
+                    System.out.println("Client "+k+" : "+client);
+                    ClientRequestRGANode requestGrabber = prio.getGrabber(client);
+                    System.out.println("SRGA for client: "+requestGrabber);
+                    for(int l=0;l<requestGrabber.size();l++) {
+                        ClientRequestSchedulerGroup cr = requestGrabber.getClient(l);
+                        System.out.println("Request "+l+" : "+cr);
+                        RandomGrabArray rga = requestGrabber.getGrabber(cr);
+                        System.out.println("Queued SendableRequests: "+rga.size()+" on "+rga);
+                        long sendable = 0;
+                        long all = 0;
+                        for(int m=0;m<rga.size();m++) {
+                            SendableRequest req = (SendableRequest) rga.get(m);
+                            if(req == null) continue;
+                            sendable += req.countSendableKeys(context);
+                            all += req.countAllKeys(context);
                         }
+                        System.out.println("Sendable keys: "+sendable+" all keys "+all+" diff "+(all-sendable));
+                        total += all;
                     }
-            }
+                }
         }
         return total;
     }   
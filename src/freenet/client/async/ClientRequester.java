@@ -89,6 +89,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected synchronized boolean cancel() {
 		boolean ret = cancelled;
 		cancelled = true;
+		markDirty();
 		return ret;
 	}
 
@@ -184,6 +185,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		minSuccessBlocks = 0;
 		blockSetFinalized = false;
 		sentToNetwork = false;
+		markDirty();
 	}
 	
 	/** The set of blocks has been finalised, total will not change any
@@ -196,6 +198,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(blockSetFinalized) return;
 			blockSetFinalized = true;
 		}
+		markDirty();
 		if(logMINOR)
 			Logger.minor(this, "Finalized set of blocks for "+this, new Exception("debug"));
 		notifyClients(context);
@@ -208,6 +211,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			totalBlocks++;
 			wasFinalized = blockSetFinalized;
 		}
+		markDirty();
 
 		if (wasFinalized) {
 			if (LogLevel.MINOR.matchesThreshold(Logger.globalGetThresholdNew()))
@@ -226,6 +230,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			totalBlocks += num;
 			wasFinalized = blockSetFinalized;
 		}
+		markDirty();
 
 		if (wasFinalized) {
 			if (LogLevel.MINOR.matchesThreshold(Logger.globalGetThresholdNew()))
@@ -246,6 +251,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			successfulBlocks++;
             latestSuccess = CurrentTimeUTC.get();
 		}
+		markDirty();
 		if(dontNotify) return;
 		notifyClients(context);
 	}
@@ -258,6 +264,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
             failedBlocks++;
             latestFailure = CurrentTimeUTC.get();
         }
+        markDirty();
         if(!dontNotify)
             notifyClients(context);
     }
@@ -273,6 +280,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			fatallyFailedBlocks++;
             latestFailure = CurrentTimeUTC.get();
 		}
+		markDirty();
 		notifyClients(context);
 	}
 
@@ -280,6 +288,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addMustSucceedBlocks(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		markDirty();
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 
@@ -287,6 +296,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addRedundantBlocksInsert(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		markDirty();
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 	
@@ -317,6 +327,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(sentToNetwork) return;
 			sentToNetwork = true;
 		}
+		markDirty();
 		innerToNetwork(context);
 	}
 
@@ -336,6 +347,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         // See ClientRequester.getLatestSuccess() for why this defaults to current time.
         this.latestSuccess = CurrentTimeUTC.get();
 		this.totalBlocks = 0;
+		markDirty();
 	}
 
 	/** Get client context object */
@@ -353,6 +365,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			oldPrio = priorityClass;
 			this.priorityClass = newPriorityClass;
 		}
+		markDirty();
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
 		ctx.getChkInsertScheduler(realTimeFlag).reregisterAll(this, oldPrio);
@@ -398,6 +411,27 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
     
     private transient boolean resumed = false;
     
+    /** True if something we serialize has changed since ClientLayerPersister last wrote the 
+     * request. Not serialized: If we have just been loaded, we have just been written. */
+    private transient volatile boolean dirty;
+    
+    /** Called when a field which is serialized changes, here or in one of our states, so that the 
+     * next checkpoint writes the request. Changes which also need a checkpoint soon should call
+     * PersistentJobRunner.setCheckpointASAP(ClientRequester), which does this. Changes which are
+     * not flagged are still written on the next full checkpoint, which happens at least once
+     * every CheckpointJournal.MAX_JOURNAL_AGE. */
+    public void markDirty() {
+        dirty = true;
+    }
+    
+    /** Called by ClientLayerPersister when it writes the request.
+     * @return True if the request has changed since the last call. */
+    public boolean clearDirty() {
+        boolean ret = dirty;
+        dirty = false;
+        return ret;
+    }
+    
     /** Called for a persistent request after startup. Should call notifyClients() at the end,
      * after the callback has been registered etc. 
      * @throws ResumeFailedException */
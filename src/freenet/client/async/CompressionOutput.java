@@ -1,5 +1,6 @@
 package freenet.client.async;
 
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
 import freenet.crypt.HashResult;
 import freenet.support.api.Bucket;
 import freenet.support.api.RandomAccessBucket;
@@ -7,11 +8,17 @@ import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 
 class CompressionOutput {
 	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes) {
+		this(bestCompressedData, bestCodec2, hashes, new CodecAttempt[0]);
+	}
+	public CompressionOutput(RandomAccessBucket bestCompressedData, COMPRESSOR_TYPE bestCodec2, HashResult[] hashes, CodecAttempt[] attempts) {
 		this.data = bestCompressedData;
 		this.bestCodec = bestCodec2;
 		this.hashes = hashes;
+		this.attempts = attempts;
 	}
 	final RandomAccessBucket data;
 	final COMPRESSOR_TYPE bestCodec;
 	final HashResult[] hashes;
+	/** Per-codec statistics, for FinishedCompressionEvent */
+	final CodecAttempt[] attempts;
 }
\ No newline at end of file
@@ -115,6 +115,24 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
+	/** Check the store for keys which a request starter has just chosen, in a single pass on 
+	 * the caller's thread. Blocks found are delivered to everything waiting for them, just as 
+	 * when a request is registered, so there is no need to start a request for them.
+	 * @return For each key, true if it was found in the store. */
+	public boolean[] checkChosenKeys(Key[] keys, ClientRequestScheduler sched) {
+		boolean[] found = new boolean[keys.length];
+		int hits = 0;
+		for(int i=0;i<keys.length;i++) {
+			KeyBlock block = node.fetch(keys[i], false, false, false, false, null);
+			if(block == null) continue;
+			sched.tripPendingKey(block);
+			found[i] = true;
+			hits++;
+		}
+		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" chosen keys, found "+hits);
+		return found;
+	}
+
 	@Override
 	public void run() {
 		while(true) {
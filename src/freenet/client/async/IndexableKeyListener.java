@@ -0,0 +1,24 @@
+package freenet.client.async;
+
+import java.io.IOException;
+
+/**
+ * A KeyListener whose set of keys is known when it is registered and only ever shrinks, so
+ * KeyListenerTracker can put it in its KeyListenerIndex rather than calling probablyWantKey() on
+ * it for every block. KeyListener's which don't implement this (e.g. USKFetcher, whose keys
+ * change as it finds new editions) are still checked one by one.
+ * @see KeyListenerIndex
+ */
+public interface IndexableKeyListener extends KeyListener {
+
+	/**
+	 * List all the keys we are listening for. Called once when the listener is registered,
+	 * possibly on startup, so it may do some disk I/O but should avoid taking locks.
+	 * @param salter Salts the keys, exactly as for the saltedKey passed to probablyWantKey().
+	 * @return The salted keys, each converted with KeyListenerIndex.hashSaltedKey(). May include
+	 * keys that have already been found.
+	 * @throws IOException If we can't read the keys. The listener will be checked one by one.
+	 */
+	long[] getSaltedKeyHashes(KeySalter salter) throws IOException;
+
+}
@@ -3,9 +3,11 @@ package freenet.client.async;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
 import freenet.crypt.HashResult;
 import freenet.crypt.MultiHashInputStream;
 import freenet.keys.CHKBlock;
@@ -20,6 +22,7 @@ import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.ParallelCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
@@ -93,6 +96,7 @@ public class InsertCompressor implements CompressJob {
 		long bestNumberOfBlocks = origNumberOfBlocks;
 		
 		HashResult[] hashes = null;
+		ArrayList<CodecAttempt> attempts = new ArrayList<CodecAttempt>();
 		
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
@@ -100,6 +104,13 @@ public class InsertCompressor implements CompressJob {
 		// Stop when run out of algorithms, or the compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
+			ParallelCompressor parallel = context.rc.getParallelCompressor();
+			if(parallel != null && comps.length > 1) {
+				CompressionOutput output = tryCompressParallel(parallel, comps, context);
+				bestCompressedData = output.data;
+				onCompressed(output, context);
+				return;
+			}
 			boolean first = true;
 			for (final COMPRESSOR_TYPE comp : comps) {
 				boolean shouldFreeOnFinally = true;
@@ -107,25 +118,9 @@ public class InsertCompressor implements CompressJob {
 				try {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					onStartCompression(comp, context);
 
+					long startTime = System.currentTimeMillis();
 					InputStream is = null;
 					OutputStream os = null;
 					MultiHashInputStream hasher = null;
@@ -142,10 +137,12 @@ public class InsertCompressor implements CompressJob {
 						} catch (RuntimeException e) {
 							// ArithmeticException has been seen in bzip2 codec.
 							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+							attempts.add(new CodecAttempt(comp.metadataID, -1, System.currentTimeMillis() - startTime, false));
 							// Try the next one
 							// RuntimeException is iffy, so lets not try the hasher.
 							continue;
 						} catch (CompressionOutputSizeException e) {
+							attempts.add(new CodecAttempt(comp.metadataID, -1, System.currentTimeMillis() - startTime, false));
 							if(hasher != null) {
 								is.skip(Long.MAX_VALUE);
 								hashes = hasher.getResults();
@@ -162,6 +159,7 @@ public class InsertCompressor implements CompressJob {
 						Closer.close(os);
 					}
 					long resultSize = result.size();
+					attempts.add(new CodecAttempt(comp.metadataID, resultSize, System.currentTimeMillis() - startTime, false));
 					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
 					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
 					if(resultSize <= minSize) {
@@ -202,41 +200,8 @@ public class InsertCompressor implements CompressJob {
 				}
 			}
 			
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
-			
-			if(persistent) {
-			
-				context.jobRunner.queue(new PersistentJob() {
-					
-				    // This can wait until after the next checkpoint, because it's still in the
-				    // persistentInsertCompressors list, so will be restarted if necessary.
-					@Override
-					public boolean run(ClientContext context) {
-						inserter.onCompressed(output, context);
-						return true;
-					}
-					
-				}, NativeThread.NORM_PRIORITY+1);
-			} else {
-				// We do it off thread so that RealCompressor can release the semaphore
-				context.mainExecutor.execute(new PrioRunnable() {
-
-					@Override
-					public int getPriority() {
-						return NativeThread.NORM_PRIORITY;
-					}
-
-					@Override
-					public void run() {
-						try {
-							inserter.onCompressed(output, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Caught "+t+" running compression job", t);
-						}
-					}
-					
-				}, "Insert thread for "+this);
-			}
+			onCompressed(new CompressionOutput(bestCompressedData, bestCodec, hashes, 
+			        attempts.toArray(new CodecAttempt[attempts.size()])), context);
 		} catch (PersistenceDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
@@ -248,6 +213,125 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/** Try all the codecs at once, reading the data only once. Otherwise the same as trying 
+	 * them one at a time: We use the first codec that fits the data in a single block, or the one
+	 * which produces the fewest blocks. */
+	private CompressionOutput tryCompressParallel(ParallelCompressor compressor, COMPRESSOR_TYPE[] comps, 
+	        ClientContext context) throws IOException, PersistenceDisabledException {
+		long origSize = origData.size();
+		for(COMPRESSOR_TYPE comp : comps)
+			onStartCompression(comp, context);
+		ParallelCompressor.Attempt[] results = null;
+		HashResult[] hashes = null;
+		InputStream is = null;
+		boolean success = false;
+		try {
+			is = origData.getInputStream();
+			MultiHashInputStream hasher = null;
+			if(generateHashes != 0) {
+				if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+				is = hasher = new MultiHashInputStream(is, generateHashes);
+			}
+			results = compressor.compress(is, comps, bucketFactory, origSize, origSize, CHKBlock.DATA_LENGTH);
+			if(hasher != null) {
+				// The codecs may all have given up early.
+				is.skip(Long.MAX_VALUE);
+				hashes = hasher.getResults();
+			}
+			success = true;
+		} finally {
+			Closer.close(is);
+			if(!success && results != null) {
+				for(ParallelCompressor.Attempt result : results)
+					if(result.data != null) result.data.free();
+			}
+		}
+		ParallelCompressor.Attempt best = null;
+		long bestNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
+		CodecAttempt[] attempts = new CodecAttempt[results.length];
+		for(int i=0;i<results.length;i++) {
+			ParallelCompressor.Attempt result = results[i];
+			attempts[i] = new CodecAttempt(result.codec.metadataID, result.compressedSize, result.timeMillis, result.aborted);
+		}
+		for(ParallelCompressor.Attempt result : results) {
+			if(result.data == null) continue;
+			long resultNumberOfBlocks = result.compressedSize/CHKBlock.DATA_LENGTH;
+			if(result.compressedSize <= minSize) {
+				best = result;
+				break;
+			}
+			if(resultNumberOfBlocks < bestNumberOfBlocks) {
+				best = result;
+				bestNumberOfBlocks = resultNumberOfBlocks;
+			}
+		}
+		for(ParallelCompressor.Attempt result : results) {
+			if(result != best && result.data != null)
+				result.data.free();
+		}
+		if(logMINOR) Logger.minor(this, "Compressed in parallel, best is "+best);
+		if(best == null)
+			return new CompressionOutput(origData, null, hashes, attempts);
+		else
+			return new CompressionOutput(best.data, best.codec, hashes, attempts);
+	}
+
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	private void onCompressed(final CompressionOutput output, final ClientContext context) throws PersistenceDisabledException {
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+				
+			    // This can wait until after the next checkpoint, because it's still in the
+			    // persistentInsertCompressors list, so will be restarted if necessary.
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onCompressed(output, context);
+					return true;
+				}
+				
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			// We do it off thread so that RealCompressor can release the semaphore
+			context.mainExecutor.execute(new PrioRunnable() {
+
+				@Override
+				public int getPriority() {
+					return NativeThread.NORM_PRIORITY;
+				}
+
+				@Override
+				public void run() {
+					try {
+						inserter.onCompressed(output, context);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running compression job", t);
+					}
+				}
+				
+			}, "Insert thread for "+this);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
@@ -0,0 +1,189 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>Maps salted keys to the KeyListener's which are probably listening for them, so that
+ * KeyListenerTracker doesn't have to ask every KeyListener about every block that passes through
+ * the node. A lookup costs a constant number of memory probes regardless of how many listeners
+ * are registered.</p>
+ *
+ * <p>This is an open addressing hash table of longs with linear probing. Each slot holds the first
+ * 40 bits of a salted key (which is already a SHA-256 hash, so we don't need to hash it again),
+ * and the 24-bit id of the listener which wants it. The table position is computed from the
+ * stored bits alone, so we can resize and compact without asking the listeners for their keys
+ * again. Matching on 40 bits means false positives are rare, but callers must still check with
+ * the listener itself.</p>
+ *
+ * <p>Removing a listener only forgets its id; its slots are dropped lazily the next time the
+ * table is rebuilt, which happens when they make up half of the table, or when it needs to
+ * grow. Ids are only reused after their slots have been dropped.</p>
+ *
+ * <p>MEMORY: Roughly 11 to 16 bytes per key, compared to around 5 bytes per key for the main
+ * Bloom filter of a SplitFileFetcherKeyListener.</p>
+ *
+ * LOCKING: Not thread-safe. KeyListenerTracker synchronizes on itself.
+ * @see IndexableKeyListener
+ */
+class KeyListenerIndex {
+
+	static final int ID_BITS = 24;
+	/** Id 0 is never used, so that an empty slot is always 0. */
+	static final int MAX_LISTENERS = (1 << ID_BITS) - 1;
+	private static final long ID_MASK = (1L << ID_BITS) - 1;
+	private static final int MIN_SIZE = 1024;
+	/** Grow when the table is more than 3/4 full. */
+	private static final int MAX_LOAD_NUMERATOR = 3;
+	private static final int MAX_LOAD_DENOMINATOR = 4;
+
+	private long[] table;
+	private int mask;
+	/** Number of non-empty slots, including those belonging to removed listeners. */
+	private int used;
+	/** Number of slots belonging to removed listeners. */
+	private int dead;
+	/** Listeners by id. Null if the id is free or the listener has been removed. */
+	private KeyListener[] listeners;
+	/** Number of slots used by each id. */
+	private int[] slotCounts;
+	private final HashMap<KeyListener, Integer> ids;
+	/** Ids of removed listeners which may still have slots in the table. */
+	private final ArrayList<Integer> removedIds;
+	/** Ids which can be allocated. */
+	private final ArrayList<Integer> freeIds;
+	private int nextId;
+
+	KeyListenerIndex() {
+		table = new long[MIN_SIZE];
+		mask = MIN_SIZE - 1;
+		listeners = new KeyListener[16];
+		slotCounts = new int[16];
+		ids = new HashMap<KeyListener, Integer>();
+		removedIds = new ArrayList<Integer>();
+		freeIds = new ArrayList<Integer>();
+		nextId = 1;
+	}
+
+	/** Convert a salted key to the form stored in the index. Only the first 40 bits are used. */
+	static long hashSaltedKey(byte[] saltedKey) {
+		return ((saltedKey[0] & 0xFFL) << 32) | ((saltedKey[1] & 0xFFL) << 24) |
+			((saltedKey[2] & 0xFFL) << 16) | ((saltedKey[3] & 0xFFL) << 8) | (saltedKey[4] & 0xFFL);
+	}
+
+	/** Add a listener and all the keys it wants.
+	 * @param keyHashes The salted keys, converted by hashSaltedKey().
+	 * @return False if there are too many listeners, in which case the caller must check the
+	 * listener separately. */
+	boolean add(KeyListener listener, long[] keyHashes) {
+		if(ids.containsKey(listener)) throw new IllegalArgumentException("Already indexed: "+listener);
+		int id = allocateId();
+		if(id == -1) return false;
+		listeners[id] = listener;
+		slotCounts[id] = keyHashes.length;
+		ids.put(listener, id);
+		ensureCapacity(used + keyHashes.length);
+		for(long hash : keyHashes)
+			insert((hash << ID_BITS) | id);
+		used += keyHashes.length;
+		return true;
+	}
+
+	/** Remove a listener. Its slots will be reclaimed later.
+	 * @return False if the listener was not indexed. */
+	boolean remove(KeyListener listener) {
+		Integer id = ids.remove(listener);
+		if(id == null) return false;
+		listeners[id] = null;
+		dead += slotCounts[id];
+		slotCounts[id] = 0;
+		removedIds.add(id);
+		if(dead > used / 2)
+			rebuild(table.length);
+		return true;
+	}
+
+	boolean contains(KeyListener listener) {
+		return ids.containsKey(listener);
+	}
+
+	/** @return The number of listeners currently indexed. */
+	int size() {
+		return ids.size();
+	}
+
+	/** Add every listener which may want the key to the list. Each listener is only added once.
+	 * False positives are possible, but there are no false negatives. */
+	void getCandidates(byte[] saltedKey, List<KeyListener> candidates) {
+		long hash = hashSaltedKey(saltedKey);
+		int pos = (int)hash & mask;
+		long entry;
+		while((entry = table[pos]) != 0) {
+			if((entry >>> ID_BITS) == hash) {
+				KeyListener listener = listeners[(int)(entry & ID_MASK)];
+				if(listener != null && !candidates.contains(listener))
+					candidates.add(listener);
+			}
+			pos = (pos + 1) & mask;
+		}
+	}
+
+	private int allocateId() {
+		if(!freeIds.isEmpty())
+			return freeIds.remove(freeIds.size()-1);
+		if(nextId > MAX_LISTENERS) {
+			// Reclaim the ids of removed listeners.
+			if(removedIds.isEmpty()) return -1;
+			rebuild(table.length);
+			return freeIds.remove(freeIds.size()-1);
+		}
+		int id = nextId++;
+		if(id >= listeners.length) {
+			int newLength = Math.min(listeners.length * 2, MAX_LISTENERS + 1);
+			listeners = Arrays.copyOf(listeners, newLength);
+			slotCounts = Arrays.copyOf(slotCounts, newLength);
+		}
+		return id;
+	}
+
+	private void ensureCapacity(int slots) {
+		if((long)slots * MAX_LOAD_DENOMINATOR <= (long)table.length * MAX_LOAD_NUMERATOR) return;
+		// Dropping removed listeners' slots may be enough.
+		int live = slots - dead;
+		int size = table.length;
+		while((long)live * MAX_LOAD_DENOMINATOR > (long)size * MAX_LOAD_NUMERATOR)
+			size *= 2;
+		rebuild(size);
+	}
+
+	/** Rebuild the table at the given size, dropping the slots of removed listeners and making
+	 * their ids available again. */
+	private void rebuild(int size) {
+		long[] oldTable = table;
+		table = new long[size];
+		mask = size - 1;
+		used = 0;
+		for(long entry : oldTable) {
+			if(entry == 0) continue;
+			if(listeners[(int)(entry & ID_MASK)] == null) continue;
+			insert(entry);
+			used++;
+		}
+		dead = 0;
+		freeIds.addAll(removedIds);
+		removedIds.clear();
+	}
+
+	private void insert(long entry) {
+		int pos = (int)(entry >>> ID_BITS) & mask;
+		while(table[pos] != 0)
+			pos = (pos + 1) & mask;
+		table[pos] = entry;
+	}
+
+}
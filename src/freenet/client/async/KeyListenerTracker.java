@@ -62,6 +62,11 @@ class KeyListenerTracker implements KeySalter {
 	protected final ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	private final ArrayList<KeyListener> keyListeners;
+	/** The IndexableKeyListener's in keyListeners, by salted key. */
+	private final KeyListenerIndex index;
+	/** The KeyListener's in keyListeners which are not in the index, and so must be asked about
+	 * every key. */
+	private final ArrayList<KeyListener> unindexed;
 
 	final boolean persistent;
 	
@@ -75,6 +80,8 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		index = new KeyListenerIndex();
+		unindexed = new ArrayList<KeyListener>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -101,7 +108,22 @@ class KeyListenerTracker implements KeySalter {
 			// We have to register before checking the disk, so it may well get registered twice.
 			if(keyListeners.contains(listener))
 				return;
+		}
+		// Listing the keys may involve disk I/O, so do it outside the lock.
+		long[] keyHashes = null;
+		if(listener instanceof IndexableKeyListener) {
+			try {
+				keyHashes = ((IndexableKeyListener)listener).getSaltedKeyHashes(this);
+			} catch (Throwable t) {
+				Logger.error(this, format("Unable to index %s, will check it for every key", listener), t);
+			}
+		}
+		synchronized (this) {
+			if(keyListeners.contains(listener))
+				return;
 			keyListeners.add(listener);
+			if(keyHashes == null || !index.add(listener, keyHashes))
+				unindexed.add(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
@@ -111,6 +133,8 @@ class KeyListenerTracker implements KeySalter {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			if(ret && !index.remove(listener))
+				unindexed.remove(listener);
 		}
 		listener.onRemove();
 		if (logMINOR)
@@ -198,19 +222,10 @@ class KeyListenerTracker implements KeySalter {
 		return false;
 	}
 	
-	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
+	public boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
-			try {
-				if (listener.probablyWantKey(key, saltedKey)) {
-					return true;
-				}
-			} catch (Throwable t) {
-				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
-			}
-		}
-		return false;
+		return !probablyWantKey(key, saltedKey).isEmpty();
 	}
 	
 	public boolean tripPendingKey(Key key, KeyBlock block, ClientContext context) {
@@ -298,12 +313,16 @@ class KeyListenerTracker implements KeySalter {
 	}
 
 	/**
-	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey)
+	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey). Only the
+	 * indexed listeners which might want the key are asked, plus all the unindexed listeners.
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			index.getCandidates(saltedKey, candidates);
+			candidates.addAll(unindexed);
+			for (KeyListener listener : candidates) {
 				try {
 					if (!listener.probablyWantKey(key, saltedKey)) {
 						continue;
@@ -58,6 +58,10 @@ public interface PersistentJobRunner {
      * able to do it "inline". */
     void setCheckpointASAP();
 
+    /** Commit ASAP because a request has changed. The request is marked dirty here, so the 
+     * change is written even if the next checkpoint only writes a journal file. */
+    void setCheckpointASAP(ClientRequester changed);
+
     /** Has the queue started yet? */
     boolean hasLoaded();
     
@@ -10,7 +10,10 @@ import freenet.support.Ticker;
 import freenet.support.io.NativeThread;
 
 /** Runs PersistentJob's and periodically, or on demand, suspends all jobs and calls 
- * innerCheckpoint(). */
+ * prepareCheckpoint(). By default this calls innerCheckpoint(), which writes everything with the
+ * jobs suspended. A subclass can instead take a snapshot of the state in prepareCheckpoint() and
+ * return a CheckpointWriter, which writes the snapshot to disk after the jobs have been restarted,
+ * so the jobs are only stalled while the snapshot is taken. */
 public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     
     private static volatile boolean logMINOR;
@@ -45,6 +48,20 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     private boolean writing = false;
     /** True if we should reject all new jobs */
     private boolean killed = false;
+    /** True if a CheckpointWriter is writing the last checkpoint while jobs run. We don't start 
+     * another checkpoint until it has finished. */
+    private boolean writingInBackground = false;
+    /** True if a checkpoint was requested while writing in the background. */
+    private boolean checkpointAfterWrite = false;
+    /** Time at which we started holding back jobs for a checkpoint, or 0. */
+    private long stallStart;
+    /** Upper bounds of the buckets of the stall time histogram, in milliseconds. The last bucket
+     * has no upper bound. */
+    public static final long[] STALL_HISTOGRAM_BOUNDS = new long[] { 10, 100, 1000, 10000 };
+    /** Number of checkpoints by how long jobs were held back. */
+    private final long[] stallHistogram = new long[STALL_HISTOGRAM_BOUNDS.length+1];
+    private long totalStallTime;
+    private long maxStallTime;
 
     public PersistentJobRunnerImpl(Executor executor, Ticker ticker, long interval) {
         this.executor = executor;
@@ -154,13 +171,21 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
                 if(logMINOR) Logger.minor(this, "Not enableCheckpointing yet");
                 return;
             }
+            if(writingInBackground) {
+                // Don't hold back jobs until the last checkpoint has been written.
+                if(ret || System.currentTimeMillis() - lastCheckpointed > checkpointInterval)
+                    checkpointAfterWrite = true;
+                else
+                    delayedCheckpoint();
+                return;
+            }
             if(ret) {
-                mustCheckpoint = true;
+                setMustCheckpoint();
                 if(logMINOR) Logger.minor(this, "Writing because asked to");
             }
             if(!mustCheckpoint) {
                 if(System.currentTimeMillis() - lastCheckpointed > checkpointInterval) {
-                    mustCheckpoint = true;
+                    setMustCheckpoint();
                     if(logMINOR) Logger.minor(this, "Writing at interval");
                 }
             }
@@ -192,25 +217,69 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
         final int threadPriority;
     }
 
+    /** Set mustCheckpoint, so we start holding back jobs. Caller must hold sync. */
+    private void setMustCheckpoint() {
+        mustCheckpoint = true;
+        startStall();
+    }
+    
+    /** Caller must hold sync. */
+    private void startStall() {
+        if(stallStart == 0)
+            stallStart = System.currentTimeMillis();
+    }
+    
+    /** Record how long jobs were held back. Caller must hold sync. */
+    private void endStall() {
+        if(stallStart == 0) return;
+        long stall = System.currentTimeMillis() - stallStart;
+        stallStart = 0;
+        int i = 0;
+        while(i < STALL_HISTOGRAM_BOUNDS.length && stall >= STALL_HISTOGRAM_BOUNDS[i]) i++;
+        stallHistogram[i]++;
+        totalStallTime += stall;
+        if(stall > maxStallTime) maxStallTime = stall;
+    }
+
     private void checkpoint(boolean shutdown) {
         if(logMINOR) Logger.minor(this, "Writing checkpoint...");
         synchronized(sync) {
+            startStall();
             if(!enableCheckpointing) {
                 writing = false;
+                stallStart = 0;
                 sync.notifyAll();
                 return;
             }
+            // Normally we don't start a checkpoint while writing one in the background, but
+            // e.g. waitForIdleAndCheckpoint() can.
+            while(writingInBackground) {
+                try {
+                    sync.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
         }
+        CheckpointWriter writer = null;
         synchronized(serializeCheckpoints) {
             try {
-                innerCheckpoint(shutdown);
+                writer = prepareCheckpoint(shutdown);
+                if(writer != null && shutdown) {
+                    // Write it now, we are about to exit.
+                    writer.write();
+                    writer = null;
+                }
             } catch (Throwable t) {
                 Logger.error(this, "Unable to save: "+t, t);
+                writer = null;
             }
         }
         synchronized(sync) {
             mustCheckpoint = false;
             writing = false;
+            if(writer != null)
+                writingInBackground = true;
             QueuedJob[] jobs = queuedJobs.toArray(new QueuedJob[queuedJobs.size()]);
             if(logDEBUG) Logger.debug(this, "Starting "+jobs.length+" queued jobs");
             for(QueuedJob job : jobs) {
@@ -219,9 +288,52 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
             }
             updateLastCheckpointed();
             queuedJobs.clear();
+            endStall();
             sync.notifyAll();
         }
-        if(logMINOR) Logger.minor(this, "Completed writing checkpoint");
+        if(writer != null)
+            writeInBackground(writer);
+        else
+            if(logMINOR) Logger.minor(this, "Completed writing checkpoint");
+    }
+    
+    private void writeInBackground(final CheckpointWriter writer) {
+        executor.execute(new PrioRunnable() {
+
+            @Override
+            public void run() {
+                synchronized(serializeCheckpoints) {
+                    try {
+                        writer.write();
+                    } catch (Throwable t) {
+                        Logger.error(this, "Unable to save: "+t, t);
+                    }
+                }
+                if(logMINOR) Logger.minor(this, "Completed writing checkpoint");
+                boolean again = false;
+                synchronized(sync) {
+                    writingInBackground = false;
+                    sync.notifyAll();
+                    if(checkpointAfterWrite) {
+                        checkpointAfterWrite = false;
+                        if(killed || !enableCheckpointing) return;
+                        setMustCheckpoint();
+                        if(runningJobs == 0 && !writing) {
+                            writing = true;
+                            again = true;
+                        }
+                        // Otherwise the last job to finish will checkpoint.
+                    }
+                }
+                if(again) checkpoint(false);
+            }
+
+            @Override
+            public int getPriority() {
+                return WRITE_AT_PRIORITY;
+            }
+            
+        });
     }
     
     public void delayedCheckpoint() {
@@ -238,6 +350,10 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
                                 System.currentTimeMillis() - lastCheckpointed > checkpointInterval))
                             return;
                         if(killed || !enableCheckpointing) return;
+                        if(writingInBackground) {
+                            checkpointAfterWrite = true;
+                            return;
+                        }
                         if(runningJobs != 0) return;
                         writing = true;
                     }
@@ -280,18 +396,46 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     public void setCheckpointASAP() {
         synchronized(sync) {
             if(!enableCheckpointing) return;
-            mustCheckpoint = true;
+            if(writingInBackground) {
+                checkpointAfterWrite = true;
+                return;
+            }
+            setMustCheckpoint();
             if(runningJobs != 0) return;
         }
         checkpointOffThread();
     }
     
+    @Override
+    public void setCheckpointASAP(ClientRequester changed) {
+        changed.markDirty();
+        setCheckpointASAP();
+    }
+    
     protected void updateLastCheckpointed() {
         lastCheckpointed = System.currentTimeMillis();
     }
 
     protected abstract void innerCheckpoint(boolean shutdown);
     
+    /** Writes a checkpoint to disk while jobs are running. */
+    protected interface CheckpointWriter {
+        /** Write the snapshot taken by prepareCheckpoint(). Called with serializeCheckpoints 
+         * held, but not with jobs suspended, so must not access anything the jobs can change. */
+        void write();
+    }
+    
+    /** Called with all jobs suspended, to checkpoint. The default implementation calls 
+     * innerCheckpoint() and returns null.
+     * @param shutdown True if we are shutting down.
+     * @return Null if the checkpoint has been written. Otherwise a CheckpointWriter which will be
+     * called after the jobs have been restarted, or immediately if we are shutting down. We won't 
+     * start another checkpoint until it returns. */
+    protected CheckpointWriter prepareCheckpoint(boolean shutdown) {
+        innerCheckpoint(shutdown);
+        return null;
+    }
+    
     protected void onLoading() {
         synchronized(sync) {
             loading = true;
@@ -327,9 +471,9 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
      * killed for this reason. */
     public void waitForIdleAndCheckpoint() {
         synchronized(sync) {
-            while(runningJobs > 0 || writing) {
+            while(runningJobs > 0 || writing || writingInBackground) {
                 if(!enableCheckpointing) return;
-                System.out.println("Waiting to shutdown: "+runningJobs+" running"+(writing ? " (writing)" : ""));
+                System.out.println("Waiting to shutdown: "+runningJobs+" running"+(writing || writingInBackground ? " (writing)" : ""));
                 try {
                     sync.wait();
                 } catch (InterruptedException e) {
@@ -345,8 +489,18 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     public void waitAndCheckpoint() throws PersistenceDisabledException {
         synchronized(sync) {
             if(!enableCheckpointing) return;
+            // Don't hold back jobs while the previous checkpoint is still being written.
+            while(writingInBackground) {
+                if(!enableCheckpointing) return;
+                if(killed) throw new PersistenceDisabledException();
+                try {
+                    sync.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
             // Set flag to ensure further jobs are queued, we want to write soon!
-            mustCheckpoint = true;
+            setMustCheckpoint();
             while(runningJobs > 0) {
                 if(!enableCheckpointing) return;
                 if(killed) throw new PersistenceDisabledException();
@@ -357,8 +511,8 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
                     // Ignore.
                 }
             }
-            if(writing) {
-                while(writing) {
+            if(writing || writingInBackground) {
+                while(writing || writingInBackground) {
                     if(!enableCheckpointing) return;
                     if(killed) throw new PersistenceDisabledException();
                     try {
@@ -378,7 +532,7 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     protected void killAndWaitForNotWriting() {
         synchronized(sync) {
             killed = true;
-            while(writing) {
+            while(writing || writingInBackground) {
                 try {
                     sync.wait();
                 } catch (InterruptedException e) {
@@ -390,7 +544,7 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     
     public void waitForNotWriting() {
         synchronized(sync) {
-            while(writing) {
+            while(writing || writingInBackground) {
                 try {
                     sync.wait();
                 } catch (InterruptedException e) {
@@ -403,7 +557,7 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
     public void killAndWaitForNotRunning() {
         synchronized(sync) {
             killed = true;
-            while(runningJobs > 0 || writing) {
+            while(runningJobs > 0 || writing || writingInBackground) {
                 try {
                     sync.wait();
                 } catch (InterruptedException e) {
@@ -465,5 +619,29 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
             return mustCheckpoint;
         }
     }
+    
+    /** @return The number of checkpoints for which jobs were held back for each range of times 
+     * given by STALL_HISTOGRAM_BOUNDS. */
+    public long[] getStallHistogram() {
+        synchronized(sync) {
+            return stallHistogram.clone();
+        }
+    }
+    
+    /** @return The total time for which jobs have been held back for checkpoints, in 
+     * milliseconds. */
+    public long getTotalStallTime() {
+        synchronized(sync) {
+            return totalStallTime;
+        }
+    }
+    
+    /** @return The longest time for which jobs have been held back for a checkpoint, in 
+     * milliseconds. */
+    public long getMaxStallTime() {
+        synchronized(sync) {
+            return maxStallTime;
+        }
+    }
 
 }
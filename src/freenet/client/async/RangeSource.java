@@ -0,0 +1,27 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+package freenet.client.async;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/** Gives access to parts of the final data of a splitfile while it is still being fetched. */
+public interface RangeSource {
+
+	/** The length of the final data. */
+	public long size();
+
+	/**
+	 * Write part of the data, waiting for the segments which contain it to be fetched. Those
+	 * segments are fetched sooner than the rest while we are waiting for them.
+	 * @param start The offset of the first byte to write.
+	 * @param end The offset after the last byte to write.
+	 * @throws InterruptedIOException If the fetch finished, failed or was cancelled before we
+	 * could write all of it. The stream is not closed.
+	 */
+	public void writeRange(OutputStream os, long start, long end) throws IOException;
+
+}
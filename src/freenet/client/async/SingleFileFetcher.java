@@ -3,13 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -903,8 +900,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			OutputStream compressed = null;
 			Bucket data = null;
 			// FIXME not strictly correct and unnecessary - archive size already checked against ctx.max*Length inside SingleFileFetcher
 			long maxLen = Math.min(ctx.maxTempLength, ctx.maxOutputLength);
@@ -913,26 +909,24 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-					worker.start();
-					streamGenerator.writeTo(pipeOut, context);
+					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(decompressors, output, maxLen, context.mainExecutor);
+					// The manager will close it.
+					output = null;
+					compressed = decompressorManager.getOutputStream();
+					streamGenerator.writeTo(compressed, context);
+					compressed.close(); compressed = null;
 					decompressorManager.waitFinished();
-					worker.waitFinished();
-				} else streamGenerator.writeTo(output, context);
-				// We want to see anything thrown when these are closed.
-				output.close(); output = null;
-				pipeOut.close(); pipeOut = null;
-				pipeIn.close(); pipeIn = null;
+				} else {
+					streamGenerator.writeTo(output, context);
+					// We want to see anything thrown when these are closed.
+					output.close(); output = null;
+				}
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t, t);
 				onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, t), state, context);
 				return;
 			} finally {
-				Closer.close(pipeOut);
-				Closer.close(pipeIn);
+				Closer.close(compressed);
 				Closer.close(output);
 			}
 			if(key instanceof ClientSSK) {
@@ -1050,8 +1044,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			OutputStream compressed = null;
 			Bucket finalData = null;
 			// does matter only on pre-1255 keys (1255 keys have top block sizes)
 			// FIXME would save at most few tics on decompression
@@ -1063,15 +1056,13 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				output = finalData.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeIn.connect(pipeOut);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-					worker.start();
-					streamGenerator.writeTo(pipeOut, context);
+					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(decompressors, output, maxLen, context.mainExecutor);
+					// The manager will close output.
+					output = null;
+					compressed = decompressorManager.getOutputStream();
+					streamGenerator.writeTo(compressed, context);
+					compressed.close(); compressed = null;
 					decompressorManager.waitFinished();
-					worker.waitFinished();
-					// ClientGetWorkerThread will close output.
 				} else {
 				    streamGenerator.writeTo(output, context);
 				    output.close();
@@ -1082,8 +1073,7 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, t), state, context);
 				return;
 			} finally {
-				Closer.close(pipeOut);
-				Closer.close(pipeIn);
+				Closer.close(compressed);
 				Closer.close(output);
 			}
 
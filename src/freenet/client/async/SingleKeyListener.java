@@ -7,7 +7,7 @@ import freenet.node.LowLevelGetException;
 import freenet.node.SendableGet;
 import freenet.support.Logger;
 
-public class SingleKeyListener implements KeyListener {
+public class SingleKeyListener implements IndexableKeyListener {
 	
 	private final Key key;
 	private final BaseSingleFileFetcher fetcher;
@@ -76,6 +76,11 @@ public class SingleKeyListener implements KeyListener {
 		return key.equals(this.key);
 	}
 
+	@Override
+	public long[] getSaltedKeyHashes(KeySalter salter) {
+		return new long[] { KeyListenerIndex.hashSaltedKey(salter.saltKey(key)) };
+	}
+
 	@Override
 	public synchronized void onRemove() {
 		done = true;
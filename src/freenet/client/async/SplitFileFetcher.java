@@ -186,10 +186,26 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
 
     @Override
     public void schedule(ClientContext context) {
+        maybeFilterWhileFetching(context);
         if(storage.start(false))
             getter.schedule(context, false);
     }
     
+    /** If this is the final data, let the ClientGetter filter it segment by segment as we fetch
+     * it, rather than waiting for the whole file, and let clients read parts of it as soon as 
+     * they have been fetched. */
+    private void maybeFilterWhileFetching(ClientContext context) {
+        if(persistent || wantBinaryBlob || callbackCompleteViaTruncation != null) return;
+        GetCompletionCallback target = cb;
+        if(target instanceof USKProxyCompletionCallback)
+            target = ((USKProxyCompletionCallback)target).cb;
+        if(target != parent || !(parent instanceof ClientGetter)) return;
+        ((ClientGetter)parent).filterWhileFetching(this, storage, storage.clientMetadata, 
+                storage.decompressors, context);
+        ((ClientGetter)parent).rangesWhileFetching(this, storage.rangeSource(), 
+                storage.clientMetadata, storage.decompressors, context);
+    }
+    
     /** Fail the whole splitfile request when we get an IOException on writing to or reading from 
      * the on-disk storage. Can be called asynchronously by SplitFileFetcher*Storage if an 
      * off-thread job (e.g. FEC decoding) breaks, or may be called when SplitFileFetcher*Storage
@@ -394,7 +410,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         // We need to fetch more blocks. Some of them may even be in the datastore.
         getter.unregister(context, getPriorityClass());
         getter.schedule(context, false);
-        context.jobRunner.setCheckpointASAP();
+        context.jobRunner.setCheckpointASAP(parent);
     }
 
     @Override
@@ -413,6 +429,12 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         return getter;
     }
 
+    /** Claim the storage file without resuming, for a download whose resumption is deferred. 
+     * See ClientGetter.claimStorage(). */
+    void claimStorage(ClientContext context) throws ResumeFailedException {
+        raf.onResume(context);
+    }
+
     @Override
     public void onResume(ClientContext context) throws FetchException {
         if(logMINOR) Logger.minor(this, "Restarting SplitFileFetcher from storage...");
@@ -457,6 +479,12 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         return context.getChkFetchScheduler(realTimeFlag).getGlobalKeySalter(persistent);
     }
 
+    /** @return False if writeTrivialProgress() would not write anything useful, because we have
+     * finished. */
+    public synchronized boolean canWriteTrivialProgress() {
+        return !(failed || succeeded);
+    }
+    
     public boolean writeTrivialProgress(DataOutputStream dos) throws IOException {
         boolean done = false;
         synchronized(this) {
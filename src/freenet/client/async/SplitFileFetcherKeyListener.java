@@ -22,7 +22,7 @@ import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexableKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -256,6 +256,26 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return false;
     }
 
+    @Override
+    public long[] getSaltedKeyHashes(KeySalter salter) throws IOException {
+        int total = 0;
+        SplitFileSegmentKeys[] keys = new SplitFileSegmentKeys[storage.segments.length];
+        for(int i=0;i<keys.length;i++) {
+            keys[i] = storage.segments[i].getSegmentKeys();
+            if(keys[i] == null) throw new IOException("No keys for segment "+i);
+            total += keys[i].totalKeys();
+        }
+        long[] hashes = new long[total];
+        int x = 0;
+        for(SplitFileSegmentKeys segmentKeys : keys) {
+            for(int j=0;j<segmentKeys.totalKeys();j++) {
+                Key key = segmentKeys.getKey(j, null, false).getNodeKey(false);
+                hashes[x++] = KeyListenerIndex.hashSaltedKey(salter.saltKey(key));
+            }
+        }
+        return hashes;
+    }
+
     @Override
     public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
         // Caller has already called probablyWantKey(), so don't do it again.
@@ -8,6 +8,7 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -38,6 +39,7 @@ import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.RandomArrayIterator;
@@ -173,6 +175,26 @@ public class SplitFileFetcherStorage {
     private boolean finishedEncoding;
     private boolean cancelled;
     private boolean succeeded;
+    /** Notified when a segment succeeds or the download is cancelled, for the range source. Not 
+     * the storage lock, so we don't wait on the same object as anything else. Also protects the
+     * ordered stream. */
+    private final Object segmentSucceededLock = new Object();
+    /** The number of streams waiting for each segment, so we can fetch those segments first.
+     * Protected by segmentSucceededLock, created when first needed. */
+    private int[] streamsWaiting;
+    private volatile int totalStreamsWaiting;
+    /** Receives the data from streamInOrder(). Protected by segmentSucceededLock. */
+    private OrderedStreamCallback orderedStream;
+    private Executor orderedStreamExecutor;
+    /** The next segment to write to orderedStream. Protected by segmentSucceededLock. */
+    private int orderedStreamNext;
+    /** True while a job is writing to orderedStream. Protected by segmentSucceededLock. */
+    private boolean orderedStreamWriting;
+    /** The number of reads from the RAF for a RangeSource in progress. Protected by 
+     * segmentSucceededLock. */
+    private int rangeReads;
+    /** Set when we are about to close the RAF, after which ranges can't be read. */
+    private boolean closingRanges;
     
     /** Errors. For now, this is not persisted (FIXME). */
     private FailureCodeTracker errors;
@@ -1131,6 +1153,10 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        synchronized(segmentSucceededLock) {
+            segmentSucceededLock.notifyAll();
+        }
+        maybeWriteInOrder();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
@@ -1195,6 +1221,220 @@ public class SplitFileFetcherStorage {
             
         };
     }
+    
+    /** Receives the data in order while the download is still running, see streamInOrder(). */
+    public interface OrderedStreamCallback {
+
+        /** @return The stream to write the data to. Not closed. */
+        OutputStream getOutputStream();
+
+        /** Called after the last segment has been written. */
+        void onWritten();
+
+        /** Called if writing fails, or if the download stops before all the segments have been
+         * written, in which case onWritten() is not called. */
+        void onFailed(IOException e);
+
+    }
+
+    /** Like streamGenerator(), but can be used while the download is still running. Each segment 
+     * is written as soon as it and all the segments before it have been fetched and decoded, so 
+     * the start of the file can be decompressed, hashed and filtered while the rest is still being
+     * fetched. Nothing waits for the download: Each run of consecutive fetched segments is 
+     * written by a job started from finishedSuccess(). Only one stream at a time.
+     * @param executor Runs the jobs which write the data. */
+    public void streamInOrder(OrderedStreamCallback cb, Executor executor) {
+        synchronized(segmentSucceededLock) {
+            if(orderedStream != null) throw new IllegalStateException("Already streaming");
+            orderedStream = cb;
+            orderedStreamExecutor = executor;
+            orderedStreamNext = 0;
+            addStreamWaiting(0, 1);
+        }
+        maybeWriteInOrder();
+    }
+
+    /** Start a job to write to the ordered stream if the next segment has been fetched, or to 
+     * tell it that the download has stopped. */
+    private void maybeWriteInOrder() {
+        Executor executor;
+        synchronized(segmentSucceededLock) {
+            if(orderedStream == null || orderedStreamWriting) return;
+            if(!segments[orderedStreamNext].hasSucceeded() && !hasFinished()) return;
+            orderedStreamWriting = true;
+            executor = orderedStreamExecutor;
+        }
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                writeInOrder();
+            }
+
+        }, "Streaming "+this+" for "+fetcher);
+    }
+
+    private void writeInOrder() {
+        while(true) {
+            OrderedStreamCallback cb;
+            SplitFileFetcherSegmentStorage segment;
+            boolean stopped = false;
+            synchronized(segmentSucceededLock) {
+                cb = orderedStream;
+                segment = segments[orderedStreamNext];
+                if(!segment.hasSucceeded()) {
+                    if(!hasFinished()) {
+                        // finishedSuccess() will start another job.
+                        orderedStreamWriting = false;
+                        return;
+                    }
+                    addStreamWaiting(orderedStreamNext, -1);
+                    orderedStream = null;
+                    orderedStreamExecutor = null;
+                    stopped = true;
+                }
+            }
+            if(stopped) {
+                cb.onFailed(new InterruptedIOException("Download stopped before segment "+segment.segNo+" was fetched"));
+                return;
+            }
+            if(logMINOR) Logger.minor(this, "Streaming "+segment+" for "+fetcher);
+            try {
+                LockableRandomAccessBuffer.RAFLock lock = raf.lockOpen();
+                try {
+                    segment.writeToInner(cb.getOutputStream());
+                } finally {
+                    lock.unlock();
+                }
+            } catch (IOException e) {
+                synchronized(segmentSucceededLock) {
+                    addStreamWaiting(orderedStreamNext, -1);
+                    orderedStream = null;
+                    orderedStreamExecutor = null;
+                }
+                cb.onFailed(e);
+                return;
+            }
+            boolean done;
+            synchronized(segmentSucceededLock) {
+                addStreamWaiting(orderedStreamNext, -1);
+                orderedStreamNext++;
+                done = orderedStreamNext == segments.length;
+                if(done) {
+                    orderedStream = null;
+                    orderedStreamExecutor = null;
+                } else {
+                    addStreamWaiting(orderedStreamNext, 1);
+                }
+            }
+            if(done) {
+                cb.onWritten();
+                return;
+            }
+        }
+    }
+
+    /** Caller must hold segmentSucceededLock. */
+    private void addStreamWaiting(int segNo, int delta) {
+        if(streamsWaiting == null) streamsWaiting = new int[segments.length];
+        streamsWaiting[segNo] += delta;
+        totalStreamsWaiting += delta;
+    }
+    
+    /** Like streamInOrder(), but for any part of the data, read straight from the 
+     * segments as they are fetched. Only useful if the data doesn't need decompressing. */
+    public RangeSource rangeSource() {
+        return new RangeSource() {
+
+            @Override
+            public long size() {
+                return finalLength;
+            }
+
+            @Override
+            public void writeRange(OutputStream os, long start, long end) throws IOException {
+                if(start < 0 || end > finalLength || start > end)
+                    throw new IllegalArgumentException("Bad range "+start+" - "+end+" of "+finalLength);
+                byte[] buf = new byte[CHKBlock.DATA_LENGTH];
+                long segmentStart = 0;
+                for(SplitFileFetcherSegmentStorage segment : segments) {
+                    if(segmentStart >= end) break;
+                    long segmentEnd = segmentStart + (long)segment.dataBlocks * CHKBlock.DATA_LENGTH;
+                    if(segmentEnd > start) {
+                        waitForSuccess(segment);
+                        if(logMINOR) Logger.minor(this, "Writing range "+start+" - "+end+" from "+segment+" for "+fetcher);
+                        long offset = Math.max(start, segmentStart);
+                        long to = Math.min(end, segmentEnd);
+                        while(offset < to) {
+                            int length = (int)Math.min(buf.length, to - offset);
+                            readForRange(segment.segmentBlockDataOffset + (offset - segmentStart), buf, length);
+                            os.write(buf, 0, length);
+                            offset += length;
+                        }
+                    }
+                    segmentStart = segmentEnd;
+                }
+            }
+
+        };
+    }
+
+    /** Read data for a RangeSource. Doesn't keep the RAF locked while the caller writes it, 
+     * since it may be going to a slow client. */
+    private void readForRange(long offset, byte[] buf, int length) throws IOException {
+        synchronized(segmentSucceededLock) {
+            if(closingRanges) throw new InterruptedIOException("Download finished while reading a range");
+            rangeReads++;
+        }
+        try {
+            LockableRandomAccessBuffer.RAFLock lock = raf.lockOpen();
+            try {
+                raf.pread(offset, buf, 0, length);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            synchronized(segmentSucceededLock) {
+                if(--rangeReads == 0) segmentSucceededLock.notifyAll();
+            }
+        }
+    }
+
+    private void waitForSuccess(SplitFileFetcherSegmentStorage segment) throws IOException {
+        synchronized(segmentSucceededLock) {
+            if(segment.hasSucceeded()) return;
+            addStreamWaiting(segment.segNo, 1);
+            try {
+                while(!segment.hasSucceeded()) {
+                    if(hasFinished())
+                        throw new InterruptedIOException("Download stopped before segment "+segment.segNo+" was fetched");
+                    try {
+                        segmentSucceededLock.wait();
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            } finally {
+                addStreamWaiting(segment.segNo, -1);
+            }
+        }
+    }
+
+    /** @return A random segment which a stream is waiting for, or null. */
+    private SplitFileFetcherSegmentStorage chooseWaitedForSegment() {
+        synchronized(segmentSucceededLock) {
+            if(totalStreamsWaiting == 0) return null;
+            int count = 0;
+            for(int waiting : streamsWaiting)
+                if(waiting > 0) count++;
+            if(count == 0) return null;
+            int choice = random.nextInt(count);
+            for(int i=0;i<streamsWaiting.length;i++) {
+                if(streamsWaiting[i] > 0 && choice-- == 0) return segments[i];
+            }
+            return null;
+        }
+    }
 
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
     
@@ -1245,16 +1485,18 @@ public class SplitFileFetcherStorage {
     }
 
     public void finishedFetcher() {
+        boolean close;
         synchronized(this) {
             if(finishedFetcher) {
                 if(logMINOR) Logger.minor(this, "Already finishedFetcher");
                 return;
             }
             finishedFetcher = true;
-            if(completeViaTruncation && !cancelled) return; // Ignore.
-            if(!finishedEncoding) return;
+            if(completeViaTruncation && !cancelled) close = false; // Ignore.
+            else close = finishedEncoding;
         }
-        closeOffThread();
+        maybeWriteInOrder();
+        if(close) closeOffThread();
     }
     
     /** Called on a normal non-truncation completion. Frees the storage file off-thread. */
@@ -1313,6 +1555,16 @@ public class SplitFileFetcherStorage {
      * not called on a MemoryLimitedJob thread. */
     void close() {
         if(logMINOR) Logger.minor(this, "Finishing "+this+" for "+fetcher, new Exception("debug"));
+        synchronized(segmentSucceededLock) {
+            closingRanges = true;
+            while(rangeReads > 0) {
+                try {
+                    segmentSucceededLock.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
         raf.close();
         raf.free();
         fetcher.onClosed();
@@ -1499,6 +1751,18 @@ public class SplitFileFetcherStorage {
         // FIXME OPT SCALABILITY A simpler option might be just to have one SplitFileFetcherGet per
         // segment, like the old code.
         synchronized(randomSegmentIterator) {
+            if(totalStreamsWaiting > 0 && random.nextBoolean()) {
+                // A client is waiting for this segment, either to stream the data in order or
+                // for a range. Only prefer it half the time, so a few slow blocks don't hold up
+                // the rest of the file.
+                SplitFileFetcherSegmentStorage segment = chooseWaitedForSegment();
+                if (segment != null) {
+                    int ret = segment.chooseRandomKey();
+                    if (ret != -1) {
+                        return new MyKey(ret, segment.segNo, this);
+                    }
+                }
+            }
             randomSegmentIterator.reset(random);
             while (randomSegmentIterator.hasNext()) {
                 SplitFileFetcherSegmentStorage segment = randomSegmentIterator.next();
@@ -1516,6 +1780,10 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             cancelled = true;
         }
+        synchronized(segmentSucceededLock) {
+            segmentSucceededLock.notifyAll();
+        }
+        maybeWriteInOrder();
         for(SplitFileFetcherSegmentStorage segment : segments)
             segment.cancel();
         if(crossSegments != null) {
@@ -0,0 +1,265 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Map;
+
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.support.LRUMap;
+import freenet.support.Logger;
+
+/**
+ * The latest known editions of USKs, by clear USK (edition 0), for USKManager. One small entry
+ * per USK rather than an entry in each of several maps. Bounded in size: When it is full, we
+ * forget the least recently updated USKs which nobody is subscribed to.
+ *
+ * The entries for USKs we poll in the background are saved by ClientLayerPersister along with the
+ * persistent requests, and so are encrypted in the same way. This means after a restart 
+ * subscriptions can continue from the last known slot rather than searching for it again, and 
+ * background fetchers know when the USK was last polled. We don't save anything else: A list of
+ * every USK we have fetched would be a browsing history.
+ *
+ * LOCKING: Not thread-safe. USKManager synchronizes on itself. Writing to disk is done from a
+ * Snapshot, outside the lock.
+ */
+class USKEditionIndex {
+
+	private static final int MAGIC = 0x55534b49; // "USKI"
+	private static final int VERSION = 1;
+
+	static class Entry {
+		/** Latest SSK slot known to be by the author, whether or not we could fetch the data. */
+		long latestSlot = -1;
+		/** Latest edition successfully fetched. */
+		long latestKnownGood = -1;
+		/** Time at which a background fetcher last finished a round for this USK, or 0. */
+		long lastChecked;
+	}
+
+	/** Entries by clear USK, least recently updated first. */
+	private final LRUMap<USK, Entry> entries;
+	private final int maxEntries;
+	/** USKs which must not be forgotten, i.e. those with subscribers. Shared with USKManager. */
+	private final Map<USK, ?> pinned;
+	/** USKs whose entries are saved, i.e. those we poll in the background. All of them are 
+	 * pinned. Shared with USKManager. */
+	private final Map<USK, ?> saved;
+	/** Counts changes to the entries we save. */
+	private long changes;
+	/** The value of changes when the last snapshot which was successfully written was taken. */
+	private long writtenChanges;
+
+	USKEditionIndex(int maxEntries, Map<USK, ?> pinned, Map<USK, ?> saved) {
+		this.entries = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+		this.maxEntries = maxEntries;
+		this.pinned = pinned;
+		this.saved = saved;
+	}
+
+	long lookupLatestSlot(USK clear) {
+		Entry e = entries.get(clear);
+		return e == null ? -1 : e.latestSlot;
+	}
+
+	long lookupKnownGood(USK clear) {
+		Entry e = entries.get(clear);
+		return e == null ? -1 : e.latestKnownGood;
+	}
+
+	long lastChecked(USK clear) {
+		Entry e = entries.get(clear);
+		return e == null ? 0 : e.lastChecked;
+	}
+
+	/** @return True if the edition is later than the latest known good edition, which has been
+	 * updated. Does not update the latest slot. */
+	boolean updateKnownGood(USK clear, long edition) {
+		Entry e = entries.get(clear);
+		if(e != null && e.latestKnownGood >= edition) return false;
+		e = touch(clear, e);
+		e.latestKnownGood = edition;
+		return true;
+	}
+
+	/** @return True if the edition is later than the latest known slot, which has been
+	 * updated. */
+	boolean updateLatestSlot(USK clear, long edition) {
+		Entry e = entries.get(clear);
+		if(e != null && e.latestSlot >= edition) return false;
+		e = touch(clear, e);
+		e.latestSlot = edition;
+		return true;
+	}
+
+	void setLastChecked(USK clear, long time) {
+		Entry e = touch(clear, entries.get(clear));
+		e.lastChecked = time;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/** @return True if the entries we save have changed since the last snapshot which was
+	 * written. */
+	boolean isDirty() {
+		return changes != writtenChanges;
+	}
+
+	/** Called when we start or stop saving a USK. */
+	void savedChanged() {
+		changes++;
+	}
+
+	/** Create the entry if necessary, mark it as the most recently updated, and make room. */
+	private Entry touch(USK clear, Entry e) {
+		if(e == null) e = new Entry();
+		entries.push(clear, e);
+		if(saved.containsKey(clear))
+			changes++;
+		if(entries.size() > maxEntries)
+			trim(clear);
+		return e;
+	}
+
+	/** Forget the least recently updated entries which are not pinned. Pinned entries which we
+	 * come across are moved to the most recently updated end. */
+	private void trim(USK justAdded) {
+		ArrayList<USK> keepKeys = null;
+		ArrayList<Entry> keepValues = null;
+		// Examine each entry at most once.
+		int toExamine = entries.size();
+		while(entries.size() > maxEntries && toExamine-- > 0) {
+			USK oldest = entries.peekKey();
+			Entry e = entries.popValue();
+			if(oldest.equals(justAdded) || pinned.containsKey(oldest)) {
+				if(keepKeys == null) {
+					keepKeys = new ArrayList<USK>();
+					keepValues = new ArrayList<Entry>();
+				}
+				keepKeys.add(oldest);
+				keepValues.add(e);
+			}
+		}
+		if(keepKeys != null) {
+			for(int i=0;i<keepKeys.size();i++)
+				entries.push(keepKeys.get(i), keepValues.get(i));
+		}
+	}
+
+	/** A copy of the entries we save, taken under the lock, which can be written without it. */
+	static class Snapshot {
+		private final USK[] keys;
+		private final long[] values;
+		/** The index's change count when the snapshot was taken. */
+		private final long changes;
+
+		private Snapshot(USK[] keys, long[] values, long changes) {
+			this.keys = keys;
+			this.values = values;
+			this.changes = changes;
+		}
+
+		void writeTo(DataOutputStream dos) throws IOException {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(keys.length);
+			for(int i=0;i<keys.length;i++) {
+				dos.writeUTF(keys[i].getURI().toString(false, false));
+				dos.writeLong(values[i*3]);
+				dos.writeLong(values[i*3+1]);
+				dos.writeLong(values[i*3+2]);
+			}
+		}
+
+		int size() {
+			return keys.length;
+		}
+	}
+
+	static final Snapshot EMPTY_SNAPSHOT = new Snapshot(new USK[0], new long[0], -1);
+
+	/** @return A snapshot with no entries, which still clears the dirty flag once written. */
+	Snapshot emptySnapshot() {
+		return new Snapshot(new USK[0], new long[0], changes);
+	}
+
+	/** Copy the entries we save. The dirty flag is only cleared when the snapshot has been
+	 * written, see onWritten(). */
+	Snapshot snapshot() {
+		ArrayList<USK> keys = new ArrayList<USK>(saved.size());
+		ArrayList<Entry> values = new ArrayList<Entry>(saved.size());
+		Enumeration<USK> k = entries.keys();
+		Enumeration<Entry> v = entries.values();
+		// Least recently updated first, so the order survives a restart.
+		while(k.hasMoreElements()) {
+			USK key = k.nextElement();
+			Entry e = v.nextElement();
+			if(!saved.containsKey(key)) continue;
+			keys.add(key);
+			values.add(e);
+		}
+		long[] copy = new long[keys.size()*3];
+		for(int i=0;i<keys.size();i++) {
+			Entry e = values.get(i);
+			copy[i*3] = e.latestSlot;
+			copy[i*3+1] = e.latestKnownGood;
+			copy[i*3+2] = e.lastChecked;
+		}
+		return new Snapshot(keys.toArray(new USK[keys.size()]), copy, changes);
+	}
+
+	/** Called when a snapshot has been written successfully. If writing fails, we stay dirty, so
+	 * the entries are written again. */
+	void onWritten(Snapshot snapshot) {
+		if(snapshot.changes > writtenChanges)
+			writtenChanges = snapshot.changes;
+	}
+
+	/** Add the entries written by Snapshot.writeTo(). Entries which can't be parsed are skipped.
+	 * If we already know of a later edition, we keep it.
+	 * @throws IOException If the data is corrupt. Entries read before the problem are kept. */
+	void read(DataInputStream dis) throws IOException {
+		try {
+			if(dis.readInt() != MAGIC) throw new IOException("Bad magic");
+			if(dis.readInt() != VERSION) throw new IOException("Unknown version");
+			int count = dis.readInt();
+			if(count < 0) throw new IOException("Bad count");
+			for(int i=0;i<count;i++) {
+				String uri = dis.readUTF();
+				long slot = dis.readLong();
+				long good = dis.readLong();
+				long checked = dis.readLong();
+				USK clear;
+				try {
+					clear = USK.create(new FreenetURI(uri)).clearCopy();
+				} catch (MalformedURLException e) {
+					Logger.error(this, "Ignoring bad USK in edition index: "+uri);
+					continue;
+				}
+				Entry e = entries.get(clear);
+				if(e == null) {
+					e = new Entry();
+					entries.push(clear, e);
+					if(entries.size() > maxEntries)
+						trim(clear);
+				}
+				e.latestSlot = Math.max(e.latestSlot, slot);
+				e.latestKnownGood = Math.max(e.latestKnownGood, good);
+				e.lastChecked = Math.max(e.lastChecked, checked);
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated edition index");
+		}
+	}
+
+}
@@ -6,11 +6,8 @@ package freenet.client.async;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
@@ -214,8 +211,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				List<? extends Compressor> decompressors, ClientGetState state,
 				ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			OutputStream compressed = null;
 			Bucket data = null;
 			long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
 			try {
@@ -223,22 +219,19 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
-					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-					pipeIn = decompressorManager.execute();
-					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-					worker.start();
-					streamGenerator.writeTo(pipeOut, context);
+					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(decompressors, output, maxLen, context.mainExecutor);
+					// The manager will close output.
+					output = null;
+					compressed = decompressorManager.getOutputStream();
+					streamGenerator.writeTo(compressed, context);
+					compressed.close();
+					compressed = null;
 					decompressorManager.waitFinished();
-					worker.waitFinished();
-				} else streamGenerator.writeTo(output, context);
-
-				output.close();
-				pipeOut.close();
-				pipeIn.close();
-				output = null;
-				pipeOut = null;
-				pipeIn = null;
+				} else {
+					streamGenerator.writeTo(output, context);
+					output.close();
+					output = null;
+				}
 				
 				// Run directly - we are running on some thread somewhere, don't worry about it.
 				innerSuccess(data, context);
@@ -253,8 +246,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					if(logMINOR) Logger.minor(this, "Remaining DBR attempts: "+dbrAttempts);
 					dbrsFinished = dbrAttempts.isEmpty();
 				}
-				Closer.close(pipeOut);
-				Closer.close(pipeIn);
+				Closer.close(compressed);
 				Closer.close(output);
 				if(dbrsFinished)
 					onDBRsFinished(context);
@@ -752,7 +744,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 				if(logMINOR) Logger.minor(this, "Sleep time is "+sleepTime+" this sleep is "+(end-now)+" for "+this);
 			}
-			schedule(end-now, context);
+			uskManager.onRoundFinished(this, end-now);
 			checkFinishedForNow(context);
 		} else {
 			USKFetcherCallback[] cb;
@@ -978,19 +970,6 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return origUSK;
 	}
 	
-	public void schedule(long delay, final ClientContext context) {
-		if (delay<=0) {
-			schedule(context);
-		} else {
-			context.ticker.queueTimedJob(new Runnable() {
-				@Override
-				public void run() {
-					USKFetcher.this.schedule(context);
-				}
-			}, delay);
-		}
-	}
-    
 	@Override
 	public void schedule(ClientContext context) {
 		if(logMINOR) Logger.minor(this, "Scheduling "+this);
@@ -3,8 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -21,6 +24,7 @@ import freenet.clients.http.FProxyToadlet;
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
 import freenet.node.NodeClientCore;
+import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
 import freenet.node.RequestStarter;
@@ -59,11 +63,25 @@ public class USKManager {
 		});
 	}
 	
-	/** Latest version successfully fetched by blanked-edition-number USK */
-	final Map<USK, Long> latestKnownGoodByClearUSK;
+	/** Latest version successfully fetched, latest SSK slot known to be by the author, and when 
+	 * we last polled, by blanked-edition-number USK. The entries for USKs we poll in the 
+	 * background are saved in client.dat by ClientLayerPersister. */
+	final USKEditionIndex editionIndex;
 	
-	/** Latest SSK slot known to be by the author by blanked-edition-number USK */
-	final Map<USK, Long> latestSlotByClearUSK;
+	/** Maximum number of USKs in editionIndex. USKs with subscribers are always kept. */
+	static final int MAX_EDITION_INDEX_SIZE = 20000;
+	
+	/** Don't start polling a USK on subscribing if we last polled it less than this long ago,
+	 * e.g. just before a restart. Start it when this has expired instead. */
+	static final long MIN_RECHECK_INTERVAL = MINUTES.toMillis(10);
+	
+	/** How long to wait after the index changes before asking for a checkpoint to save it. */
+	static final long EDITION_INDEX_WRITE_DELAY = MINUTES.toMillis(5);
+	
+	private boolean editionIndexWriteScheduled;
+	
+	/** Starts the polling rounds of the background fetchers, rate limited. */
+	final USKPollScheduler pollScheduler;
 	
 	/** Subscribers by clear USK */
 	final Map<USK, USKCallback[]> subscribersByClearUSK;
@@ -95,7 +113,10 @@ public class USKManager {
 	
 	private ClientContext context;
 	
+	private final NodeClientCore core;
+	
 	public USKManager(NodeClientCore core) {
+		this.core = core;
 		HighLevelSimpleClient client = core.makeClient(RequestStarter.UPDATE_PRIORITY_CLASS, false, false);
 		client.setMaxIntermediateLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
 		client.setMaxLength(FProxyToadlet.MAX_LENGTH_NO_PROGRESS);
@@ -106,10 +127,11 @@ public class USKManager {
 		realFetchContext = client.getFetchContext();
 		// Performance: I'm pretty sure there is no spatial locality in the underlying data, so it's okay to use the FAST_COMPARATOR here.
 		// That is, even if two USKs are by the same author, they won't necessarily be updated or polled at the same time.
-		latestKnownGoodByClearUSK = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
-		latestSlotByClearUSK = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
 		subscribersByClearUSK = new TreeMap<USK, USKCallback[]>(USK.FAST_COMPARATOR);
 		backgroundFetchersByClearUSK = new TreeMap<USK, USKFetcher>(USK.FAST_COMPARATOR);
+		editionIndex = new USKEditionIndex(MAX_EDITION_INDEX_SIZE, subscribersByClearUSK, 
+				backgroundFetchersByClearUSK);
+		pollScheduler = new USKPollScheduler();
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
@@ -117,6 +139,7 @@ public class USKManager {
 
 	public void init(ClientContext context) {
 		this.context = context;
+		pollScheduler.init(context);
 	}
 
 	/**
@@ -124,10 +147,7 @@ public class USKManager {
 	 * @return The latest known edition number, or -1.
 	 */
 	public synchronized long lookupKnownGood(USK usk) {
-		Long l = latestKnownGoodByClearUSK.get(usk.clearCopy());
-		if(l != null)
-			return l.longValue();
-		else return -1;
+		return editionIndex.lookupKnownGood(usk.clearCopy());
 	}
 
 	/**
@@ -136,10 +156,7 @@ public class USKManager {
 	 * @return The latest known edition number, or -1.
 	 */
 	public synchronized long lookupLatestSlot(USK usk) {
-		Long l = latestSlotByClearUSK.get(usk.clearCopy());
-		if(l != null)
-			return l.longValue();
-		else return -1;
+		return editionIndex.lookupLatestSlot(usk.clearCopy());
 	}
 
 	public USKFetcherTag getFetcher(USK usk, FetchContext ctx, boolean keepLast, boolean persistent, boolean realTime, 
@@ -429,23 +446,18 @@ public class USKManager {
 		final USKCallback[] callbacks;
 		boolean newSlot = false;
 		synchronized(this) {
-			Long l = latestKnownGoodByClearUSK.get(clear);
-			if(logMINOR) Logger.minor(this, "Old known good: "+l);
-			if((l == null) || (number > l.longValue())) {
-				l = Long.valueOf(number);
-				latestKnownGoodByClearUSK.put(clear, l);
+			if(logMINOR) Logger.minor(this, "Old known good: "+editionIndex.lookupKnownGood(clear));
+			if(editionIndex.updateKnownGood(clear, number)) {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 			} else
 				return; // If it's in KnownGood, it will also be in Slot
 			
-			l = latestSlotByClearUSK.get(clear);
-			if(logMINOR) Logger.minor(this, "Old slot: "+l);
-			if((l == null) || (number > l.longValue())) {
-				l = Long.valueOf(number);
-				latestSlotByClearUSK.put(clear, l);
+			if(logMINOR) Logger.minor(this, "Old slot: "+editionIndex.lookupLatestSlot(clear));
+			if(editionIndex.updateLatestSlot(clear, number)) {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
 			} 
+			editionIndexChanged();
 			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
@@ -469,14 +481,12 @@ public class USKManager {
 		USK clear = origUSK.clearCopy();
 		final USKCallback[] callbacks;
 		synchronized(this) {
-			Long l = latestSlotByClearUSK.get(clear);
-			if(logMINOR) Logger.minor(this, "Old slot: "+l);
-			if((l == null) || (number > l.longValue())) {
-				l = Long.valueOf(number);
-				latestSlotByClearUSK.put(clear, l);
+			if(logMINOR) Logger.minor(this, "Old slot: "+editionIndex.lookupLatestSlot(clear));
+			if(editionIndex.updateLatestSlot(clear, number)) {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 			} else
 				return;
+			editionIndexChanged();
 			
 			callbacks = subscribersByClearUSK.get(clear);
 			if(temporaryBackgroundFetchersPrefetch.containsKey(clear)) {
@@ -533,6 +543,7 @@ public class USKManager {
 		curEd = lookupLatestSlot(origUSK);
 		long goodEd;
 		goodEd = lookupKnownGood(origUSK);
+		long pollDelay = 0;
 		synchronized(this) {
 			USK clear = origUSK.clearCopy();
 			USKCallback[] callbacks = subscribersByClearUSK.get(clear);
@@ -560,6 +571,12 @@ public class USKManager {
 					f = new USKFetcher(origUSK, this, ignoreUSKDatehints ? backgroundFetchContextIgnoreDBR : backgroundFetchContext, new USKFetcherWrapper(origUSK, RequestStarter.UPDATE_PRIORITY_CLASS, client), 3, true, false, false);
 					sched = f;
 					backgroundFetchersByClearUSK.put(clear, f);
+					editionIndex.savedChanged();
+					editionIndexChanged();
+					long lastChecked = editionIndex.lastChecked(clear);
+					long now = System.currentTimeMillis();
+					if(lastChecked > 0 && lastChecked <= now)
+						pollDelay = Math.max(0, lastChecked + MIN_RECHECK_INTERVAL - now);
 				}
 				f.addSubscriber(cb, origUSK.suggestedEdition);
 			}
@@ -568,15 +585,9 @@ public class USKManager {
 			cb.onFoundEdition(goodEd, origUSK.copy(curEd), context, false, (short)-1, null, true, curEd > ed);
 		else if(curEd > ed)
 			cb.onFoundEdition(curEd, origUSK.copy(curEd), context, false, (short)-1, null, false, false);
-		final USKFetcher fetcher = sched;
-		if(fetcher != null) {
-			executor.execute(new Runnable() {
-				@Override
-				public void run() {
-					if(logMINOR) Logger.minor(this, "Starting "+fetcher);
-					fetcher.schedule(context);
-				}
-			}, "USKManager.schedule for "+fetcher);
+		if(sched != null) {
+			if(logMINOR) Logger.minor(this, "Starting "+sched+" in "+pollDelay+"ms");
+			pollScheduler.schedule(sched, pollDelay);
 		}
 	}
 	
@@ -611,12 +622,15 @@ public class USKManager {
 				if(!f.hasSubscribers()) {
 						toCancel = f;
 						backgroundFetchersByClearUSK.remove(clear);
+						editionIndex.savedChanged();
+						editionIndexChanged();
 				}
 			}
 			// Temporary background fetchers run once and then die.
 			// They do not care about callbacks.
 		}
 		if(toCancel != null) {
+			pollScheduler.remove(toCancel);
 			toCancel.cancel(context);
 		} else {
 			if(logMINOR) Logger.minor(this, "Not found unsubscribing: "+cb+" for "+origUSK);
@@ -697,9 +711,12 @@ public class USKManager {
 	public void onFinished(USKFetcher fetcher, boolean ignoreError) {
 		USK orig = fetcher.getOriginalUSK();
 		USK clear = orig.clearCopy();
+		pollScheduler.remove(fetcher);
 		synchronized(this) {
 			if(backgroundFetchersByClearUSK.get(clear) == fetcher) {
 				backgroundFetchersByClearUSK.remove(clear);
+				editionIndex.savedChanged();
+				editionIndexChanged();
 				if(!ignoreError) {
 					// This shouldn't happen, it's a sanity check: the only way we get cancelled is from USKManager, which removes us before calling cancel().
 					Logger.error(this, "onCancelled for "+fetcher+" - was still registered, how did this happen??", new Exception("debug"));
@@ -712,6 +729,83 @@ public class USKManager {
 		}
 	}
 
+	/** Called by a background USKFetcher when it has finished a polling round. Records when we
+	 * last checked the USK, and schedules the next round.
+	 * @param delay How long to wait before starting the next round. */
+	void onRoundFinished(USKFetcher fetcher, long delay) {
+		USK clear = fetcher.getOriginalUSK().clearCopy();
+		synchronized(this) {
+			editionIndex.setLastChecked(clear, System.currentTimeMillis());
+			editionIndexChanged();
+		}
+		pollScheduler.schedule(fetcher, delay);
+	}
+	
+	/** Ask for a checkpoint soon, if the entries we save have changed. Caller must hold the 
+	 * lock. */
+	private void editionIndexChanged() {
+		if(editionIndexWriteScheduled || context == null || !editionIndex.isDirty()) return;
+		editionIndexWriteScheduled = true;
+		context.ticker.queueTimedJob(editionIndexWriter, "Save USK edition index", 
+				EDITION_INDEX_WRITE_DELAY, false, true);
+	}
+	
+	private final Runnable editionIndexWriter = new Runnable() {
+		
+		@Override
+		public void run() {
+			synchronized(USKManager.this) {
+				editionIndexWriteScheduled = false;
+			}
+			// An empty job is enough: ClientLayerPersister will see that the index is dirty.
+			context.jobRunner.queueNormalOrDrop(new PersistentJob() {
+				
+				@Override
+				public boolean run(ClientContext context) {
+					return true;
+				}
+				
+			});
+		}
+		
+	};
+	
+	/** @return True if the editions of the USKs we poll in the background have changed since 
+	 * they were last saved. */
+	synchronized boolean isEditionIndexDirty() {
+		return editionIndex.isDirty();
+	}
+	
+	/** Called by ClientLayerPersister when writing client.dat or a journal. Only the USKs we poll 
+	 * in the background are included, and none at all if the physical security level is HIGH or
+	 * MAXIMUM, since even the list of subscriptions says something about the user. */
+	synchronized USKEditionIndex.Snapshot snapshotEditionIndex() {
+		PHYSICAL_THREAT_LEVEL level = core.node.securityLevels.getPhysicalThreatLevel();
+		if(level == PHYSICAL_THREAT_LEVEL.HIGH || level == PHYSICAL_THREAT_LEVEL.MAXIMUM)
+			return editionIndex.emptySnapshot();
+		return editionIndex.snapshot();
+	}
+	
+	/** Called by ClientLayerPersister when a snapshot has been written successfully. */
+	synchronized void onEditionIndexWritten(USKEditionIndex.Snapshot snapshot) {
+		editionIndex.onWritten(snapshot);
+	}
+	
+	/** Called by ClientLayerPersister on startup with the data written by a snapshot. */
+	synchronized void loadEditionIndex(DataInputStream dis) throws IOException {
+		editionIndex.read(dis);
+	}
+	
+	/** @return The number of USKs whose latest editions we know. */
+	public synchronized int getEditionIndexSize() {
+		return editionIndex.size();
+	}
+	
+	/** @return The number of background fetchers waiting to start a polling round. */
+	public int getQueuedPollCount() {
+		return pollScheduler.size();
+	}
+
 	public boolean persistent() {
 		return false;
 	}
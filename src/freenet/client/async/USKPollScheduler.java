@@ -0,0 +1,184 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import freenet.node.RequestStarter;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Starts the polling rounds of background USKFetcher's for USKManager. Rather than each fetcher
+ * queueing its own timer, all of them go through one queue with one timer, and we start at most
+ * MAX_STARTS_PER_INTERVAL rounds per priority class per START_INTERVAL. So subscribing to
+ * thousands of USKs at once, e.g. when an FCP client reconnects, spreads the checks out instead
+ * of starting thousands of rounds together, and higher priority subscriptions are not held up
+ * behind lower priority ones.
+ *
+ * A fetcher is queued at most once: If it is queued again, it keeps whichever start time is
+ * earlier.
+ *
+ * LOCKING: Synchronizes on itself. Fetchers are started outside the lock.
+ */
+class USKPollScheduler implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final long START_INTERVAL = SECONDS.toMillis(1);
+	static final int MAX_STARTS_PER_INTERVAL = 10;
+
+	private static class Pending implements Comparable<Pending> {
+		final USKFetcher fetcher;
+		final long startTime;
+		final long id;
+		/** The queue we are on. The fetcher's priority may change while it is queued. */
+		final TreeSet<Pending> queue;
+
+		Pending(USKFetcher fetcher, long startTime, long id, TreeSet<Pending> queue) {
+			this.fetcher = fetcher;
+			this.startTime = startTime;
+			this.id = id;
+			this.queue = queue;
+		}
+
+		@Override
+		public int compareTo(Pending o) {
+			if(startTime != o.startTime) return startTime < o.startTime ? -1 : 1;
+			if(id != o.id) return id < o.id ? -1 : 1;
+			return 0;
+		}
+	}
+
+	/** Queued fetchers by priority class, in order of start time. */
+	private final ArrayList<TreeSet<Pending>> queues;
+	private final HashMap<USKFetcher, Pending> pendingByFetcher;
+	private long nextId;
+	/** The time at which the timer will next run us, or Long.MAX_VALUE if it won't. */
+	private long nextRun = Long.MAX_VALUE;
+	/** Start of the current START_INTERVAL. */
+	private long intervalStart;
+	/** Rounds started in the current START_INTERVAL by priority class. */
+	private final int[] startedInInterval;
+	private ClientContext context;
+
+	USKPollScheduler() {
+		queues = new ArrayList<TreeSet<Pending>>(RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
+		for(int i=0;i<RequestStarter.NUMBER_OF_PRIORITY_CLASSES;i++)
+			queues.add(new TreeSet<Pending>());
+		pendingByFetcher = new HashMap<USKFetcher, Pending>();
+		startedInInterval = new int[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+	}
+
+	synchronized void init(ClientContext context) {
+		this.context = context;
+		if(!pendingByFetcher.isEmpty())
+			wakeAt(System.currentTimeMillis());
+	}
+
+	/** Start a polling round on the fetcher after the given delay, or later if we are busy. */
+	void schedule(USKFetcher fetcher, long delay) {
+		long startTime = System.currentTimeMillis() + Math.max(0, delay);
+		synchronized(this) {
+			Pending p = pendingByFetcher.get(fetcher);
+			if(p != null) {
+				if(p.startTime <= startTime) return;
+				p.queue.remove(p);
+			}
+			p = new Pending(fetcher, startTime, nextId++, queueFor(fetcher));
+			pendingByFetcher.put(fetcher, p);
+			p.queue.add(p);
+			if(logMINOR) Logger.minor(this, "Queued "+fetcher+" in "+delay+"ms, "+pendingByFetcher.size()+" queued");
+			if(context != null)
+				wakeAt(startTime);
+		}
+	}
+
+	/** Forget a fetcher which is being cancelled. */
+	synchronized void remove(USKFetcher fetcher) {
+		Pending p = pendingByFetcher.remove(fetcher);
+		if(p != null)
+			p.queue.remove(p);
+	}
+
+	synchronized int size() {
+		return pendingByFetcher.size();
+	}
+
+	private TreeSet<Pending> queueFor(USKFetcher fetcher) {
+		short prio = fetcher.parent.getPriorityClass();
+		if(prio < 0) prio = 0;
+		if(prio >= queues.size()) prio = (short)(queues.size()-1);
+		return queues.get(prio);
+	}
+
+	/** Caller must hold the lock. */
+	private void wakeAt(long time) {
+		if(time >= nextRun) return;
+		nextRun = time;
+		context.ticker.queueTimedJobAbsolute(this, "USK poll scheduler", time, false, false);
+	}
+
+	@Override
+	public void run() {
+		ArrayList<USKFetcher> toStart = new ArrayList<USKFetcher>();
+		ClientContext context;
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			// We may have been run by an older timer than the one at nextRun. That's harmless.
+			nextRun = Long.MAX_VALUE;
+			long wakeup = Long.MAX_VALUE;
+			if(now - intervalStart >= START_INTERVAL) {
+				intervalStart = now;
+				Arrays.fill(startedInInterval, 0);
+			}
+			for(int prio=0;prio<queues.size();prio++) {
+				TreeSet<Pending> queue = queues.get(prio);
+				while(!queue.isEmpty()) {
+					Pending p = queue.first();
+					if(p.startTime > now) {
+						wakeup = Math.min(wakeup, p.startTime);
+						break;
+					}
+					if(startedInInterval[prio] == MAX_STARTS_PER_INTERVAL) {
+						wakeup = Math.min(wakeup, intervalStart + START_INTERVAL);
+						break;
+					}
+					queue.pollFirst();
+					pendingByFetcher.remove(p.fetcher);
+					toStart.add(p.fetcher);
+					startedInInterval[prio]++;
+				}
+			}
+			if(wakeup != Long.MAX_VALUE)
+				wakeAt(wakeup);
+			context = this.context;
+		}
+		for(USKFetcher fetcher : toStart) {
+			if(logMINOR) Logger.minor(this, "Starting "+fetcher);
+			try {
+				fetcher.schedule(context);
+			} catch (Throwable t) {
+				Logger.error(this, "Unable to start "+fetcher+" : "+t, t);
+			}
+		}
+	}
+
+}
@@ -3,11 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.List;
 
@@ -130,23 +127,20 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		}
 
-		PipedInputStream pipeIn = null;
-		PipedOutputStream pipeOut = null;
+		OutputStream compressed = null;
 		try {
 			output = finalResult.getOutputStream();
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				pipeIn = new PipedInputStream();
-				pipeOut = new PipedOutputStream(pipeIn);
-				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
-				pipeIn = decompressorManager.execute();
-				ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
-				worker.start();
-				streamGenerator.writeTo(pipeOut, context);
-				worker.waitFinished();
+				decompressorManager = new DecompressorThreadManager(decompressors, output, maxLen, context.mainExecutor);
+				// The manager will close output.
+				output = null;
+				compressed = decompressorManager.getOutputStream();
+				streamGenerator.writeTo(compressed, context);
 				// If this throws, we want the whole request to fail.
-				pipeOut.close(); pipeOut = null;
+				compressed.close(); compressed = null;
+				decompressorManager.waitFinished();
 			} else {
 					streamGenerator.writeTo(output, context);
 					// If this throws, we want the whole request to fail.
@@ -161,7 +155,7 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		} finally {
 			Closer.close(output);
-			Closer.close(pipeOut);
+			Closer.close(compressed);
 		}
 
 		final FetchResult result = new FetchResult(clientMetadata, finalResult);
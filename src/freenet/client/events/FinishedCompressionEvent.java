@@ -13,16 +13,60 @@ public class FinishedCompressionEvent implements ClientEvent {
 	public final long originalSize;
 	/** Compressed size */
 	public final long compressedSize;
+	/** What happened with each codec we tried. Empty if we didn't try to compress. */
+	public final CodecAttempt[] attempts;
+	
+	/** The result of trying one codec. */
+	public static class CodecAttempt {
+		/** Codec metadata ID */
+		public final int codec;
+		/** Compressed size, or -1 if the codec failed, was aborted or made the data bigger */
+		public final long compressedSize;
+		/** Time spent compressing */
+		public final long timeMillis;
+		/** True if the codec was aborted early because another was doing much better */
+		public final boolean aborted;
+		
+		public CodecAttempt(int codec, long compressedSize, long timeMillis, boolean aborted) {
+			this.codec = codec;
+			this.compressedSize = compressedSize;
+			this.timeMillis = timeMillis;
+			this.aborted = aborted;
+		}
+		
+		/** @return Compressed size divided by original size, or -1. */
+		public double getRatio(long originalSize) {
+			if(compressedSize < 0 || originalSize <= 0) return -1;
+			return ((double)compressedSize) / originalSize;
+		}
+	}
 
 	public FinishedCompressionEvent(int codec, long origSize, long compressedSize) {
+		this(codec, origSize, compressedSize, new CodecAttempt[0]);
+	}
+
+	public FinishedCompressionEvent(int codec, long origSize, long compressedSize, CodecAttempt[] attempts) {
 		this.codec = codec;
 		this.originalSize = origSize;
 		this.compressedSize = compressedSize;
+		this.attempts = attempts;
 	}
 
 	@Override
 	public String getDescription() {
-		return "Compressed data: codec="+codec+", origSize="+originalSize+", compressedSize="+compressedSize;
+		StringBuilder sb = new StringBuilder();
+		sb.append("Compressed data: codec=").append(codec).append(", origSize=").append(originalSize).append(", compressedSize=").append(compressedSize);
+		for(CodecAttempt attempt : attempts) {
+			sb.append(", codec ").append(attempt.codec).append(": ");
+			if(attempt.aborted)
+				sb.append("aborted");
+			else if(attempt.compressedSize < 0)
+				sb.append("failed");
+			else
+				sb.append("ratio=").append(attempt.getRatio(originalSize));
+			sb.append(" in ").append(attempt.timeMillis).append("ms");
+		}
+		return sb.toString();
 	}
 
 	@Override
@@ -0,0 +1,33 @@
+package freenet.client.events;
+
+import freenet.client.async.RangeSource;
+
+/**
+ * The final data doesn't need decompressing or filtering, so parts of it can be read straight
+ * from the splitfile segments while it is still being fetched. Only produced for transient 
+ * requests.
+ */
+public class PartialDataEvent implements ClientEvent {
+
+	static final int CODE = 0x12;
+
+	public final RangeSource data;
+	/** The expected MIME type of the data. */
+	public final String mimeType;
+
+	public PartialDataEvent(RangeSource data, String mimeType) {
+		this.data = data;
+		this.mimeType = mimeType;
+	}
+
+	@Override
+	public int getCode() {
+		return CODE;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Partial data available: "+data.size()+" bytes of "+mimeType;
+	}
+
+}
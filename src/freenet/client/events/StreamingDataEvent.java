@@ -0,0 +1,34 @@
+package freenet.client.events;
+
+import freenet.support.io.StreamBroadcaster;
+
+/**
+ * The final data is being written while the splitfile is still being fetched, so a client can
+ * start sending it on before the request has finished. Only produced for transient requests.
+ */
+public class StreamingDataEvent implements ClientEvent {
+
+	static final int CODE = 0x11;
+
+	/** Call open() when receiving the event to keep the data, then add a reader to get it. The
+	 * data is filtered if the request filters it. */
+	public final StreamBroadcaster data;
+	/** The MIME type of the data, after filtering. */
+	public final String mimeType;
+
+	public StreamingDataEvent(StreamBroadcaster data, String mimeType) {
+		this.data = data;
+		this.mimeType = mimeType;
+	}
+
+	@Override
+	public int getCode() {
+		return CODE;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Streaming "+mimeType+" while fetching";
+	}
+
+}
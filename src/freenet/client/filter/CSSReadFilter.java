@@ -104,6 +104,11 @@ public class CSSReadFilter implements ContentDataFilter, CharsetExtractor {
 		}
 	}
 
+	@Override
+	public boolean sameResultForASCIICompatible() {
+		return false;
+	}
+
 	// CSS 2.1 section 4.4.
 	// In all cases these will be confirmed by calling getCharset().
 	// We do not use all of the BOMs suggested.
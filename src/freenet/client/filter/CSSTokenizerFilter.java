@@ -101,15 +101,12 @@ class CSSTokenizerFilter {
 	}
 
 
-	/* To save the memory, only those Verifier objects would be created which are actually present in the CSS document.
-	 * allelementVerifiers contains all the CSS property tags as String. All loaded Verifier objects are stored in elementVerifier.
-	 * When retrieving a Verifier object, first it is searched in elementVerifiers to see if it is already loaded.
-	 * If it is not loaded then allelementVerifiers is checked to see if the property name is valid. If it is valid, then the desired Verifier object is loaded in allelemntVerifiers.
+	/* allelementVerifiers contains all the CSS property tags as String. The Verifier objects are
+	 * all created when the class is loaded, by addVerifier(), which stores them in elementVerifiers
+	 * and removes the property from allelementVerifiers. We used to create them lazily, but that
+	 * meant taking a lock for every declaration, to save very little memory.
 	 */
 
-	// FIXME this is probably overkill, initialising all of them on startup would probably be cleaner code, less synchronization, at very little memory cost.
-	// FIXME check how many bytes we save by lazy init here.
-
 	private final static Map<String, CSSPropertyVerifier> elementVerifiers = new HashMap<String, CSSPropertyVerifier>();
 	private final static HashSet<String> allelementVerifiers=new HashSet<String>();
 	//Reference http://www.w3.org/TR/CSS2/propidx.html
@@ -327,7 +324,7 @@ class CSSTokenizerFilter {
 	 * Array for storing additional Verifier objects for validating Regular expressions in CSS Property value
 	 * e.g. [ <color> | transparent]{1,4}. It is explained in detail in CSSPropertyVerifier class
 	 */
-	private final static CSSPropertyVerifier[] auxilaryVerifiers=new CSSPropertyVerifier[145];
+	private final static CSSPropertyVerifier[] auxilaryVerifiers=new CSSPropertyVerifier[148];
 	static
 	{
 		/*CSSPropertyVerifier(String[] allowedValues,String[] possibleValues,String expression,boolean onlyValueVerifier)*/
@@ -388,7 +385,8 @@ class CSSTokenizerFilter {
 		// <text-emphasis-style>
 		auxilaryVerifiers[105]=new CSSPropertyVerifier(Arrays.asList("filled","open"),null,null,null,true);
 		auxilaryVerifiers[106]=new CSSPropertyVerifier(Arrays.asList("dot","circle","double-circle","triangle","sesame"),null,null,null,true);
-		auxilaryVerifiers[107]=new CSSPropertyVerifier(Arrays.asList("none"),ElementInfo.VISUALMEDIA,Arrays.asList("st"),Arrays.asList("105a106"));
+		// Value only: auxiliary verifiers are not given the media.
+		auxilaryVerifiers[107]=new CSSPropertyVerifier(Arrays.asList("none"),Arrays.asList("st"),Arrays.asList("105a106"),null,true);
 		
 		// <align-content> and <justify-content>
 		// auto | <baseline-position> | <content-distribution> || [ <overflow-position>? && <content-position> ]
@@ -473,15 +471,17 @@ class CSSTokenizerFilter {
 		{
 			auxilaryVerifiers[57] = new CSSPropertyVerifier(Arrays.asList("repeat","space","round","no-repeat"),null,null,null,true);
 			auxilaryVerifiers[58] = new CSSPropertyVerifier(Arrays.asList("repeat-x","repeat-y"), null, null, null, true);
-			auxilaryVerifiers[59] = new CSSPropertyVerifier(null, null, Arrays.asList("58","57<1,2>"), null, true);
-			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("59<1,65535>"), true,true));
+			// 59 is used by font
+			auxilaryVerifiers[146] = new CSSPropertyVerifier(null, null, Arrays.asList("58","57<1,2>"), null, true);
+			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("146<1,65535>"), true,true));
 			allelementVerifiers.remove(element);
 		}
 		else if("background-size".equalsIgnoreCase(element))
 		{
-			auxilaryVerifiers[61] = new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le", "pe"),null,null,true);
+			// 61 is used by background-clip and background-origin
+			auxilaryVerifiers[147] = new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le", "pe"),null,null,true);
 			auxilaryVerifiers[62] = new CSSPropertyVerifier(Arrays.asList("cover", "contain"), null, null, null, true);
-			auxilaryVerifiers[63] = new CSSPropertyVerifier(null, null, Arrays.asList("61<1,2>", "62"), null, true);
+			auxilaryVerifiers[63] = new CSSPropertyVerifier(null, null, Arrays.asList("147<1,2>", "62"), null, true);
 			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("63<1,65535>"), true,true));
 			allelementVerifiers.remove(element);
 		}
@@ -846,10 +846,10 @@ class CSSTokenizerFilter {
 		{
 			// column-width
 			auxilaryVerifiers[52]=new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("le"),null,null,true);
-			// column-count
-			auxilaryVerifiers[53]=new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("in"),null,null,true);
+			// column-count (53 is used by font)
+			auxilaryVerifiers[145]=new CSSPropertyVerifier(Arrays.asList("auto"),Arrays.asList("in"),null,null,true);
 
-			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("52a53")));
+			elementVerifiers.put(element,new CSSPropertyVerifier(null,ElementInfo.VISUALMEDIA,null,Arrays.asList("52a145")));
 			allelementVerifiers.remove(element);
 		}
                 else if ("color".equalsIgnoreCase(element))
@@ -1616,22 +1616,35 @@ class CSSTokenizerFilter {
 	}
 
 
+	static
+	{
+		// After auxilaryVerifiers, which some of them use.
+		for(String element : new ArrayList<String>(allelementVerifiers))
+			addVerifier(element);
+	}
+
 	/*
-	 * This function returns the Verifier for a property. If it is not already loaded in the elementVerifier, then it is loaded and then returned to the caller.
-	 * FIXME: Lazy init probably doesn't make sense, but while we are initting lazily, we need to hold a lock here.
+	 * This function returns the Verifier for a property, or null if it is not a valid property.
+	 * They are all created at startup and never changed, so there is no need to lock.
 	 */
-	private synchronized static CSSPropertyVerifier getVerifier(String element)
+	static CSSPropertyVerifier getVerifier(String element)
 	{
-		element=element.toLowerCase();
-		if(elementVerifiers.get(element)!=null)
-			return elementVerifiers.get(element);
-		else if(allelementVerifiers.contains(element))
-		{
-			addVerifier(element);
-			return elementVerifiers.get(element);
-		}
-		else
-			return null;
+		return elementVerifiers.get(element.toLowerCase());
+	}
+
+	/** @return Every verifier, for properties and auxiliary ones. */
+	static List<CSSPropertyVerifier> getAllVerifiers()
+	{
+		List<CSSPropertyVerifier> verifiers = new ArrayList<CSSPropertyVerifier>(elementVerifiers.values());
+		for(CSSPropertyVerifier verifier : auxilaryVerifiers)
+			if(verifier != null) verifiers.add(verifier);
+		return verifiers;
+	}
+
+	/** @return The names of all the properties we allow. */
+	static Set<String> getPropertyNames()
+	{
+		return Collections.unmodifiableSet(elementVerifiers.keySet());
 	}
 	/*
 	 * This function accepts media, list of HTML elements, CSS property and value and determines whether it is valid or not.
@@ -3227,7 +3240,7 @@ class CSSTokenizerFilter {
 	 * @param str1
 	 * @return
 	 */
-	private static ParsedWord[] split(String input, boolean allowCommaDelimiters) {
+	static ParsedWord[] split(String input, boolean allowCommaDelimiters) {
 		if(logDEBUG) Logger.debug(CSSTokenizerFilter.class, "Splitting \""+input+"\" allowCommaDelimiters="+allowCommaDelimiters);
 		ArrayList<ParsedWord> words = new ArrayList<ParsedWord>();
 		ParsedWord lastWord = null;
@@ -3668,6 +3681,9 @@ class CSSTokenizerFilter {
 		public final boolean isTransform;  //tr
 		
 		private final List<String> parserExpressions;
+		/** The parserExpressions, compiled. Null if any of them couldn't be compiled, in which
+		 * case we interpret them. */
+		private final ParserExpression[] compiledExpressions;
 		
 		CSSPropertyVerifier(boolean allowCommaDelimiters)
 		{
@@ -3788,10 +3804,34 @@ class CSSTokenizerFilter {
 			} else {
 				this.parserExpressions = Collections.emptyList();
 			}
+
+			ParserExpression[] compiled = new ParserExpression[parserExpressions.size()];
+			try {
+				for(int i=0;i<compiled.length;i++)
+					compiled[i] = ParserExpression.compile(parserExpressions.get(i));
+			} catch (RuntimeException e) {
+				Logger.error(this, "Unable to compile CSS parser expressions "+parserExpressions+" : "+e, e);
+				compiled = null;
+			}
+			this.compiledExpressions = compiled;
+		}
+
+		/** False if value can't be a number, so we don't need to throw an exception to find out
+		 * that a word isn't a number. True if it might be, including NaN and Infinity. */
+		private static boolean mightBeNumber(String value)
+		{
+			int i = 0;
+			int length = value.length();
+			while(i < length && value.charAt(i) <= ' ') i++;
+			if(i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) i++;
+			if(i == length) return false;
+			char c = value.charAt(i);
+			return ('0' <= c && c <= '9') || c == '.' || c == 'N' || c == 'I';
 		}
 
 		public static boolean isIntegerChecker(String value)
 		{
+			if(!mightBeNumber(value)) return false;
 			try{
 				Integer.parseInt(value); //CSS Property has a valid integer.
 				return true;
@@ -3803,6 +3843,7 @@ class CSSTokenizerFilter {
 
 		public static boolean isRealChecker(String value)
 		{
+			if(!mightBeNumber(value)) return false;
 			try
 			{
 				Float.parseFloat(value); //Valid float
@@ -3843,11 +3884,37 @@ class CSSTokenizerFilter {
 			return this.checkValidity(null,null, new ParsedWord[] { word }, cb);
 		}
 
+		/** Check words[from] to words[to-1], without copying them if we don't have to. */
+		boolean checkValidity(ParsedWord[] words, int from, int to, FilterCallback cb)
+		{
+			// Subclasses only know how to check a whole array.
+			if(getClass() != CSSPropertyVerifier.class)
+				return checkValidity(Arrays.copyOfRange(words, from, to), cb);
+			return checkValidity(null, null, words, from, to, cb);
+		}
+
 		// Verifies whether this CSS property can have a value under given media and HTML elements
 		public boolean checkValidity(String[] media,String[] elements,ParsedWord[] words, FilterCallback cb)
+		{
+			return checkValidity(media, elements, words, 0, words.length, cb, false);
+		}
+
+		/** As checkValidity(), but use the interpreter even if our parser expressions have been
+		 * compiled. Only affects this verifier, not the ones it uses. For testing. */
+		boolean checkValidityInterpreted(String[] media,String[] elements,ParsedWord[] words, FilterCallback cb)
+		{
+			return checkValidity(media, elements, words, 0, words.length, cb, true);
+		}
+
+		private boolean checkValidity(String[] media,String[] elements,ParsedWord[] words, int from, int to, FilterCallback cb)
+		{
+			return checkValidity(media, elements, words, from, to, cb, false);
+		}
+
+		private boolean checkValidity(String[] media,String[] elements,ParsedWord[] words, int from, int to, FilterCallback cb, boolean interpret)
 		{
 
-			if(logDEBUG) Logger.debug(this, "checkValidity for "+toString(words)+" for "+this);
+			if(logDEBUG) Logger.debug(this, "checkValidity for "+toString(Arrays.copyOfRange(words, from, to))+" for "+this);
 			if(!onlyValueVerifier)
 			{
 				if(allowedMedia!=null) {
@@ -3880,10 +3947,11 @@ class CSSTokenizerFilter {
 				// In security terms, there is no danger in allowing every property on every element.
 			}
 
-			if(words.length == 1) {
+			if(to - from == 1) {
+			ParsedWord first = words[from];
 
-			if(words[0] instanceof ParsedIdentifier) {
-				String lowerCaseWord = ((ParsedIdentifier)words[0]).original.toLowerCase();
+			if(first instanceof ParsedIdentifier) {
+				String lowerCaseWord = ((ParsedIdentifier)first).original.toLowerCase();
 				if (allowedValues != null && allowedValues.contains(lowerCaseWord)) {
 					// CSS Property has one of the explicitly defined values
 					return true;
@@ -3895,9 +3963,9 @@ class CSSTokenizerFilter {
 			}
 				
 
-			if(words[0] instanceof SimpleParsedWord) {
+			if(first instanceof SimpleParsedWord) {
 
-				String word = ((SimpleParsedWord)words[0]).original;
+				String word = ((SimpleParsedWord)first).original;
 
 				// Numeric explicitly defined value is possible
 				if(allowedValues != null && allowedValues.contains(word))
@@ -3959,18 +4027,18 @@ class CSSTokenizerFilter {
 				}
 			}
 
-			if(words[0] instanceof ParsedIdentifier && isColor) {
-				if(FilterUtils.isColor(((ParsedIdentifier)words[0]).original))
+			if(first instanceof ParsedIdentifier && isColor) {
+				if(FilterUtils.isColor(((ParsedIdentifier)first).original))
 					return true;
 
 			}
-			if(isURI && words[0] instanceof ParsedURL)
+			if(isURI && first instanceof ParsedURL)
 
 			{
-				return isValidURI((ParsedURL)words[0], cb);
+				return isValidURI((ParsedURL)first, cb);
 			}
 
-			if(isIdentifier && words[0] instanceof ParsedIdentifier)
+			if(isIdentifier && first instanceof ParsedIdentifier)
 			{
 				return true;
 			}
@@ -3983,15 +4051,15 @@ class CSSTokenizerFilter {
 			    // 1) They may occupy more than one word, which greatly complicates parsing here,
 			    // 2) We should sanitize the selectors, not just pass them on. Which in turn may 
 			    // cause them to take up more than one word!
-				String result = HTMLelementVerifier(words[0].original, true);
+				String result = HTMLelementVerifier(first.original, true);
 				if (!(result == null || result.equals(""))) {
 					return true;
 				}
 			}
 
-			if(isString && words[0] instanceof ParsedString)
+			if(isString && first instanceof ParsedString)
 			{
-				if(ElementInfo.ALLOW_ALL_VALID_STRINGS || ElementInfo.isValidStringDecoded(((ParsedString)words[0]).getDecoded()))
+				if(ElementInfo.ALLOW_ALL_VALID_STRINGS || ElementInfo.isValidStringDecoded(((ParsedString)first).getDecoded()))
 					return true;
 				else
 					return false;
@@ -4018,6 +4086,15 @@ class CSSTokenizerFilter {
 			/*
 			 * For each parserExpression, recursiveParserExpressionVerifier() would be called with parserExpression and value.
 			 */
+			if(compiledExpressions != null && !interpret) {
+				for(ParserExpression expression : compiledExpressions) {
+					if(expression.matches(words, from, to, cb))
+						return true;
+				}
+				return false;
+			}
+			if(from != 0 || to != words.length)
+				words = Arrays.copyOfRange(words, from, to);
 			for(String parserExpression : parserExpressions)
 			{
 				boolean result=recursiveParserExpressionVerifier(parserExpression,words,cb);
@@ -4502,6 +4579,272 @@ class CSSTokenizerFilter {
 
 
 	}
+	/**
+	 * A parser expression (see CSSPropertyVerifier.checkValidity()) parsed once when the verifier
+	 * is created, rather than every time it is used. It checks a range of the words, so we don't
+	 * need to copy the array for every way of dividing the words between the parts of the
+	 * expression. It gives exactly the same results as recursiveParserExpressionVerifier(),
+	 * including the order in which the auxiliary verifiers are tried, because checking a URL
+	 * can change it.
+	 */
+	static abstract class ParserExpression {
+
+		/** Does the expression match exactly words[from] to words[to-1]? */
+		abstract boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb);
+
+		static boolean check(int verifier, ParsedWord[] words, int from, int to, FilterCallback cb) {
+			return auxilaryVerifiers[verifier].checkValidity(words, from, to, cb);
+		}
+
+		static final ParserExpression EMPTY = new ParserExpression() {
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				return from == to;
+			}
+		};
+
+		static final ParserExpression NEVER = new ParserExpression() {
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				return false;
+			}
+		};
+
+		/**
+		 * @throws RuntimeException If the expression is invalid. The interpreter would only fail
+		 * when it got to the invalid part, so the caller should fall back to it.
+		 */
+		static ParserExpression compile(String expression) {
+			if(expression.trim().length() == 0) return EMPTY;
+			for(int i=0;i<expression.length();i++) {
+				char c = expression.charAt(i);
+				if(c == 'a' || c == 'b') {
+					// A chain such as 1a2a3, then one separator, then the rest.
+					int endIndex = expression.length();
+					for(int j=0;j<expression.length();j++) {
+						char d = expression.charAt(j);
+						if(!(d == c || '0' <= d && '9' >= d)) {
+							endIndex = j;
+							break;
+						}
+					}
+					int[] parts = parseChain(expression.substring(0, endIndex), c);
+					String secondPart = "";
+					if(endIndex != expression.length())
+						secondPart = expression.substring(endIndex+1);
+					if(c == 'a')
+						return new DoubleBar(parts, compile(secondPart), secondPart.equals(""));
+					else
+						return new DoubleAmpersand(parts, compile(secondPart));
+				} else if(c == ' ') {
+					return new Sequence(Integer.parseInt(expression.substring(0, i)), compile(expression.substring(i+1)));
+				} else if(c == '?') {
+					return new Optional(Integer.parseInt(expression.substring(0, i)), compile(expression.substring(i+1)));
+				} else if(c == '<') {
+					int tindex = expression.indexOf('>');
+					if(tindex <= i) return NEVER;
+					int tokensLowerLimit = 1, tokensUpperLimit = 1;
+					int firstIndex = tindex+1;
+					if(tindex != expression.length()-1 && expression.charAt(tindex+1) == '[') {
+						int indexOfSecondBracket = expression.indexOf(']');
+						if(indexOfSecondBracket > tindex+1) {
+							String[] limits = expression.substring(tindex+2, indexOfSecondBracket).split(",");
+							tokensLowerLimit = Integer.parseInt(limits[0]);
+							tokensUpperLimit = Integer.parseInt(limits[1]);
+							firstIndex = indexOfSecondBracket+1;
+						}
+					}
+					String secondPart = expression.substring(firstIndex);
+					if(secondPart.length() > 0 && secondPart.charAt(0) == ' ')
+						secondPart = secondPart.substring(1);
+					else if(secondPart.length() > 0)
+						throw new IllegalArgumentException("Don't know what to do with char after <>[]: "+secondPart.charAt(0));
+					int index = Integer.parseInt(expression.substring(0, i));
+					String[] limits = expression.substring(i+1, tindex).split(",");
+					if(limits.length != 2) return NEVER;
+					return new Repeat(index, Integer.parseInt(limits[0]), Integer.parseInt(limits[1]),
+							tokensLowerLimit, tokensUpperLimit, compile(secondPart));
+				}
+			}
+			return new Single(Integer.parseInt(expression));
+		}
+
+		private static int[] parseChain(String chain, char separator) {
+			String[] split = chain.split(String.valueOf(separator), -1);
+			if(split.length > 63) throw new IllegalArgumentException("Too many alternatives: "+chain);
+			int[] parts = new int[split.length];
+			for(int i=0;i<split.length;i++)
+				parts[i] = Integer.parseInt(split[i]);
+			return parts;
+		}
+
+		/** A single auxiliary verifier which must match all the words. */
+		private static class Single extends ParserExpression {
+			private final int verifier;
+			Single(int verifier) {
+				this.verifier = verifier;
+			}
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				return check(verifier, words, from, to, cb);
+			}
+		}
+
+		/** "1 2": One word matching 1, then the rest matching 2. */
+		private static class Sequence extends ParserExpression {
+			private final int verifier;
+			private final ParserExpression next;
+			Sequence(int verifier, ParserExpression next) {
+				this.verifier = verifier;
+				this.next = next;
+			}
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				return to > from && check(verifier, words, from, from+1, cb) && next.matches(words, from+1, to, cb);
+			}
+		}
+
+		/** "1?2": If there are any words, the first must match 1, and the rest 2. */
+		private static class Optional extends ParserExpression {
+			private final int verifier;
+			private final ParserExpression next;
+			Optional(int verifier, ParserExpression next) {
+				this.verifier = verifier;
+				this.next = next;
+			}
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				if(to > from)
+					return check(verifier, words, from, from+1, cb) && next.matches(words, from+1, to, cb);
+				return next.matches(words, from, to, cb);
+			}
+		}
+
+		/** "1<0,4>[1,2] 3": Between 0 and 4 groups of 1 or 2 words matching 1, then 3. */
+		private static class Repeat extends ParserExpression {
+			private final int verifier;
+			private final int lowerLimit;
+			private final int upperLimit;
+			private final int tokensLowerLimit;
+			private final int tokensUpperLimit;
+			private final ParserExpression next;
+			Repeat(int verifier, int lowerLimit, int upperLimit, int tokensLowerLimit, int tokensUpperLimit, ParserExpression next) {
+				this.verifier = verifier;
+				this.lowerLimit = lowerLimit;
+				this.upperLimit = upperLimit;
+				this.tokensLowerLimit = tokensLowerLimit;
+				this.tokensUpperLimit = tokensUpperLimit;
+				this.next = next;
+			}
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				return matches(words, from, to, lowerLimit, upperLimit, cb);
+			}
+			private boolean matches(ParsedWord[] words, int from, int to, int lowerLimit, int upperLimit, FilterCallback cb) {
+				int length = to - from;
+				if(length == 0 && lowerLimit == 0) return true;
+				if(lowerLimit <= 0 && next.matches(words, from, to, cb)) return true;
+				if(upperLimit == 0) return false;
+				for(int i=tokensLowerLimit;i<=tokensUpperLimit && i<=length;i++) {
+					if(check(verifier, words, from, from+i, cb)) {
+						if(i == length)
+							return lowerLimit <= 1 && next.matches(words, to, to, cb);
+						if(matches(words, from+i, to, lowerLimit-1, upperLimit-1, cb))
+							return true;
+					}
+				}
+				return false;
+			}
+		}
+
+		/** "1a2a3 4": Some words matching 1 || 2 || 3, then the rest matching 4. */
+		private static class DoubleBar extends ParserExpression {
+			private final int[] parts;
+			private final ParserExpression next;
+			private final boolean nothingNext;
+			DoubleBar(int[] parts, ParserExpression next, boolean nothingNext) {
+				this.parts = parts;
+				this.next = next;
+				this.nothingNext = nothingNext;
+			}
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				long all = (1L << parts.length) - 1;
+				// If nothing follows, the alternatives must match all the words.
+				for(int j = nothingNext ? to : from+1;j<=to;j++) {
+					if(matchesAlternatives(all, words, from, j, cb) && next.matches(words, j, to, cb))
+						return true;
+				}
+				return false;
+			}
+			/** Each of the parts in the mask may match at most once, in any order. */
+			private boolean matchesAlternatives(long mask, ParsedWord[] words, int from, int to, FilterCallback cb) {
+				if(from == to) return true;
+				for(int k=0;k<parts.length;k++) {
+					if((mask & (1L << k)) == 0) continue;
+					long rest = mask & ~(1L << k);
+					for(int j=from+1;j<=to;j++) {
+						if(check(parts[k], words, from, j, cb)) {
+							if(j == to) return true;
+							if(rest == 0) return false;
+							if(matchesAlternatives(rest, words, j, to, cb)) return true;
+						}
+					}
+				}
+				return false;
+			}
+		}
+
+		/** "1b2b3 4": Some words matching 1 && 2 && 3, then the rest matching 4. */
+		private static class DoubleAmpersand extends ParserExpression {
+			private final int[] parts;
+			private final ParserExpression next;
+			DoubleAmpersand(int[] parts, ParserExpression next) {
+				this.parts = parts;
+				this.next = next;
+			}
+			@Override
+			boolean matches(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				for(int j=to;j>from;j--) {
+					if(matchesAll(words, from, j, cb) && next.matches(words, j, to, cb))
+						return true;
+				}
+				return false;
+			}
+			/** Same as doubleAmpersandVerifier(): greedily give the longest possible run of words
+			 * to the first part which accepts it. */
+			private boolean matchesAll(ParsedWord[] words, int from, int to, FilterCallback cb) {
+				int[] remaining = parts.clone();
+				int count = remaining.length;
+				int start = from;
+				int maxLoops = to - from;
+				while(maxLoops-- > 0 && count != 0) {
+					boolean consumed = false;
+					for(int i=to-start;i>0 && !consumed;i--) {
+						for(int j=0;j<count;j++) {
+							if(check(remaining[j], words, start, start+i, cb)) {
+								start += i;
+								System.arraycopy(remaining, j+1, remaining, j, count-j-1);
+								count--;
+								consumed = true;
+								break;
+							}
+						}
+					}
+					if(start == to) break;
+				}
+				if(start < to) return false;
+				// The parts left over must accept nothing.
+				for(int j=0;j<count;j++) {
+					if(!check(remaining[j], words, to, to, cb))
+						return false;
+				}
+				return true;
+			}
+		}
+
+	}
+
 	//CSSPropertyVerifier class extended for verifying content property.
 	static class ContentPropertyVerifier extends CSSPropertyVerifier
 	{
@@ -4579,6 +4922,9 @@ class CSSTokenizerFilter {
 
 	static class FontPartPropertyVerifier extends CSSPropertyVerifier
 	{
+		private static final CSSPropertyVerifier fontSize=new CSSPropertyVerifier(Arrays.asList("xx-small","x-small","small","medium","large","x-large","xx-large","larger","smaller"),Arrays.asList("le","pe"),null,null,true);
+		private static final CSSPropertyVerifier lineHeight=new CSSPropertyVerifier(Arrays.asList("normal"),Arrays.asList("le","pe","re","in"),null,null,true);
+
 		FontPartPropertyVerifier() {
 			super(false);
 		}
@@ -4588,7 +4934,6 @@ class CSSTokenizerFilter {
 		{
 
 			if(logDEBUG) Logger.debug(this, "FontPartPropertyVerifier called with "+toString(value));
-			CSSPropertyVerifier fontSize=new CSSPropertyVerifier(Arrays.asList("xx-small","x-small","small","medium","large","x-large","xx-large","larger","smaller"),Arrays.asList("le","pe"),null,null,true);
 			if(fontSize.checkValidity(value, cb)) return true;
 
 			for(ParsedWord word : value) {
@@ -4602,7 +4947,6 @@ class CSSTokenizerFilter {
 						String firstPart=orig.substring(0,slashIndex);
 						String secondPart=orig.substring(slashIndex+1,orig.length());
 						if(logDEBUG) Logger.debug(this, "FontPartPropertyVerifier FirstPart="+firstPart+" secondPart="+secondPart);
-						CSSPropertyVerifier lineHeight=new CSSPropertyVerifier(Arrays.asList("normal"),Arrays.asList("le","pe","re","in"),null,null,true);
 						ParsedWord[] first = split(firstPart,false);
 						ParsedWord[] second = split(secondPart,false);
 						if(first.length == 1 && second.length == 1 &&
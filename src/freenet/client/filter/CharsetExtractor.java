@@ -32,6 +32,11 @@ public interface CharsetExtractor {
 	 */
 	public int getCharsetBufferSize();
 
+	/** If true, getCharset() gives the same result (or the same failure) for every
+	 * ASCII-compatible parseCharset, so ContentFilter.detectCharset() only calls it once
+	 * for all of them. */
+	public boolean sameResultForASCIICompatible();
+
 	public class BOMDetection {
 		/** The charset, guessed from the first few characters. */
 		final String charset;
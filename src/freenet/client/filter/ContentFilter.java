@@ -10,8 +10,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
 
@@ -55,26 +57,26 @@ public class ContentFilter {
 				true, true, null, null, false, false, false, false, false, false,
 				l10n("textPlainReadAdvice"),
 				l10n("textPlainWriteAdvice"),
-				true, "US-ASCII", null, false));
+				true, "US-ASCII", null, false, false));
 		
 		// GIF - has a filter 
 		register(new FilterMIMEType("image/gif", "gif", new String[0], new String[0], 
 				true, false, new GIFFilter(), null, false, false, false, false, false, false,
 				l10n("imageGifReadAdvice"),
 				l10n("imageGifWriteAdvice"),
-				false, null, null, false));
+				false, null, null, false, true));
 		
 		// JPEG - has a filter
 		register(new FilterMIMEType("image/jpeg", "jpeg", new String[0], new String[] { "jpg" },
 				true, false, new JPEGFilter(true, true), null, false, false, false, false, false, false,
 				l10n("imageJpegReadAdvice"),
-				l10n("imageJpegWriteAdvice"), false, null, null, false));
+				l10n("imageJpegWriteAdvice"), false, null, null, false, true));
 		
 		// PNG - has a filter
 		register(new FilterMIMEType("image/png", "png", new String[] { "image/x-png" }, new String[0],
 				true, false, new PNGFilter(true, true, true), null, false, false, false, false, true, false,
 				l10n("imagePngReadAdvice"),
-				l10n("imagePngWriteAdvice"), false, null, null, false));
+				l10n("imagePngWriteAdvice"), false, null, null, false, true));
 
 
 		// BMP - has a filter
@@ -82,7 +84,7 @@ public class ContentFilter {
 		register(new FilterMIMEType("image/bmp", "bmp", new String[] { "image/x-bmp","image/x-bitmap","image/x-xbitmap","image/x-win-bitmap","image/x-windows-bmp","image/ms-bmp","image/x-ms-bmp","application/bmp","application/x-bmp","application/x-win-bitmap"  }, new String[0],
 				true, false, new BMPFilter(), null, false, false, false, false, true, false,
 				l10n("imageBMPReadAdvice"),
-				l10n("imageBMPWriteAdvice"), false, null, null, false));	
+				l10n("imageBMPWriteAdvice"), false, null, null, false, true));	
 
 
 		/* MP3
@@ -91,7 +93,7 @@ public class ContentFilter {
 		 */
 		register(new FilterMIMEType("audio/mpeg", "mp3", new String[] {"audio/mp3", "audio/x-mp3", "audio/x-mpeg", "audio/mpeg3", "audio/x-mpeg3", "audio/mpg", "audio/x-mpg", "audio/mpegaudio"},
 				new String[0], true, false, new MP3Filter(), new MP3Filter(), true, true, false, true, false, false,
-				l10n("audioMP3ReadAdvice"), l10n("audioMP3WriteAdvice"), false, null, null, false));
+				l10n("audioMP3ReadAdvice"), l10n("audioMP3WriteAdvice"), false, null, null, false, true));
 
 		// ICO needs filtering.
 		// Format is not the same as BMP iirc.
@@ -102,14 +104,14 @@ public class ContentFilter {
 //		register(new FilterMIMEType("image/x-icon", "ico", new String[] { "image/vnd.microsoft.icon", "image/ico", "application/ico"}, 
 //				new String[0], true, false, null, null, false, false, false, false, false, false,
 //				l10n("imageIcoReadAdvice"),
-//				l10n("imageIcoWriteAdvice"), false, null, null, false));
+//				l10n("imageIcoWriteAdvice"), false, null, null, false, false));
 		
 		// PDF - very dangerous - FIXME ideally we would have a filter, this is such a common format...
 		register(new FilterMIMEType("application/pdf", "pdf", new String[] { "application/x-pdf" }, new String[0],
 				false, false, null, null, true, true, true, false, true, true,
 				l10n("applicationPdfReadAdvice"),
 				l10n("applicationPdfWriteAdvice"),
-				false, null, null, false));
+				false, null, null, false, false));
 		
 		// HTML - dangerous if not filtered
 		register(new FilterMIMEType(HTML_MIME_TYPES[0], "html", Arrays.asList(HTML_MIME_TYPES).subList(1, HTML_MIME_TYPES.length).toArray(new String[HTML_MIME_TYPES.length-1]), new String[] { "htm" },
@@ -117,7 +119,7 @@ public class ContentFilter {
 				true, true, true, true, true, true, 
 				l10n("textHtmlReadAdvice"),
 				l10n("textHtmlWriteAdvice"),
-				true, "iso-8859-1", new HTMLFilter(), false));
+				true, "iso-8859-1", new HTMLFilter(), false, false));
 		
 		// CSS - danagerous if not filtered, not sure about the filter
 		register(new FilterMIMEType("text/css", "css", new String[0], new String[0],
@@ -125,7 +127,7 @@ public class ContentFilter {
 				true, true, true, true, true, false,
 				l10n("textCssReadAdvice"),
 				l10n("textCssWriteAdvice"),
-				true, "utf-8", new CSSReadFilter(), true));
+				true, "utf-8", new CSSReadFilter(), true, false));
 		
 	}
 	
@@ -158,6 +160,13 @@ public class ContentFilter {
 		return mimeTypesByName.get(stripMIMEType(mimeType));
 	}
 
+	/** @return True if data of this type can usefully be filtered while it is still being 
+	 * fetched. See FilterMIMEType.filtersIncrementally. */
+	public static boolean filtersIncrementally(String mimeType) {
+		FilterMIMEType handler = getMIMEType(mimeType);
+		return handler != null && handler.filtersIncrementally;
+	}
+
 	/**
 	 * Filter some data.
 	 * 
@@ -315,6 +324,7 @@ public class ContentFilter {
 		// Detect charset
 		String charset = detectBOM(input, length);
 		if((charset == null) && (handler.charsetExtractor != null)) {
+			CharsetAttempts attempts = new CharsetAttempts(handler.charsetExtractor);
 			BOMDetection bom = handler.charsetExtractor.getCharsetByBOM(input, length);
 			if(bom != null) {
 				charset = bom.charset;
@@ -322,7 +332,7 @@ public class ContentFilter {
 					// These detections are not firm, and can detect a family e.g. ASCII, EBCDIC,
 					// so check with the full extractor.
 					try {
-						if((charset = handler.charsetExtractor.getCharset(input, length, charset)) != null) {
+						if((charset = attempts.getCharset(input, length, charset)) != null) {
 							if(logMINOR)
 								Logger.minor(ContentFilter.class, "Returning charset: "+charset);
 							return charset;
@@ -340,7 +350,7 @@ public class ContentFilter {
 			
 			if(handler.defaultCharset != null) {
 				try {
-					if((charset = handler.charsetExtractor.getCharset(input, length, handler.defaultCharset)) != null) {
+					if((charset = attempts.getCharset(input, length, handler.defaultCharset)) != null) {
 				        if(logMINOR)
 				        	Logger.minor(ContentFilter.class, "Returning charset: "+charset);
 						return charset;
@@ -350,25 +360,25 @@ public class ContentFilter {
 				}
 			}
 			try {
-				if((charset = handler.charsetExtractor.getCharset(input, length, "ISO-8859-1")) != null)
+				if((charset = attempts.getCharset(input, length, "ISO-8859-1")) != null)
 					return charset;
 			} catch (DataFilterException e) {
 				// Ignore
 			}
 			try {
-				if((charset = handler.charsetExtractor.getCharset(input, length, "UTF-8")) != null)
+				if((charset = attempts.getCharset(input, length, "UTF-8")) != null)
 					return charset;
 			} catch (DataFilterException e) {
 				// Ignore
 			}
 			try {
-				if((charset = handler.charsetExtractor.getCharset(input, length, "UTF-16")) != null)
+				if((charset = attempts.getCharset(input, length, "UTF-16")) != null)
 					return charset;
 			} catch (DataFilterException e) {
 				// Ignore
 			}
 			try {
-				if((charset = handler.charsetExtractor.getCharset(input, length, "UTF-32")) != null)
+				if((charset = attempts.getCharset(input, length, "UTF-32")) != null)
 					return charset;
 			} catch (UnsupportedEncodingException e) {
 				// Doesn't seem to be supported by prior to 1.6.
@@ -392,6 +402,54 @@ public class ContentFilter {
 		return handler.defaultCharset;
 	}
 
+	/** Charsets which encode all of ASCII the same way as ASCII. */
+	private static final HashSet<String> asciiCompatibleCharsets = new HashSet<String>(
+			Arrays.asList("US-ASCII", "ISO-8859-1", "ISO-8859-15", "UTF-8", "windows-1252"));
+
+	static boolean isASCIICompatible(String charset) {
+		try {
+			return asciiCompatibleCharsets.contains(Charset.forName(charset).name());
+		} catch (IllegalArgumentException e) {
+			// Unknown or illegal name, let the decoder complain about it.
+			return false;
+		}
+	}
+
+	/** The getCharset() calls made by one detectCharset(). If the extractor gives the same
+	 * result for all ASCII-compatible charsets, the first such call is reused for the rest. */
+	private static class CharsetAttempts {
+		private final CharsetExtractor extractor;
+		private boolean triedASCII;
+		private String asciiCharset;
+		private DataFilterException asciiFailure;
+
+		CharsetAttempts(CharsetExtractor extractor) {
+			this.extractor = extractor;
+		}
+
+		String getCharset(byte[] input, int length, String parseCharset) throws DataFilterException, IOException {
+			boolean ascii = extractor.sameResultForASCIICompatible() && isASCIICompatible(parseCharset);
+			if(ascii && triedASCII) {
+				if(asciiFailure != null) throw asciiFailure;
+				return asciiCharset;
+			}
+			try {
+				String charset = extractor.getCharset(input, length, parseCharset);
+				if(ascii) {
+					triedASCII = true;
+					asciiCharset = charset;
+				}
+				return charset;
+			} catch (DataFilterException e) {
+				if(ascii) {
+					triedASCII = true;
+					asciiFailure = e;
+				}
+				throw e;
+			}
+		}
+	}
+
 	/**
 	 * Detect a Byte Order Mark, a sequence of bytes which identifies a document as encoded with a 
 	 * specific charset.
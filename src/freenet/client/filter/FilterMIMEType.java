@@ -62,13 +62,19 @@ public class FilterMIMEType {
 	 * So far this is only used by CSS. */
 	public final boolean useMaybeCharset;
 	
+	/** If true, the read filter writes its output as it reads its input, buffering no more than a
+	 * chunk or frame at a time. So it is worth running it on a large file while the rest of the 
+	 * file is still being fetched. */
+	public final boolean filtersIncrementally;
+	
 	FilterMIMEType(String type, String ext, String[] extraTypes, String[] extraExts,
 			boolean safeToRead, boolean safeToWrite, ContentDataFilter readFilter,
 			ContentDataFilter writeFilter, boolean dangerousLinks, boolean dangerousInlines,
 			boolean dangerousScripting, boolean dangerousReadMetadata, 
 			boolean dangerousWriteMetadata, boolean dangerousToWriteEvenWithFilter, 
 			String readDescription, String writeDescription, boolean takesACharset, 
-			String defaultCharset, CharsetExtractor charsetExtractor, boolean useMaybeCharset) {
+			String defaultCharset, CharsetExtractor charsetExtractor, boolean useMaybeCharset,
+			boolean filtersIncrementally) {
 		this.primaryMimeType = type;
 		this.primaryExtension = ext;
 		this.alternateMimeTypes = extraTypes;
@@ -89,6 +95,7 @@ public class FilterMIMEType {
 		this.defaultCharset = defaultCharset;
 		this.charsetExtractor = charsetExtractor;
 		this.useMaybeCharset = useMaybeCharset;
+		this.filtersIncrementally = filtersIncrementally;
 	}
 
 	/**
@@ -127,7 +127,9 @@ public class GenericReadFilterCallback implements FilterCallback, URIProcessor {
 		
 		boolean noRelative = forBaseHref;
 		// evil hack, see #2451 and r24565,r24566
-		u = u.replaceAll(" #", " %23");
+		// Don't compile a regex for every link.
+		if(u.indexOf(" #") != -1)
+			u = u.replace(" #", " %23");
 		
 		URI uri;
 		URI resolved;
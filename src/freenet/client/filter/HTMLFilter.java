@@ -2,7 +2,6 @@
 
 package freenet.client.filter;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -75,7 +74,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		try {
 			isr = new InputStreamReader(input, charset);
 			osw = new OutputStreamWriter(output, charset);
-			r = new BufferedReader(isr, 4096);
+			// HTMLParseContext reads in blocks, so doesn't need a BufferedReader.
+			r = isr;
 			w = new BufferedWriter(osw, 4096);
 		} catch(UnsupportedEncodingException e) {
 			throw UnknownCharsetException.create(e, charset);
@@ -98,11 +98,24 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		if(length > getCharsetBufferSize() && Logger.shouldLog(LogLevel.MINOR, this)) {
 			Logger.minor(this, "More data than was strictly needed was passed to the charset extractor for extraction");
 		}
+		// The markup we look at is all ASCII, so parse every ASCII-compatible charset the same
+		// way, which makes sameResultForASCIICompatible() true.
+		if(ContentFilter.isASCIICompatible(parseCharset))
+			parseCharset = "ISO-8859-1";
+		return detectCharset(input, length, parseCharset);
+	}
+
+	@Override
+	public boolean sameResultForASCIICompatible() {
+		return true;
+	}
+
+	private String detectCharset(byte[] input, int length, String parseCharset) throws IOException {
 		ByteArrayInputStream strm = new ByteArrayInputStream(input, 0, length);
 		Writer w = new NullWriter();
 		Reader r;
 		try {
-			r = new BufferedReader(new InputStreamReader(strm, parseCharset), 4096);
+			r = new InputStreamReader(strm, parseCharset);
 		} catch (UnsupportedEncodingException e) {
 			strm.close();
 			throw e;
@@ -198,6 +211,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			StringBuilder b = new StringBuilder(100);
 			StringBuilder balt = new StringBuilder(4000);
 			List<String> splitTag = new ArrayList<String>();
+			// Read in blocks rather than a character at a time, so text can be copied in one go.
+			char[] buf = new char[READ_BUFFER_SIZE];
+			int bufPos = 0;
+			int bufLen = 0;
 			String currentTag = null;
 			char pprevC = 0;
 			char prevC = 0;
@@ -219,7 +236,11 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				int x;
 				
 				try {
-					x = r.read();
+					while(bufPos == bufLen && bufLen != -1) {
+						bufLen = r.read(buf, 0, buf.length);
+						bufPos = 0;
+					}
+					x = bufLen == -1 ? -1 : buf[bufPos++];
 				}
 				/** 
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -300,12 +321,28 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								mode = INTAG;
 							} else {
 								b.append(c);
+								// Copy the rest of the text up to the next tag, or anything we have to
+								// remove, in one go.
+								int end = bufPos;
+								while(end < bufLen) {
+									char ch = buf[end];
+									if(ch == '<' || ch == 0 || ch == 0xFEFF) break;
+									end++;
+								}
+								int n = end - bufPos;
+								if(n > 0) {
+									b.append(buf, bufPos, n);
+									pprevC = n >= 3 ? buf[end-3] : (n == 2 ? c : prevC);
+									prevC = n >= 2 ? buf[end-2] : c;
+									c = buf[end-1];
+									bufPos = end;
+								}
 							}
 							break;
 						case INTAG :
 							balt.append(c);
 							if (HTMLDecoder.isWhitespace(c)) {
-								splitTag.add(b.toString());
+								splitTag.add(splitTag.isEmpty() ? knownNames.get(b) : b.toString());
 								mode = INTAGWHITESPACE;
 								b.setLength(0);
 							} else if ((c == '<') && Character.isWhitespace(balt.charAt(0))) {
@@ -322,7 +359,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 								b.setLength(0);
 								splitTag.clear();
 							} else if (c == '>') {
-								splitTag.add(b.toString());
+								splitTag.add(splitTag.isEmpty() ? knownNames.get(b) : b.toString());
 								b.setLength(0);
 								String s = processTag(splitTag, w, this);
 								currentTag = s;
@@ -484,6 +521,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		int mode;
+		static final int READ_BUFFER_SIZE = 4096;
 		static final int INTEXT = 0;
 		static final int INTAG = 1;
 		static final int INTAGQUOTES = 2;
@@ -532,26 +570,38 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
-		StringBuilder out = new StringBuilder(s.length()*2);
-		
-		for(int i=0;i<s.length();i++) {
+		// Usually there is nothing to escape or remove, so don't copy it unless we have to.
+		int i = 0;
+		for(;i<s.length();i++) {
 			char c = s.charAt(i);
-			if(c == '<' && !(pc.inStyle || pc.inScript)) {
-				//Scripts and styles parsed elsewhere
-				out.append("&lt;");
-			}
-			else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
-				// Not a real character
-				// STRONGLY suggests somebody is using a bogus charset.
-				// This could be in order to break the filter.
-				if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
-				continue;
-			}
-			else {
-				out.append(c);
+			if(c == '<' && !(pc.inStyle || pc.inScript)) break;
+			if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) break;
+		}
+		String sout;
+		if(i == s.length()) {
+			sout = s.toString();
+		} else {
+			StringBuilder out = new StringBuilder(s.length()*2);
+			out.append(s, 0, i);
+			for(;i<s.length();i++) {
+				char c = s.charAt(i);
+				if(c == '<' && !(pc.inStyle || pc.inScript)) {
+					//Scripts and styles parsed elsewhere
+					out.append("&lt;");
+				}
+				else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
+					// Not a real character
+					// STRONGLY suggests somebody is using a bogus charset.
+					// This could be in order to break the filter.
+					if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
+					continue;
+				}
+				else {
+					out.append(c);
+				}
 			}
+			sout = out.toString();
 		}
-		String sout = out.toString();
 		
 		if (pc.inStyle || pc.inScript) {
 			pc.currentStyleScriptChunk += sout;
@@ -762,7 +812,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			} else endSlash = false;
 			s = v.get(0);
 			if ((s.length() > 1) && s.startsWith("/")) {
-				s = s.substring(1);
+				s = knownNames.get(s, 1, s.length());
 				v.set(0, s);
 				startSlash = true;
 			} else startSlash = false;
@@ -867,8 +917,25 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 	private static final Set<String> allowedHTMLTags = new HashSet<String>();
 	static final Map<String, TagVerifier> allowedTagsVerifiers =
 		Collections.unmodifiableMap(getAllowedTagVerifiers());
+	/** Element and attribute names, so the tokenizer doesn't need a new String for each one. */
+	static final HTMLNameTable knownNames = makeNameTable();
 	private static final String[] emptyStringArray = new String[0];
 
+	private static HTMLNameTable makeNameTable() {
+		Set<String> names = new HashSet<String>();
+		for(Map.Entry<String, TagVerifier> entry : allowedTagsVerifiers.entrySet()) {
+			names.add(entry.getKey());
+			// End tags are tokenized with the slash.
+			names.add("/" + entry.getKey());
+			TagVerifier tv = entry.getValue();
+			names.addAll(tv.allowedAttrs);
+			names.addAll(tv.parsedAttrs);
+			names.addAll(tv.uriAttrs);
+			names.addAll(tv.inlineURIAttrs);
+		}
+		return new HTMLNameTable(names);
+	}
+
 	private static Map<String, TagVerifier> getAllowedTagVerifiers()
 	{
 		Map<String, TagVerifier> allowedTagsVerifiers = new HashMap<String, TagVerifier>();
@@ -2031,14 +2098,14 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 							if (idx == 0) {
 								// prevX already set
 							} else {
-								prevX = s.substring(0, s.length() - 1);
-								prevX = prevX.toLowerCase();
+								prevX = knownNames.getLowerCase(s, 0, s.length() - 1);
 							}
 						} else if (idx > -1) {
-							String x = s.substring(0, idx);
-							if (x.length() == 0)
-								x = prevX;
-							x = x.toLowerCase();
+							String x;
+							if (idx == 0)
+								x = prevX.toLowerCase();
+							else
+								x = knownNames.getLowerCase(s, 0, idx);
 							String y;
 							if (idx == s.length() - 1)
 								y = "";
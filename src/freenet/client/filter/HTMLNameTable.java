@@ -0,0 +1,84 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.util.Collection;
+
+/**
+ * A fixed table of the element and attribute names the HTML filter knows about, so the tokenizer
+ * can turn a name in its buffer into a shared String without creating a new one for every tag.
+ * Names which aren't in the table are returned as new Strings, so the result is always the same
+ * as what toString() or toLowerCase() would give. The table is built once and never changed, so
+ * it can be shared between threads.
+ */
+class HTMLNameTable {
+
+	private final String[] table;
+	private final int mask;
+
+	HTMLNameTable(Collection<String> names) {
+		int size = 16;
+		while(size < names.size() * 4) size <<= 1;
+		table = new String[size];
+		mask = size - 1;
+		for(String name : names) {
+			int i = hash(name, 0, name.length(), false) & mask;
+			while(table[i] != null) {
+				if(table[i].equals(name)) break;
+				i = (i + 1) & mask;
+			}
+			table[i] = name;
+		}
+	}
+
+	/** Same as String.hashCode(), optionally of the lower case form. */
+	private static int hash(CharSequence s, int start, int end, boolean lowerCase) {
+		int h = 0;
+		for(int i=start;i<end;i++) {
+			char c = s.charAt(i);
+			if(lowerCase) c = Character.toLowerCase(c);
+			h = 31 * h + c;
+		}
+		return h;
+	}
+
+	private String find(CharSequence s, int start, int end, boolean lowerCase) {
+		int length = end - start;
+		int i = hash(s, start, end, lowerCase) & mask;
+		String name;
+		while((name = table[i]) != null) {
+			if(name.length() == length) {
+				int j = 0;
+				for(;j<length;j++) {
+					char c = s.charAt(start + j);
+					if(lowerCase) c = Character.toLowerCase(c);
+					if(c != name.charAt(j)) break;
+				}
+				if(j == length) return name;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/** @return The same as s.toString(), shared if it is a known name. */
+	String get(CharSequence s) {
+		String name = find(s, 0, s.length(), false);
+		return name != null ? name : s.toString();
+	}
+
+	/** @return The same as s.subSequence(start, end).toString(), shared if it is a known name. */
+	String get(CharSequence s, int start, int end) {
+		String name = find(s, start, end, false);
+		return name != null ? name : s.subSequence(start, end).toString();
+	}
+
+	/** @return The same as s.substring(start, end).toLowerCase(), shared if it is a known
+	 * name. */
+	String getLowerCase(String s, int start, int end) {
+		String name = find(s, start, end, true);
+		return name != null ? name : s.substring(start, end).toLowerCase();
+	}
+
+}
@@ -34,9 +34,11 @@ import freenet.client.events.EnterFiniteCooldownEvent;
 import freenet.client.events.ExpectedFileSizeEvent;
 import freenet.client.events.ExpectedHashesEvent;
 import freenet.client.events.ExpectedMIMEEvent;
+import freenet.client.events.PartialDataEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileCompatibilityModeEvent;
 import freenet.client.events.SplitfileProgressEvent;
+import freenet.client.events.StreamingDataEvent;
 import freenet.clients.fcp.RequestIdentifier.RequestType;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
@@ -330,6 +332,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			synchronized(this) {
 				started = true;
 			}
+			markDirty();
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
 				if(cache != null) {
@@ -406,6 +409,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
                     throw new ResumeFailedException("Success but temporary data bucket doesn't exist or isn't valid");
             }
         }
+        markDirty();
     }
 
 	private void trySendDataFoundOrGetFailed(FCPConnectionOutputHandler handler, String listRequestIdentifier) {
@@ -561,6 +565,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 				FetchException cancelled = new FetchException(FetchExceptionMode.CANCELLED);
 				getFailedMessage = new GetFailedMessage(cancelled, identifier, global);
 			}
+			markDirty();
 			trySendDataFoundOrGetFailed(null, null);
 		}
 		// notify client that request was removed
@@ -598,6 +603,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			synchronized(this) {
 			    sentToNetwork = true;
 			}
+			markDirty();
 			if((verbosity & verbosityMask) == 0)
 				return;
 			progress = new SendingToNetworkMessage(identifier, global);
@@ -614,6 +620,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		            progress = this.expectedHashes = new ExpectedHashes(event, identifier, global);
 		        }
 		    }
+		    markDirty();
 			verbosityMask = ClientGet.VERBOSITY_EXPECTED_HASHES;
 			if((verbosity & verbosityMask) == 0)
 				return;
@@ -622,6 +629,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		    synchronized(this) {
 		        foundDataMimeType = event.expectedMIMEType;
 		    }
+		    markDirty();
 		    if(client != null) {
 		        RequestStatusCache cache = client.getRequestStatusCache();
 		        if(cache != null) {
@@ -637,6 +645,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		    synchronized(this) {
 		        foundDataLength = event.expectedSize;
 		    }
+		    markDirty();
 		    if(client != null) {
 		        RequestStatusCache cache = client.getRequestStatusCache();
 		        if(cache != null) {
@@ -653,6 +662,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 				return;
 			EnterFiniteCooldownEvent event = (EnterFiniteCooldownEvent)ce;
 			progress = new EnterFiniteCooldown(identifier, global, event.wakeupTime);
+		} else if(ce instanceof StreamingDataEvent || ce instanceof PartialDataEvent) {
+			// FCP clients get the data when it has all been fetched.
+			return;
 		} else {
 		    Logger.error(this, "Unknown event "+ce);
 		    return; // Don't know what to do with event
@@ -682,6 +694,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	private void innerHandleCompatibilityMode(SplitfileCompatibilityModeEvent ce, ClientContext context) {
 	    compatMode.merge(ce.minCompatibilityMode, ce.maxCompatibilityMode, ce.splitfileCryptoKey, ce.dontCompress, ce.bottomLayer);
+	    markDirty();
 	    if(client != null) {
 	        RequestStatusCache cache = client.getRequestStatusCache();
 	        if(cache != null) {
@@ -705,6 +718,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			data = returnBucketDirect;
 			returnBucketDirect = null;
 		}
+		markDirty();
 		if(data != null) {
 			data.free();
 		}
@@ -892,6 +906,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			if(disableFilterData)
 				fctx.filterData = false;
 		}
+		markDirty();
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
@@ -906,6 +921,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 					}
 					started = true;
 				}
+				markDirty();
 			}
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
@@ -986,7 +1002,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	}
 
 	private static final long CLIENT_DETAIL_MAGIC = 0x67145b675d2e22f4L;
-	private static final int CLIENT_DETAIL_VERSION = 1;
+	private static final int CLIENT_DETAIL_VERSION = 2;
+	/** Version 1 did not include sentToNetwork. */
+	private static final int CLIENT_DETAIL_VERSION_NO_SENT_TO_NETWORK = 1;
 
     @Override
     public void getClientDetail(DataOutputStream dos, ChecksumChecker checker) throws IOException {
@@ -1001,6 +1019,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
             dos.writeUTF(targetFile.toString());
         }
         dos.writeBoolean(binaryBlob);
+        synchronized(this) {
+            dos.writeBoolean(sentToNetwork);
+        }
         DataOutputStream innerDOS = 
             new DataOutputStream(checker.checksumWriterWithLength(dos, new ArrayBucketFactory()));        
         try {
@@ -1016,7 +1037,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
         }
         if(initialMetadata != null) {
             dos.writeBoolean(true);
-            initialMetadata.storeTo(innerDOS);
+            initialMetadata.storeTo(dos);
         } else {
             dos.writeBoolean(false);
         }
@@ -1073,7 +1094,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
         if(magic != CLIENT_DETAIL_MAGIC) 
             throw new StorageFormatException("Bad magic for request");
         int version = dis.readInt();
-        if(version != CLIENT_DETAIL_VERSION)
+        if(version != CLIENT_DETAIL_VERSION && version != CLIENT_DETAIL_VERSION_NO_SENT_TO_NETWORK)
             throw new StorageFormatException("Bad version "+version);
         String s = dis.readUTF();
         try {
@@ -1093,6 +1114,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
             targetFile = null;
         }
         binaryBlob = dis.readBoolean();
+        if(version != CLIENT_DETAIL_VERSION_NO_SENT_TO_NETWORK)
+            sentToNetwork = dis.readBoolean();
         FetchContext fctx = null;
         try {
             DataInputStream innerDIS =
@@ -1223,6 +1246,14 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
         HashResult.write(expectedHashes == null ? null : expectedHashes.hashes, dos);
     }
 
+    @Override
+    public boolean claimStorage(ClientContext context) throws ResumeFailedException {
+        if(!getter.claimStorage(context)) return false;
+        if(returnBucketDirect != null) returnBucketDirect.onResume(context);
+        if(initialMetadata != null) initialMetadata.onResume(context);
+        return true;
+    }
+
     @Override
     protected void innerResume(ClientContext context) throws ResumeFailedException {
         if(returnBucketDirect != null) returnBucketDirect.onResume(context);
@@ -1243,5 +1274,18 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
     public boolean fullyResumed() {
         return getter != null && getter.resumedFetcher();
     }
+    
+    @Override
+    public boolean canRestoreFromClientDetail() {
+        if(persistence != Persistence.FOREVER) return false;
+        synchronized(this) {
+            if(finished) {
+                // The data for a completed download to temp space is only restored if the 
+                // bucket can be stored, so keep serializing those.
+                return !(succeeded && returnType == ReturnType.DIRECT);
+            }
+        }
+        return getter.canWriteTrivialProgress();
+    }
 
 }
@@ -301,6 +301,7 @@ public class ClientPut extends ClientPutBase {
 			synchronized(this) {
 				started = true;
 			}
+			markDirty();
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
 				if(cache != null) {
@@ -329,6 +330,7 @@ public class ClientPut extends ClientPutBase {
 			if(d == null) return;
 			finishedSize = d.size();
 		}
+		markDirty();
 		d.free();
 	}
 	
@@ -422,6 +424,7 @@ public class ClientPut extends ClientPutBase {
 					generatedURI = null;
 					started = true;
 				}
+				markDirty();
 			}
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
@@ -497,6 +500,7 @@ public class ClientPut extends ClientPutBase {
 			compressing = false;
 			compressed = true;
 		}
+		markDirty();
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
@@ -215,6 +215,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedURI = uri;
 			}
 		}
+		markDirty();
 		trySendGeneratedURIMessage(null, null);
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
@@ -244,6 +245,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 		if(delete) {
 			metadata.free();
 		} else {
+			markDirty();
 			trySendGeneratedMetadataMessage(metadata, null, null);
 		}
 	}
@@ -536,6 +538,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	    this.putFailedMessage = null;
 	    this.progressMessage = null;
 	    started = false;
+	    markDirty();
 	}
 
 }
@@ -199,6 +199,7 @@ public class ClientPutDir extends ClientPutBase {
 				putter.start(context);
 
 			started = true;
+			markDirty();
 			if(client != null) {
 				RequestStatusCache cache = client.getRequestStatusCache();
 				if(cache != null) {
@@ -237,6 +238,7 @@ public class ClientPutDir extends ClientPutBase {
 		// We have to commit everything, so activating everything here doesn't cost us much memory...?
 		freeData(manifestElements);
 		manifestElements = null;
+		markDirty();
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -64,6 +64,16 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** Set by onResumeDeferred() until resumeDeferred() has finished. */
+	private transient boolean resumeDeferred;
+	/** True while resumeDeferred() is running. */
+	private transient boolean resumingDeferred;
+	/** If true, resumeDeferred() calls start() too, because the request was restored from its
+	 * recovery data rather than deserialized. */
+	private transient boolean startOnResume;
+	/** True if something we serialize has changed since ClientLayerPersister last wrote the 
+	 * request. See ClientRequester.markDirty(). */
+	private transient volatile boolean dirty;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -209,6 +219,7 @@ public abstract class ClientRequest implements Serializable {
 	abstract void register(boolean noTags) throws IdentifierCollisionException;
 
 	public void cancel(ClientContext context) {
+		resumeIfDeferred(context);
 		ClientRequester cr = getClientRequest();
 		// It might have been finished on startup.
 		if(logMINOR) Logger.minor(this, "Cancelling "+cr+" for "+this+" persistence = "+persistence);
@@ -252,6 +263,7 @@ public abstract class ClientRequest implements Serializable {
 
 	/** Request completed. But we may have to stick around until we are acked. */
 	protected void finish() {
+		markDirty();
 		if(persistence == Persistence.CONNECTION)
 			origHandler.finishedClientRequest(this);
 		else
@@ -331,6 +343,10 @@ public abstract class ClientRequest implements Serializable {
 			}
 		}
 		
+		if(clientTokenChanged || (newPriorityClass >= 0 && newPriorityClass != priorityClass))
+			// We may have stored a placeholder and need to write the request again.
+			resumeIfDeferred(server.core.clientContext);
+
 		if(newPriorityClass >= 0 && newPriorityClass != priorityClass) {
 			this.priorityClass = newPriorityClass;
 			ClientRequester r = getClientRequest();
@@ -348,6 +364,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		markDirty();
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -510,6 +527,87 @@ public abstract class ClientRequest implements Serializable {
         context.persistentRoot.resume(this, global, clientName);
     }
     
+    /** Claim the persistent temp files and container space which the request will use when it 
+     * is resumed, without resuming it, so they are kept when unclaimed temp files are deleted at
+     * the end of startup. Called before onResumeDeferred(). Subclasses call the onResume() 
+     * methods of their buckets, which register the storage but do nothing expensive.
+     * @return False if the request doesn't know what storage it uses, in which case it must be
+     * resumed during startup rather than deferred.
+     * @throws ResumeFailedException If some of the storage has been lost. */
+    public boolean claimStorage(ClientContext context) throws ResumeFailedException {
+        return false;
+    }
+    
+    /** Called instead of onResume() on startup for a request which needn't run yet, because it 
+     * is paused or low priority. We register it with the PersistentRequestClient so that it shows
+     * up on the queue, but we don't resume the ClientRequester, which may be expensive e.g. for a
+     * big splitfile, until resumeDeferred() is called. Until then, the request's persistent state
+     * doesn't change, and ClientLayerPersister keeps writing what it loaded.
+     * @param startOnResume True if resumeDeferred() must call start(), i.e. if the request was 
+     * restored via restartFrom(). */
+    public final void onResumeDeferred(ClientContext context, boolean startOnResume) {
+        client = context.persistentRoot.makeClient(global, clientName);
+        lowLevelClient = client.lowLevelClient(realTime);
+        synchronized(this) {
+            resumeDeferred = true;
+            this.startOnResume = startOnResume;
+        }
+        context.persistentRoot.resume(this, global, clientName);
+    }
+    
+    /** Finish resuming a request registered by onResumeDeferred(). 
+     * @return False if it was not deferred, or has already been resumed.
+     * @throws ResumeFailedException If resuming failed. The caller should cancel the request. */
+    public boolean resumeDeferred(ClientContext context) throws ResumeFailedException {
+        boolean start;
+        synchronized(this) {
+            while(resumingDeferred) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            if(!resumeDeferred) return false;
+            resumingDeferred = true;
+            start = startOnResume;
+        }
+        try {
+            innerResume(context);
+            ClientRequester req = getClientRequest();
+            if(req != null) req.onResume(context);
+        } finally {
+            synchronized(this) {
+                // Either way, we shouldn't try again.
+                resumeDeferred = false;
+                resumingDeferred = false;
+                notifyAll();
+            }
+            // We no longer write the data we loaded.
+            markDirty();
+        }
+        if(start) start(context);
+        return true;
+    }
+    
+    /** Resume the request if it was deferred, before doing anything which needs the 
+     * ClientRequester. */
+    protected void resumeIfDeferred(ClientContext context) {
+        try {
+            resumeDeferred(context);
+        } catch (ResumeFailedException e) {
+            Logger.error(this, "Failed to resume "+this+" : "+e, e);
+        } catch (Throwable t) {
+            Logger.error(this, "Failed to resume "+this+" : "+t, t);
+        }
+    }
+    
+    /** @return True if onResumeDeferred() has been called and the request has not been fully 
+     * resumed yet. */
+    public synchronized boolean isResumeDeferred() {
+        return resumeDeferred || resumingDeferred;
+    }
+    
     protected abstract void innerResume(ClientContext context) throws ResumeFailedException;
 
     public RequestClient getRequestClient() {
@@ -539,9 +637,36 @@ public abstract class ClientRequest implements Serializable {
      * when we resume). */
     public abstract boolean fullyResumed();
 
+    /** Return true if getClientDetail() currently records everything needed to restore the 
+     * request exactly via restartFrom(), so ClientLayerPersister can store just that compact 
+     * binary form rather than serializing the whole request. Inserts keep the default: Their 
+     * progress is only captured by serializing the ClientPutter, and InsertContext has no 
+     * binary form. */
+    public boolean canRestoreFromClientDetail() {
+        return false;
+    }
+
+    /** Called when something we serialize changes, so that the next checkpoint writes the 
+     * request. */
+    public void markDirty() {
+        dirty = true;
+    }
+    
+    /** Called by ClientLayerPersister when it writes the request.
+     * @return True if the request or its ClientRequester has changed since the last call. */
+    public boolean clearDirty() {
+        boolean ret = dirty;
+        dirty = false;
+        ClientRequester request = getClientRequest();
+        if(request != null && request.clearDirty())
+            ret = true;
+        return ret;
+    }
+
     /** Called just before the final write when the node is shutting down. Should write any dirty
      * data to disk etc. */
     public void onShutdown(ClientContext context) {
+        if(isResumeDeferred()) return; // Nothing to write.
         ClientRequester request = getClientRequest();
         if(request != null)
             request.onShutdown(context);
@@ -623,6 +623,36 @@ public class FCPServer implements Runnable, DownloadCache {
 		return v.toArray(new RequestStatus[v.size()]);
 	}
 
+	/** @return A copy of the status of a request on the global queue, or null if there is no
+	 * such request. Much cheaper than getGlobalRequests() if we only need a few requests. */
+	public RequestStatus getGlobalRequestStatus(String identifier) throws PersistenceDisabledException {
+		if(core.killedDatabase()) throw new PersistenceDisabledException();
+		RequestStatus status = globalRebootClient.getRequestStatusCache().get(identifier);
+		if(status == null && globalForeverClient != null)
+			status = globalForeverClient.getRequestStatusCache().get(identifier);
+		return status;
+	}
+
+	/** @return A number which changes whenever requests on the global queue are added, removed,
+	 * finish etc, so a sorted list of them may be out of date.
+	 * @see RequestStatusCache#getVersion() */
+	public long getGlobalRequestsVersion() {
+		long version = globalRebootClient.getRequestStatusCache().getVersion();
+		if(globalForeverClient != null)
+			version += globalForeverClient.getRequestStatusCache().getVersion();
+		return version;
+	}
+
+	/** @return A number which changes whenever anything about the requests on the global queue
+	 * changes, including their progress.
+	 * @see RequestStatusCache#getProgressVersion() */
+	public long getGlobalRequestsProgressVersion() {
+		long version = globalRebootClient.getRequestStatusCache().getProgressVersion();
+		if(globalForeverClient != null)
+			version += globalForeverClient.getRequestStatusCache().getProgressVersion();
+		return version;
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, PersistenceDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, core.clientContext)) {
 			final CountDownLatch done = new CountDownLatch(1);
@@ -4,6 +4,7 @@
 package freenet.clients.fcp;
 
 import freenet.client.events.FinishedCompressionEvent;
+import freenet.client.events.FinishedCompressionEvent.CodecAttempt;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
 import freenet.support.compress.Compressor;
@@ -15,6 +16,7 @@ public class FinishedCompressionMessage extends FCPMessage {
 	final int codec;
 	final long origSize;
 	final long compressedSize;
+	final CodecAttempt[] attempts;
 
 	/**
 	 * zero arg c'tor for db4o on jamvm
@@ -26,6 +28,7 @@ public class FinishedCompressionMessage extends FCPMessage {
 		global = false;
 		compressedSize = 0;
 		codec = 0;
+		attempts = null;
 	}
 
 	public FinishedCompressionMessage(String identifier, boolean global, FinishedCompressionEvent event) {
@@ -33,6 +36,7 @@ public class FinishedCompressionMessage extends FCPMessage {
 		this.codec = event.codec;
 		this.compressedSize = event.compressedSize;
 		this.origSize = event.originalSize;
+		this.attempts = event.attempts;
 		this.global = global;
 	}
 
@@ -47,6 +51,16 @@ public class FinishedCompressionMessage extends FCPMessage {
 			fs.putSingle("Codec.Name", "NONE");
 		fs.put("OriginalSize", origSize);
 		fs.put("CompressedSize", compressedSize);
+		if(attempts != null) {
+			for(int i=0;i<attempts.length;i++) {
+				CodecAttempt attempt = attempts[i];
+				String prefix = "Attempt."+i+".";
+				fs.putSingle(prefix+"Codec.Name", Compressor.COMPRESSOR_TYPE.getCompressorByMetadataID((short)attempt.codec).name());
+				fs.put(prefix+"CompressedSize", attempt.compressedSize);
+				fs.put(prefix+"Time", attempt.timeMillis);
+				fs.put(prefix+"Aborted", attempt.aborted);
+			}
+		}
 		fs.put("Global", global);
 		return fs;
 	}
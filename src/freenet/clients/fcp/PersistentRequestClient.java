@@ -532,7 +532,8 @@ public class PersistentRequestClient {
             requesters.add(req.getClientRequest());
     }
 
-    public void resume(ClientRequest clientRequest) {
+    /** Called when loading requests on startup. May be called from several threads at once. */
+    public synchronized void resume(ClientRequest clientRequest) {
         if(clientRequest.hasFinished())
             completedUnackedRequests.add(clientRequest);
         else
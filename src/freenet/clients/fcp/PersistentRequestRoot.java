@@ -77,7 +77,12 @@ public class PersistentRequestRoot {
     public ClientRequest[] getPersistentRequests() {
         List<ClientRequest> requests = new ArrayList<ClientRequest>();
         globalForeverClient.addPersistentRequests(requests, true);
-        for(PersistentRequestClient client : clients.values())
+        PersistentRequestClient[] foreverClients;
+        synchronized(this) {
+            // Clients may be added by another thread, e.g. while resuming requests in parallel.
+            foreverClients = clients.values().toArray(new PersistentRequestClient[clients.size()]);
+        }
+        for(PersistentRequestClient client : foreverClients)
             client.addPersistentRequests(requests, true);
         return requests.toArray(new ClientRequest[requests.size()]);
     }
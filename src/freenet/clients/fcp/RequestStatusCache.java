@@ -31,6 +31,11 @@ public class RequestStatusCache {
 	private final HashMap<String, RequestStatus> requestsByIdentifier;
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
+	/** Incremented whenever a request is added, removed, finishes, restarts, or changes 
+	 * priority, size or MIME type, i.e. whenever a sorted list of requests may be out of date. */
+	private long version;
+	/** Incremented whenever anything changes, including progress. */
+	private long progressVersion;
 	
 	RequestStatusCache() {
 		downloads = new ArrayList<RequestStatus>();
@@ -49,6 +54,7 @@ public class RequestStatusCache {
 		    downloads.remove(old);
 		downloads.add(status);
 		downloadsByURI.put(status.getURI(), status);
+		changed(true);
 	}
 	
 	synchronized void addUpload(UploadRequestStatus status) {
@@ -62,6 +68,7 @@ public class RequestStatusCache {
 		FreenetURI uri = status.getURI();
 		if(uri != null)
 			uploadsByFinalURI.put(uri, status);
+		changed(true);
 	}
 	
 	synchronized void finishedDownload(String identifier, boolean success, long dataSize, 
@@ -70,6 +77,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
 				failureReasonShort, dataShadow, filtered);
+		changed(true);
 	}
 	
 	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
@@ -79,6 +87,7 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinalURI(finalURI);
+		changed(false);
 	}
 	
 	synchronized void finishedUpload(String identifier, boolean success,  
@@ -90,12 +99,14 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+		changed(true);
 	}
 	
 	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateStatus(event);
+		changed(false);
 	}
 	
 	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
@@ -103,6 +114,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateDetectedCompatModes(compatModes, dontCompress);
 		status.updateDetectedSplitfileKey(splitfileKey);
+		changed(false);
 	}
 	
 	synchronized void removeByIdentifier(String identifier) {
@@ -119,6 +131,7 @@ public class RequestStatusCache {
 			if(uri != null)
 				uploadsByFinalURI.removeElement(uri, status);
 		}
+		changed(true);
 	}
 
 	synchronized void clear() {
@@ -127,13 +140,15 @@ public class RequestStatusCache {
 		requestsByIdentifier.clear();
 		downloadsByURI.clear();
 		uploadsByFinalURI.clear();
+		changed(true);
 	}
 
-	public void updateCompressionStatus(String identifier,
+	public synchronized void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
 		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateCompressionStatus(compressing);
+		changed(false);
 	}
 
 	public synchronized void addTo(List<RequestStatus> status) {
@@ -143,22 +158,47 @@ public class RequestStatusCache {
 			status.add(req.clone());
 	}
 
+	/** @return A copy of the status of a request, or null if there is no such request. */
+	public synchronized RequestStatus get(String identifier) {
+		RequestStatus status = requestsByIdentifier.get(identifier);
+		return status == null ? null : status.clone();
+	}
+
+	/** @see #version */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/** @see #progressVersion */
+	public synchronized long getProgressVersion() {
+		return progressVersion;
+	}
+
+	/** @param layout True if a sorted list of requests may need to change, not just progress. */
+	private void changed(boolean layout) {
+		if(layout) version++;
+		progressVersion++;
+	}
+
 	public synchronized void updateExpectedMIME(String identifier, String foundDataMimeType) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedMIME(foundDataMimeType);
+		changed(true);
 	}
 
 	public synchronized void updateExpectedDataLength(String identifier, long expectedDataLength) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedDataLength(expectedDataLength);
+		changed(true);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.setPriority(newPriorityClass);
+		changed(true);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
@@ -174,6 +214,7 @@ public class RequestStatusCache {
 		else
 			// Already restarted, just set started = true.
 			status.setStarted(started);
+		changed(true);
 	}
 	
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
@@ -189,6 +230,7 @@ public class RequestStatusCache {
 			status.redirect(redirect);
 			downloadsByURI.put(redirect, status);
 		}
+		changed(true);
 	}
 
 	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
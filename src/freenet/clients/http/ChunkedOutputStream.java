@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Sends a reply body with HTTP/1.1 chunked transfer encoding, so we can start sending a reply
+ * before we know how long it is. Buffers the data so we don't send lots of tiny chunks. close()
+ * sends the last chunk, but doesn't close the connection, which may be used for more requests.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+	/** The largest chunk we send, and the size of the buffer. */
+	static final int CHUNK_SIZE = 16384;
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+	private final OutputStream out;
+	private final byte[] buf = new byte[CHUNK_SIZE];
+	private int count;
+	private boolean closed;
+
+	ChunkedOutputStream(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(closed) throw new IOException("Already closed");
+		if(count == buf.length) sendBuffer();
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if(closed) throw new IOException("Already closed");
+		while(length > 0) {
+			if(count == 0 && length >= buf.length) {
+				// No point copying it.
+				sendChunk(data, offset, buf.length);
+				offset += buf.length;
+				length -= buf.length;
+				continue;
+			}
+			int copy = Math.min(length, buf.length - count);
+			System.arraycopy(data, offset, buf, count, copy);
+			count += copy;
+			offset += copy;
+			length -= copy;
+			if(count == buf.length) sendBuffer();
+		}
+	}
+
+	/** Sends what we have so far as a chunk. */
+	@Override
+	public void flush() throws IOException {
+		if(closed) return;
+		sendBuffer();
+		out.flush();
+	}
+
+	/** Ends the reply, but doesn't close the underlying stream. */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		sendBuffer();
+		out.write(LAST_CHUNK);
+		out.flush();
+		closed = true;
+	}
+
+	private void sendBuffer() throws IOException {
+		if(count == 0) return;
+		sendChunk(buf, 0, count);
+		count = 0;
+	}
+
+	private void sendChunk(byte[] data, int offset, int length) throws IOException {
+		out.write(Integer.toHexString(length).getBytes("US-ASCII"));
+		out.write(CRLF);
+		out.write(data, offset, length);
+		out.write(CRLF);
+	}
+
+}
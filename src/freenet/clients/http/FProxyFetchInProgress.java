@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,8 +27,10 @@ import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.ExpectedFileSizeEvent;
 import freenet.client.events.ExpectedMIMEEvent;
+import freenet.client.events.PartialDataEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileProgressEvent;
+import freenet.client.events.StreamingDataEvent;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.UnknownContentTypeException;
@@ -56,6 +59,10 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	}
 	
 	private final REFILTER_POLICY refilterPolicy;
+	/** Key for the filtered content cache, or null if the filtered data can't be shared. */
+	private final String filteredCacheKey;
+	/** True if the data came from the filtered content cache. */
+	private boolean fromFilteredCache;
 	
 	private static volatile boolean logMINOR;
 	
@@ -110,6 +117,10 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private FetchException failed;
 	private boolean hasWaited;
 	private boolean hasNotifiedFailure;
+	/** The data is being filtered while it is fetched, and can be sent as it is filtered. */
+	private StreamingDataEvent streaming;
+	/** The data doesn't need filtering, and parts of it can be read while it is fetched. */
+	private PartialDataEvent partialData;
 	/** Last time the fetch was accessed from the fproxy end */
 	private long lastTouched;
 	final FProxyFetchTracker tracker;
@@ -126,6 +137,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	
 	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc, REFILTER_POLICY refilter) {
 		this.refilterPolicy = refilter;
+		this.filteredCacheKey = makeFilteredCacheKey(key, fctx, refilter);
 		this.tracker = tracker;
 		this.uri = key;
 		this.maxSize = maxSize2;
@@ -140,6 +152,21 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		getter = new ClientGetter(this, uri, alteredFctx, FProxyToadlet.PRIORITY, null, null, null);
 	}
 	
+	/** The base URI the data is filtered against, both here and by the ClientGetter. */
+	private static URI getFilterBaseURI(FreenetURI key) throws URISyntaxException {
+		return key.toURI("/");
+	}
+
+	private static String makeFilteredCacheKey(FreenetURI key, FetchContext fctx, REFILTER_POLICY refilter) {
+		if(!FilteredContentCache.canCache(key, fctx)) return null;
+		try {
+			return FilteredContentCache.makeKey(key, fctx, refilter, getFilterBaseURI(key));
+		} catch (URISyntaxException e) {
+			Logger.error(FProxyFetchInProgress.class, "Impossible: "+e, e);
+			return null;
+		}
+	}
+
 	public synchronized FProxyFetchWaiter getWaiter() {
 		lastTouched = System.currentTimeMillis();
 		FProxyFetchWaiter waiter = new FProxyFetchWaiter(this);
@@ -174,7 +201,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	public void start(ClientContext context) throws FetchException {
 		try {
-			if(!checkCache(context))
+			if(!checkFilteredCache(context) && !checkCache(context))
 				context.start(getter);
 		} catch (FetchException e) {
 			synchronized(this) {
@@ -191,6 +218,21 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/** Look up the key in the filtered content cache.
+	 * @return True if it was found and we don't need to start the request. */
+	private boolean checkFilteredCache(ClientContext context) {
+		if(filteredCacheKey == null) return false;
+		if(bogusUSK(context)) return false;
+		FilteredContentCache.CachedContent cached = tracker.filteredCache.get(filteredCacheKey);
+		if(cached == null) return false;
+		synchronized(this) {
+			fromFilteredCache = true;
+		}
+		// The data is a copy, so we can stay in the FProxyFetchTracker.
+		onSuccess(new FetchResult(new ClientMetadata(cached.mimeType), cached.data), null);
+		return true;
+	}
+
 	/** Look up the key in the downloads queue.
 	 * @return True if it was found and we don't need to start the request. */
 	private boolean checkCache(ClientContext context) {
@@ -260,7 +302,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				output = context.tempBucketFactory.makeBucket(-1);
 				is = data.getInputStream();
 				os = output.getOutputStream();
-				ContentFilter.filter(is, os, fullMimeType, uri.toURI("/"), null, null, fctx.charset, context.linkFilterExceptionProvider);
+				ContentFilter.filter(is, os, fullMimeType, getFilterBaseURI(uri), null, null, fctx.charset, context.linkFilterExceptionProvider);
 				is.close();
 				is = null;
 				os.close();
@@ -354,6 +396,20 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 					this.size = ((ExpectedFileSizeEvent)ce).expectedSize;
 				}
 				if(!goneToNetwork) return;
+			} else if(ce instanceof StreamingDataEvent) {
+				StreamingDataEvent event = (StreamingDataEvent) ce;
+				if(!event.data.open()) return;
+				synchronized(this) {
+					streaming = event;
+				}
+				wakeWaitersForStreaming();
+				return;
+			} else if(ce instanceof PartialDataEvent) {
+				synchronized(this) {
+					partialData = (PartialDataEvent) ce;
+				}
+				wakeWaitersForStreaming();
+				return;
 			} else return;
 			wakeWaiters(false);
 		}finally{
@@ -378,12 +434,39 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	private void wakeWaitersForStreaming() {
+		FProxyFetchWaiter[] waiting;
+		synchronized(this) {
+			waiting = waiters.toArray(new FProxyFetchWaiter[waiters.size()]);
+		}
+		for(FProxyFetchWaiter w : waiting) {
+			w.wakeUpForStreaming();
+		}
+	}
+
+	/** @return The data being filtered while it is fetched, if it can still be streamed, or 
+	 * null. The caller must keep a waiter open while it reads the data, so the fetch isn't 
+	 * cancelled. */
+	public synchronized StreamingDataEvent getStreamingData() {
+		if(streaming == null || finished) return null;
+		return streaming;
+	}
+
+	/** @return Access to parts of the data while it is fetched, or null. The caller must keep a
+	 * waiter open while it reads the data, so the fetch isn't cancelled. */
+	public synchronized PartialDataEvent getPartialData() {
+		if(partialData == null || finished) return null;
+		return partialData;
+	}
+
 	@Override
 	public void onFailure(FetchException e, ClientGetter state) {
 		synchronized(this) {
 			this.failed = e;
 			this.finished = true;
 			this.timeFailed = System.currentTimeMillis();
+			this.streaming = null;
+			this.partialData = null;
 		}
 		wakeWaiters(true);
 	}
@@ -391,6 +474,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
 		Bucket droppedData = null;
+		boolean shouldCache;
 		synchronized(this) {
 			if(cancelled)
 				droppedData = result.asBucket();
@@ -398,7 +482,12 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				this.data = result.asBucket();
 			this.mimeType = result.getMimeType();
 			this.finished = true;
+			this.streaming = null;
+			this.partialData = null;
+			shouldCache = filteredCacheKey != null && !cancelled && !fromFilteredCache;
 		}
+		if(shouldCache)
+			tracker.filteredCache.put(filteredCacheKey, result.asBucket(), result.getMimeType());
 		wakeWaiters(true);
 		if(droppedData != null)
 			droppedData.free();
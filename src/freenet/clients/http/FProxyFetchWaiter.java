@@ -6,6 +6,7 @@ public class FProxyFetchWaiter {
 	public FProxyFetchWaiter(FProxyFetchInProgress progress2) {
 		this.progress = progress2;
 		if(progress.finished()) finished = true;
+		if(progress.getStreamingData() != null || progress.getPartialData() != null) streaming = true;
 		hasWaited = progress.hasWaited();
 	}
 
@@ -14,6 +15,8 @@ public class FProxyFetchWaiter {
 	private boolean hasWaited;
 	private boolean finished;
 	private boolean awoken;
+	/** The data can be streamed. Cleared once getResult() has returned because of it. */
+	private boolean streaming;
 	
 	public FProxyFetchResult getResult() {
 		return getResult(false);
@@ -24,7 +27,7 @@ public class FProxyFetchWaiter {
 		synchronized(this) {
 			if(waitForever) {
 				// FIXME findbugs thinks this will never exit. It should given wakeUp().
-				while(!finished) {
+				while(!(finished || streaming)) {
 					try {
 						wait();
 						hasWaited = true;
@@ -38,7 +41,7 @@ public class FProxyFetchWaiter {
 				 * because the request has finished checking the datastore
 				 * and has been sent to the network, in which case we want
 				 * to show the progress bar. */
-				if(!(finished || hasWaited || awoken)) {
+				if(!(finished || hasWaited || awoken || streaming)) {
 					awoken = false;
 					try {
 						wait(5000);
@@ -49,6 +52,7 @@ public class FProxyFetchWaiter {
 				}
 			}
 			waited = hasWaited;
+			streaming = false;
 		}
 		progress.setHasWaited();
 		return progress.innerGetResult(waited);
@@ -75,6 +79,11 @@ public class FProxyFetchWaiter {
 		notifyAll();
 	}
 	
+	public synchronized void wakeUpForStreaming() {
+		streaming = true;
+		notifyAll();
+	}
+	
 	public boolean hasWaited() {
 		return hasWaited;
 	}
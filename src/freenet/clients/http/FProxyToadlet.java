@@ -7,6 +7,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
@@ -25,6 +26,8 @@ import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.FetchResult;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.async.ClientContext;
+import freenet.client.events.PartialDataEvent;
+import freenet.client.events.StreamingDataEvent;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.FilterMIMEType;
@@ -68,6 +71,7 @@ import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
+import freenet.support.io.StreamBroadcaster;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
 
@@ -89,6 +93,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	/** Maximum size for transparent pass-through. See config passthroughMaxSizeProgress */
 	public static long MAX_LENGTH_WITH_PROGRESS = (50*1024*1024 * 11) / 10; // 50MiB plus a bit due to buggy inserts
 	public static long MAX_LENGTH_NO_PROGRESS = (2*1024*1024 * 11) / 10; // 2MiB plus a bit due to buggy inserts
+	/** Total size of filtered pages kept for reuse by FilteredContentCache. */
+	public static long FILTERED_CACHE_SIZE = 32*1024*1024;
 
 	static final URI welcome;
 	public static final short PRIORITY = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
@@ -139,6 +145,137 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
+	/**
+	 * Send the filtered data while it is still being fetched. We don't know how long it will be,
+	 * so it is sent chunked; if the fetch fails, we close the connection without ending the
+	 * reply, so the browser knows it is incomplete and doesn't cache it. If we can't keep up
+	 * with the data, send the rest from the final data once the fetch has finished.
+	 * @param fetch Kept open by the caller, so the fetch isn't cancelled while we send it.
+	 * @param timeStarted When the fetch started, to log the time to the first byte.
+	 */
+	private static void sendStreamingData(ToadletContext ctx, StreamBroadcaster.Reader reader, String mimeType, FProxyFetchWaiter fetch, FreenetURI key, long timeStarted) throws ToadletContextClosedException, IOException {
+		if(logMINOR) Logger.minor(FProxyToadlet.class, "Sending "+key+" ("+mimeType+") while it is fetched");
+		boolean finished = false;
+		try {
+			OutputStream os = ctx.sendReplyHeadersFProxyChunked(200, "OK", new MultiValueTable<String, String>(), mimeType);
+			byte[] buf = new byte[32768];
+			long written = 0;
+			while(true) {
+				int read;
+				try {
+					read = reader.read(buf);
+				} catch (StreamBroadcaster.FellBehindException e) {
+					if(logMINOR) Logger.minor(FProxyToadlet.class, "Fell behind after "+written+" bytes of "+key+", waiting for the fetch to finish");
+					if(!sendRestOfData(os, fetch, written)) return;
+					break;
+				} catch (IOException e) {
+					if(logMINOR) Logger.minor(FProxyToadlet.class, "Fetch failed after sending "+written+" bytes of "+key+": "+e);
+					return;
+				}
+				if(read == -1) break;
+				if(written == 0 && logMINOR)
+					Logger.minor(FProxyToadlet.class, "First byte of "+key+" after "+(System.currentTimeMillis() - timeStarted)+"ms");
+				os.write(buf, 0, read);
+				written += read;
+			}
+			os.close();
+			finished = true;
+			if(logMINOR) Logger.minor(FProxyToadlet.class, "Sent "+key+" while fetching, "+(System.currentTimeMillis() - timeStarted)+"ms after the fetch started");
+		} finally {
+			reader.close();
+			if(!finished) ctx.forceDisconnect();
+		}
+	}
+
+	/**
+	 * Wait for the fetch to finish, and send the final data after what we have already sent.
+	 * @return False if the fetch failed.
+	 */
+	private static boolean sendRestOfData(OutputStream os, FProxyFetchWaiter fetch, long written) throws IOException {
+		FProxyFetchResult result;
+		while(true) {
+			result = fetch.getResult(true);
+			if(result.hasData() || result.failed != null) break;
+			// Woken because the fetch restarted, not because it finished.
+			result.close();
+		}
+		try {
+			if(result.data == null || result.data.size() < written) return false;
+			InputStream is = result.data.getInputStream();
+			try {
+				FileUtil.skipFully(is, written);
+				FileUtil.copy(is, os, result.data.size() - written);
+			} finally {
+				Closer.close(is);
+			}
+			return true;
+		} finally {
+			result.close();
+		}
+	}
+
+	/**
+	 * Send the data, or the range the browser asked for, straight from the splitfile segments 
+	 * as soon as they have been fetched.
+	 * @param fetch Kept open by the caller, so the fetch isn't cancelled while we send it.
+	 */
+	private static void sendPartialData(ToadletContext ctx, PartialDataEvent partial, String rangeStr, FProxyFetchWaiter fetch, FreenetURI key) throws ToadletContextClosedException, IOException {
+		long size = partial.data.size();
+		long[] range = null;
+		if(rangeStr != null) {
+			try {
+				range = parseRange(rangeStr);
+			} catch (HTTPRangeException e) {
+				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
+				return;
+			}
+		}
+		long start = 0;
+		long end = size;
+		MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+		retHdr.put("Accept-Ranges", "bytes");
+		retHdr.put("X-Content-Type-Options", "nosniff");
+		if(range != null) {
+			range = resolveRange(range, size);
+			if(range == null) {
+				sendRangeNotSatisfiable(ctx, size);
+				return;
+			}
+			start = range[0];
+			end = range[1] + 1;
+			retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+			ctx.sendReplyHeadersFProxy(206, "Partial content", retHdr, partial.mimeType, end - start);
+		} else {
+			ctx.sendReplyHeadersFProxy(200, "OK", retHdr, partial.mimeType, size);
+		}
+		if(logMINOR) Logger.minor(FProxyToadlet.class, "Sending "+start+" - "+end+" of "+key+" while it is fetched");
+		ToadletOutputStream os = new ToadletOutputStream(ctx);
+		try {
+			partial.data.writeRange(os, start, end);
+		} catch (InterruptedIOException e) {
+			// The fetch finished while we were sending, so the segments may have gone. If it 
+			// succeeded, send the rest from the final data.
+			FProxyFetchResult result = fetch.getResult(true);
+			try {
+				if(result.data == null || result.data.size() != size) throw e;
+				InputStream is = result.data.getInputStream();
+				try {
+					FileUtil.skipFully(is, start + os.written);
+					FileUtil.copy(is, os, end - start - os.written);
+				} finally {
+					Closer.close(is);
+				}
+			} finally {
+				result.close();
+			}
+		}
+	}
+
+	/** Is this a Range header asking for everything, as media players send before seeking? */
+	static boolean isWholeRange(String rangeStr) {
+		return rangeStr.trim().replace(" ", "").equalsIgnoreCase("bytes=0-");
+	}
+
 	public static void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
@@ -236,42 +373,38 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			// Send the data, intact
 			MultiValueTable<String, String> hdr = context.getHeaders();
 			String rangeStr = hdr.get("range");
-			// was a range request
+			long range[] = null;
 			if (rangeStr != null) {
-
-				long range[];
 				try {
 					range = parseRange(rangeStr);
 				} catch (HTTPRangeException e) {
 					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
+			}
+			// was a range request
+			if (range != null) {
+				range = resolveRange(range, size);
+				if (range == null) {
+					sendRangeNotSatisfiable(context, size);
+					return;
 				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
+				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+				retHdr.put("Accept-Ranges", "bytes");
+                retHdr.put("X-Content-Type-Options", "nosniff");
+				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, range[1] - range[0] + 1);
+				// Send the range straight from the data, rather than copying it first.
+				InputStream is = data.getInputStream();
 				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
+					FileUtil.skipFully(is, range[0]);
+					FileUtil.copy(is, new ToadletOutputStream(context), range[1] - range[0] + 1);
 				} finally {
 					Closer.close(is);
-					Closer.close(os);
 				}
-				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
-                retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
 			} else {
                 MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+                retHdr.put("Accept-Ranges", "bytes");
                 retHdr.put("X-Content-Type-Options", "nosniff");
                 context.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, size);
 				context.writeData(data);
@@ -692,6 +825,15 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			} catch (FetchException e) {
             fe = e;
 			}
+			// Large media can be sent while it is still being fetched, unless the user wants 
+			// something other than the filtered data from the start.
+			boolean canStream = fctx.filterData && requestedMimeType == null && 
+				!httprequest.isParameterSet("forcedownload") && (rangeStr == null || isWholeRange(rangeStr));
+			boolean canSendPartial = !fctx.filterData && requestedMimeType == null && 
+				!httprequest.isParameterSet("forcedownload");
+			StreamingDataEvent streaming;
+			StreamBroadcaster.Reader reader;
+			PartialDataEvent partial;
 			if(fetch != null)
 			while(true) {
 			fr = fetch.getResult(!canSendProgress);
@@ -721,6 +863,27 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				fe = fr.failed;
 				fetch.close(); // Not waiting any more, but still locked the results until sent
 				break;
+			} else if(canStream && (streaming = fetch.progress.getStreamingData()) != null
+					&& (reader = streaming.data.addReader()) != null) {
+				// Send the data as it is filtered. Keep the waiter open so the fetch isn't 
+				// cancelled until we have finished.
+				fr.close();
+				try {
+					sendStreamingData(ctx, reader, streaming.mimeType, fetch, key, fr.timeStarted);
+				} finally {
+					fetch.close();
+				}
+				return;
+			} else if(canSendPartial && (partial = fetch.progress.getPartialData()) != null) {
+				// The data doesn't need filtering, so send what the browser asked for as soon
+				// as it has been fetched, e.g. where it is seeking to in a video.
+				fr.close();
+				try {
+					sendPartialData(ctx, partial, rangeStr, fetch, key);
+				} finally {
+					fetch.close();
+				}
+				return;
 			} else if(canSendProgress) {
 				if(logMINOR) Logger.minor(this, "Still in progress");
 				// Still in progress
@@ -1295,7 +1458,13 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/**
+	 * Parse a Range header.
+	 * @return The first and last byte, with -1 for the last byte if the range is open ended, or
+	 * -1 and the length for the last part of the data. Null if it asks for several ranges, in
+	 * which case we send the whole file, as HTTP allows.
+	 */
+	static long[] parseRange(String hdrrange) throws HTTPRangeException {
 
 		long result[] = new long[2];
 		try {
@@ -1305,14 +1474,23 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			if (!"bytes".equals(units[0])) {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
+			if (units[1].indexOf(',') != -1) return null;
+			String[] range = units[1].trim().split("-", 2);
+			if (range[0].trim().length() == 0) {
+				// The last N bytes, e.g. for the index at the end of a video.
+				result[0] = -1;
+				result[1] = Long.parseLong(range[1].trim());
+				if (result[1] < 0)
+					throw new HTTPRangeException("Negative suffix length");
+				return result;
+			}
+			result[0] = Long.parseLong(range[0].trim());
 			if (result[0] < 0)
 				throw new HTTPRangeException("Negative 'from' value");
 			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
+				result[1] = Long.parseLong(range[1].trim());
+				if (result[1] < result[0])
+					throw new HTTPRangeException("'from' value must not be more than 'to' value");
 			} else {
 				result[1] = -1;
 			}
@@ -1324,6 +1502,57 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return result;
 	}
 
+	/**
+	 * Apply a range from parseRange() to data of a known size.
+	 * @return The first and last byte to send, or null if none of the range is in the data.
+	 */
+	static long[] resolveRange(long[] range, long size) {
+		long start = range[0];
+		long end = range[1];
+		if (start == -1) {
+			if (end == 0) return null;
+			start = Math.max(0, size - end);
+			end = size - 1;
+		} else {
+			if (start >= size) return null;
+			if (end == -1 || end >= size) end = size - 1;
+		}
+		return new long[] { start, end };
+	}
+
+	private static void sendRangeNotSatisfiable(ToadletContext ctx, long size) throws ToadletContextClosedException, IOException {
+		MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+		retHdr.put("Content-Range", "bytes */" + size);
+		ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", retHdr, null, 0);
+	}
+
+	/** Writes to the client, counting what has been written. */
+	private static class ToadletOutputStream extends OutputStream {
+
+		private final ToadletContext ctx;
+		private long written;
+
+		ToadletOutputStream(ToadletContext ctx) {
+			this.ctx = ctx;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			try {
+				ctx.writeData(buf, offset, length);
+			} catch (ToadletContextClosedException e) {
+				throw new IOException("Connection closed");
+			}
+			written += length;
+		}
+
+	}
+
 	@Override
 	public boolean persistent() {
 		return false;
@@ -0,0 +1,217 @@
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import freenet.client.FetchContext;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Keeps the output of the content filter for recently viewed pages, so that viewing the same
+ * page again, in another tab or from another user of a public gateway, doesn't need to filter it
+ * again. Shared by all FProxy sessions. The data is kept in temp buckets, so it will be moved to
+ * disk if we run short of RAM, and the least recently used entries are dropped when the total size
+ * goes over the limit.
+ *
+ * Only filtered output which doesn't depend on the session is cached, so nothing is cached when
+ * web-pushing is enabled, as it puts session specific element IDs in the page.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Entries bigger than this fraction of the cache are not cached. */
+	static final int MAX_ENTRY_FRACTION = 4;
+
+	/** A filtered page. */
+	private static class Entry {
+		final Bucket data;
+		final String mimeType;
+		final long size;
+		Entry(Bucket data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.size = data.size();
+		}
+	}
+
+	/** A filtered page, as returned to the caller. */
+	public static class CachedContent {
+		/** A copy of the filtered data, which the caller must free. */
+		public final Bucket data;
+		/** The MIME type after filtering, including the charset. */
+		public final String mimeType;
+		CachedContent(Bucket data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+		}
+	}
+
+	private final BucketFactory bf;
+	/** Keys come from the browser, so don't use a HashMap. */
+	private final LRUMap<String, Entry> entries = LRUMap.createSafeMap();
+	private long maxSize;
+	private long totalSize;
+	private long hits;
+	private long misses;
+	private long bytesServed;
+
+	public FilteredContentCache(BucketFactory bf, long maxSize) {
+		this.bf = bf;
+		this.maxSize = maxSize;
+	}
+
+	/** Can the filtered output of this request be shared with other requests? */
+	static boolean canCache(FreenetURI uri, FetchContext fctx) {
+		if(!fctx.filterData) return false;
+		if(fctx.tagReplacer != null) return false;
+		// We can't tell whether a USK without an edition will give the same page.
+		if(uri.isUSK() && uri.getSuggestedEdition() < 0) return false;
+		return true;
+	}
+
+	/** Everything the filtered output depends on, apart from the filter itself.
+	 * @param baseURI The URI the filter resolves relative links against. Must be the one
+	 * actually passed to the filter. */
+	static String makeKey(FreenetURI uri, FetchContext fctx, REFILTER_POLICY policy, URI baseURI) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(policy.name());
+		sb.append(' ');
+		sb.append(fctx.overrideMIME == null ? "" : fctx.overrideMIME);
+		sb.append(' ');
+		sb.append(fctx.charset == null ? "" : fctx.charset);
+		sb.append(' ');
+		sb.append(baseURI);
+		sb.append(' ');
+		sb.append(uri.toString(false, false));
+		return sb.toString();
+	}
+
+	/**
+	 * Look up a filtered page.
+	 * @return A copy of the page, or null if it is not cached or we failed to copy it.
+	 */
+	public CachedContent get(String key) {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry == null) {
+				misses++;
+				return null;
+			}
+			// Promote it.
+			entries.push(key, entry);
+		}
+		// The entry may be dropped and freed while we copy it.
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(entry.size);
+			BucketTools.copy(entry.data, copy);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Failed to copy cached filtered data for "+key+" : "+e, e);
+			if(copy != null) copy.free();
+			synchronized(this) {
+				misses++;
+			}
+			return null;
+		}
+		synchronized(this) {
+			hits++;
+			bytesServed += entry.size;
+		}
+		if(logMINOR) Logger.minor(this, "Serving "+key+" from the filtered content cache");
+		return new CachedContent(copy, entry.mimeType);
+	}
+
+	/**
+	 * Cache a filtered page. The data is copied, the caller keeps its own.
+	 */
+	public void put(String key, Bucket data, String mimeType) {
+		long size = data.size();
+		synchronized(this) {
+			if(size > maxSize / MAX_ENTRY_FRACTION) return;
+		}
+		Bucket copy = null;
+		try {
+			copy = bf.makeBucket(size);
+			BucketTools.copy(data, copy);
+			copy.setReadOnly();
+		} catch (IOException e) {
+			Logger.normal(this, "Unable to cache filtered data for "+key+" : "+e, e);
+			if(copy != null) copy.free();
+			return;
+		}
+		Entry entry = new Entry(copy, mimeType);
+		Entry old;
+		synchronized(this) {
+			old = entries.push(key, entry);
+			totalSize += entry.size;
+			if(old != null) totalSize -= old.size;
+		}
+		if(old != null) old.data.free();
+		trim();
+	}
+
+	/** Drop the least recently used entries until we are under the limit. */
+	private void trim() {
+		while(true) {
+			Entry entry;
+			synchronized(this) {
+				if(totalSize <= maxSize || entries.isEmpty()) return;
+				entry = entries.popValue();
+				totalSize -= entry.size;
+			}
+			entry.data.free();
+		}
+	}
+
+	public void setMaxSize(long maxSize) {
+		synchronized(this) {
+			this.maxSize = maxSize;
+		}
+		trim();
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getBytesServed() {
+		return bytesServed;
+	}
+
+}
@@ -0,0 +1,167 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+
+/**
+ * Waits for requests on FProxy connections which are idle, i.e. new connections and persistent
+ * connections between requests, using a single thread and a Selector rather than a thread per
+ * connection. When a request arrives, the connection goes back to blocking mode and is passed
+ * to a handler thread, which parks it here again when it has answered the request. Browsers
+ * keep many connections open and idle, so this matters for public gateways with lots of users.
+ *
+ * Only works with sockets which have a channel, see ChannelNetworkInterface.
+ */
+class IdleConnectionSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Called on the selector thread when a request arrives on a connection. Must not block. */
+	interface Handler {
+		void handle(Socket sock);
+	}
+
+	/** Close connections which have been idle for this long. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	private static final long CHECK_IDLE_INTERVAL = SECONDS.toMillis(10);
+
+	private final Selector selector;
+	private final Handler handler;
+	/** Connections to register on the selector thread. */
+	private final ArrayList<Socket> toPark = new ArrayList<Socket>();
+
+	IdleConnectionSelector(Handler handler) throws IOException {
+		this.selector = Selector.open();
+		this.handler = handler;
+	}
+
+	void start() {
+		Thread t = new Thread(this, "FProxy idle connections");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Can we wait for requests on this socket here? */
+	static boolean canPark(Socket sock) {
+		return sock.getChannel() != null;
+	}
+
+	/** Wait for the next request on a connection, without using a thread. */
+	void park(Socket sock) {
+		if(logMINOR) Logger.minor(this, "Waiting for a request on "+sock);
+		synchronized(toPark) {
+			toPark.add(sock);
+		}
+		selector.wakeup();
+	}
+
+	/** The time a connection was parked. */
+	private static class Idle {
+		final Socket sock;
+		final long since;
+		Idle(Socket sock, long since) {
+			this.sock = sock;
+			this.since = since;
+		}
+	}
+
+	@Override
+	public void run() {
+		ArrayList<Socket> ready = new ArrayList<Socket>();
+		long lastCheckedIdle = System.currentTimeMillis();
+		while(true) {
+			try {
+				registerParked();
+				selector.select(CHECK_IDLE_INTERVAL);
+				long now = System.currentTimeMillis();
+				for(Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+					key.cancel();
+					ready.add(((Idle) key.attachment()).sock);
+				}
+				if(now - lastCheckedIdle >= CHECK_IDLE_INTERVAL) {
+					closeIdle(now);
+					lastCheckedIdle = now;
+				}
+				if(ready.isEmpty()) continue;
+				// Deregister the cancelled keys, so the channels can block again.
+				selector.selectNow();
+				for(Socket sock : ready) {
+					try {
+						sock.getChannel().configureBlocking(true);
+					} catch (IOException e) {
+						Closer.close(sock);
+						continue;
+					}
+					if(logMINOR) Logger.minor(this, "Request arrived on "+sock);
+					handler.handle(sock);
+				}
+				ready.clear();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" waiting for requests on idle FProxy connections", t);
+				for(Socket sock : ready)
+					Closer.close(sock);
+				ready.clear();
+			}
+		}
+	}
+
+	private void registerParked() {
+		Socket[] socks;
+		synchronized(toPark) {
+			if(toPark.isEmpty()) return;
+			socks = toPark.toArray(new Socket[toPark.size()]);
+			toPark.clear();
+		}
+		long now = System.currentTimeMillis();
+		for(Socket sock : socks) {
+			try {
+				SocketChannel channel = sock.getChannel();
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new Idle(sock, now));
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Unable to wait for requests on "+sock+" : "+e, e);
+				Closer.close(sock);
+			}
+		}
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			if(!key.isValid()) continue;
+			Idle idle = (Idle) key.attachment();
+			if(now - idle.since < IDLE_TIMEOUT) continue;
+			if(logMINOR) Logger.minor(this, "Closing idle connection "+idle.sock);
+			key.cancel();
+			Closer.close(idle.sock);
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.client.DefaultMIMETypes;
+import freenet.client.FetchException;
+import freenet.client.FetchException.FetchExceptionMode;
+import freenet.client.filter.ContentFilter;
+import freenet.client.filter.FilterMIMEType;
+import freenet.clients.fcp.DownloadRequestStatus;
+import freenet.clients.fcp.RequestStatus;
+import freenet.clients.fcp.UploadDirRequestStatus;
+import freenet.clients.fcp.UploadFileRequestStatus;
+import freenet.node.RequestStarter;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * The global queue split into the lists shown on the downloads or uploads page, each sorted.
+ * Building this means copying and sorting every request, which is slow when there are tens of
+ * thousands of them, so QueueToadlet keeps the last one and only builds a new one when requests
+ * are added, removed, finish, change priority etc, i.e. when the global queue's version changes.
+ * The copies in the lists are only used for sorting and counting: The page fetches up to date
+ * copies of the requests it actually shows.
+ */
+class QueueIndex {
+
+	final String sortBy;
+	final boolean reversed;
+	/** @see freenet.clients.fcp.FCPServer#getGlobalRequestsVersion() */
+	final long version;
+	/** @see freenet.clients.fcp.FCPServer#getGlobalRequestsProgressVersion() */
+	final long progressVersion;
+
+	final List<DownloadRequestStatus> completedDownloadToDisk = new ArrayList<DownloadRequestStatus>();
+	final List<DownloadRequestStatus> completedDownloadToTemp = new ArrayList<DownloadRequestStatus>();
+	final List<UploadFileRequestStatus> completedUpload = new ArrayList<UploadFileRequestStatus>();
+	final List<UploadDirRequestStatus> completedDirUpload = new ArrayList<UploadDirRequestStatus>();
+
+	final List<DownloadRequestStatus> failedDownload = new ArrayList<DownloadRequestStatus>();
+	final List<UploadFileRequestStatus> failedUpload = new ArrayList<UploadFileRequestStatus>();
+	final List<UploadDirRequestStatus> failedDirUpload = new ArrayList<UploadDirRequestStatus>();
+
+	final List<DownloadRequestStatus> uncompletedDownload = new ArrayList<DownloadRequestStatus>();
+	final List<UploadFileRequestStatus> uncompletedUpload = new ArrayList<UploadFileRequestStatus>();
+	final List<UploadDirRequestStatus> uncompletedDirUpload = new ArrayList<UploadDirRequestStatus>();
+
+	final Map<String, List<DownloadRequestStatus>> failedUnknownMIMEType = new HashMap<String, List<DownloadRequestStatus>>();
+	final Map<String, List<DownloadRequestStatus>> failedBadMIMEType = new HashMap<String, List<DownloadRequestStatus>>();
+
+	final short lowestQueuedPrio;
+	final long totalQueuedDownloadSize;
+	final long totalQueuedUploadSize;
+	/** True if there are no requests of the kind shown on the page. */
+	final boolean isEmpty;
+
+	/**
+	 * @param reqs Copies of all the requests on the global queue.
+	 * @param uploads If true, the uploads page, otherwise the downloads page.
+	 * @param sortBy The column to sort by, or null for the default (priority).
+	 * @param reversed If true, sort in descending order.
+	 */
+	QueueIndex(RequestStatus[] reqs, boolean uploads, String sortBy, boolean reversed, long version, long progressVersion) {
+		this.sortBy = sortBy;
+		this.reversed = reversed;
+		this.version = version;
+		this.progressVersion = progressVersion;
+
+		short lowestQueuedPrio = RequestStarter.PAUSED_PRIORITY_CLASS;
+		long totalQueuedDownloadSize = 0;
+		long totalQueuedUploadSize = 0;
+		boolean added = false;
+
+		for(RequestStatus req: reqs) {
+			if(req instanceof DownloadRequestStatus && !uploads) {
+				DownloadRequestStatus download = (DownloadRequestStatus)req;
+				if(download.hasSucceeded()) {
+					if(download.toTempSpace())
+						completedDownloadToTemp.add(download);
+					else // to disk
+						completedDownloadToDisk.add(download);
+				} else if(download.hasFinished()) {
+				    FetchExceptionMode failureCode = download.getFailureCode();
+					String mimeType = download.getMIMEType();
+					if(mimeType == null && (failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME || failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)) {
+						Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
+						mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
+					}
+					if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
+						mimeType = ContentFilter.stripMIMEType(mimeType);
+						getList(failedUnknownMIMEType, mimeType).add(download);
+					} else if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
+						mimeType = ContentFilter.stripMIMEType(mimeType);
+						FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
+						if(type == null) {
+							Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
+							getList(failedUnknownMIMEType, mimeType).add(download);
+						} else {
+							getList(failedBadMIMEType, mimeType).add(download);
+						}
+					} else {
+						failedDownload.add(download);
+					}
+				} else {
+					short prio = download.getPriority();
+					if(prio < lowestQueuedPrio)
+						lowestQueuedPrio = prio;
+					uncompletedDownload.add(download);
+					long size = download.getDataSize();
+					if(size > 0)
+						totalQueuedDownloadSize += size;
+				}
+				added = true;
+			} else if(req instanceof UploadFileRequestStatus && uploads) {
+				UploadFileRequestStatus upload = (UploadFileRequestStatus)req;
+				if(upload.hasSucceeded()) {
+					completedUpload.add(upload);
+				} else if(upload.hasFinished()) {
+					failedUpload.add(upload);
+				} else {
+					short prio = upload.getPriority();
+					if(prio < lowestQueuedPrio)
+						lowestQueuedPrio = prio;
+					uncompletedUpload.add(upload);
+				}
+				long size = upload.getDataSize();
+				if(size > 0)
+					totalQueuedUploadSize += size;
+				added = true;
+			} else if(req instanceof UploadDirRequestStatus && uploads) {
+				UploadDirRequestStatus upload = (UploadDirRequestStatus)req;
+				if(upload.hasSucceeded()) {
+					completedDirUpload.add(upload);
+				} else if(upload.hasFinished()) {
+					failedDirUpload.add(upload);
+				} else {
+					short prio = upload.getPriority();
+					if(prio < lowestQueuedPrio)
+						lowestQueuedPrio = prio;
+					uncompletedDirUpload.add(upload);
+				}
+				long size = upload.getTotalDataSize();
+				if(size > 0)
+					totalQueuedUploadSize += size;
+				added = true;
+			}
+		}
+		this.lowestQueuedPrio = lowestQueuedPrio;
+		this.totalQueuedDownloadSize = totalQueuedDownloadSize;
+		this.totalQueuedUploadSize = totalQueuedUploadSize;
+		this.isEmpty = !added;
+
+		Comparator<RequestStatus> jobComparator = makeComparator(sortBy, reversed);
+		Collections.sort(completedDownloadToDisk, jobComparator);
+		Collections.sort(completedDownloadToTemp, jobComparator);
+		Collections.sort(completedUpload, jobComparator);
+		Collections.sort(completedDirUpload, jobComparator);
+		Collections.sort(failedDownload, jobComparator);
+		Collections.sort(failedUpload, jobComparator);
+		Collections.sort(failedDirUpload, jobComparator);
+		Collections.sort(uncompletedDownload, jobComparator);
+		Collections.sort(uncompletedUpload, jobComparator);
+		Collections.sort(uncompletedDirUpload, jobComparator);
+		for(List<DownloadRequestStatus> list : failedUnknownMIMEType.values())
+			Collections.sort(list, jobComparator);
+		for(List<DownloadRequestStatus> list : failedBadMIMEType.values())
+			Collections.sort(list, jobComparator);
+	}
+
+	private static List<DownloadRequestStatus> getList(Map<String, List<DownloadRequestStatus>> byType, String mimeType) {
+		List<DownloadRequestStatus> list = byType.get(mimeType);
+		if(list == null) {
+			list = new ArrayList<DownloadRequestStatus>();
+			byType.put(mimeType, list);
+		}
+		return list;
+	}
+
+	/** Can we still use this index, given the current versions of the global queue? */
+	boolean isUpToDate(String sortBy, boolean reversed, long version, long progressVersion) {
+		if(sortBy == null ? this.sortBy != null : !sortBy.equals(this.sortBy)) return false;
+		if(reversed != this.reversed) return false;
+		if(version != this.version) return false;
+		// The order depends on progress, so any change invalidates it.
+		if(sortsByProgress(sortBy) && progressVersion != this.progressVersion) return false;
+		return true;
+	}
+
+	/** Does the order depend on the progress of the requests, rather than just their priority? */
+	static boolean sortsByProgress(String sortBy) {
+		return sortBy != null && (sortBy.equals("size") || sortBy.equals("progress") ||
+				sortBy.equals("lastActivity") || sortBy.equals("lastFailure"));
+	}
+
+	static Comparator<RequestStatus> makeComparator(final String sortBy, final boolean reversed) {
+		return new Comparator<RequestStatus>() {
+			@Override
+			public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
+
+				if(firstRequest == secondRequest) return 0; // Short cut.
+
+				int result = 0;
+				boolean isSet = true;
+
+				if(sortBy != null){
+					if(sortBy.equals("id")){
+						result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
+						if(result == 0)
+							result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
+					}else if(sortBy.equals("size")){
+						result = Fields.compare(firstRequest.getTotalBlocks(), secondRequest.getTotalBlocks());
+					}else if(sortBy.equals("progress")){
+						boolean firstFinalized = firstRequest.isTotalFinalized();
+						boolean secondFinalized = secondRequest.isTotalFinalized();
+						if(firstFinalized && !secondFinalized)
+							result = 1;
+						else if(secondFinalized && !firstFinalized)
+							result = -1;
+						else {
+							double firstProgress = ((double)firstRequest.getFetchedBlocks()) / ((double)firstRequest.getMinBlocks());
+							double secondProgress = ((double)secondRequest.getFetchedBlocks()) / ((double)secondRequest.getMinBlocks());
+							result = Fields.compare(firstProgress, secondProgress);
+						}
+					} else if (sortBy.equals("lastActivity")) {
+                        result = Fields.compare(firstRequest.getLastSuccess(),
+                                                secondRequest.getLastSuccess());
+                    } else if (sortBy.equals("lastFailure")) {
+                        result = Fields.compare(firstRequest.getLastFailure(),
+                                                secondRequest.getLastFailure());
+					}else
+						isSet=false;
+				}else
+					isSet=false;
+
+				if(!isSet){
+					result = Fields.compare(firstRequest.getPriority(), secondRequest.getPriority());
+					if(result == 0)
+						result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
+				}
+
+				if(result == 0){
+					return 0;
+				}else if(reversed){
+					return result > 0 ? -1 : 1;
+				}else{
+					return result < 0 ? -1 : 1;
+				}
+			}
+		};
+	}
+
+}
@@ -18,13 +18,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -33,8 +31,6 @@ import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 import freenet.client.DefaultMIMETypes;
-import freenet.client.FetchException;
-import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
 import freenet.client.InsertContext;
@@ -73,7 +69,6 @@ import freenet.node.RequestStarter;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.node.useralerts.StoringUserEvent;
 import freenet.node.useralerts.UserAlert;
-import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
@@ -158,10 +153,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		this.fiw = fiw;
 	}
 
-	private boolean isReversed = false;
 	private final boolean uploads;
 
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
+    /** The progress of the requests on the page, for updating it without reloading. */
+    private static final String STATUS_JSON_LOCATION = "status.json";
+    /** The number of requests shown in each table on the page. */
+    static final int PAGE_SIZE = 100;
+    /** The most requests status.json will report on at once. */
+    private static final int MAX_STATUS_JSON_REQUESTS = 10 * PAGE_SIZE;
+    /** The last index we built. Reused while the global queue's version hasn't changed. */
+    private QueueIndex lastIndex;
 
 	public QueueToadlet(NodeClientCore core, FCPServer fcp, HighLevelSimpleClient client, boolean uploads) {
 		super(client);
@@ -1089,6 +1091,13 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				countRequests = true;
 			} else if(requestPath.equals(KEY_LIST_LOCATION)) {
 				listKeys = true;
+			} else if(requestPath.equals(STATUS_JSON_LOCATION)) {
+				try {
+					sendStatusJSON(request, ctx);
+				} catch (PersistenceDisabledException e) {
+					sendPersistenceDisabledError(ctx);
+				}
+				return;
 			}
 		}
 
@@ -1107,10 +1116,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		if(!(count || keys)) {
 			try {
-				RequestStatus[] reqs = fcp.getGlobalRequests();
+				QueueIndex index = getIndex(request);
 				MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
-				HTMLNode pageNode = handleGetInner(pageMaker, reqs, core.clientContext, request, ctx);
-				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+				HTMLNode pageNode = handleGetInner(pageMaker, index, core.clientContext, request, ctx);
+				writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 				return;
 			} catch (PersistenceDisabledException e) {
 				sendPersistenceDisabledError(ctx);
@@ -1189,7 +1198,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else if(plainText != null)
 			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
@@ -1224,203 +1233,37 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return sb.toString();
 	}
 
-	private HTMLNode handleGetInner(PageMaker pageMaker, RequestStatus[] reqs, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws PersistenceDisabledException {
+	private HTMLNode handleGetInner(PageMaker pageMaker, QueueIndex index, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws PersistenceDisabledException {
 
-		// First, get the queued requests, and separate them into different types.
-		LinkedList<DownloadRequestStatus> completedDownloadToDisk = new LinkedList<DownloadRequestStatus>();
-		LinkedList<DownloadRequestStatus> completedDownloadToTemp = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> completedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> completedDirUpload = new LinkedList<UploadDirRequestStatus>();
+		// First, get the queued requests, separated into different types.
+		List<DownloadRequestStatus> completedDownloadToDisk = index.completedDownloadToDisk;
+		List<DownloadRequestStatus> completedDownloadToTemp = index.completedDownloadToTemp;
+		List<UploadFileRequestStatus> completedUpload = index.completedUpload;
+		List<UploadDirRequestStatus> completedDirUpload = index.completedDirUpload;
 
-		LinkedList<DownloadRequestStatus> failedDownload = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> failedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> failedDirUpload = new LinkedList<UploadDirRequestStatus>();
+		List<DownloadRequestStatus> failedDownload = index.failedDownload;
+		List<UploadFileRequestStatus> failedUpload = index.failedUpload;
+		List<UploadDirRequestStatus> failedDirUpload = index.failedDirUpload;
 
-		LinkedList<DownloadRequestStatus> uncompletedDownload = new LinkedList<DownloadRequestStatus>();
-		LinkedList<UploadFileRequestStatus> uncompletedUpload = new LinkedList<UploadFileRequestStatus>();
-		LinkedList<UploadDirRequestStatus> uncompletedDirUpload = new LinkedList<UploadDirRequestStatus>();
+		List<DownloadRequestStatus> uncompletedDownload = index.uncompletedDownload;
+		List<UploadFileRequestStatus> uncompletedUpload = index.uncompletedUpload;
+		List<UploadDirRequestStatus> uncompletedDirUpload = index.uncompletedDirUpload;
 
-		Map<String, LinkedList<DownloadRequestStatus>> failedUnknownMIMEType = new HashMap<String, LinkedList<DownloadRequestStatus>>();
-		Map<String, LinkedList<DownloadRequestStatus>> failedBadMIMEType = new HashMap<String, LinkedList<DownloadRequestStatus>>();
+		Map<String, List<DownloadRequestStatus>> failedUnknownMIMEType = index.failedUnknownMIMEType;
+		Map<String, List<DownloadRequestStatus>> failedBadMIMEType = index.failedBadMIMEType;
 
-		if(logMINOR)
-			Logger.minor(this, "Request count: "+reqs.length);
-
-		if(reqs.length < 1){
+		if(index.isEmpty) {
 		    return sendEmptyQueuePage(ctx, pageMaker);
 		}
 
-		short lowestQueuedPrio = RequestStarter.PAUSED_PRIORITY_CLASS;
+		short lowestQueuedPrio = index.lowestQueuedPrio;
 
-		long totalQueuedDownloadSize = 0;
-		long totalQueuedUploadSize = 0;
+		long totalQueuedDownloadSize = index.totalQueuedDownloadSize;
+		long totalQueuedUploadSize = index.totalQueuedUploadSize;
 
-		boolean added = false;
-		for(RequestStatus req: reqs) {
-			if(req instanceof DownloadRequestStatus && !uploads) {
-				DownloadRequestStatus download = (DownloadRequestStatus)req;
-				if(download.hasSucceeded()) {
-					if(download.toTempSpace())
-						completedDownloadToTemp.add(download);
-					else // to disk
-						completedDownloadToDisk.add(download);
-				} else if(download.hasFinished()) {
-				    FetchExceptionMode failureCode = download.getFailureCode();
-					String mimeType = download.getMIMEType();
-					if(mimeType == null && (failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME || failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME)) {
-						Logger.error(this, "MIME type is null but failure code is "+FetchException.getMessage(failureCode)+" for "+download.getIdentifier()+" : "+download.getURI());
-						mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
-					}
-					if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_UNKNOWN_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list = failedUnknownMIMEType.get(mimeType);
-						if(list == null) {
-							list = new LinkedList<DownloadRequestStatus>();
-							failedUnknownMIMEType.put(mimeType, list);
-						}
-						list.add(download);
-					} else if(failureCode == FetchExceptionMode.CONTENT_VALIDATION_BAD_MIME) {
-						mimeType = ContentFilter.stripMIMEType(mimeType);
-						FilterMIMEType type = ContentFilter.getMIMEType(mimeType);
-						LinkedList<DownloadRequestStatus> list;
-						if(type == null) {
-							Logger.error(this, "Bad MIME failure code yet MIME is "+mimeType+" which does not have a handler!");
-							list = failedUnknownMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedUnknownMIMEType.put(mimeType, list);
-							}
-						} else {
-							list = failedBadMIMEType.get(mimeType);
-							if(list == null) {
-								list = new LinkedList<DownloadRequestStatus>();
-								failedBadMIMEType.put(mimeType, list);
-							}
-						}
-						list.add(download);
-					} else {
-						failedDownload.add(download);
-					}
-				} else {
-					short prio = download.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDownload.add(download);
-					long size = download.getDataSize();
-					if(size > 0)
-						totalQueuedDownloadSize += size;
-				}
-				added = true;
-			} else if(req instanceof UploadFileRequestStatus && uploads) {
-				UploadFileRequestStatus upload = (UploadFileRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedUpload.add(upload);
-				}
-				long size = upload.getDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-				added = true;
-			} else if(req instanceof UploadDirRequestStatus && uploads) {
-				UploadDirRequestStatus upload = (UploadDirRequestStatus)req;
-				if(upload.hasSucceeded()) {
-					completedDirUpload.add(upload);
-				} else if(upload.hasFinished()) {
-					failedDirUpload.add(upload);
-				} else {
-					short prio = upload.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedDirUpload.add(upload);
-				}
-				long size = upload.getTotalDataSize();
-				if(size > 0)
-					totalQueuedUploadSize += size;
-                added = true;
-			}
-		}
-		if(!added) {
-		    return sendEmptyQueuePage(ctx, pageMaker);
-		}
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
 		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
 
-		Comparator<RequestStatus> jobComparator = new Comparator<RequestStatus>() {
-			@Override
-			public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
-				
-				if(firstRequest == secondRequest) return 0; // Short cut.
-				
-				int result = 0;
-				boolean isSet = true;
-
-				if(request.isParameterSet("sortBy")){
-					final String sortBy = request.getParam("sortBy");
-
-					if(sortBy.equals("id")){
-						result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
-						if(result == 0)
-							result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-					}else if(sortBy.equals("size")){
-						result = Fields.compare(firstRequest.getTotalBlocks(), secondRequest.getTotalBlocks());
-					}else if(sortBy.equals("progress")){
-						boolean firstFinalized = firstRequest.isTotalFinalized();
-						boolean secondFinalized = secondRequest.isTotalFinalized();
-						if(firstFinalized && !secondFinalized)
-							result = 1;
-						else if(secondFinalized && !firstFinalized)
-							result = -1;
-						else {
-							double firstProgress = ((double)firstRequest.getFetchedBlocks()) / ((double)firstRequest.getMinBlocks());
-							double secondProgress = ((double)secondRequest.getFetchedBlocks()) / ((double)secondRequest.getMinBlocks());
-							result = Fields.compare(firstProgress, secondProgress);
-						}
-					} else if (sortBy.equals("lastActivity")) {
-                        result = Fields.compare(firstRequest.getLastSuccess(),
-                                                secondRequest.getLastSuccess());
-                    } else if (sortBy.equals("lastFailure")) {
-                        result = Fields.compare(firstRequest.getLastFailure(),
-                                                secondRequest.getLastFailure());
-					}else
-						isSet=false;
-				}else
-					isSet=false;
-
-				if(!isSet){
-					result = Fields.compare(firstRequest.getPriority(), secondRequest.getPriority());
-					if(result == 0)
-						result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-				}
-
-				if(result == 0){
-					return 0;
-				}else if(request.isParameterSet("reversed")){
-					isReversed = true;
-					return result > 0 ? -1 : 1;
-				}else{
-					isReversed = false;
-					return result < 0 ? -1 : 1;
-				}
-			}
-		};
-
-		Collections.sort(completedDownloadToDisk, jobComparator);
-		Collections.sort(completedDownloadToTemp, jobComparator);
-		Collections.sort(completedUpload, jobComparator);
-		Collections.sort(completedDirUpload, jobComparator);
-		Collections.sort(failedDownload, jobComparator);
-		Collections.sort(failedUpload, jobComparator);
-		Collections.sort(failedDirUpload, jobComparator);
-		Collections.sort(uncompletedDownload, jobComparator);
-		Collections.sort(uncompletedUpload, jobComparator);
-		Collections.sort(uncompletedDirUpload, jobComparator);
-
 		String pageName;
 		if(uploads)
 			pageName =
@@ -1566,9 +1409,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			}
 		}
 
@@ -1576,9 +1419,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			}
 		}
 
@@ -1586,9 +1429,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			} else  {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			}
 		}
 
@@ -1596,9 +1439,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			}
 		}
 
@@ -1606,9 +1449,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			}
 		}
 
@@ -1616,9 +1459,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			}
 		}
 
@@ -1626,9 +1469,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			}
 		}
 
@@ -1636,7 +1479,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			String[] types = failedBadMIMEType.keySet().toArray(new String[failedBadMIMEType.size()]);
 			Arrays.sort(types);
 			for(String type : types) {
-				LinkedList<DownloadRequestStatus> getters = failedBadMIMEType.get(type);
+				List<DownloadRequestStatus> getters = failedBadMIMEType.get(type);
 				String atype = type.replace("-", "--").replace('/', '-');
 				contentNode.addChild("a", "id", "failedDownload-badtype-"+atype);
 				FilterMIMEType typeHandler = ContentFilter.getMIMEType(type);
@@ -1651,11 +1494,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 						list.addChild("li", s);
 				}
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				}
 			}
 		}
@@ -1664,18 +1506,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			String[] types = failedUnknownMIMEType.keySet().toArray(new String[failedUnknownMIMEType.size()]);
 			Arrays.sort(types);
 			for(String type : types) {
-				LinkedList<DownloadRequestStatus> getters = failedUnknownMIMEType.get(type);
+				List<DownloadRequestStatus> getters = failedUnknownMIMEType.get(type);
 				String atype = type.replace("-", "--").replace('/', '-');
 				contentNode.addChild("a", "id", "failedDownload-unknowntype-"+atype);
 				HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedDUnknownMIME", new String[]{ "size", "type" }, new String[]{ String.valueOf(getters.size()), type }), contentNode, "download-failed-"+atype, false);
 				// FIXME add a class for easier styling.
 				failedContent.addChild("p", NodeL10n.getBase().getString("UnknownContentTypeException.explanation", "type", type));
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
-				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				}
 			}
 
@@ -1687,7 +1528,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
                 uncompletedContent.addChild(
                     createRequestTable(
-                        pageMaker, ctx, uncompletedDownload,
+                        pageMaker, ctx, request, uncompletedDownload,
                         new QueueColumn[] {
                             QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
                             QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1704,7 +1545,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
                         QueueType.UncompletedDownload)
                 );
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
 			}
 		}
 
@@ -1714,7 +1555,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
                 uncompletedContent.addChild(
                     createRequestTable(
-                        pageMaker, ctx, uncompletedUpload,
+                        pageMaker, ctx, request, uncompletedUpload,
                         new QueueColumn[] {
                             QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
                             QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1731,7 +1572,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
                         QueueType.UncompletedUpload)
                 );
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
 			}
 		}
 
@@ -1741,7 +1582,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
                 uncompletedContent.addChild(
                     createRequestTable(
-                        pageMaker, ctx, uncompletedDirUpload,
+                        pageMaker, ctx, request, uncompletedDirUpload,
                         new QueueColumn[] {
                             QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.PRIORITY,
                             QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1757,7 +1598,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
                         QueueType.UncompletedDirUpload)
                 );
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
 			}
 		}
 
@@ -2089,15 +1930,28 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
         return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
+		return createRequestTable(pageMaker, ctx, request, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	/**
+	 * @param requests All the requests in the table, sorted. Only one page of them is shown.
+	 */
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
 		long now = System.currentTimeMillis();
+		boolean isReversed = request.isParameterSet("reversed");
+		
+		String pageParam = "page-"+id;
+		if(mimeType != null)
+			pageParam += "-"+mimeType.replace("-", "--").replace('/', '-');
+		int pages = (requests.size() + PAGE_SIZE - 1) / PAGE_SIZE;
+		int page = Math.max(0, Math.min(pages - 1, request.getIntParam(pageParam, 0)));
 		
-		HTMLNode formDiv = new HTMLNode("div", "class", "request-table-form");
+		HTMLNode formDiv = new HTMLNode("div", new String[] { "class", "id" }, new String[] { "request-table-form", pageParam });
+		if(pages > 1)
+			formDiv.addChild(createPageLinks(request, pageParam, page, pages));
+		requests = getCurrentStatus(requests.subList(page * PAGE_SIZE, Math.min(requests.size(), (page + 1) * PAGE_SIZE)));
 		HTMLNode form = ctx.addFormChild(formDiv, path(), "request-table-form-"+id+(advancedModeEnabled?"-advanced":"-simple"));
 		
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, true, queueType);
@@ -2251,6 +2105,163 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return formDiv;
 	}
 
+	/**
+	 * Get the global queue sorted as requested, building a new index only if requests have been
+	 * added, removed, finished etc since the last one, or we sort by progress and that changed.
+	 */
+	private QueueIndex getIndex(HTTPRequest request) throws PersistenceDisabledException {
+		String sortBy = request.isParameterSet("sortBy") ? request.getParam("sortBy") : null;
+		boolean reversed = request.isParameterSet("reversed");
+		// Get the versions first, so we rebuild next time if anything changes while we copy.
+		long version = fcp.getGlobalRequestsVersion();
+		long progressVersion = fcp.getGlobalRequestsProgressVersion();
+		synchronized(this) {
+			if(lastIndex != null && lastIndex.isUpToDate(sortBy, reversed, version, progressVersion))
+				return lastIndex;
+		}
+		RequestStatus[] reqs = fcp.getGlobalRequests();
+		if(logMINOR)
+			Logger.minor(this, "Request count: "+reqs.length);
+		QueueIndex index = new QueueIndex(reqs, uploads, sortBy, reversed, version, progressVersion);
+		synchronized(this) {
+			lastIndex = index;
+		}
+		return index;
+	}
+
+	/** Get up to date copies of the requests we are going to show. Drops any that have been removed. */
+	private List<RequestStatus> getCurrentStatus(List<? extends RequestStatus> requests) {
+		List<RequestStatus> current = new ArrayList<RequestStatus>(requests.size());
+		try {
+			for(RequestStatus req : requests) {
+				RequestStatus status = fcp.getGlobalRequestStatus(req.getIdentifier());
+				if(status != null)
+					current.add(status);
+			}
+		} catch (PersistenceDisabledException e) {
+			// Show what we have.
+			return new ArrayList<RequestStatus>(requests);
+		}
+		return current;
+	}
+
+	private HTMLNode createPageLinks(HTTPRequest request, String pageParam, int page, int pages) {
+		StringBuilder base = new StringBuilder("?");
+		if(request.isParameterSet("sortBy")) {
+			try {
+				base.append("sortBy=").append(URLEncoder.encode(request.getParam("sortBy"), "UTF-8")).append('&');
+			} catch (UnsupportedEncodingException e) {
+				throw new Error(e); // Impossible
+			}
+		}
+		if(request.isParameterSet("reversed"))
+			base.append("reversed&");
+		base.append(pageParam).append('=');
+		HTMLNode div = new HTMLNode("div", "class", "request-table-pages");
+		div.addChild("#", l10n("pageOf", new String[] { "page", "pages" },
+				new String[] { Integer.toString(page + 1), Integer.toString(pages) }));
+		// The first and last pages, and a few either side of this one.
+		int lastShown = -1;
+		for(int i=0;i<pages;i++) {
+			if(i != 0 && i != pages - 1 && Math.abs(i - page) > 5) continue;
+			if(lastShown != -1 && i != lastShown + 1)
+				div.addChild("#", " \u2026");
+			div.addChild("#", " ");
+			if(i == page)
+				div.addChild("strong", Integer.toString(i + 1));
+			else
+				div.addChild("a", "href", base.toString() + i + "#" + pageParam, Integer.toString(i + 1));
+			lastShown = i;
+		}
+		return div;
+	}
+
+	/**
+	 * Send the progress of some requests as JSON, so a page can be updated without reloading it.
+	 * Parameters: id (may be repeated): The identifiers of the requests to report on, typically
+	 * those shown on the page. since: The progressVersion from the last reply; if nothing has
+	 * changed since then we just send the versions back. If version has changed, requests have
+	 * been added, removed or finished, so the page should be reloaded.
+	 */
+	private void sendStatusJSON(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException, PersistenceDisabledException {
+		long version = fcp.getGlobalRequestsVersion();
+		long progressVersion = fcp.getGlobalRequestsProgressVersion();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"version\":").append(version);
+		sb.append(",\"progressVersion\":").append(progressVersion);
+		if(request.getLongParam("since", -1) == progressVersion) {
+			sb.append(",\"changed\":false}");
+			writeReply(ctx, 200, "application/json", "OK", sb.toString());
+			return;
+		}
+		sb.append(",\"changed\":true");
+		QueueIndex index = getIndex(request);
+		sb.append(",\"counts\":{");
+		if(uploads) {
+			sb.append("\"completedUpload\":").append(index.completedUpload.size());
+			sb.append(",\"completedDirUpload\":").append(index.completedDirUpload.size());
+			sb.append(",\"failedUpload\":").append(index.failedUpload.size());
+			sb.append(",\"failedDirUpload\":").append(index.failedDirUpload.size());
+			sb.append(",\"uncompletedUpload\":").append(index.uncompletedUpload.size());
+			sb.append(",\"uncompletedDirUpload\":").append(index.uncompletedDirUpload.size());
+		} else {
+			int failedMIME = 0;
+			for(List<DownloadRequestStatus> list : index.failedBadMIMEType.values())
+				failedMIME += list.size();
+			for(List<DownloadRequestStatus> list : index.failedUnknownMIMEType.values())
+				failedMIME += list.size();
+			sb.append("\"completedDownloadToTemp\":").append(index.completedDownloadToTemp.size());
+			sb.append(",\"completedDownloadToDisk\":").append(index.completedDownloadToDisk.size());
+			sb.append(",\"failedDownload\":").append(index.failedDownload.size());
+			sb.append(",\"failedDownloadMIMEType\":").append(failedMIME);
+			sb.append(",\"uncompletedDownload\":").append(index.uncompletedDownload.size());
+		}
+		sb.append("},\"requests\":[");
+		String[] ids = request.getMultipleParam("id");
+		for(int i=0;i<ids.length && i<MAX_STATUS_JSON_REQUESTS;i++) {
+			if(i > 0) sb.append(',');
+			sb.append("{\"identifier\":");
+			appendJSONString(sb, ids[i]);
+			RequestStatus status = fcp.getGlobalRequestStatus(ids[i]);
+			if(status == null) {
+				sb.append(",\"removed\":true}");
+				continue;
+			}
+			sb.append(",\"priority\":").append(status.getPriority());
+			sb.append(",\"started\":").append(status.isStarted());
+			sb.append(",\"finished\":").append(status.hasFinished());
+			sb.append(",\"succeeded\":").append(status.hasSucceeded());
+			sb.append(",\"fetchedBlocks\":").append(status.getFetchedBlocks());
+			sb.append(",\"failedBlocks\":").append(status.getFailedBlocks());
+			sb.append(",\"fatallyFailedBlocks\":").append(status.getFatalyFailedBlocks());
+			sb.append(",\"requiredBlocks\":").append(status.getMinBlocks());
+			sb.append(",\"totalBlocks\":").append(status.getTotalBlocks());
+			sb.append(",\"totalFinalized\":").append(status.isTotalFinalized());
+			sb.append(",\"dataSize\":").append(status.getDataSize());
+			Date lastActivity = status.getLastSuccess();
+			sb.append(",\"lastActivity\":").append(lastActivity == null ? "null" : Long.toString(lastActivity.getTime()));
+			sb.append('}');
+		}
+		sb.append("]}");
+		writeReply(ctx, 200, "application/json", "OK", sb.toString());
+	}
+
+	private static void appendJSONString(StringBuilder sb, String s) {
+		sb.append('"');
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if(c < 0x20 || c == '<' || c == '>' || c == '\u2028' || c == '\u2029') {
+				// Escape < and > too so it is safe to include in a page.
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
 	private void createRequestTableButtons(HTMLNode form, PageMaker pageMaker,
 			ToadletContext ctx, String mimeType, boolean hasFriends,
 			boolean advancedModeEnabled, String[] priorityClasses,	boolean top,
@@ -0,0 +1,179 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import freenet.crypt.SHA256;
+import freenet.support.HexUtil;
+
+/**
+ * Content-Encoding and ETags for replies we generate ourselves, i.e. pages and static files,
+ * never content fetched from Freenet. Also counts how much we save, for the statistics page.
+ */
+final class ResponseEncoding {
+
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+
+	/** Compressing anything smaller than this isn't worth the CPU time. */
+	static final int MIN_COMPRESS_SIZE = 1024;
+
+	private static long compressedResponses;
+	private static long bytesBeforeCompression;
+	private static long bytesAfterCompression;
+	private static long notModifiedResponses;
+	private static long notModifiedBytes;
+
+	private ResponseEncoding() {
+		// Static methods only.
+	}
+
+	/**
+	 * Choose a Content-Encoding.
+	 * @param acceptEncoding The Accept-Encoding header, may be null.
+	 * @return GZIP, DEFLATE, or null to send the data as it is.
+	 */
+	static String choose(String acceptEncoding) {
+		if(acceptEncoding == null) return null;
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+		for(String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			float q = 1;
+			for(int i=1;i<parts.length;i++) {
+				String param = parts[i].trim();
+				if(param.startsWith("q=")) {
+					try {
+						q = Float.parseFloat(param.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if(name.equals(GZIP) || name.equals("x-gzip"))
+				gzip = Math.max(gzip, q);
+			else if(name.equals(DEFLATE))
+				deflate = Math.max(deflate, q);
+			else if(name.equals("*"))
+				any = q;
+		}
+		if(gzip < 0) gzip = any;
+		if(deflate < 0) deflate = any;
+		if(gzip <= 0 && deflate <= 0) return null;
+		return gzip >= deflate ? GZIP : DEFLATE;
+	}
+
+	/** Is it worth compressing data of this MIME type? Images etc are already compressed. */
+	static boolean isCompressible(String mimeType) {
+		if(mimeType == null) return false;
+		String type = mimeType.toLowerCase();
+		int semicolon = type.indexOf(';');
+		if(semicolon != -1) type = type.substring(0, semicolon);
+		type = type.trim();
+		return type.startsWith("text/") || type.equals("application/javascript") ||
+			type.equals("application/x-javascript") || type.equals("application/json") ||
+			type.equals("application/xml") || type.equals("application/xhtml+xml") ||
+			type.equals("image/svg+xml");
+	}
+
+	/**
+	 * Compress some data.
+	 * @return The compressed data, or null if it isn't any smaller.
+	 */
+	static byte[] encode(byte[] data, int offset, int length, String encoding) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 4 + 64);
+		OutputStream os = encoder(baos, encoding);
+		os.write(data, offset, length);
+		os.close();
+		if(baos.size() >= length) return null;
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Compress data as it is written, for replies we don't have all of before we start sending.
+	 * Closing the returned stream closes the underlying stream.
+	 */
+	static OutputStream encoder(OutputStream out, String encoding) throws IOException {
+		if(encoding.equals(GZIP))
+			return new GZIPOutputStream(out);
+		else if(encoding.equals(DEFLATE))
+			return new DeflaterOutputStream(out);
+		else
+			throw new IllegalArgumentException(encoding);
+	}
+
+	/** A strong ETag for some data, which must be sent as it is, i.e. not encoded. */
+	static String makeETag(byte[] data) {
+		return '"' + HexUtil.bytesToHex(Arrays.copyOf(SHA256.digest(data), 16)) + '"';
+	}
+
+	/** The ETag for the data when it has been sent with the given Content-Encoding. */
+	static String encodedETag(String etag, String encoding) {
+		if(encoding == null) return etag;
+		return etag.substring(0, etag.length() - 1) + '-' + encoding + '"';
+	}
+
+	/**
+	 * Does an If-None-Match header match the data? Uses the weak comparison, as required for
+	 * If-None-Match, and ignores the encoding, which doesn't change the data.
+	 * @param ifNoneMatch The header, may be null.
+	 * @param etag The ETag of the data as it is.
+	 */
+	static boolean matches(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) return false;
+		String opaque = etag.substring(1, etag.length() - 1);
+		for(String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if(tag.equals("*")) return true;
+			if(tag.startsWith("W/")) tag = tag.substring(2);
+			if(tag.length() < 2 || tag.charAt(0) != '"' || tag.charAt(tag.length() - 1) != '"')
+				continue;
+			tag = tag.substring(1, tag.length() - 1);
+			if(tag.equals(opaque) || tag.startsWith(opaque + '-')) return true;
+		}
+		return false;
+	}
+
+	static synchronized void onCompressed(long before, long after) {
+		compressedResponses++;
+		bytesBeforeCompression += before;
+		bytesAfterCompression += after;
+	}
+
+	static synchronized void onNotModified(long size) {
+		notModifiedResponses++;
+		notModifiedBytes += size;
+	}
+
+	static synchronized long getCompressedResponses() {
+		return compressedResponses;
+	}
+
+	/** How many bytes we didn't have to send thanks to compression. */
+	static synchronized long getCompressionSavedBytes() {
+		return bytesBeforeCompression - bytesAfterCompression;
+	}
+
+	static synchronized long getBytesBeforeCompression() {
+		return bytesBeforeCompression;
+	}
+
+	static synchronized long getNotModifiedResponses() {
+		return notModifiedResponses;
+	}
+
+	/** How many bytes we didn't have to send because the browser already had the data. */
+	static synchronized long getNotModifiedSavedBytes() {
+		return notModifiedBytes;
+	}
+
+}
@@ -30,6 +30,7 @@ import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
 import freenet.io.NetworkInterface;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
@@ -53,6 +54,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
 /** 
@@ -119,6 +121,13 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private volatile boolean fproxyHasCompletedWizard;	// hmmm..
 	private volatile boolean disableProgressPage;
 	private int maxFproxyConnections;
+	/** Wait for requests on idle connections without a thread each. Can't change on the fly. */
+	private boolean selectIdleConnections;
+	/** Non-null if selectIdleConnections is enabled and we are not using SSL. */
+	private IdleConnectionSelector idleSelector;
+	/** Parked connections with a request waiting, which arrived while we were handling too many
+	 * connections. Started as other connections finish. At most maxFproxyConnections. */
+	private final LinkedList<Socket> waitingConnections = new LinkedList<Socket>();
 	
 	private int fproxyConnections;
 	
@@ -190,6 +199,24 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}
 	}
 
+	private class FProxyFilteredCacheSizeCallback extends LongCallback {
+		@Override
+		public Long get() {
+			return FProxyToadlet.FILTERED_CACHE_SIZE;
+		}
+
+		@Override
+		public void set(Long val) throws InvalidConfigValueException {
+			if (get().equals(val))
+				return;
+			if(val < 0) throw new InvalidConfigValueException(l10n("filteredCacheSizeNegative"));
+			FProxyToadlet.FILTERED_CACHE_SIZE = val;
+			NodeClientCore core = SimpleToadletServer.this.core;
+			if(core != null && core.getFProxy() != null)
+				core.getFProxy().fetchTracker.filteredCache.setMaxSize(val);
+		}
+	}
+
 	private class FProxyPortCallback extends IntCallback  {
 		@Override
 		public Integer get() {
@@ -648,6 +675,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		FProxyToadlet.MAX_LENGTH_NO_PROGRESS = fproxyConfig.getLong("passthroughMaxSize");
 		fproxyConfig.register("passthroughMaxSizeProgress", FProxyToadlet.MAX_LENGTH_WITH_PROGRESS, configItemOrder++, true, false, "SimpleToadletServer.passthroughMaxSizeProgress", "SimpleToadletServer.passthroughMaxSizeProgressLong", new FProxyPassthruMaxSizeProgress(), true);
 		FProxyToadlet.MAX_LENGTH_WITH_PROGRESS = fproxyConfig.getLong("passthroughMaxSizeProgress");
+		fproxyConfig.register("filteredCacheSize", FProxyToadlet.FILTERED_CACHE_SIZE, configItemOrder++, true, false, "SimpleToadletServer.filteredCacheSize", "SimpleToadletServer.filteredCacheSizeLong", new FProxyFilteredCacheSizeCallback(), true);
+		FProxyToadlet.FILTERED_CACHE_SIZE = Math.max(0, fproxyConfig.getLong("filteredCacheSize"));
 		System.out.println("Set fproxy max length to "+FProxyToadlet.MAX_LENGTH_NO_PROGRESS+" and max length with progress to "+FProxyToadlet.MAX_LENGTH_WITH_PROGRESS+" = "+fproxyConfig.getLong("passthroughMaxSizeProgress"));
 		
 		fproxyConfig.register("allowedHosts", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedHosts", "SimpleToadletServer.allowedHostsLong",
@@ -707,6 +736,22 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
 		
+		fproxyConfig.register("selectIdleConnections", false, configItemOrder++, true, false, "SimpleToadletServer.selectIdleConnections", "SimpleToadletServer.selectIdleConnectionsLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return selectIdleConnections;
+					}
+
+					@Override
+					public void set(Boolean val) throws NodeNeedRestartException {
+						if(selectIdleConnections != val)
+							throw new NodeNeedRestartException("Waiting for requests without threads cannot be changed on the fly");
+					}
+		});
+		selectIdleConnections = fproxyConfig.getBoolean("selectIdleConnections");
+		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
 
@@ -813,7 +858,20 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private void maybeGetNetworkInterface() throws IOException {
 		if (this.networkInterface!=null) return;
 		if(ssl) {
+			if(selectIdleConnections)
+				Logger.normal(this, "Can't wait for requests without threads with SSL");
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(selectIdleConnections) {
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			idleSelector = new IdleConnectionSelector(new IdleConnectionSelector.Handler() {
+
+				@Override
+				public void handle(Socket sock) {
+					handleParkedConnection(sock);
+				}
+
+			});
+			idleSelector.start();
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -996,11 +1054,54 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(idleSelector != null && IdleConnectionSelector.canPark(conn)) {
+                // Don't use a thread until the browser sends a request.
+                idleSelector.park(conn);
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	/** A request has arrived on a connection which was waiting in the idleSelector. Called on 
+	 * the selector's thread, which must not block, so if we are already handling too many 
+	 * connections, queue it until one finishes, or close it if the queue is full too. */
+	private void handleParkedConnection(Socket sock) {
+		boolean finishedStartup;
+		boolean reject = false;
+		synchronized(this) {
+			if(fproxyConnections > maxFproxyConnections) {
+				if(waitingConnections.size() < maxFproxyConnections) {
+					if(logMINOR) Logger.minor(this, "Too many connections, queueing "+sock);
+					waitingConnections.add(sock);
+					return;
+				}
+				reject = true;
+			}
+			finishedStartup = this.finishedStartup;
+		}
+		if(reject) {
+			Logger.normal(this, "Too many FProxy connections waiting, closing "+sock);
+			Closer.close(sock);
+			return;
+		}
+		new SocketHandler(sock, finishedStartup).start();
+	}
+
+	/** Called when a connection finishes. Start a queued one if we can. */
+	private void startWaitingConnection() {
+		Socket sock;
+		boolean finishedStartup;
+		synchronized(this) {
+			if(fproxyConnections > maxFproxyConnections) return;
+			sock = waitingConnections.poll();
+			if(sock == null) return;
+			finishedStartup = this.finishedStartup;
+		}
+		new SocketHandler(sock, finishedStartup).start();
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
@@ -1026,7 +1127,15 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		    freenet.support.Logger.OSThread.logPID(this);
 			if(logMINOR) Logger.minor(this, "Handling connection");
 			try {
-				ToadletContextImpl.handle(sock, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager);
+				if(idleSelector != null && IdleConnectionSelector.canPark(sock)) {
+					// Wait for the next request without a thread.
+					if(ToadletContextImpl.handle(sock, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager, true))
+						idleSelector.park(sock);
+					else
+						Closer.close(sock);
+				} else {
+					ToadletContextImpl.handle(sock, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager);
+				}
 			} catch (Throwable t) {
 				System.err.println("Caught in SimpleToadletServer: "+t);
 				t.printStackTrace();
@@ -1036,6 +1145,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	            	fproxyConnections--;
 	            	SimpleToadletServer.this.notifyAll();
 	            }
+	            startWaitingConnection();
 			}
 			if(logMINOR) Logger.minor(this, "Handled connection");
 		}
@@ -1,16 +1,18 @@
 package freenet.clients.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.URL;
+import java.text.ParseException;
 import java.util.Date;
+import java.util.HashMap;
 
 import freenet.client.DefaultMIMETypes;
 import freenet.l10n.NodeL10n;
-import freenet.support.api.Bucket;
+import freenet.support.MultiValueTable;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.FileBucket;
 
@@ -85,32 +87,118 @@ public class StaticToadlet extends Toadlet {
 			}
 		}
 		
-		InputStream strm = getClass().getResourceAsStream(ROOT_PATH+path);
-		if (strm == null) {
+		CachedFile file = getFile(path);
+		if (file == null) {
 			this.sendErrorPage(ctx, 404, l10n("pathNotFoundTitle"), l10n("pathNotFound"));
 			return;
 		}
-		Bucket data = ctx.getBucketFactory().makeBucket(strm.available());
-		OutputStream os = data.getOutputStream();
+		String mimeType = DefaultMIMETypes.guessMIMEType(path, false);
+		boolean compressible = ResponseEncoding.isCompressible(mimeType) &&
+			file.data.length >= ResponseEncoding.MIN_COMPRESS_SIZE;
+		String encoding = null;
+		byte[] data = file.data;
+		if(compressible) {
+			encoding = ResponseEncoding.choose(ctx.getHeaders().get("accept-encoding"));
+			if(encoding != null) {
+				byte[] encoded = file.getEncoded(encoding);
+				if(encoded == null)
+					encoding = null;
+				else
+					data = encoded;
+			}
+		}
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("etag", ResponseEncoding.encodedETag(file.etag, encoding));
+		if(compressible)
+			headers.put("vary", "accept-encoding");
+		if(isNotModified(ctx, file)) {
+			ResponseEncoding.onNotModified(data.length);
+			ctx.sendReplyHeadersStatic(304, "Not Modified", headers, null, 0, file.mTime);
+			return;
+		}
+		if(encoding != null) {
+			headers.put("content-encoding", encoding);
+			ResponseEncoding.onCompressed(file.data.length, data.length);
+		}
+		ctx.sendReplyHeadersStatic(200, "OK", headers, mimeType, data.length, file.mTime);
+		ctx.writeData(data);
+	}
+
+	/** Does the browser already have the file? */
+	private static boolean isNotModified(ToadletContext ctx, CachedFile file) {
+		String ifNoneMatch = ctx.getHeaders().get("if-none-match");
+		if(ifNoneMatch != null)
+			return ResponseEncoding.matches(ifNoneMatch, file.etag);
+		String ifModifiedSince = ctx.getHeaders().get("if-modified-since");
+		if(ifModifiedSince == null) return false;
 		try {
-		byte[] cbuf = new byte[4096];
-		while(true) {
-			int r = strm.read(cbuf);
-			if(r == -1) break;
-			os.write(cbuf, 0, r);
+			// HTTP dates only have a resolution of one second.
+			return file.mTime.getTime() / 1000 <= ToadletContextImpl.parseHTTPDate(ifModifiedSince).getTime() / 1000;
+		} catch (ParseException e) {
+			return false;
+		}
+	}
+
+	/** A file from the jar, kept in memory: It can't change while we are running. */
+	private static class CachedFile {
+		final byte[] data;
+		final Date mTime;
+		final String etag;
+		/** Compressed versions, or an empty array if compressing doesn't make it any smaller. */
+		private final HashMap<String, byte[]> encoded = new HashMap<String, byte[]>();
+
+		CachedFile(byte[] data, Date mTime) {
+			this.data = data;
+			this.mTime = mTime;
+			this.etag = ResponseEncoding.makeETag(data);
+		}
+
+		/** @return The file compressed with the given Content-Encoding, or null if not worth it. */
+		synchronized byte[] getEncoded(String encoding) throws IOException {
+			byte[] buf = encoded.get(encoding);
+			if(buf == null) {
+				buf = ResponseEncoding.encode(data, 0, data.length, encoding);
+				if(buf == null) buf = new byte[0];
+				encoded.put(encoding, buf);
+			}
+			return buf.length == 0 ? null : buf;
 		}
+	}
+
+	/** Files we have served from the jar, by path. There aren't very many of them. */
+	private static final HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** @return The file, or null if there is no such file. */
+	private CachedFile getFile(String path) throws IOException {
+		synchronized(files) {
+			CachedFile file = files.get(path);
+			if(file != null) return file;
+		}
+		URL url = getClass().getResource(ROOT_PATH+path);
+		if(url == null) return null;
+		InputStream strm = url.openStream();
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		try {
+			byte[] cbuf = new byte[4096];
+			while(true) {
+				int r = strm.read(cbuf);
+				if(r == -1) break;
+				os.write(cbuf, 0, r);
+			}
 		} finally {
 			strm.close();
-			os.close();
 		}
-		
-		URL url = getClass().getResource(ROOT_PATH+path);
 		Date mTime = getUrlMTime(url);
-		
-		ctx.sendReplyHeadersStatic(200, "OK", null, DefaultMIMETypes.guessMIMEType(path, false), data.size(), mTime);
-
-		ctx.writeData(data);
+		// Must always have a modification time so it can be cached.
+		if(mTime == null) mTime = STARTED;
+		CachedFile file = new CachedFile(os.toByteArray(), mTime);
+		synchronized(files) {
+			files.put(path, file);
+		}
+		return file;
 	}
+
+	private static final Date STARTED = new Date();
 	
 	/**
 	 * Try to find the modification time for a URL, or return null if not possible
@@ -118,15 +206,21 @@ public class StaticToadlet extends Toadlet {
 	 * the JAR for resources in a jar and the mtime for files.
 	 */
 	private Date getUrlMTime(URL url) {
+		File f;
 		if (url.getProtocol().equals("jar")) {
-			File f = new File(url.getPath().substring(0, url.getPath().indexOf('!')));
-			return new Date(f.lastModified());
+			// The path is the URL of the jar, e.g. file:/home/freenet/freenet.jar!/freenet/...
+			String path = url.getPath().substring(0, url.getPath().indexOf('!'));
+			if(path.startsWith("file:")) path = path.substring("file:".length());
+			f = new File(path);
 		} else if (url.getProtocol().equals("file")) {
-			File f = new File(url.getPath());
-			return new Date(f.lastModified());
+			f = new File(url.getPath());
 		} else {
 			return null;
 		}
+		long mTime = f.lastModified();
+		// 0 means we couldn't find it.
+		if(mTime == 0) return null;
+		return new Date(mTime);
 	}
 	
 	private String l10n(String key) {
@@ -16,6 +16,8 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import freenet.client.async.ClientLayerPersister;
+import freenet.client.async.PersistentJobRunnerImpl;
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
@@ -47,6 +49,8 @@ import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
+import freenet.support.io.PooledFileRandomAccessBuffer;
+import freenet.support.io.TempArena;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -437,6 +441,10 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			// web interface traffic box
+			HTMLNode fproxyTrafficInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawFProxyTrafficBox(fproxyTrafficInfobox);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -525,7 +533,7 @@ public class StatisticsToadlet extends Toadlet {
 		
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void showRequesters(HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -627,6 +635,18 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 	
+	private void drawFProxyTrafficBox(HTMLNode node) {
+		node.addChild("div", "class", "infobox-header", l10n("fproxyTrafficTitle"));
+		HTMLNode list = node.addChild("div", "class", "infobox-content").addChild("ul");
+		list.addChild("li", l10n("fproxyCompressed", new String[] { "count", "saved", "total" },
+				new String[] { thousandPoint.format(ResponseEncoding.getCompressedResponses()),
+				SizeUtil.formatSize(ResponseEncoding.getCompressionSavedBytes(), true),
+				SizeUtil.formatSize(ResponseEncoding.getBytesBeforeCompression(), true) }));
+		list.addChild("li", l10n("fproxyNotModified", new String[] { "count", "saved" },
+				new String[] { thousandPoint.format(ResponseEncoding.getNotModifiedResponses()),
+				SizeUtil.formatSize(ResponseEncoding.getNotModifiedSavedBytes(), true) }));
+	}
+
 	private void drawThreadPriorityStatsBox(HTMLNode node) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
@@ -1057,6 +1077,26 @@ public class StatisticsToadlet extends Toadlet {
 				activityList.addChild("li", "ARK\u00a0Fetch\u00a0Requests:\u00a0" + numARKFetchers);
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			activityList.addChild("li", "USKEditionIndexSize:\u00a0" + node.clientCore.uskManager.getEditionIndexSize());
+			activityList.addChild("li", "queuedUSKPolls:\u00a0" + node.clientCore.uskManager.getQueuedPollCount());
+			ClientLayerPersister persister = node.clientCore.clientLayerPersister;
+			activityList.addChild("li", "lastClientLayerCheckpoint:\u00a0" + persister.getLastCheckpointTime() + "ms,\u00a0" +
+					SizeUtil.formatSize(persister.getLastCheckpointBytes()) + ",\u00a0" + persister.getLastCheckpointRequestsWritten() +
+					"/" + persister.getLastCheckpointRequests() + "\u00a0requests" + (persister.wasLastCheckpointFull() ? "\u00a0(full)" : "\u00a0(journal)"));
+			activityList.addChild("li", "clientLayerCheckpoints:\u00a0" + persister.getFullCheckpoints() + "\u00a0full,\u00a0" +
+					persister.getJournalCheckpoints() + "\u00a0journal,\u00a0journal\u00a0size:\u00a0" + SizeUtil.formatSize(persister.getJournalBytes()));
+			long[] stalls = persister.getStallHistogram();
+			StringBuilder sb = new StringBuilder("clientLayerCheckpointStalls:");
+			for(int i=0;i<stalls.length;i++) {
+				if(i < PersistentJobRunnerImpl.STALL_HISTOGRAM_BOUNDS.length)
+					sb.append("\u00a0<").append(TimeUtil.formatTime(PersistentJobRunnerImpl.STALL_HISTOGRAM_BOUNDS[i], 2, true));
+				else
+					sb.append("\u00a0>=").append(TimeUtil.formatTime(PersistentJobRunnerImpl.STALL_HISTOGRAM_BOUNDS[i-1], 2, true));
+				sb.append(":\u00a0").append(stalls[i]).append(i < stalls.length - 1 ? "," : "");
+			}
+			sb.append("\u00a0max:\u00a0").append(TimeUtil.formatTime(persister.getMaxStallTime(), 2, true));
+			sb.append("\u00a0total:\u00a0").append(TimeUtil.formatTime(persister.getTotalStallTime(), 2, true));
+			activityList.addChild("li", sb.toString());
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
 		}
 		
@@ -1278,6 +1318,19 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		TempArena arena = core.tempBucketFactory.getArena();
+		if(arena != null) {
+			overviewList.addChild("li", "tempArenaRAMHitRatio:\u00a0" + fix3p1pct.format(arena.getRamHitRatio()) + "\u00a0(" + arena.getRamMisses() + "\u00a0misses)");
+			overviewList.addChild("li", "tempArenaSpillFile:\u00a0" + SizeUtil.formatSize(arena.getSpillUsed()) + " / " + SizeUtil.formatSize(arena.getSpillSize()) + "\u00a0(" + SizeUtil.formatSize(arena.getSpilledBytes()) + "\u00a0spilled)");
+			overviewList.addChild("li", "tempArenaMigrationStalls:\u00a0" + arena.getMigrationStalls() + "\u00a0(" + TimeUtil.formatTime(arena.getMigrationStallTime(), 2, true) + ")");
+		}
+		overviewList.addChild("li", "pooledFDs:\u00a0" + PooledFileRandomAccessBuffer.getOpenFDs() + "\u00a0(" + PooledFileRandomAccessBuffer.getFDHits() + "\u00a0hits, " + PooledFileRandomAccessBuffer.getFDOpens() + "\u00a0opens, " + PooledFileRandomAccessBuffer.getFDEvictions() + "\u00a0evictions)");
+		FProxyToadlet fproxy = core.getFProxy();
+		if(fproxy != null) {
+			FilteredContentCache filteredCache = fproxy.fetchTracker.filteredCache;
+			long lookups = filteredCache.getHits() + filteredCache.getMisses();
+			overviewList.addChild("li", "filteredContentCache:\u00a0" + filteredCache.getCount() + "\u00a0pages,\u00a0" + SizeUtil.formatSize(filteredCache.getTotalSize()) + " / " + SizeUtil.formatSize(filteredCache.getMaxSize()) + "\u00a0(" + (lookups == 0 ? "0" : fix3p1pct.format(((double) filteredCache.getHits()) / lookups)) + "\u00a0hits of " + lookups + ", " + SizeUtil.formatSize(filteredCache.getBytesServed()) + "\u00a0served)");
+		}
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
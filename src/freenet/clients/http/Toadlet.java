@@ -3,10 +3,14 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.http;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.net.URI;
 
@@ -27,6 +31,7 @@ import freenet.support.Logger;
 import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
 import freenet.support.api.HTTPRequest;
+import freenet.support.io.CountedOutputStream;
 
 /**
  * API similar to Servlets. Originally the reason for not using servlets was to support 
@@ -259,6 +264,58 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/html; charset=utf-8", desc, null, reply, false);
 	}
 	
+	/**
+	 * Write an HTTP response as HTML, rendering the page as it is sent rather than building the
+	 * whole page in memory first. Use this for pages which can be very big, e.g. the queue.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param pageNode The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode pageNode) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, pageNode);
+	}
+
+	/**
+	 * Write an HTTP response as HTML, possibly with custom headers, rendering the page as it is
+	 * sent. Because we don't know how long the page is until we have sent it, it is sent with
+	 * chunked encoding, or to an HTTP/1.0 browser, by closing the connection afterwards.
+	 * @param ctx The specific request to reply to.
+	 * @param code The HTTP reply code to use.
+	 * @param desc The HTTP response description for the code.
+	 * @param headers The additional HTTP headers to send.
+	 * @param pageNode The HTML page.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode pageNode) throws ToadletContextClosedException, IOException {
+		String encoding = null;
+		// Not over SSL, see writeReply().
+		if(!ctx.getContainer().isSSL())
+			encoding = ResponseEncoding.choose(ctx.getHeaders().get("accept-encoding"));
+		if(encoding != null) {
+			if(headers == null) headers = new MultiValueTable<String, String>();
+			headers.put("content-encoding", encoding);
+			headers.put("vary", "accept-encoding");
+		}
+		OutputStream os = ctx.sendReplyHeadersChunked(code, desc, headers, "text/html; charset=utf-8", false);
+		boolean finished = false;
+		try {
+			CountedOutputStream sent = new CountedOutputStream(os);
+			CountedOutputStream rendered = sent;
+			if(encoding != null)
+				rendered = new CountedOutputStream(ResponseEncoding.encoder(sent, encoding));
+			Writer writer = new BufferedWriter(new OutputStreamWriter(rendered, "UTF-8"));
+			pageNode.generate(writer);
+			writer.close();
+			if(encoding != null)
+				ResponseEncoding.onCompressed(rendered.written(), sent.written());
+			finished = true;
+		} finally {
+			// We have already sent the headers, so the only way to tell the browser something
+			// went wrong is to close the connection before the end of the page.
+			if(!finished) ctx.forceDisconnect();
+		}
+	}
+
 	/**
 	 * Write an HTTP response as plain text.
 	 * @param ctx The specific request to reply to.
@@ -330,8 +387,27 @@ public abstract class Toadlet {
 	 * @param data The data to write as the response body.
 	 * @param offset The offset within data of the first byte to send.
 	 * @param length The number of bytes of data to send as the response body.
+	 * The data is compressed if the browser supports it and it is big enough to be worthwhile.
 	 */
 	private void writeReply(ToadletContext context, int code, String mimeType, String desc, MultiValueTable<String, String> headers, byte[] buffer, int startIndex, int length, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException {
+		String encoding = null;
+		// Don't compress pages over SSL: They contain the form password, and may contain text
+		// from the request, so the compressed size could reveal the password (BREACH).
+		if(length >= ResponseEncoding.MIN_COMPRESS_SIZE && ResponseEncoding.isCompressible(mimeType) &&
+				!context.getContainer().isSSL())
+			encoding = ResponseEncoding.choose(context.getHeaders().get("accept-encoding"));
+		if(encoding != null) {
+			byte[] compressed = ResponseEncoding.encode(buffer, startIndex, length, encoding);
+			if(compressed != null) {
+				ResponseEncoding.onCompressed(length, compressed.length);
+				if(headers == null) headers = new MultiValueTable<String, String>();
+				headers.put("content-encoding", encoding);
+				headers.put("vary", "accept-encoding");
+				buffer = compressed;
+				startIndex = 0;
+				length = compressed.length;
+			}
+		}
 	    context.sendReplyHeaders(code, desc, headers, mimeType, length, forceDisableJavascript);
 		context.writeData(buffer, startIndex, length);
 	}
@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -75,6 +76,24 @@ public interface ToadletContext {
 	 */
 	void sendReplyHeadersFProxy(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Send the reply headers for a reply whose length we don't know yet, e.g. a page which is
+	 * rendered as it is sent. The body is sent with chunked transfer encoding, or if the browser
+	 * doesn't support that, the connection is closed after it.
+	 * @return The stream to write the body to. Must be closed when the body is complete; this
+	 * doesn't close the connection.
+	 */
+	OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Send the reply headers for content downloaded from Freenet whose length we don't know yet,
+	 * e.g. because it is still being fetched. As sendReplyHeadersFProxy(), but the body is sent as
+	 * with sendReplyHeadersChunked(). If the data turns out to be bad, don't close the stream, so
+	 * the browser sees the reply was cut short.
+	 * @return The stream to write the body to. Must be closed when the body is complete.
+	 */
+	OutputStream sendReplyHeadersFProxyChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Write data. Note you must send reply headers first.
 	 */
@@ -3,6 +3,7 @@ package freenet.clients.http;
 import static java.util.concurrent.TimeUnit.DAYS;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -42,6 +43,7 @@ import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileUtil;
 import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NoCloseProxyOutputStream;
 import freenet.support.io.TooLongException;
 /**
  * ToadletContext implementation, including all the icky HTTP parsing etc.
@@ -96,6 +98,8 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** Did the browser send an HTTP/1.0 request? If so it doesn't understand chunked encoding. */
+	private boolean isHTTP10;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, URI uri, long uniqueID) throws IOException {
 		this.headers = headers;
@@ -205,6 +209,34 @@ public class ToadletContextImpl implements ToadletContext {
 	    sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, contentLength, null, false, true, enableJavascript);
 	}
 	
+	@Override
+	public OutputStream sendReplyHeadersChunked(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType, boolean forceDisableJavascript) throws ToadletContextClosedException, IOException {
+		boolean enableJavascript = (!forceDisableJavascript) && container.isFProxyJavascriptEnabled();
+		return sendReplyHeadersChunked(replyCode, replyDescription, mvt, mimeType, false, enableJavascript);
+	}
+	
+	@Override
+	public OutputStream sendReplyHeadersFProxyChunked(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType) throws ToadletContextClosedException, IOException {
+	    boolean enableJavascript = false;
+	    if(container.isFProxyWebPushingEnabled() && container.isFProxyJavascriptEnabled())
+	        enableJavascript = true;
+	    return sendReplyHeadersChunked(replyCode, replyDescription, mvt, mimeType, true, enableJavascript);
+	}
+	
+	private OutputStream sendReplyHeadersChunked(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType, boolean allowFrames, boolean enableJavascript) throws ToadletContextClosedException, IOException {
+		if(isHTTP10) {
+			// The end of the connection is the end of the reply.
+			forceDisconnect();
+			sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, -1, null, false, allowFrames, enableJavascript);
+			return new BufferedOutputStream(new NoCloseProxyOutputStream(sockOutputStream), ChunkedOutputStream.CHUNK_SIZE);
+		}
+		if(mvt == null)
+			mvt = new MultiValueTable<String,String>();
+		mvt.put("transfer-encoding", "chunked");
+		sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, -1, null, false, allowFrames, enableJavascript);
+		return new ChunkedOutputStream(sockOutputStream);
+	}
+	
 	private void sendReplyHeaders(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType, long contentLength, Date mTime, boolean isOutlinkConfirmationPage, boolean allowFrames, boolean enableJavascript) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
 		if(firstReplySendingException != null) {
@@ -484,17 +516,34 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		handle(sock, container, pageMaker, userAlertManager, bookmarkManager, false);
+	}
+
+	/**
+	 * Handle requests on a connection.
+	 * @param returnWhenIdle If true, once we have answered a request, return rather than wait 
+	 * for the next one if it hasn't arrived yet, so the caller can wait for it without a thread.
+	 * @return True if we returned because the connection is idle, in which case the caller must
+	 * call this again when there is more data. False if the connection has been closed, or 
+	 * should be.
+	 */
+	static boolean handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, boolean returnWhenIdle) {
 		try {
 			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
+			boolean handledRequest = false;
 			while(true) {
 				
+				// Nothing read ahead is lost, since the buffer is empty.
+				if(returnWhenIdle && handledRequest && lis.available() == 0)
+					return true;
+				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
 					sock.close();
-					return;
+					return false;
 				} else if (firstLine.equals("")) {
 					continue;
 				}
@@ -516,7 +565,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
 				} catch (URISyntaxException e) {
 					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
+					return false;
 				}
 				String method = split[0];
 				
@@ -526,7 +575,7 @@ public class ToadletContextImpl implements ToadletContext {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
 						sock.close();
-						return;
+						return false;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
@@ -540,13 +589,15 @@ public class ToadletContextImpl implements ToadletContext {
 					headers.put(before, after);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				boolean isHTTP10 = split[2].equals("HTTP/1.0");
+				boolean disconnect = shouldDisconnectAfterHandled(isHTTP10, headers) || !container.enablePersistentConnections();
 
 				boolean allowPost = container.allowPosts();
 				BucketFactory bf = container.getBucketFactory();
 				
 				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
 				ctx.shouldDisconnect = disconnect;
+				ctx.isHTTP10 = isHTTP10;
 				
 				/*
 				 * copy the data into a bucket now,
@@ -565,7 +616,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen == null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
 					// <method> can not have data
@@ -573,7 +624,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen != null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				}
 
@@ -585,7 +636,7 @@ public class ToadletContextImpl implements ToadletContext {
 					} catch (NumberFormatException e) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
 						data = bf.makeBucket(len);
@@ -598,7 +649,7 @@ public class ToadletContextImpl implements ToadletContext {
 							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
 						}
 						ctx.close();
-						return;
+						return false;
 					}
 				} else {
 					// we're not doing to use it, but we have to keep
@@ -609,7 +660,7 @@ public class ToadletContextImpl implements ToadletContext {
 				if (!container.enableExtendedMethodHandling()) {
 					if (!METHODS_RESTRICTED_MODE.contains(method)) {
 						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
+						return false;
 					}
 				}
 
@@ -664,11 +715,12 @@ public class ToadletContextImpl implements ToadletContext {
 					}
 					if(ctx.shouldDisconnect) {
 						sock.close();
-						return;
+						return false;
 					}
 				} finally {
 					if(data != null) data.free();
 				}
+				handledRequest = true;
 			}
 			
 		} catch (ParseException e) {
@@ -704,6 +756,7 @@ public class ToadletContextImpl implements ToadletContext {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
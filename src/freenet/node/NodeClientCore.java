@@ -170,6 +170,7 @@ public class NodeClientCore implements Persistable {
 	private boolean alwaysCommit;
 	private final PluginStores pluginStores;
 	private boolean lazyStartDatastoreChecker;
+	private long tempBucketSpillFileSize;
 	
 	private boolean finishedInitStorage;
 	private boolean finishingInitStorage;
@@ -215,6 +216,23 @@ public class NodeClientCore implements Persistable {
 		byte[] pwdBuf = new byte[16];
 		random.nextBytes(pwdBuf);
 		compressor = new RealCompressor();
+		nodeConfig.register("parallelCompression", false, sortOrder++, true, false,
+				    "NodeClientCore.parallelCompression",
+				    "NodeClientCore.parallelCompressionLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return compressor.isParallel();
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException {
+						    compressor.setParallel(val);
+					    }
+				    });
+		compressor.setParallel(nodeConfig.getBoolean("parallelCompression"));
 		this.formPassword = Base64.encode(pwdBuf);
 		alerts = new UserAlertManager(this);
 		persister =
@@ -291,6 +309,29 @@ public class NodeClientCore implements Persistable {
 					    }
 				    });
 
+		nodeConfig.register("persistentTempContainers", false, sortOrder++, true, false,
+				    "NodeClientCore.persistentTempContainers",
+				    "NodeClientCore.persistentTempContainersLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return (persistentTempBucketFactory == null
+							    ? false : persistentTempBucketFactory
+									    .isUsingContainers());
+					    }
+
+					    @Override
+					    public void set(Boolean val)
+							    throws InvalidConfigValueException {
+						    if (get().equals(val) || (
+								    persistentTempBucketFactory
+								    == null))
+							    return;
+						    persistentTempBucketFactory.setUseContainers(val);
+					    }
+				    });
+
 		this.persistentTempDir =
 				node.setupProgramDir(installConfig, "persistentTempDir",
 						     node.userDir().file("persistent-temp")
@@ -308,6 +349,8 @@ public class NodeClientCore implements Persistable {
 									node.fastWeakRandom,
 									nodeConfig.getBoolean(
 											"encryptPersistentTempBuckets"));
+			persistentTempBucketFactory.setUseContainers(
+					nodeConfig.getBoolean("persistentTempContainers"));
 			this.persistentFilenameGenerator = persistentTempBucketFactory.fg;
 		} catch (IOException e) {
 			String
@@ -418,6 +461,34 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("tempBucketSpillFileSize", "0", sortOrder++, true, false,
+				    "NodeClientCore.tempBucketSpillFileSize",
+				    "NodeClientCore.tempBucketSpillFileSizeLong", new LongCallback() {
+
+					@Override
+					public Long get() {
+						synchronized (NodeClientCore.this) {
+							return tempBucketSpillFileSize;
+						}
+					}
+
+					@Override
+					public void set(Long val)
+							throws InvalidConfigValueException,
+							       NodeNeedRestartException {
+						if (val < 0)
+							throw new InvalidConfigValueException(
+									l10n("tempBucketSpillFileSizeNegative"));
+						synchronized (NodeClientCore.this) {
+							if (val != tempBucketSpillFileSize) {
+								tempBucketSpillFileSize = val;
+								throw new NodeNeedRestartException(
+										l10n("tempBucketSpillFileSizeMustRestartNode"));
+							}
+						}
+					}
+				}, true);
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -428,6 +499,14 @@ public class NodeClientCore implements Persistable {
 						      node.fastWeakRandom,
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketSpillFileSize = nodeConfig.getLong("tempBucketSpillFileSize");
+		if (tempBucketSpillFileSize > 0) {
+			try {
+				tempBucketFactory.enableArena(tempBucketSpillFileSize);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to create the temp bucket spill file, not using the arena: " + e, e);
+			}
+		}
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
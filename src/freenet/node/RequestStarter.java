@@ -3,11 +3,16 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import freenet.client.async.ChosenBlock;
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequestScheduler;
 import freenet.client.async.RequestSelectionTreeNode;
 import freenet.client.async.ChosenBlockImpl;
 import freenet.keys.Key;
@@ -76,6 +81,32 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	static final int MAX_WAITING_FOR_SLOTS = 50;
 	
+	/** When batching, don't take more requests at once than the throttle allows in this 
+	 * period. */
+	static final long BATCH_INTERVAL = MILLISECONDS.toMillis(200);
+	
+	private volatile int maxBatchSize = 1;
+	
+	// State of the starter thread. Only accessed by realRun() and the methods it calls.
+	/** Requests which have been chosen, and have already been added to fetching keys or running
+	 * inserts, but have not been started yet. All of them will use the network. */
+	private final ArrayList<ChosenBlock> batch = new ArrayList<ChosenBlock>();
+	/** When not batching, a request we have chosen but not started because we were overloaded. 
+	 * It has not been added to fetching keys or running inserts. */
+	private ChosenBlock waiting;
+	/** The last time at which we sent a request or decided not to */
+	private long cycleTime;
+	
+	// Statistics. Only written by the starter thread, so volatile is sufficient.
+	private volatile long startedTime;
+	private volatile long startedRequests;
+	private volatile long chosenRequests;
+	private volatile long storeHits;
+	private volatile long schedulerVisits;
+	/** Visits to the scheduler which chose at least one request. */
+	private volatile long productiveVisits;
+	private volatile long schedulerNanos;
+	
 	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, 
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
 		this.core = node;
@@ -88,12 +119,28 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		this.isSSK = isSSK;
 		this.realTime = realTime;
 	}
+	
+	/** For tests: A starter which isn't attached to a node. Only startNext() can be used, and 
+	 * shouldRejectRequest(), waitUntilNotOverloaded() and sendRequest() must be overridden. */
+	RequestStarter(BaseRequestThrottle throttle, String name, boolean isInsert, boolean isSSK, 
+			boolean realTime) {
+		this.core = null;
+		this.stats = null;
+		this.throttle = throttle;
+		this.name = name;
+		this.averageOutputBytesPerRequest = null;
+		this.averageInputBytesPerRequest = null;
+		this.isInsert = isInsert;
+		this.isSSK = isSSK;
+		this.realTime = realTime;
+	}
 
 	void setScheduler(RequestScheduler sched) {
 		this.sched = sched;
 	}
 	
 	void start() {
+		startedTime = System.currentTimeMillis();
 		core.getExecutor().execute(this, name);
 	}
 	
@@ -104,10 +151,27 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		return name;
 	}
 	
+	/** Set the maximum number of requests to take from the scheduler at once. 1 means we start
+	 * each request as soon as it is chosen, as we used to. */
+	void setMaxBatchSize(int maxBatchSize) {
+		if(maxBatchSize < 1) throw new IllegalArgumentException();
+		this.maxBatchSize = maxBatchSize;
+		wakeUp();
+	}
+	
+	/** How many requests to take from the scheduler on this visit. We never take more than the
+	 * throttle would let us start in BATCH_INTERVAL, so a batch does not start significantly
+	 * more requests at once than we would have done anyway. */
+	private int batchSize() {
+		int max = maxBatchSize;
+		if(max == 1) return 1;
+		long delay = throttle.getDelay();
+		if(delay <= 0) return max;
+		return (int) Math.max(1, Math.min(max, BATCH_INTERVAL / delay));
+	}
+	
 	void realRun() {
-		ChosenBlock req = null;
-		// The last time at which we sent a request or decided not to
-		long cycleTime = System.currentTimeMillis();
+		cycleTime = System.currentTimeMillis();
 		while(true) {
 			// Allow 5 minutes before we start killing requests due to not connecting.
 			OpennetManager om;
@@ -123,108 +187,310 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				}
 				continue;
 			}
-			if(req == null) {
-				req = sched.grabRequest();
+			startNext();
+		}
+	}
+	
+	/** Start the next request, or the next batch of requests, waiting for the throttle and for
+	 * the scheduler as necessary. Only called by the starter thread. */
+	void startNext() {
+		if(waiting != null || (batch.isEmpty() && maxBatchSize == 1))
+			startNextUnbatched();
+		else
+			startNextBatch();
+	}
+	
+	/** Choose and start a single request, exactly as we did before batching: We wait for the
+	 * throttle, check whether we are overloaded, and only then add the key to fetching keys or 
+	 * the block to running inserts. */
+	private void startNextUnbatched() {
+		ChosenBlock req = waiting;
+		waiting = null;
+		if(req == null)
+			req = grabRequest();
+		if(req != null) {
+			if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
+			if(!req.localRequestOnly) {
+				// Wait
+				long delay = throttle.getDelay();
+				if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle);
+				sleepUntil(cycleTime + delay);
 			}
-			if(req != null) {
-				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
-				if(!req.localRequestOnly) {
-					// Wait
-					long delay;
-					delay = throttle.getDelay();
-					if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle);
-					long sleepUntil = cycleTime + delay;
-					long now;
-					do {
-						now = System.currentTimeMillis();
-						if(now < sleepUntil)
-							try {
-								Thread.sleep(sleepUntil - now);
-								if(logMINOR) Logger.minor(this, "Slept: "+(sleepUntil-now)+"ms");
-							} catch (InterruptedException e) {
-								// Ignore
-							}
-					} while(now < sleepUntil);
-				}
-//				if(!doAIMD) {
-//					// Arbitrary limit on number of local requests waiting for slots.
-//					// Firstly, they use threads. This could be a serious problem for faster nodes.
-//					// Secondly, it may help to prevent wider problems:
-//					// If all queues are full, the network will die.
-//					int[] waiting = core.node.countRequestsWaitingForSlots();
-//					int localRequestsWaitingForSlots = waiting[0];
-//					int maxWaitingForSlots = MAX_WAITING_FOR_SLOTS;
-//					// FIXME calibrate this by the number of local timeouts.
-//					// FIXME consider an AIMD, or some similar mechanism.
-//					// Local timeout-waiting-for-slots is largely dependant on
-//					// the number of requests running, due to strict round-robin,
-//					// so we can probably do something even simpler than an AIMD.
-//					// For now we'll just have a fixed number.
-//					// This should partially address the problem.
-//					// Note that while waitFor() is blocking, we need such a limit anyway.
-//					if(localRequestsWaitingForSlots > maxWaitingForSlots) continue;
-//				}
-				RejectReason reason;
-				assert(req.realTimeFlag == realTime);
-				if (!req.localRequestOnly) {
-					reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
-							Node.PREFER_INSERT_DEFAULT && isInsert, req.realTimeFlag, null);
-					if(reason != null) {
-						if(logMINOR)
-							Logger.minor(this, "Not sending local request: "+reason);
-						// Wait one throttle-delay before trying again
-						cycleTime = System.currentTimeMillis();
-						continue; // Let local requests compete with all the others
-					}
-				} else {
-					stats.waitUntilNotOverloaded(isInsert);
+//			if(!doAIMD) {
+//				// Arbitrary limit on number of local requests waiting for slots.
+//				// Firstly, they use threads. This could be a serious problem for faster nodes.
+//				// Secondly, it may help to prevent wider problems:
+//				// If all queues are full, the network will die.
+//				int[] waiting = core.node.countRequestsWaitingForSlots();
+//				int localRequestsWaitingForSlots = waiting[0];
+//				int maxWaitingForSlots = MAX_WAITING_FOR_SLOTS;
+//				// FIXME calibrate this by the number of local timeouts.
+//				// FIXME consider an AIMD, or some similar mechanism.
+//				// Local timeout-waiting-for-slots is largely dependant on
+//				// the number of requests running, due to strict round-robin,
+//				// so we can probably do something even simpler than an AIMD.
+//				// For now we'll just have a fixed number.
+//				// This should partially address the problem.
+//				// Note that while waitFor() is blocking, we need such a limit anyway.
+//				if(localRequestsWaitingForSlots > maxWaitingForSlots) continue;
+//			}
+			assert(req.realTimeFlag == realTime);
+			if(!req.localRequestOnly) {
+				RejectReason reason = shouldRejectRequest(req);
+				if(reason != null) {
+					if(logMINOR)
+						Logger.minor(this, "Not sending local request: "+reason);
+					// Wait one throttle-delay before trying again
+					cycleTime = System.currentTimeMillis();
+					waiting = req;
+					return; // Let local requests compete with all the others
 				}
 			} else {
-				if(logMINOR) Logger.minor(this, "Waiting...");				
-				// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
-				// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
-				synchronized(this) {
-					req = sched.grabRequest();
-					if(req == null) {
-						try {
-							wait();
-						} catch (InterruptedException e) {
-							// Ignore
-						}
-					}
-				}
+				waitUntilNotOverloaded();
 			}
-			if(req == null) continue;
-			if(!startRequest(req, logMINOR)) {
-				// Don't log if it's a cancelled transient request.
-				if(!((!req.isPersistent()) && req.isCancelled()))
-					Logger.normal(this, "No requests to start on "+req);
+		} else {
+			req = waitForRequest();
+		}
+		if(req == null) return;
+		if((!req.isPersistent()) && req.isCancelled()) {
+			// Don't log if it's a cancelled transient request.
+			req.onDumped();
+		} else if(reserve(req)) {
+			startRequest(req);
+		}
+		if(!req.localRequestOnly)
+			cycleTime = System.currentTimeMillis();
+	}
+	
+	/** Choose a batch of requests if we don't have one, otherwise wait for the throttle and start
+	 * as much of the batch as we can. */
+	private void startNextBatch() {
+		if(batch.isEmpty()) {
+			grabBatch(batchSize());
+			if(batch.isEmpty()) {
+				ChosenBlock req = waitForRequest();
+				if(req != null && reserve(req))
+					batch.add(req);
+			}
+			checkStore();
+			startLocalRequests();
+			return;
+		}
+		// Wait
+		long delay = throttle.getDelay();
+		if(logMINOR) Logger.minor(this, "Delay="+delay+" from "+throttle+" for "+batch.size()+" requests");
+		sleepUntil(cycleTime + delay * batch.size());
+		// Start the whole batch together, unless we become overloaded part way through.
+		while(!batch.isEmpty()) {
+			ChosenBlock req = batch.get(0);
+			assert(req.realTimeFlag == realTime);
+			RejectReason reason = shouldRejectRequest(req);
+			if(reason != null) {
+				if(logMINOR)
+					Logger.minor(this, "Not sending local request: "+reason);
+				break; // Let local requests compete with all the others
 			}
-			if(!req.localRequestOnly)
-				cycleTime = System.currentTimeMillis();
-			req = null;
+			batch.remove(0);
+			startRequest(req);
 		}
+		// Wait one throttle-delay per remaining request before trying again
+		cycleTime = System.currentTimeMillis();
 	}
-
-	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
-		if((!req.isPersistent()) && req.isCancelled()) {
+	
+	private void sleepUntil(long sleepUntil) {
+		long now;
+		do {
+			now = System.currentTimeMillis();
+			if(now < sleepUntil)
+				try {
+					Thread.sleep(sleepUntil - now);
+					if(logMINOR) Logger.minor(this, "Slept: "+(sleepUntil-now)+"ms");
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+		} while(now < sleepUntil);
+	}
+	
+	/** Wait until the scheduler has something for us.
+	 * @return A request, or null if we were woken up without one. */
+	private ChosenBlock waitForRequest() {
+		if(logMINOR) Logger.minor(this, "Waiting...");
+		// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
+		// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
+		synchronized(this) {
+			ChosenBlock req = grabRequest();
+			if(req == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return req;
+		}
+	}
+	
+	/** Take a single request from the scheduler. This is a visit to the scheduler, just like 
+	 * grabBatch(). */
+	private ChosenBlock grabRequest() {
+		long startTime = System.nanoTime();
+		ChosenBlock req = sched.grabRequest();
+		countVisit(startTime, req == null ? 0 : 1);
+		return req;
+	}
+	
+	/** Take up to max requests from the scheduler, and add them to fetching keys or running 
+	 * inserts immediately so that we don't choose the same key twice in one batch. */
+	private void grabBatch(int max) {
+		long startTime = System.nanoTime();
+		int chosen = 0;
+		for(int i=0;i<max;i++) {
+			ChosenBlock req = sched.grabRequest();
+			if(req == null) break;
+			chosen++;
+			if(reserve(req))
+				batch.add(req);
+		}
+		countVisit(startTime, chosen);
+	}
+	
+	private void countVisit(long startTime, int chosen) {
+		schedulerNanos += System.nanoTime() - startTime;
+		schedulerVisits++;
+		if(chosen > 0) {
+			chosenRequests += chosen;
+			productiveVisits++;
+		}
+	}
+	
+	/** Look up the whole batch in the datastore in one pass, once per visit to the scheduler. 
+	 * Blocks found there are delivered directly, so those requests are not started at all and 
+	 * don't wait for the throttle. */
+	private void checkStore() {
+		if(isInsert) return;
+		ArrayList<ChosenBlock> check = new ArrayList<ChosenBlock>(batch.size());
+		for(ChosenBlock req : batch) {
+			if(req.localRequestOnly || req.key == null || req.ignoreStore) continue;
+			check.add(req);
+		}
+		if(check.isEmpty()) return;
+		Key[] keys = new Key[check.size()];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = check.get(i).key;
+		boolean[] found = checkStore(keys);
+		for(int i=0;i<keys.length;i++) {
+			if(!found[i]) continue;
+			ChosenBlock req = check.get(i);
+			if(logMINOR) Logger.minor(this, "Found in store, not starting: "+req);
+			batch.remove(req);
+			unreserve(req);
 			req.onDumped();
-			return false;
+			storeHits++;
+		}
+	}
+	
+	/** Start any requests in the batch which are local only. These are not throttled. */
+	private void startLocalRequests() {
+		for(Iterator<ChosenBlock> it = batch.iterator(); it.hasNext();) {
+			ChosenBlock req = it.next();
+			if(!req.localRequestOnly) continue;
+			it.remove();
+			waitUntilNotOverloaded();
+			startRequest(req);
 		}
+	}
+
+	/** Add the request's key to fetching keys, or its block to running inserts.
+	 * @return False if it is already running, in which case it has been dumped. */
+	private boolean reserve(ChosenBlock req) {
+		boolean running = false;
 		if(req.key != null) {
-			if(!sched.addToFetching(req.key)) {
-				req.onDumped();
-				return false;
-			}
+			running = !sched.addToFetching(req.key);
 		} else if(((ChosenBlockImpl)req).request instanceof SendableInsert) {
-			if(!sched.addRunningInsert((SendableInsert)(((ChosenBlockImpl)req).request), req.token.getKey())) {
-				req.onDumped();
-				return false;
-			}
+			running = !sched.addRunningInsert((SendableInsert)(((ChosenBlockImpl)req).request), req.token.getKey());
+		}
+		if(running) {
+			req.onDumped();
+			// Don't log if it's a cancelled transient request.
+			if(!((!req.isPersistent()) && req.isCancelled()))
+				Logger.normal(this, "No requests to start on "+req);
+			return false;
+		}
+		return true;
+	}
+	
+	/** Undo reserve() for a request we are not going to start after all. */
+	private void unreserve(ChosenBlock req) {
+		if(req.key != null)
+			sched.removeFetchingKey(req.key);
+		else if(((ChosenBlockImpl)req).request instanceof SendableInsert)
+			sched.removeRunningInsert((SendableInsert)(((ChosenBlockImpl)req).request), req.token.getKey());
+	}
+
+	/** Start a request which has already been reserved. */
+	private void startRequest(ChosenBlock req) {
+		if((!req.isPersistent()) && req.isCancelled()) {
+			unreserve(req);
+			req.onDumped();
+			// Don't log if it's a cancelled transient request.
+			return;
 		}
 		if(logMINOR) Logger.minor(this, "Running request "+req+" priority "+req.getPriority());
+		sendRequest(req);
+		startedRequests++;
+	}
+	
+	/** Check whether the node is too busy to start a request which will use the network. 
+	 * Overridden in tests. */
+	RejectReason shouldRejectRequest(ChosenBlock req) {
+		return stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
+				Node.PREFER_INSERT_DEFAULT && isInsert, req.realTimeFlag, null);
+	}
+	
+	/** Wait until we are not using too many threads, before starting a local request. 
+	 * Overridden in tests. */
+	void waitUntilNotOverloaded() {
+		stats.waitUntilNotOverloaded(isInsert);
+	}
+	
+	/** Check the datastore for a batch of keys, delivering any blocks found. Overridden in 
+	 * tests.
+	 * @return For each key, true if it was found. */
+	boolean[] checkStore(Key[] keys) {
+		return core.storeChecker.checkChosenKeys(keys, (ClientRequestScheduler) sched);
+	}
+	
+	/** Actually send a request, on another thread. Overridden in tests. */
+	void sendRequest(ChosenBlock req) {
 		core.getExecutor().execute(new SenderThread(req, req.key), "RequestStarter$SenderThread for "+req);
-		return true;
+	}
+	
+	/** Requests started per second since the starter was started. */
+	public double getStartRate() {
+		long elapsed = System.currentTimeMillis() - startedTime;
+		if(elapsed <= 0) return 0.0;
+		return startedRequests * 1000.0 / elapsed;
+	}
+	
+	/** Average number of requests chosen per visit to the scheduler, not counting visits which 
+	 * found nothing to start. */
+	public double getAverageBatchSize() {
+		long visits = productiveVisits;
+		if(visits == 0) return 0.0;
+		return (double) chosenRequests / visits;
+	}
+	
+	/** Average time spent choosing requests per visit to the scheduler, in microseconds. This
+	 * includes time spent waiting for and holding the scheduler's locks. */
+	public double getAverageSchedulerTime() {
+		long visits = schedulerVisits;
+		if(visits == 0) return 0.0;
+		return schedulerNanos / 1000.0 / visits;
+	}
+
+	/** Requests not started because their blocks were already in the datastore. */
+	public long getStoreHits() {
+		return storeHits;
 	}
 
 	@Override
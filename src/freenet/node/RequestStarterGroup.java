@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.text.NumberFormat;
+
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.config.Config;
@@ -11,11 +13,13 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.SubConfig;
 import freenet.crypt.RandomSource;
 import freenet.keys.Key;
+import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
+import freenet.support.api.IntCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
 
@@ -68,6 +72,9 @@ public class RequestStarterGroup {
 	public final ClientRequestScheduler sskPutSchedulerRT;
 
 	private final NodeStats stats;
+	/** Maximum number of requests each RequestStarter takes from its scheduler at once. */
+	private volatile int maxBatchSize;
+	static final int DEFAULT_MAX_BATCH_SIZE = 10;
 	RequestStarterGroup(Node node, NodeClientCore core, int portNumber, RandomSource random, Config config, SimpleFieldSet fs, ClientContext ctx) throws InvalidConfigValueException {
 		SubConfig schedulerConfig = config.createSubConfig("node.scheduler");
 		this.stats = core.nodeStats;
@@ -127,9 +134,41 @@ public class RequestStarterGroup {
 		
 		registerSchedulerConfig(schedulerConfig, "SSKinserter", sskPutSchedulerBulk, sskPutSchedulerRT, true, true);
 		
+		schedulerConfig.register("maxBatchSize", DEFAULT_MAX_BATCH_SIZE, 0, true, false,
+				"RequestStarterGroup.maxBatchSize", "RequestStarterGroup.maxBatchSizeLong", 
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return maxBatchSize;
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException {
+						if(val < 1)
+							throw new InvalidConfigValueException(NodeL10n.getBase().getString("RequestStarterGroup.maxBatchSizeMustBePositive"));
+						setMaxBatchSize(val);
+					}
+			
+		}, false);
+		setMaxBatchSize(schedulerConfig.getInt("maxBatchSize"));
+		
 		schedulerConfig.finishedInitialization();
 	}
 	
+	private synchronized void setMaxBatchSize(int size) {
+		maxBatchSize = size;
+		for(RequestStarter starter : allStarters())
+			starter.setMaxBatchSize(size);
+	}
+	
+	private RequestStarter[] allStarters() {
+		return new RequestStarter[] {
+				chkRequestStarterRT, chkInsertStarterRT, sskRequestStarterRT, sskInsertStarterRT,
+				chkRequestStarterBulk, chkInsertStarterBulk, sskRequestStarterBulk, sskInsertStarterBulk
+		};
+	}
+	
 	private void registerSchedulerConfig(SubConfig schedulerConfig,
 			String name, ClientRequestScheduler csBulk,
 			ClientRequestScheduler csRT, boolean forSSKs, boolean forInserts) throws InvalidConfigValueException {
@@ -142,14 +181,8 @@ public class RequestStarterGroup {
 	}
 
 	public void start() {
-		chkRequestStarterRT.start();
-		chkInsertStarterRT.start();
-		sskRequestStarterRT.start();
-		sskInsertStarterRT.start();
-		chkRequestStarterBulk.start();
-		chkInsertStarterBulk.start();
-		sskRequestStarterBulk.start();
-		sskInsertStarterBulk.start();
+		for(RequestStarter starter : allStarters())
+			starter.start();
 	}
 	
 	public class MyRequestThrottle implements BaseRequestThrottle {
@@ -334,9 +367,39 @@ public class RequestStarterGroup {
 		sb.append(" bw=");
 		sb.append(throttle.getRate());
 		sb.append("B/sec");
+		RequestStarter starter = getStarter(isSSK, isInsert, realTime);
+		NumberFormat fmt = NumberFormat.getInstance();
+		fmt.setMaximumFractionDigits(1);
+		sb.append(" started=");
+		sb.append(fmt.format(starter.getStartRate()));
+		sb.append("/sec batch=");
+		sb.append(fmt.format(starter.getAverageBatchSize()));
+		sb.append(" scheduler=");
+		sb.append(fmt.format(starter.getAverageSchedulerTime()));
+		sb.append("us");
+		if(!isInsert) {
+			sb.append(" storeHits=");
+			sb.append(starter.getStoreHits());
+		}
 		return sb.toString();
 	}
 
+	RequestStarter getStarter(boolean isSSK, boolean isInsert, boolean realTime) {
+		if(realTime) {
+			if(isSSK) {
+				return isInsert ? sskInsertStarterRT : sskRequestStarterRT;
+			} else {
+				return isInsert ? chkInsertStarterRT : chkRequestStarterRT;
+			}
+		} else {
+			if(isSSK) {
+				return isInsert ? sskInsertStarterBulk : sskRequestStarterBulk;
+			} else {
+				return isInsert ? chkInsertStarterBulk : chkRequestStarterBulk;
+			}
+		}
+	}
+
 	public String diagnosticThrottlesLine(boolean mode) {
 		StringBuilder sb = new StringBuilder();
 		if(mode) {
@@ -1,6 +1,7 @@
 package freenet.support;
 
 import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
 import freenet.client.async.PersistentJob;
 import freenet.client.async.PersistentJobRunner;
 import freenet.client.async.PersistentJobRunnerImpl;
@@ -53,6 +54,11 @@ public class DummyJobRunner implements PersistentJobRunner {
         // Ignore.
     }
 
+    @Override
+    public void setCheckpointASAP(ClientRequester changed) {
+        // Ignore.
+    }
+
     @Override
     public boolean hasLoaded() {
         return true;
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -52,6 +54,23 @@ public class HTMLEncoder {
 		
 	}
 
+	/** Like encodeToBuffer(), but writes to a stream, e.g. when rendering a page as we send it. */
+	public static void encodeToWriter(String s, Writer out) throws IOException {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			String entity;
+			if(Character.isLetterOrDigit(c)){ //only special characters need checking
+				out.write(c);
+			} else if((entity = charTable.get(c))!=null){
+				out.write('&');
+				out.write(entity);
+				out.write(';');
+			} else{
+				out.write(c);
+			}
+		}
+	}
+
 	/**
 	 * Encode String so it is safe to be used in XML attribute value and text.
 	 * 
@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -439,6 +441,66 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 		return tagBuffer;
 	}
 	
+	/**
+	 * Write the HTML as it is generated, so a big page doesn't have to be built in memory first.
+	 * The output is the same as generate(). Subclasses which override generate(StringBuilder)
+	 * must override this too.
+	 */
+	public void generate(Writer out) throws IOException {
+		generate(out, 0);
+	}
+
+	public void generate(Writer out, int indentDepth) throws IOException {
+		if("#".equals(name)) {
+			if(content != null) {
+				HTMLEncoder.encodeToWriter(content, out);
+				return;
+			}
+			
+			for(int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
+				HTMLNode childNode = children.get(childIndex);
+				childNode.generate(out);
+			}
+			return;
+		}
+		if ("%".equals(name)) {
+			out.write(content);
+			return;
+		}
+		out.write('<');
+		out.write(name);
+		for (Map.Entry<String, String> attributeEntry : attributes.entrySet()) {
+			out.write(' ');
+			HTMLEncoder.encodeToWriter(attributeEntry.getKey(), out);
+			out.write("=\"");
+			HTMLEncoder.encodeToWriter(attributeEntry.getValue(), out);
+			out.write('"');
+		}
+		out.write(OpenSuffix(name));
+		if (children.size() == 0) {
+			if(content != null)
+				HTMLEncoder.encodeToWriter(content, out);
+		} else {
+			if (newlineOpen(name)) {
+				out.write('\n');
+				out.write(indentString(indentDepth+1));
+			}
+			for (int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
+				HTMLNode childNode = children.get(childIndex);
+				childNode.generate(out, indentDepth+1);
+			}
+		}
+		if (newlineOpen(name)) {
+			out.write('\n');
+			out.write(indentString(indentDepth));
+		}
+		out.write(CloseTag(name));
+		if (newlineClose(name)) {
+			out.write('\n');
+			out.write(indentString(indentDepth));
+		}
+	}
+	
 	public String generateChildren(){
 		if(content!=null){
 			return content;
@@ -493,6 +555,16 @@ public class HTMLNode implements XMLCharacterClasses, Cloneable {
 			return children.get(0).generate(tagBuffer);
 		}
 
+		@Override
+		public void generate(Writer out) throws IOException {
+			out.write("<!DOCTYPE ");
+			out.write(name);
+			out.write(" PUBLIC \"");
+			out.write(systemUri);
+			out.write("\">\n");
+			children.get(0).generate(out);
+		}
+
 	}
 
 	public static HTMLNode link(String path) {
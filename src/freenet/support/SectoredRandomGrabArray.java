@@ -10,8 +10,11 @@ import freenet.client.async.RequestSelectionTreeNode;
  * Like RandomGrabArray, but there is an equal chance of any given client's requests being
  * returned. Again, not persistent; this is reconstructed on restart.
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * LOCKING: There is a single lock for each priority's subtree, shared by every SRGA and RGA below
+ * that priority. This must be taken before calling any methods on RGA or SRGA, except for 
+ * isEmpty(), size() and getWakeupTime(), which only read volatile fields so that the 
+ * ClientRequestSelector can skip empty or sleeping priorities without locking them. See the 
+ * javadocs there for deeper explanation.
  * 
  * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
  * This is all kept in RAM now so we can change it at will, plus there is only one object 
@@ -25,21 +28,25 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		Logger.registerClass(SectoredRandomGrabArray.class);
 	}
 
-	protected RemoveRandomWithObject<T>[] grabArrays;
+	/** Always replaced rather than modified in place, so it can be read without the lock. */
+	protected volatile RemoveRandomWithObject<T>[] grabArrays;
 	private T[] grabClients;
 	private RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
-	private long wakeupTime;
+	/** The lock for the subtree we are in. Shared with all our parents up to the priority. */
+	protected final Object lock;
+	private volatile long wakeupTime;
 	
-	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
+	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
 		grabClients = (T[]) new Object[0];
 		grabArrays = new RemoveRandomWithObject[0];
 		this.parent = parent;
 		this.root = root;
+		this.lock = lock;
 	}
 
 	protected void addElement(T client, C rga) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		final int len = grabArrays.length;
 
 		grabArrays = Arrays.copyOf(grabArrays, len+1);
@@ -51,7 +58,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	protected int haveClient(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		for(int i=0;i<grabClients.length;i++) {
 			if(grabClients[i] == client) return i;
 		}
@@ -63,7 +70,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 * Get a grabber.
 	 */
 	public C getGrabber(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		int idx = haveClient(client);
 		if(idx == -1) return null;
 		else return (C) grabArrays[idx];
@@ -71,7 +78,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 	
 	public T getClient(int x) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		return grabClients[x];
 	    }
 	}
@@ -80,7 +87,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 * Put a grabber.
 	 */
 	public void addGrabber(T client, C requestGrabber, ClientContext context) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		if(requestGrabber.getObject() != client)
 			throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
 		addElement(client, requestGrabber);
@@ -92,7 +99,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		while(true) {
 			if(grabArrays.length == 0) return null;
 			if(grabArrays.length == 1) {
@@ -115,7 +122,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomExhaustive(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		if(grabArrays.length == 0) return null;
 		int x = context.fastWeakRandom.nextInt(grabArrays.length);
@@ -159,7 +166,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RandomGrabArrayItem removeRandomLimited(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		/** Count of arrays that have items but didn't return anything because of exclusions */
 		final int MAX_EXCLUDED = 10;
 		int excluded = 0;
@@ -220,7 +227,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomTwoOnly(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		// Another simple common case
 		int x = context.fastWeakRandom.nextBoolean() ? 1 : 0;
@@ -310,7 +317,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomOneOnly(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		// Optimise the common case
 		RemoveRandomWithObject<T> rga = grabArrays[0];
@@ -354,7 +361,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	private void removeElement(int x) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		final int grabArraysLength = grabArrays.length;
 		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
 		C[] newArray = (C[]) new RemoveRandomWithObject[newLen];
@@ -374,22 +381,18 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
 		return grabArrays.length == 0;
-	    }
 	}
 	
 	public int size() {
-	    synchronized(root) {
 		return grabArrays.length;
-	    }
 	}
 	
 	@Override
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
 		int count = 0;
 		int finalSize;
-		synchronized(root) {
+		synchronized(lock) {
 			while(true) {
 				int found = -1;
 				for(int i=0;i<grabArrays.length;i++) {
@@ -420,31 +423,30 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 	
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        // An expired wakeup time is equivalent to 0 everywhere it is used, so don't write it back.
+        long wakeup = wakeupTime;
+        return wakeup < now ? 0 : wakeup;
     }
     
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
         boolean reachedRoot = false;
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -459,7 +461,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
@@ -16,19 +16,19 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
     }
     
     public SectoredRandomGrabArraySimple(MyType object, RemoveRandomParent parent,
-            ClientRequestSelector root) {
-        super(object, parent, root);
+            ClientRequestSelector root, Object lock) {
+        super(object, parent, root, lock);
     }
 
     /** Add directly to a RandomGrabArrayWithObject under us. */
     public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
+        synchronized(lock) {
         RandomGrabArrayWithObject<ChildType> rga;
         int clientIndex = haveClient(client);
         if(clientIndex == -1) {
             if(logMINOR)
                 Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this+" for "+item);
-            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root);
+            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root, lock);
             addElement(client, rga);
         } else {
             rga = (RandomGrabArrayWithObject<ChildType>) grabArrays[clientIndex];
@@ -6,8 +6,8 @@ public class SectoredRandomGrabArrayWithInt extends SectoredRandomGrabArray impl
 
 	private final int number;
 
-	public SectoredRandomGrabArrayWithInt(int number, RemoveRandomParent parent, ClientRequestSelector root) {
-		super(parent, root);
+	public SectoredRandomGrabArrayWithInt(int number, RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		super(parent, root, lock);
 		this.number = number;
 	}
 
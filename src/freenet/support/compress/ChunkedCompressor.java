@@ -0,0 +1,306 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
+
+/**
+ * Compresses the data as a series of independent chunks, each with another codec, so that both
+ * compression and decompression can use all the cores. Splitfiles are split into blocks anyway,
+ * so the small loss of compression from resetting the codec at each chunk boundary doesn't
+ * matter much for big files.
+ *
+ * Format:
+ * <ul><li>Version (byte)</li>
+ * <li>Metadata ID of the codec used for each chunk (short)</li>
+ * <li>Chunk size (int)</li>
+ * <li>For each chunk: Uncompressed length (int, at most the chunk size), compressed length (int),
+ * compressed data.</li>
+ * <li>Zero (int).</li></ul>
+ *
+ * Only chunks in flight are kept in memory, a few per thread. When decompressing, the data may
+ * be hostile, so we only accept chunks as big as we write, and limit the total size of the
+ * chunks in flight too.
+ */
+public class ChunkedCompressor implements Compressor {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ChunkedCompressor.class);
+	}
+
+	static final byte VERSION = 1;
+	/** Bigger than the BZIP2 block size and the LZMA dictionary size, so we lose little. */
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	/** Never accept chunks bigger than this when decompressing. We never write bigger ones. */
+	static final int MAX_CHUNK_SIZE = DEFAULT_CHUNK_SIZE;
+	/** When decompressing, the most memory to use for chunks in flight, compressed and
+	 * decompressed. We always allow one chunk. */
+	static final int MAX_BYTES_IN_FLIGHT = 32 * 1024 * 1024;
+
+	private static final ForkJoinPool defaultPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	private final short innerCodec;
+	private final int chunkSize;
+	private final ForkJoinPool pool;
+
+	/** @param innerCodec The metadata ID of the codec to compress each chunk with. */
+	public ChunkedCompressor(short innerCodec) {
+		this(innerCodec, DEFAULT_CHUNK_SIZE, defaultPool);
+	}
+
+	ChunkedCompressor(short innerCodec, int chunkSize, ForkJoinPool pool) {
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException();
+		this.innerCodec = innerCodec;
+		this.chunkSize = chunkSize;
+		this.pool = pool;
+	}
+
+	private int maxInFlight() {
+		return pool.getParallelism() * 2;
+	}
+
+	private static COMPRESSOR_TYPE getInnerCodec(short id) throws InvalidCompressedDataException {
+		COMPRESSOR_TYPE codec = COMPRESSOR_TYPE.getCompressorByMetadataID(id);
+		if(codec == null || codec.compressor instanceof ChunkedCompressor)
+			throw new InvalidCompressedDataException("Bad inner codec "+id);
+		return codec;
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = output.getOutputStream();
+			compress(is, os, maxReadLength, maxWriteLength);
+			// It is essential that the close()'s throw if there is any problem.
+			is.close(); is = null;
+			os.close(); os = null;
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return output;
+	}
+
+	/** Gives us the buffer, so we don't have to copy a whole chunk. */
+	private static class ChunkOutputStream extends ByteArrayOutputStream {
+		ChunkOutputStream(int size) {
+			super(size);
+		}
+		Chunk toChunk() {
+			return new Chunk(buf, count);
+		}
+	}
+
+	/** A chunk, compressed or decompressed. */
+	private static class Chunk {
+		final byte[] data;
+		final int length;
+		Chunk(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		final COMPRESSOR_TYPE codec = getInnerCodec(innerCodec);
+		CountedOutputStream cos = new CountedOutputStream(os);
+		DataOutputStream dos = new DataOutputStream(cos);
+		dos.writeByte(VERSION);
+		dos.writeShort(innerCodec);
+		dos.writeInt(chunkSize);
+		ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+		long read = 0;
+		try {
+			while(read < maxReadLength) {
+				final byte[] buf = new byte[(int)Math.min(chunkSize, maxReadLength - read)];
+				final int length = readFully(is, buf);
+				if(length == 0) break;
+				read += length;
+				inFlight.add(pool.submit(new Callable<Chunk>() {
+
+					@Override
+					public Chunk call() throws IOException {
+						ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+						codec.compress(new ByteArrayInputStream(buf, 0, length), baos, length, Long.MAX_VALUE);
+						return new Chunk(baos.toByteArray(), length);
+					}
+
+				}));
+				while(inFlight.size() >= maxInFlight())
+					writeChunk(dos, get(inFlight.removeFirst()));
+				if(cos.written() > maxWriteLength)
+					throw new CompressionOutputSizeException();
+				if(length < buf.length) break;
+			}
+			while(!inFlight.isEmpty())
+				writeChunk(dos, get(inFlight.removeFirst()));
+		} finally {
+			for(Future<Chunk> f : inFlight)
+				f.cancel(false);
+		}
+		dos.writeInt(0);
+		dos.flush();
+		if(cos.written() > maxWriteLength)
+			throw new CompressionOutputSizeException(cos.written());
+		if(logMINOR)
+			Logger.minor(this, "Read "+read+" written "+cos.written()+" with "+codec+" in chunks of "+chunkSize);
+		return cos.written();
+	}
+
+	/** The codec's output may be a bit bigger than its input, but not much. */
+	private static int maxCompressedSize(int chunkSize) {
+		return chunkSize + chunkSize / 8 + 1024;
+	}
+
+	private void writeChunk(DataOutputStream dos, Chunk chunk) throws IOException {
+		// Don't write anything we won't accept when decompressing.
+		if(chunk.data.length > maxCompressedSize(chunkSize))
+			throw new CompressionOutputSizeException();
+		dos.writeInt(chunk.length);
+		dos.writeInt(chunk.data.length);
+		dos.write(chunk.data);
+	}
+
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int offset = 0;
+		while(offset < buf.length) {
+			int x = is.read(buf, offset, buf.length - offset);
+			if(x <= 0) break;
+			offset += x;
+		}
+		return offset;
+	}
+
+	/** Wait for a chunk, passing on any error from the codec. */
+	private static Chunk get(Future<Chunk> future) throws IOException {
+		while(true) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				// Ignore
+			} catch (ExecutionException e) {
+				Throwable t = e.getCause();
+				// ForkJoinPool wraps checked exceptions thrown by a Callable.
+				while(t.getClass() == RuntimeException.class && t.getCause() != null)
+					t = t.getCause();
+				if(t instanceof IOException) throw (IOException) t;
+				if(t instanceof RuntimeException) throw (RuntimeException) t;
+				if(t instanceof Error) throw (Error) t;
+				throw new IOException(t);
+			}
+		}
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+		// The memory used by each chunk in flight.
+		ArrayDeque<Integer> inFlightBytes = new ArrayDeque<Integer>();
+		long bytesInFlight = 0;
+		long written = 0;
+		long queued = 0;
+		try {
+			if(dis.readByte() != VERSION) throw new InvalidCompressedDataException("Unknown version");
+			final COMPRESSOR_TYPE codec = getInnerCodec(dis.readShort());
+			int size = dis.readInt();
+			if(size <= 0 || size > MAX_CHUNK_SIZE) throw new InvalidCompressedDataException("Bad chunk size "+size);
+			int maxCompressedSize = maxCompressedSize(size);
+			while(true) {
+				final int length = dis.readInt();
+				if(length == 0) break;
+				if(length < 0 || length > size) throw new InvalidCompressedDataException("Bad chunk length "+length);
+				int compressedLength = dis.readInt();
+				if(compressedLength <= 0 || compressedLength > maxCompressedSize)
+					throw new InvalidCompressedDataException("Bad compressed chunk length "+compressedLength);
+				queued += length;
+				if(queued > maxLength)
+					throw new CompressionOutputSizeException(queued);
+				int bytes = compressedLength + length;
+				// Make room before allocating anything for this chunk.
+				while(!inFlight.isEmpty() &&
+						(inFlight.size() >= maxInFlight() || bytesInFlight + bytes > MAX_BYTES_IN_FLIGHT)) {
+					Chunk chunk = get(inFlight.removeFirst());
+					bytesInFlight -= inFlightBytes.removeFirst();
+					os.write(chunk.data, 0, chunk.length);
+					written += chunk.length;
+				}
+				final byte[] buf = new byte[compressedLength];
+				dis.readFully(buf);
+				inFlight.add(pool.submit(new Callable<Chunk>() {
+
+					@Override
+					public Chunk call() throws IOException {
+						ChunkOutputStream out = new ChunkOutputStream(length);
+						codec.decompress(new ByteArrayInputStream(buf), out, length, -1);
+						if(out.size() != length)
+							throw new InvalidCompressedDataException("Chunk decompressed to "+out.size()+" bytes, should be "+length);
+						return out.toChunk();
+					}
+
+				}));
+				inFlightBytes.add(bytes);
+				bytesInFlight += bytes;
+			}
+			while(!inFlight.isEmpty()) {
+				Chunk chunk = get(inFlight.removeFirst());
+				os.write(chunk.data, 0, chunk.length);
+				written += chunk.length;
+			}
+		} catch (EOFException e) {
+			throw new InvalidCompressedDataException("Truncated");
+		} finally {
+			for(Future<Chunk> f : inFlight)
+				f.cancel(false);
+		}
+		return written;
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+}
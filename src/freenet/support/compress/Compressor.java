@@ -27,7 +27,11 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// Chunked codecs use all cores, but older nodes can't decode them, so they are only used
+		// if asked for explicitly.
+		LZMA_CHUNKED("LZMA_CHUNKED", new ChunkedCompressor((short)3), (short)4),
+		BZIP2_CHUNKED("BZIP2_CHUNKED", new ChunkedCompressor((short)1), (short)5);
 
 		public final String name;
 		public final Compressor compressor;
@@ -88,7 +92,8 @@ public interface Compressor {
 		 * make a COMPRESSOR_TYPE[] from a descriptor string<BR>
 		 * the descriptor string is a comma separated list of numbers or names(can be mixed)<BR>
 		 * it is better to store the string in db4o instead of the compressors?<BR>
-		 * if the string is null/empty, it returns COMPRESSOR_TYPE.values() as default
+		 * if the string is null/empty, it returns COMPRESSOR_TYPE.values() as default, except for
+		 * the chunked codecs and whichever LZMA variant doesn't apply
 		 * @param compressordescriptor
 		 * @return
 		 * @throws InvalidCompressionCodecException 
@@ -96,14 +101,14 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor, boolean pre1254) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
 					if((v == LZMA) && !pre1254) continue;
 					if((v == LZMA_NEW) && pre1254) continue;
-					ret[x++] = v;
+					if(v.compressor instanceof ChunkedCompressor) continue;
+					ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
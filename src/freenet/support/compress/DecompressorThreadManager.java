@@ -8,34 +8,42 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import freenet.support.LogThresholdCallback;
 import freenet.support.TimeUtil;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.List;
-import java.util.ArrayDeque;
-import java.util.Queue;
 
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
+import freenet.support.io.PooledPipe;
 
-/** Creates and manages decompressor threads. This class is 
- * given all decompressors which should be applied to an
- * InputStream via addDecompressor. The decompressors will be
- * strung together and executed when the execute method is called.
- * This class also stores any errors which may arise.
+/** Decompresses a stream through a chain of decompressors. The caller writes the compressed data
+ * to getOutputStream(), and the decompressed data is written to the destination, which is closed
+ * at the end. This class also stores any errors which may arise.
+ *
+ * Small inputs are buffered and decompressed on the caller's thread when the output stream is
+ * closed, so most fetches don't need any other threads. Once the input is too big for that, each
+ * decompressor runs as a job on the executor, with the stages connected by PooledPipe's, and the
+ * last one writing straight to the destination.
  * @author sajack
 */
 public class DecompressorThreadManager {
 
-	final Queue<DecompressorThread> threads;
-	PipedInputStream input;
-	PipedOutputStream output = new PipedOutputStream();
+	/** Compressed data up to this size is decompressed on the caller's thread. */
+	static final int INLINE_THRESHOLD = 128 * 1024;
+
+	/** The decompressors in the order in which they are applied. */
+	private final Compressor[] decompressors;
+	private final OutputStream destination;
 	final long maxLen;
+	private final Executor executor;
+	private final ManagerOutputStream output = new ManagerOutputStream();
+	/** Number of decompressor jobs still running. */
+	private int running;
 	private boolean finished = false;
 	private Throwable error = null;
 
@@ -50,58 +58,35 @@ public class DecompressorThreadManager {
 	}
 
 	/** Creates a new DecompressorThreadManager
-	 * @param inputStream The stream that will be decompressed, if compressed
+	 * @param decompressors The compressors used, in the order they were applied when compressing.
+	 * Emptied by this call.
+	 * @param destination Where to write the decompressed data. Closed when decompression has
+	 * finished.
 	 * @param maxLen The maximum number of bytes to extract
+	 * @param executor Runs the decompressors if the data is too big to decompress inline.
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
-		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
-		this.maxLen = maxLen;
-		if(inputStream == null) {
-			IOException e = new IOException("Input stream may not be null");
+	public DecompressorThreadManager(List<? extends Compressor> decompressors, OutputStream destination, long maxLen, Executor executor) throws IOException {
+		if(destination == null) {
+			IOException e = new IOException("Output stream may not be null");
 			onFailure(e);
 			throw e;
 		}
-		input = inputStream;
+		this.decompressors = new Compressor[decompressors.size()];
+		int i = 0;
 		while(!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size()-1);
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
-			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
-			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			this.decompressors[i++] = compressor;
 		}
+		this.destination = destination;
+		this.maxLen = maxLen;
+		this.executor = executor;
 	}
 
-	/** Creates and executes a new thread for each decompressor,
-	 * chaining the output of the previous to the next.
-	 * @return An InputStream from which uncompressed data may be read from
-	 */
-	public synchronized PipedInputStream execute() throws Throwable {
-		if(error != null) throw error;
-		if(threads.isEmpty()) {
-			onFinish();
-			return input;
-		}
-		try {
-			int count = 0;
-			while(!threads.isEmpty()){
-				if(getError() != null) throw getError();
-				DecompressorThread threadRunnable = threads.remove();
-				if(threads.isEmpty()) threadRunnable.setLast();
-				Thread t = new Thread(threadRunnable, "DecompressorThread"+count);
-				t.start();
-				if(logMINOR) Logger.minor(this, "Started decompressor thread "+t);
-				count++;
-			}
-			output.close();
-		} catch(Throwable t) {
-			onFailure(t);
-			throw t;
-		} finally {
-			Closer.close(output);
-		}
-		return input;
-		
+	/** @return The stream to write the compressed data to. Must be closed once it has all been
+	 * written. */
+	public OutputStream getOutputStream() {
+		return output;
 	}
 
 	/** Informs the manager that a nonrecoverable exception has occured in the
@@ -109,7 +94,7 @@ public class DecompressorThreadManager {
 	 * @param e The thrown exception
 	 */
 	public synchronized void onFailure(Throwable t) {
-		error = t;
+		if(error == null) error = t;
 		onFinish();
 	}
 
@@ -123,7 +108,7 @@ public class DecompressorThreadManager {
 	/** Blocks until all threads have finished executing and cleaning up.*/
 	public synchronized void waitFinished() throws Throwable {
 		long start = System.currentTimeMillis();
-		while(!finished) {
+		while(!(finished && running == 0)) {
 			try {
 				// FIXME remove the timeout here.
 				// Something wierd is happening...
@@ -146,8 +131,112 @@ public class DecompressorThreadManager {
 		return error;
 	}
 
-	/**Represents a thread which invokes a decompressor upon an
-	 * input stream. These threads should be instantiated by a
+	private synchronized void onJobFinished() {
+		running--;
+		notifyAll();
+	}
+
+	/** Decompress the whole of a small input on the caller's thread. */
+	private void decompressInline(byte[] data, int length) {
+		OutputStream os = destination;
+		try {
+			for(int i=0;i<decompressors.length-1;i++) {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(length * 4);
+				decompressors[i].decompress(new ByteArrayInputStream(data, 0, length), baos, maxLen, maxLen * 4);
+				data = baos.toByteArray();
+				length = data.length;
+			}
+			if(decompressors.length > 0)
+				decompressors[decompressors.length-1].decompress(new ByteArrayInputStream(data, 0, length), os, maxLen, maxLen * 4);
+			else
+				os.write(data, 0, length);
+			os.close();
+			os = null;
+			onFinish();
+		} catch (Throwable t) {
+			onFailure(t);
+		} finally {
+			Closer.close(os);
+		}
+	}
+
+	/** Start a job for each decompressor, chaining the output of the previous to the next.
+	 * @return The stream to write the compressed data to. */
+	private OutputStream startJobs() {
+		if(decompressors.length == 0) return destination;
+		synchronized(this) {
+			running = decompressors.length;
+		}
+		OutputStream out = destination;
+		for(int i=decompressors.length-1;i>=0;i--) {
+			PooledPipe pipe = new PooledPipe();
+			DecompressorThread job = new DecompressorThread(decompressors[i], this, pipe.getInputStream(), out, maxLen);
+			if(i == decompressors.length-1) job.setLast();
+			executor.execute(job, "Decompressor "+i+" for "+this);
+			if(logMINOR) Logger.minor(this, "Started decompressor job "+job);
+			out = pipe.getOutputStream();
+		}
+		return out;
+	}
+
+	/** Buffers small inputs, and switches to decompressing on other threads if the input gets
+	 * too big. */
+	private class ManagerOutputStream extends OutputStream {
+
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private OutputStream pipe;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] data, int offset, int length) throws IOException {
+			if(closed) throw new IOException("Already closed");
+			if(pipe == null) {
+				if(buffer.size() + length <= INLINE_THRESHOLD) {
+					buffer.write(data, offset, length);
+					return;
+				}
+				if(logMINOR) Logger.minor(this, "Too big to decompress inline, starting "+decompressors.length+" jobs");
+				pipe = startJobs();
+				buffer.writeTo(pipe);
+				buffer = null;
+			}
+			pipe.write(data, offset, length);
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if(pipe != null) pipe.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			byte[] data;
+			int length;
+			synchronized(this) {
+				if(closed) return;
+				closed = true;
+				if(pipe != null) {
+					pipe.close();
+					// Nothing to decompress, so no jobs to tell us when it has finished.
+					if(decompressors.length == 0) onFinish();
+					return;
+				}
+				length = buffer.size();
+				data = buffer.toByteArray();
+				buffer = null;
+			}
+			decompressInline(data, length);
+		}
+
+	}
+
+	/**Represents a job which invokes a decompressor upon an
+	 * input stream. These jobs should be instantiated by a
 	 * <code>DecompressorThreadManager</code>
 	 * @author sajack
 	 */
@@ -166,10 +255,11 @@ public class DecompressorThreadManager {
 		/**Whether or not this thread should signal the manager that decompression has finished*/
 		boolean isLast = false;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, PipedOutputStream output, long maxLen) {
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, OutputStream output, long maxLen) {
 			this.compressor = compressor;
-			this.input = new BufferedInputStream(input);
-			this.output = new BufferedOutputStream(output);
+			// PooledPipe hands over large buffers, so no need to buffer here.
+			this.input = input;
+			this.output = output;
 			this.maxLen = maxLen;
 			this.manager = manager;
 		}
@@ -189,18 +279,19 @@ public class DecompressorThreadManager {
 					if(isLast) manager.onFinish();
 				}
 				if(logMINOR) Logger.minor(this, "Finished decompressing...");
-			} catch (Exception e) {
-				manager.onFailure(e);
+			} catch (Throwable t) {
+				manager.onFailure(t);
 			} finally {
 				Closer.close(input);
 				Closer.close(output);
+				manager.onJobFinished();
 			}
 		}
 
-		/** Should be called before executing the thread when there 
+		/** Should be called before executing the thread when there
 		 * are no further decompressors pending*/
 		public void setLast() {
 			isLast = true;
 		}
 	}
-}
\ No newline at end of file
+}
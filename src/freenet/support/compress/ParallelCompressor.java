@@ -0,0 +1,340 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+
+/**
+ * Runs several codecs at once over a single read of the input. The input is read in chunks which
+ * are passed to every codec still running, each on its own thread, with a bounded queue per codec
+ * so memory usage is limited. Once a codec has read a reasonable sample, if it is clearly going to
+ * need many more blocks than the best codec so far, it is aborted so it doesn't waste CPU, disk
+ * space and the time of the other codecs, which have to wait for the slowest one.
+ *
+ * The caller decides which result to use and must free the others.
+ */
+public class ParallelCompressor {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ParallelCompressor.class);
+	}
+
+	/** Size of the chunks passed to each codec. */
+	static final int CHUNK_SIZE = 64 * 1024;
+	/** Number of chunks buffered for each codec. */
+	static final int QUEUE_LENGTH = 16;
+	/** Don't judge a codec until it has read this much. Bigger than a BZIP2 block, so every codec
+	 * should have produced some output by then. */
+	public static final long DEFAULT_SAMPLE_SIZE = 4 * 1024 * 1024;
+	/** Abort a codec if it is projected to need more than this many times the blocks of the best. */
+	static final double ABORT_FACTOR = 1.25;
+
+	private static final byte[] EOF = new byte[0];
+	private static final byte[] ABORT = new byte[0];
+
+	private final Executor executor;
+	private final long sampleSize;
+
+	/** The outcome of running one codec. */
+	public static class Attempt {
+		public final COMPRESSOR_TYPE codec;
+		/** The compressed data, or null if the codec failed, was aborted or produced too much
+		 * output. Must be freed by the caller if not used. */
+		public RandomAccessBucket data;
+		/** Size of the compressed data, or -1. */
+		public long compressedSize = -1;
+		/** How much of the input the codec read before it finished or gave up. */
+		public long bytesRead;
+		/** How long the codec ran for. */
+		public long timeMillis;
+		/** True if the codec was aborted because it was losing. */
+		public boolean aborted;
+
+		Attempt(COMPRESSOR_TYPE codec) {
+			this.codec = codec;
+		}
+
+		@Override
+		public String toString() {
+			return codec+":"+(aborted ? "aborted" : compressedSize)+"/"+bytesRead+" in "+timeMillis+"ms";
+		}
+	}
+
+	public ParallelCompressor(Executor executor) {
+		this(executor, DEFAULT_SAMPLE_SIZE);
+	}
+
+	public ParallelCompressor(Executor executor, long sampleSize) {
+		this.executor = executor;
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * Compress the input with all the given codecs at once.
+	 * @param is The input. Will be read once, up to maxReadLength bytes. If every codec gives up
+	 * early it will not be read to the end, so the caller should skip the rest if e.g. it is
+	 * hashing it. Not closed.
+	 * @param codecs The codecs to try.
+	 * @param bf Where to put the compressed data.
+	 * @param maxReadLength The size of the input.
+	 * @param maxWriteLength Any codec producing more than this fails.
+	 * @param blockSize The size of a block, for comparing the codecs.
+	 * @return One Attempt for each codec, in the same order.
+	 * @throws IOException If reading the input failed. All output is freed.
+	 */
+	public Attempt[] compress(InputStream is, COMPRESSOR_TYPE[] codecs, BucketFactory bf,
+			long maxReadLength, long maxWriteLength, int blockSize) throws IOException {
+		CountDownLatch finished = new CountDownLatch(codecs.length);
+		Worker[] workers = new Worker[codecs.length];
+		Attempt[] attempts = new Attempt[codecs.length];
+		for(int i=0;i<codecs.length;i++) {
+			attempts[i] = new Attempt(codecs[i]);
+			workers[i] = new Worker(attempts[i], bf, maxReadLength, maxWriteLength, finished);
+			executor.execute(workers[i]);
+		}
+		boolean success = false;
+		try {
+			long read = 0;
+			while(read < maxReadLength) {
+				byte[] chunk = new byte[(int)Math.min(CHUNK_SIZE, maxReadLength - read)];
+				int x = readFully(is, chunk);
+				if(x <= 0) break;
+				if(x < chunk.length) chunk = Arrays.copyOf(chunk, x);
+				read += x;
+				boolean running = false;
+				for(Worker w : workers)
+					if(w.feed(chunk)) running = true;
+				if(!running) break;
+				maybeAbort(workers, maxReadLength, blockSize);
+			}
+			for(Worker w : workers)
+				w.feed(EOF);
+			success = true;
+		} finally {
+			if(!success) {
+				for(Worker w : workers)
+					w.abort();
+			}
+			while(true) {
+				try {
+					finished.await();
+					break;
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(!success) {
+				for(Attempt a : attempts) {
+					if(a.data != null) a.data.free();
+					a.data = null;
+				}
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Compressed: "+Arrays.toString(attempts));
+		return attempts;
+	}
+
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int offset = 0;
+		while(offset < buf.length) {
+			int x = is.read(buf, offset, buf.length - offset);
+			if(x <= 0) break;
+			offset += x;
+		}
+		return offset;
+	}
+
+	/** Abort any codec which is clearly going to produce more blocks than the best one. */
+	private void maybeAbort(Worker[] workers, long maxReadLength, int blockSize) {
+		double best = Double.MAX_VALUE;
+		double[] projected = new double[workers.length];
+		for(int i=0;i<workers.length;i++) {
+			projected[i] = workers[i].projectBlocks(maxReadLength, blockSize);
+			if(projected[i] > 0 && projected[i] < best) best = projected[i];
+		}
+		if(best == Double.MAX_VALUE) return;
+		for(int i=0;i<workers.length;i++) {
+			if(projected[i] > best * ABORT_FACTOR + 1) {
+				if(logMINOR) Logger.minor(this, "Aborting "+workers[i].attempt.codec+" : projected "+projected[i]+" blocks, best is "+best);
+				workers[i].abort();
+			}
+		}
+	}
+
+	private static class AbortedException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/** Runs one codec, reading from its queue. */
+	private class Worker implements Runnable {
+
+		final Attempt attempt;
+		private final BucketFactory bf;
+		private final long maxReadLength;
+		private final long maxWriteLength;
+		private final CountDownLatch finished;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_LENGTH);
+		/** Only written by the worker thread. */
+		private volatile long read;
+		private volatile long written;
+		private volatile boolean done;
+		/** Set if it finished successfully. */
+		private volatile boolean succeeded;
+		/** Only set by the reading thread. */
+		private boolean aborted;
+
+		Worker(Attempt attempt, BucketFactory bf, long maxReadLength, long maxWriteLength,
+				CountDownLatch finished) {
+			this.attempt = attempt;
+			this.bf = bf;
+			this.maxReadLength = maxReadLength;
+			this.maxWriteLength = maxWriteLength;
+			this.finished = finished;
+		}
+
+		/** Called by the reading thread.
+		 * @return False if the codec is no longer running. */
+		boolean feed(byte[] chunk) {
+			while(true) {
+				if(done || aborted) return false;
+				try {
+					if(queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) return true;
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+
+		/** Called by the reading thread. */
+		void abort() {
+			if(aborted) return;
+			aborted = true;
+			// We are the only producer, so this always succeeds.
+			queue.clear();
+			queue.offer(ABORT);
+		}
+
+		/** @return The projected number of blocks, or -1 if we don't know yet. */
+		double projectBlocks(long maxReadLength, int blockSize) {
+			if(aborted) return -1;
+			if(done) {
+				if(!succeeded) return -1;
+				return Math.ceil((double)written / blockSize);
+			}
+			long r = read;
+			long w = written;
+			if(r < sampleSize || w == 0) return -1;
+			return Math.ceil(((double)w * maxReadLength / r) / blockSize);
+		}
+
+		@Override
+		public void run() {
+			long startTime = System.currentTimeMillis();
+			RandomAccessBucket output = null;
+			OutputStream os = null;
+			try {
+				output = bf.makeBucket(-1);
+				os = new CountingOutputStream(output.getOutputStream());
+				attempt.codec.compress(new QueueInputStream(), os, maxReadLength, maxWriteLength);
+				os.close();
+				os = null;
+				succeeded = true;
+			} catch (AbortedException e) {
+				attempt.aborted = true;
+			} catch (CompressionOutputSizeException e) {
+				if(logMINOR) Logger.minor(this, "Too big with "+attempt.codec);
+			} catch (IOException e) {
+				Logger.error(this, "Compression failed with codec "+attempt.codec+" : "+e, e);
+			} catch (RuntimeException e) {
+				// ArithmeticException has been seen in bzip2 codec.
+				Logger.error(this, "Compression failed with codec "+attempt.codec+" : "+e, e);
+			} finally {
+				Closer.close(os);
+				if(succeeded) {
+					attempt.data = output;
+					attempt.compressedSize = output.size();
+				} else if(output != null) {
+					output.free();
+				}
+				attempt.bytesRead = read;
+				attempt.timeMillis = System.currentTimeMillis() - startTime;
+				done = true;
+				finished.countDown();
+			}
+		}
+
+		private class QueueInputStream extends InputStream {
+
+			private byte[] chunk;
+			private int offset;
+
+			@Override
+			public int read() throws IOException {
+				byte[] buf = new byte[1];
+				int x = read(buf, 0, 1);
+				if(x <= 0) return -1;
+				return buf[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int length) throws IOException {
+				if(length == 0) return 0;
+				while(chunk == null || offset == chunk.length) {
+					if(chunk == EOF) return -1;
+					try {
+						chunk = queue.take();
+					} catch (InterruptedException e) {
+						continue;
+					}
+					offset = 0;
+					if(chunk == ABORT) throw new AbortedException();
+				}
+				int x = Math.min(length, chunk.length - offset);
+				System.arraycopy(chunk, offset, buf, off, x);
+				offset += x;
+				Worker.this.read += x;
+				return x;
+			}
+
+		}
+
+		private class CountingOutputStream extends FilterOutputStream {
+
+			CountingOutputStream(OutputStream os) {
+				super(os);
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				written++;
+			}
+
+			@Override
+			public void write(byte[] buf, int offset, int length) throws IOException {
+				out.write(buf, offset, length);
+				written += length;
+			}
+
+		}
+
+	}
+
+}
@@ -18,6 +18,11 @@ import freenet.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    /** Runs the individual codecs when compressing in parallel. Not limited, because each 
+     * compression job only uses one thread per codec, and the jobs are limited. */
+    private final ExecutorService codecExecutorService;
+    private final ParallelCompressor parallelCompressor;
+    private volatile boolean parallel;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -28,6 +33,8 @@ public class RealCompressor {
     public RealCompressor() {
         this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
                                                             new CompressorThreadFactory());
+        this.codecExecutorService = Executors.newCachedThreadPool(new CompressorThreadFactory());
+        this.parallelCompressor = new ParallelCompressor(codecExecutorService);
     }
 
     public void setClientContext(ClientContext context) {
@@ -104,9 +111,25 @@ public class RealCompressor {
         return maxRunningThreads;
     }
 
+    /** If enabled, inserts try all the codecs at once, reading the data only once. This is 
+     * faster on multi-core machines but uses more memory and CPU at any given time. */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /** @return The ParallelCompressor to use, or null if we should try codecs one at a time. */
+    public ParallelCompressor getParallelCompressor() {
+        return parallel ? parallelCompressor : null;
+    }
+
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
+        this.codecExecutorService.shutdown();
     }
 
     public static class CompressorThreadFactory implements ThreadFactory {
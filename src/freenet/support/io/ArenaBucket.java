@@ -0,0 +1,208 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A temporary bucket stored in chunks of a TempArena, which may be in RAM or in the spill file.
+ * Grows a chunk at a time as it is written. Opening a new OutputStream truncates it, like
+ * ArrayBucket. Converting it to a RandomAccessBuffer hands the chunks over without copying.
+ */
+class ArenaBucket implements RandomAccessBucket {
+
+    private final TempArena arena;
+    private final ArrayList<TempArena.Chunk> chunks;
+    private long size;
+    private boolean readOnly;
+    private boolean freed;
+    /** If true, the chunks belong to the ArenaRandomAccessBuffer we were converted into. */
+    private boolean converted;
+
+    ArenaBucket(TempArena arena) {
+        this.arena = arena;
+        this.chunks = new ArrayList<TempArena.Chunk>();
+    }
+
+    private void checkValid() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(converted) throw new IOException("Converted to a RandomAccessBuffer");
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return new BufferedOutputStream(getOutputStreamUnbuffered());
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+        checkValid();
+        if(readOnly) throw new IOException("Read only");
+        arena.free(chunks);
+        chunks.clear();
+        size = 0;
+        return new ArenaOutputStream();
+    }
+
+    private class ArenaOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            synchronized(ArenaBucket.this) {
+                if(closed) throw new IOException("Closed");
+                checkValid();
+                long capacity = (long)chunks.size() * TempArena.CHUNK_SIZE;
+                // Allocates all or nothing, so if the arena is full the caller can copy what
+                // we have so far to somewhere else and retry.
+                if(size + length > capacity)
+                    arena.allocate(chunks, size + length - capacity, false);
+                arena.write(chunks, size, buf, offset, length);
+                size += length;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(ArenaBucket.this) {
+                closed = true;
+            }
+        }
+
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new BufferedInputStream(getInputStreamUnbuffered());
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        checkValid();
+        return new ArenaInputStream();
+    }
+
+    private class ArenaInputStream extends InputStream {
+
+        private long position;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            int read = read(buf, 0, 1);
+            if(read <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            synchronized(ArenaBucket.this) {
+                if(closed) throw new IOException("Closed");
+                checkValid();
+                if(length == 0) return 0;
+                if(position >= size) return -1;
+                int toRead = (int) Math.min(length, size - position);
+                arena.read(chunks, position, buf, offset, toRead);
+                position += toRead;
+                return toRead;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized(ArenaBucket.this) {
+                if(closed) throw new IOException("Closed");
+                if(n <= 0) return 0;
+                long skipped = Math.min(n, Math.max(0, size - position));
+                position += skipped;
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized(ArenaBucket.this) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - position));
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(ArenaBucket.this) {
+                closed = true;
+            }
+        }
+
+    }
+
+    @Override
+    public String getName() {
+        return "ArenaBucket";
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        if(freed || converted) return;
+        freed = true;
+        arena.free(chunks);
+        chunks.clear();
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Not persistent.
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException(); // Not persistent.
+    }
+
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        checkValid();
+        readOnly = true;
+        converted = true;
+        return new ArenaRandomAccessBuffer(arena, chunks, size, true);
+    }
+
+}
@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+/** A fixed size temporary RandomAccessBuffer stored in chunks of a TempArena. */
+class ArenaRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+    private final TempArena arena;
+    private final List<TempArena.Chunk> chunks;
+    private final long size;
+    private boolean readOnly;
+    private boolean closed;
+    private boolean freed;
+
+    /** Create a new zeroed buffer.
+     * @throws TempArena.ArenaFullException If the arena can't hold it. */
+    ArenaRandomAccessBuffer(TempArena arena, long size) throws IOException {
+        this.arena = arena;
+        this.size = size;
+        this.chunks = new ArrayList<TempArena.Chunk>();
+        arena.allocate(chunks, size, true);
+    }
+
+    /** Take over chunks from an ArenaBucket. */
+    ArenaRandomAccessBuffer(TempArena arena, List<TempArena.Chunk> chunks, long size,
+            boolean readOnly) {
+        this.arena = arena;
+        this.size = size;
+        this.chunks = new ArrayList<TempArena.Chunk>(chunks);
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        synchronized(this) {
+            if(closed) throw new IOException("Closed");
+        }
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        arena.read(chunks, fileOffset, buf, bufOffset, length);
+    }
+
+    @Override
+    public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        synchronized(this) {
+            if(closed) throw new IOException("Closed");
+            if(readOnly) throw new IOException("Read-only");
+        }
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        arena.write(chunks, fileOffset, buf, bufOffset, length);
+    }
+
+    synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            closed = true;
+        }
+        arena.free(chunks);
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Not persistent.
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Default hashCode() and equals() are correct for this type.
+
+}
@@ -596,6 +596,8 @@ public class BucketTools {
             return new RAFBucket(dis, fg, persistentFileTracker, masterKey);
         case EncryptedRandomAccessBucket.MAGIC:
             return new EncryptedRandomAccessBucket(dis, fg, persistentFileTracker, masterKey);
+        case ContainerBucket.MAGIC:
+            return new ContainerBucket(dis);
         default:
             throw new StorageFormatException("Unknown magic value for bucket "+magic);
         }
@@ -621,6 +623,8 @@ public class BucketTools {
             return EncryptedRandomAccessBuffer.create(dis, fg, persistentFileTracker, masterSecret);
         case PaddedRandomAccessBuffer.MAGIC:
             return new PaddedRandomAccessBuffer(dis, fg, persistentFileTracker, masterSecret);
+        case ContainerRandomAccessBuffer.MAGIC:
+            return new ContainerRandomAccessBuffer(dis);
         default:
             throw new StorageFormatException("Unknown magic value for RAF "+magic);
         }
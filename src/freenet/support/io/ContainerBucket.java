@@ -0,0 +1,269 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.PersistentContainerStore.Extents;
+
+/**
+ * A persistent temp bucket stored in extents of PersistentContainerStore's container files,
+ * rather than in a file of its own. Opening a new OutputStream overwrites it from the start,
+ * reusing the space it already has. Unused space at the end is freed when the OutputStream is
+ * closed. Converting it to a RandomAccessBuffer hands over the extents, after which freeing the
+ * bucket does nothing.
+ */
+public class ContainerBucket implements RandomAccessBucket, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private transient PersistentContainerStore store;
+    private final Extents extents;
+    private long size;
+    private boolean readOnly;
+    private boolean freed;
+    /** If true, the extents belong to another bucket or RAF, so we don't free them. */
+    private boolean noFree;
+    /** The directory the containers were in, in case it changes. */
+    private File dir;
+    private transient boolean resumed;
+
+    public ContainerBucket(PersistentContainerStore store) {
+        this.store = store;
+        this.extents = new Extents();
+        this.dir = store.getDir();
+        resumed = true;
+    }
+
+    private ContainerBucket(PersistentContainerStore store, Extents extents, long size, File dir) {
+        this.store = store;
+        this.extents = extents;
+        this.size = size;
+        this.dir = dir;
+        this.readOnly = true;
+        this.noFree = true;
+        resumed = true;
+    }
+
+    private void checkValid() throws IOException {
+        if(freed) throw new IOException("Already freed");
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return new BufferedOutputStream(getOutputStreamUnbuffered(), PersistentTempFileBucket.BUFFER_SIZE);
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStreamUnbuffered() throws IOException {
+        checkValid();
+        if(readOnly) throw new IOException("Read only");
+        size = 0;
+        return new ContainerOutputStream();
+    }
+
+    private class ContainerOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            synchronized(ContainerBucket.this) {
+                if(closed) throw new IOException("Closed");
+                checkValid();
+                store.ensureCapacity(extents, size + length);
+                store.write(extents, size, buf, offset, length);
+                size += length;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(ContainerBucket.this) {
+                if(closed) return;
+                closed = true;
+                if(!freed)
+                    store.shrink(extents, size);
+            }
+        }
+
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new BufferedInputStream(getInputStreamUnbuffered(), PersistentTempFileBucket.BUFFER_SIZE);
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        checkValid();
+        return new ContainerInputStream();
+    }
+
+    private class ContainerInputStream extends InputStream {
+
+        private long position;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            int read = read(buf, 0, 1);
+            if(read <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            synchronized(ContainerBucket.this) {
+                if(closed) throw new IOException("Closed");
+                checkValid();
+                if(length == 0) return 0;
+                if(position >= size) return -1;
+                int toRead = (int) Math.min(length, size - position);
+                store.read(extents, position, buf, offset, toRead);
+                position += toRead;
+                return toRead;
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized(ContainerBucket.this) {
+                if(closed) throw new IOException("Closed");
+                if(n <= 0) return 0;
+                long skipped = Math.min(n, Math.max(0, size - position));
+                position += skipped;
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized(ContainerBucket.this) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - position));
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(ContainerBucket.this) {
+                closed = true;
+            }
+        }
+
+    }
+
+    @Override
+    public String getName() {
+        return "ContainerBucket";
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            if(noFree) return;
+        }
+        store.free(extents);
+    }
+
+    @Override
+    public synchronized RandomAccessBucket createShadow() {
+        return new ContainerBucket(store, new Extents(extents), size, dir);
+    }
+
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        checkValid();
+        readOnly = true;
+        boolean owner = !noFree;
+        // The RAF frees the extents now.
+        noFree = true;
+        return new ContainerRandomAccessBuffer(store, new Extents(extents), size, true, owner, dir);
+    }
+
+    @Override
+    public void onResume(ClientContext context) throws ResumeFailedException {
+        resume(context.persistentBucketFactory.getContainerStore());
+    }
+
+    /** Register our extents with the store after a restart. */
+    void resume(PersistentContainerStore store) throws ResumeFailedException {
+        synchronized(this) {
+            if(resumed) return;
+            resumed = true;
+            this.store = store;
+            if(freed || noFree) return;
+        }
+        store.resume(extents, dir);
+        synchronized(this) {
+            dir = store.getDir();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+":"+size;
+    }
+
+    public static final int MAGIC = 0x5e7c0b1a;
+    static final int VERSION = 1;
+
+    @Override
+    public synchronized void storeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(size);
+        dos.writeBoolean(readOnly);
+        dos.writeBoolean(freed);
+        dos.writeBoolean(noFree);
+        dos.writeUTF(dir.toString());
+        extents.writeTo(dos);
+    }
+
+    protected ContainerBucket(DataInputStream dis) throws IOException, StorageFormatException {
+        int version = dis.readInt();
+        if(version != VERSION) throw new StorageFormatException("Bad version");
+        size = dis.readLong();
+        readOnly = dis.readBoolean();
+        freed = dis.readBoolean();
+        noFree = dis.readBoolean();
+        dir = new File(dis.readUTF());
+        extents = Extents.readFrom(dis);
+        if(size < 0 || size > extents.capacity()) throw new StorageFormatException("Bad size");
+    }
+
+}
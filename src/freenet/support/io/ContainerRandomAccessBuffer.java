@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.PersistentContainerStore.Extents;
+
+/** A persistent RandomAccessBuffer stored in PersistentContainerStore's container files. Created
+ * by converting a ContainerBucket. */
+public class ContainerRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private transient PersistentContainerStore store;
+    private final Extents extents;
+    private final long size;
+    private final boolean readOnly;
+    /** If false, the extents belong to somebody else. */
+    private final boolean freeExtents;
+    private boolean freed;
+    private File dir;
+    private transient boolean resumed;
+
+    ContainerRandomAccessBuffer(PersistentContainerStore store, Extents extents, long size,
+            boolean readOnly, boolean freeExtents, File dir) {
+        this.store = store;
+        this.extents = extents;
+        this.size = size;
+        this.readOnly = readOnly;
+        this.freeExtents = freeExtents;
+        this.dir = dir;
+        resumed = true;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        store.read(extents, fileOffset, buf, bufOffset, length);
+    }
+
+    @Override
+    public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        synchronized(this) {
+            if(freed) throw new IOException("Already freed");
+        }
+        if(readOnly) throw new IOException("Read-only");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        store.write(extents, fileOffset, buf, bufOffset, length);
+    }
+
+    @Override
+    public void close() {
+        // Do nothing. The container stays open.
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            if(!freeExtents) return;
+        }
+        store.free(extents);
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void onResume(ClientContext context) throws ResumeFailedException {
+        resume(context.persistentBucketFactory.getContainerStore());
+    }
+
+    void resume(PersistentContainerStore store) throws ResumeFailedException {
+        synchronized(this) {
+            if(resumed) return;
+            resumed = true;
+            this.store = store;
+            if(freed || !freeExtents) return;
+        }
+        store.resume(extents, dir);
+        synchronized(this) {
+            dir = store.getDir();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+":"+size;
+    }
+
+    public static final int MAGIC = 0x3a91c4d7;
+    static final int VERSION = 1;
+
+    @Override
+    public synchronized void storeTo(DataOutputStream dos) throws IOException {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(size);
+        dos.writeBoolean(readOnly);
+        dos.writeBoolean(freeExtents);
+        dos.writeBoolean(freed);
+        dos.writeUTF(dir.toString());
+        extents.writeTo(dos);
+    }
+
+    ContainerRandomAccessBuffer(DataInputStream dis) throws IOException, StorageFormatException {
+        int version = dis.readInt();
+        if(version != VERSION) throw new StorageFormatException("Bad version");
+        size = dis.readLong();
+        readOnly = dis.readBoolean();
+        freeExtents = dis.readBoolean();
+        freed = dis.readBoolean();
+        dir = new File(dis.readUTF());
+        extents = Extents.readFrom(dis);
+        if(size < 0 || size > extents.capacity()) throw new StorageFormatException("Bad size");
+    }
+
+    // Default hashCode() and equals() are correct for this type.
+
+}
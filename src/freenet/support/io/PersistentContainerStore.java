@@ -0,0 +1,643 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.SizeUtil;
+
+/**
+ * Packs persistent temp buckets into a few large container files in the persistent temp
+ * directory, rather than creating a file for each bucket. Each container has one FileChannel
+ * which stays open until shutdown, so there is no per-bucket file descriptor churn. A bucket is a
+ * list of extents, i.e. ranges of a container, which grow geometrically from MIN_EXTENT to
+ * MAX_EXTENT as it is written. Extents are allocated best-fit from the free space map, or from
+ * the end of a container smaller than MAX_CONTAINER_SIZE, or else from a new container.
+ *
+ * PERSISTENCE: The free space map is not stored. Container files are named by the
+ * FilenameGenerator like any other persistent temp file, so any container which no bucket
+ * registers while resuming is deleted by PersistentTempBucketFactory.completedInit(). The extents
+ * registered by buckets while resuming are the only space in use in a container which existed
+ * before startup, so until completedInit() we don't allocate from such a container at all, and
+ * completedInit() then computes its free space and truncates any free space at the end.
+ * Space freed by a bucket, whether because it was freed or because it was shrunk when its
+ * output stream was closed, is only reused after the next checkpoint has been written, since the
+ * previous checkpoint may still refer to it. See grabFreedExtents(). Two buckets which register
+ * the same space while resuming can't both be right, so the second one fails to resume.
+ *
+ * LOCKING: The store lock protects the maps. I/O happens outside it, using positional reads and
+ * writes on the shared channels. If a thread is interrupted during I/O, the channel is closed by
+ * the JVM, so we reopen it.
+ */
+public class PersistentContainerStore {
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+            @Override
+            public void shouldUpdate(){
+                logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    static final long MAX_CONTAINER_SIZE = 1L << 30;
+    /** The first extent of a bucket. Also the granularity of allocation. */
+    static final int MIN_EXTENT = 4096;
+    /** Buckets larger than this are made of several MAX_EXTENT extents. */
+    static final int MAX_EXTENT = 1 << 20;
+
+    /** A range of a container file. Immutable. */
+    static final class Extent implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long container;
+        final long offset;
+        final long length;
+
+        Extent(long container, long offset, long length) {
+            this.container = container;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toHexString(container)+":"+offset+"+"+length;
+        }
+    }
+
+    /** The extents of a bucket, in order, treated as one address space. Not thread-safe: Owned
+     * by a ContainerBucket or ContainerRandomAccessBuffer which does its own locking. */
+    static final class Extents implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<Extent> list;
+        /** starts[i] is the offset in the bucket of extent i. */
+        private transient long[] starts;
+        private long capacity;
+
+        Extents() {
+            list = new ArrayList<Extent>();
+        }
+
+        Extents(Extents copy) {
+            list = new ArrayList<Extent>(copy.list);
+            capacity = copy.capacity;
+        }
+
+        int size() {
+            return list.size();
+        }
+
+        Extent get(int i) {
+            return list.get(i);
+        }
+
+        long capacity() {
+            return capacity;
+        }
+
+        void add(Extent e) {
+            list.add(e);
+            capacity += e.length;
+            starts = null;
+        }
+
+        Extent removeLast() {
+            Extent e = list.remove(list.size()-1);
+            capacity -= e.length;
+            starts = null;
+            return e;
+        }
+
+        private long[] starts() {
+            if(starts == null) {
+                long[] s = new long[list.size()];
+                long pos = 0;
+                for(int i=0;i<s.length;i++) {
+                    s[i] = pos;
+                    pos += list.get(i).length;
+                }
+                starts = s;
+            }
+            return starts;
+        }
+
+        /** @return The index of the extent containing the given offset. */
+        int locate(long offset) {
+            int i = Arrays.binarySearch(starts(), offset);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        long start(int i) {
+            return starts()[i];
+        }
+
+        void writeTo(DataOutputStream dos) throws IOException {
+            dos.writeInt(list.size());
+            for(Extent e : list) {
+                dos.writeLong(e.container);
+                dos.writeLong(e.offset);
+                dos.writeLong(e.length);
+            }
+        }
+
+        static Extents readFrom(DataInputStream dis) throws IOException, StorageFormatException {
+            int count = dis.readInt();
+            if(count < 0) throw new StorageFormatException("Bad extent count");
+            Extents extents = new Extents();
+            for(int i=0;i<count;i++) {
+                long container = dis.readLong();
+                long offset = dis.readLong();
+                long length = dis.readLong();
+                if(offset < 0 || length <= 0 || offset + length > MAX_CONTAINER_SIZE)
+                    throw new StorageFormatException("Bad extent");
+                extents.add(new Extent(container, offset, length));
+            }
+            return extents;
+        }
+    }
+
+    /** Orders free extents for best-fit allocation. */
+    private static final Comparator<Extent> BY_SIZE = new Comparator<Extent>() {
+
+        @Override
+        public int compare(Extent a, Extent b) {
+            if(a.length != b.length) return a.length < b.length ? -1 : 1;
+            if(a.container != b.container) return a.container < b.container ? -1 : 1;
+            if(a.offset != b.offset) return a.offset < b.offset ? -1 : 1;
+            return 0;
+        }
+
+    };
+
+    private class Container {
+        final long id;
+        final File file;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        /** Everything after this is free. */
+        long end;
+        /** Extents in use, offset to length. Only for a container which existed on startup, and
+         * only until completedInit(). We don't know what is free in it until then. */
+        TreeMap<Long, Long> live;
+        /** Free extents before end, by offset. */
+        final TreeMap<Long, Extent> freeByOffset;
+
+        Container(long id, File file, boolean existing) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.freeByOffset = new TreeMap<Long, Extent>();
+            if(existing) {
+                end = raf.length();
+                live = new TreeMap<Long, Long>();
+            }
+        }
+
+        private synchronized FileChannel channel() throws IOException {
+            if(channel == null) throw new IOException("Closed");
+            return channel;
+        }
+
+        /** Reopen the channel if it has been closed because of an interrupt. */
+        private synchronized void reopen(FileChannel failed) throws IOException {
+            if(channel != failed) return;
+            Closer.close(raf);
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            Logger.normal(this, "Reopened "+file);
+        }
+
+        void pread(long pos, byte[] buf, int offset, int length) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, offset, length);
+            while(bb.hasRemaining()) {
+                FileChannel ch = channel();
+                try {
+                    if(ch.read(bb, pos + bb.position() - offset) == -1)
+                        throw new IOException("Unexpected end of container "+file);
+                } catch (ClosedChannelException e) {
+                    reopen(ch);
+                    // The interrupted thread gives up. Others retry.
+                    if(e instanceof ClosedByInterruptException) throw e;
+                }
+            }
+        }
+
+        void pwrite(long pos, byte[] buf, int offset, int length) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(buf, offset, length);
+            while(bb.hasRemaining()) {
+                FileChannel ch = channel();
+                try {
+                    ch.write(bb, pos + bb.position() - offset);
+                } catch (ClosedChannelException e) {
+                    reopen(ch);
+                    if(e instanceof ClosedByInterruptException) throw e;
+                }
+            }
+        }
+
+        synchronized void truncate() throws IOException {
+            if(channel != null && raf.length() > end)
+                channel.truncate(end);
+        }
+
+        synchronized void close() {
+            Closer.close(raf);
+            raf = null;
+            channel = null;
+        }
+    }
+
+    private final FilenameGenerator fg;
+    private final PersistentFileTracker tracker;
+    private final LinkedHashMap<Long, Container> containers;
+    /** Free extents before the end of their containers, for all containers. */
+    private final TreeSet<Extent> freeBySize;
+    /** Extents freed since the last checkpoint started. */
+    private ArrayList<Extent> freedExtents;
+    private boolean initialized;
+    private boolean closed;
+
+    /**
+     * @param fg Names the container files. Usually the persistent temp FilenameGenerator.
+     * @param tracker Containers resumed are registered with it, and it checks disk space.
+     */
+    public PersistentContainerStore(FilenameGenerator fg, PersistentFileTracker tracker) {
+        this.fg = fg;
+        this.tracker = tracker;
+        this.containers = new LinkedHashMap<Long, Container>();
+        this.freeBySize = new TreeSet<Extent>(BY_SIZE);
+        this.freedExtents = new ArrayList<Extent>();
+    }
+
+    File getDir() {
+        return fg.getDir();
+    }
+
+    /** Allocate an extent of exactly the given length. */
+    synchronized Extent allocate(long length) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(length <= 0 || length > MAX_EXTENT) throw new IllegalArgumentException();
+        Extent best = freeBySize.ceiling(new Extent(Long.MIN_VALUE, Long.MIN_VALUE, length));
+        if(best != null) {
+            Container c = containers.get(best.container);
+            removeFree(c, best);
+            if(best.length > length)
+                addFree(c, best.offset + length, best.length - length);
+            return new Extent(c.id, best.offset, length);
+        }
+        Container target = null;
+        for(Container c : containers.values()) {
+            // After an unclean shutdown a bucket may use space beyond the end of the file, so
+            // don't append to old containers until we know what is in use.
+            if(c.live != null) continue;
+            if(c.end + length <= MAX_CONTAINER_SIZE) {
+                target = c;
+                break;
+            }
+        }
+        if(target == null) {
+            long id = fg.makeRandomFilename();
+            File file = fg.getFilename(id);
+            target = new Container(id, file, false);
+            containers.put(id, target);
+            if(logMINOR) Logger.minor(this, "Created container "+file);
+        }
+        if(!tracker.checkDiskSpace(target.file, (int)length, 0))
+            throw new InsufficientDiskSpaceException();
+        Extent ret = new Extent(target.id, target.end, length);
+        target.end += length;
+        if(target.live != null)
+            target.live.put(ret.offset, ret.length);
+        return ret;
+    }
+
+    /** Free the end of an extent.
+     * @return The remaining extent. */
+    synchronized Extent trim(Extent e, long newLength) {
+        if(newLength <= 0 || newLength > e.length) throw new IllegalArgumentException();
+        if(newLength == e.length) return e;
+        free(new Extent(e.container, e.offset + newLength, e.length - newLength));
+        return new Extent(e.container, e.offset, newLength);
+    }
+
+    /** Free an extent once the next checkpoint has been written. */
+    synchronized void free(Extent e) {
+        freedExtents.add(e);
+    }
+
+    synchronized void free(Extents extents) {
+        for(int i=0;i<extents.size();i++)
+            free(extents.get(i));
+    }
+
+    /** Take the extents freed since the last call. The caller writes a checkpoint and then 
+     * calls realFree() on the result, just as for the buckets from 
+     * PersistentTempBucketFactory.grabBucketsToFree().
+     * @return Null if nothing has been freed. */
+    synchronized DelayedFree grabFreedExtents() {
+        if(freedExtents.isEmpty()) return null;
+        DelayedFree ret = new FreedExtents(this, freedExtents);
+        freedExtents = new ArrayList<Extent>();
+        return ret;
+    }
+
+    /** Extents to free after a checkpoint. Written to the checkpoint along with the buckets to 
+     * free, but there is nothing to do for them after a restart: Space which no bucket 
+     * registers while resuming is free anyway. */
+    private static class FreedExtents implements DelayedFree, Serializable {
+        private static final long serialVersionUID = 1L;
+        private transient PersistentContainerStore store;
+        private transient ArrayList<Extent> extents;
+
+        FreedExtents(PersistentContainerStore store, ArrayList<Extent> extents) {
+            this.store = store;
+            this.extents = extents;
+        }
+
+        @Override
+        public boolean toFree() {
+            return store != null;
+        }
+
+        @Override
+        public void realFree() {
+            if(store == null) return;
+            store.reallyFree(extents);
+            store = null;
+        }
+    }
+
+    private synchronized void reallyFree(ArrayList<Extent> extents) {
+        for(Extent e : extents)
+            reallyFree(e);
+    }
+
+    /** Caller must hold the lock. */
+    private void reallyFree(Extent e) {
+        Container c = containers.get(e.container);
+        if(c == null) {
+            Logger.error(this, "Freeing extent "+e+" in unknown container", new Exception("error"));
+            return;
+        }
+        if(c.live != null) {
+            Map.Entry<Long, Long> entry = c.live.floorEntry(e.offset);
+            if(entry == null || entry.getKey() + entry.getValue() < e.offset + e.length) {
+                Logger.error(this, "Freeing extent "+e+" which is not in use", new Exception("error"));
+                return;
+            }
+            long start = entry.getKey();
+            long end = start + entry.getValue();
+            c.live.remove(start);
+            if(start < e.offset)
+                c.live.put(start, e.offset - start);
+            if(end > e.offset + e.length)
+                c.live.put(e.offset + e.length, end - (e.offset + e.length));
+        } else {
+            addFree(c, e.offset, e.length);
+        }
+    }
+
+    /** Caller must hold the lock. Coalesces with neighbouring free space. */
+    private void addFree(Container c, long offset, long length) {
+        Map.Entry<Long, Extent> prev = c.freeByOffset.floorEntry(offset);
+        Map.Entry<Long, Extent> after = c.freeByOffset.ceilingEntry(offset);
+        if((prev != null && prev.getValue().offset + prev.getValue().length > offset) ||
+                (after != null && after.getKey() < offset + length)) {
+            Logger.error(this, "Freeing "+Long.toHexString(c.id)+":"+offset+"+"+length+" twice", new Exception("error"));
+            return;
+        }
+        if(offset + length > c.end) {
+            Logger.error(this, "Freeing "+Long.toHexString(c.id)+":"+offset+"+"+length+" beyond end "+c.end, new Exception("error"));
+            return;
+        }
+        if(prev != null && prev.getValue().offset + prev.getValue().length == offset) {
+            removeFree(c, prev.getValue());
+            offset = prev.getValue().offset;
+            length += prev.getValue().length;
+        }
+        Extent next = c.freeByOffset.get(offset + length);
+        if(next != null) {
+            removeFree(c, next);
+            length += next.length;
+        }
+        if(offset + length == c.end) {
+            c.end = offset;
+            return;
+        }
+        Extent e = new Extent(c.id, offset, length);
+        c.freeByOffset.put(offset, e);
+        freeBySize.add(e);
+    }
+
+    /** Caller must hold the lock. */
+    private void removeFree(Container c, Extent e) {
+        c.freeByOffset.remove(e.offset);
+        freeBySize.remove(e);
+    }
+
+    /** Called on resuming a bucket. Registers its containers and, until completedInit(), its
+     * extents.
+     * @param oldDir The directory the containers were in last time, in case it has changed. 
+     * @throws ResumeFailedException If a container has been lost, or if another bucket has 
+     * already registered some of the same space. */
+    synchronized void resume(Extents extents, File oldDir) throws ResumeFailedException {
+        for(int i=0;i<extents.size();i++) {
+            Extent e = extents.get(i);
+            Container c = containers.get(e.container);
+            if(c == null) {
+                if(initialized) throw new ResumeFailedException("Container "+Long.toHexString(e.container)+" has been deleted");
+                c = openExisting(e.container, oldDir);
+            }
+            if(c.live == null) continue;
+            if(overlapsLive(c, e.offset, e.length))
+                throw new ResumeFailedException("Extent "+e+" is used by another bucket");
+            for(int j=0;j<i;j++) {
+                Extent prev = extents.get(j);
+                if(prev.container == e.container && prev.offset < e.offset + e.length &&
+                        e.offset < prev.offset + prev.length)
+                    throw new ResumeFailedException("Extent "+e+" is used twice");
+            }
+        }
+        for(int i=0;i<extents.size();i++) {
+            Extent e = extents.get(i);
+            Container c = containers.get(e.container);
+            if(c.live == null) continue;
+            c.live.put(e.offset, e.length);
+            c.end = Math.max(c.end, e.offset + e.length);
+        }
+    }
+
+    /** Caller must hold the lock. */
+    private static boolean overlapsLive(Container c, long offset, long length) {
+        Map.Entry<Long, Long> before = c.live.floorEntry(offset);
+        if(before != null && before.getKey() + before.getValue() > offset) return true;
+        Map.Entry<Long, Long> after = c.live.ceilingEntry(offset);
+        return after != null && after.getKey() < offset + length;
+    }
+
+    private Container openExisting(long id, File oldDir) throws ResumeFailedException {
+        File file = fg.getFilename(id);
+        if(!file.exists() && oldDir != null) {
+            File old = new File(oldDir, file.getName());
+            if(old.exists()) file = fg.maybeMove(old, id);
+        }
+        if(!file.exists()) throw new ResumeFailedException("Container lost: "+file);
+        tracker.register(file);
+        try {
+            Container c = new Container(id, file, true);
+            containers.put(id, c);
+            return c;
+        } catch (IOException e) {
+            throw new ResumeFailedException(e);
+        }
+    }
+
+    /** Called when all persistent buckets have been resumed. We now know which parts of the
+     * containers are free. */
+    public void completedInit() {
+        ArrayList<Container> toTruncate = new ArrayList<Container>();
+        long used = 0;
+        long free = 0;
+        int count;
+        synchronized(this) {
+            if(initialized) return;
+            initialized = true;
+            for(Container c : containers.values()) {
+                if(c.live != null) {
+                    TreeMap<Long, Long> live = c.live;
+                    c.live = null;
+                    long pos = 0;
+                    for(Map.Entry<Long, Long> entry : live.entrySet()) {
+                        if(entry.getKey() > pos)
+                            addFree(c, pos, entry.getKey() - pos);
+                        pos = Math.max(pos, entry.getKey() + entry.getValue());
+                    }
+                    if(pos < c.end)
+                        addFree(c, pos, c.end - pos);
+                }
+                toTruncate.add(c);
+                used += c.end;
+            }
+            for(Extent e : freeBySize)
+                free += e.length;
+            count = containers.size();
+        }
+        for(Container c : toTruncate) {
+            try {
+                c.truncate();
+            } catch (IOException e) {
+                Logger.error(this, "Unable to truncate "+c.file+" : "+e, e);
+            }
+        }
+        Logger.normal(this, "Persistent temp containers: "+count+" files, "+
+                SizeUtil.formatSize(used - free)+" in use, "+SizeUtil.formatSize(free)+" free");
+    }
+
+    private Container getContainer(long id) throws IOException {
+        Container c;
+        synchronized(this) {
+            if(closed) throw new IOException("Closed");
+            c = containers.get(id);
+        }
+        if(c == null) throw new IOException("No such container "+Long.toHexString(id));
+        return c;
+    }
+
+    /** Read from a bucket's extents. Caller must check bounds. */
+    void read(Extents extents, long offset, byte[] buf, int bufOffset, int length)
+    throws IOException {
+        int i = extents.locate(offset);
+        while(length > 0) {
+            Extent e = extents.get(i);
+            long inExtent = offset - extents.start(i);
+            int toRead = (int) Math.min(length, e.length - inExtent);
+            getContainer(e.container).pread(e.offset + inExtent, buf, bufOffset, toRead);
+            offset += toRead;
+            bufOffset += toRead;
+            length -= toRead;
+            i++;
+        }
+    }
+
+    /** Write to a bucket's extents. Caller must check bounds. */
+    void write(Extents extents, long offset, byte[] buf, int bufOffset, int length)
+    throws IOException {
+        int i = extents.locate(offset);
+        while(length > 0) {
+            Extent e = extents.get(i);
+            long inExtent = offset - extents.start(i);
+            int toWrite = (int) Math.min(length, e.length - inExtent);
+            getContainer(e.container).pwrite(e.offset + inExtent, buf, bufOffset, toWrite);
+            offset += toWrite;
+            bufOffset += toWrite;
+            length -= toWrite;
+            i++;
+        }
+    }
+
+    /** Grow a bucket's extents to at least the given capacity. Extents double in size up to
+     * MAX_EXTENT, so large buckets don't have many extents and small ones don't waste space. */
+    void ensureCapacity(Extents extents, long capacity) throws IOException {
+        while(extents.capacity() < capacity) {
+            long want = Math.max(capacity - extents.capacity(), extents.capacity());
+            want = Math.min(MAX_EXTENT, roundUp(want));
+            extents.add(allocate(want));
+        }
+    }
+
+    /** Free any whole MIN_EXTENT's after the given size. */
+    void shrink(Extents extents, long size) {
+        while(extents.size() > 0 && extents.capacity() - extents.get(extents.size()-1).length >= size)
+            free(extents.removeLast());
+        if(extents.size() == 0) return;
+        Extent last = extents.get(extents.size()-1);
+        long keep = roundUp(size - (extents.capacity() - last.length));
+        if(keep < last.length) {
+            extents.removeLast();
+            extents.add(trim(last, keep));
+        }
+    }
+
+    private static long roundUp(long length) {
+        return Math.max(MIN_EXTENT, (length + MIN_EXTENT - 1) / MIN_EXTENT * MIN_EXTENT);
+    }
+
+    public synchronized int getContainerCount() {
+        return containers.size();
+    }
+
+    /** Close all the containers. */
+    public void close() {
+        ArrayList<Container> toClose;
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+            toClose = new ArrayList<Container>(containers.values());
+        }
+        for(Container c : toClose)
+            c.close();
+    }
+
+}
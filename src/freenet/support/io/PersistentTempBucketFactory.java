@@ -18,7 +18,9 @@ import freenet.keys.CHKBlock;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.RandomAccessBucket;
 
 /**
@@ -33,6 +35,9 @@ import freenet.support.api.RandomAccessBucket;
  * disk - so we should not leak temporary files, or forget that we deleted a bucket and try to 
  * reuse it, if there is an unclean shutdown.
  * 
+ * If enabled, new buckets are stored in a PersistentContainerStore, i.e. packed into a few large
+ * files, rather than in a file each.
+ * 
  * PERSISTENCE: This class is involved in persistence but is not itself Serializable; it is 
  * recreated on every startup, and persistent Bucket's register themselves with it.
  */
@@ -42,6 +47,8 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 	 * However at the moment we do not support garbage collection for non-blob persistent temp files. 
 	 * When we implement it it will probably not use this structure... FIXME! */
 	private HashSet<File> originalFiles;
+	/** Files registered before completedInit(). See register(). */
+	private HashSet<File> registeredFiles;
 	
 	/** Filename generator. Tracks the directory and the prefix for temp files, can move them if these 
 	 * change, generates filenames. */
@@ -63,6 +70,11 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 	
 	private DiskSpaceChecker checker;
 	
+	/** Packs buckets into container files. */
+	private final PersistentContainerStore containerStore;
+	/** Should new buckets go in the container store? */
+	private volatile boolean useContainers;
+	
 	
 	private long commitID;
 
@@ -101,6 +113,7 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 		if(!dir.isDirectory())
 			throw new IOException("Directory is not a directory: "+dir);
 		originalFiles = new HashSet<File>();
+		registeredFiles = new HashSet<File>();
 		File[] files = dir.listFiles(new FileFilter() {
 
 			@Override
@@ -122,6 +135,7 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 		
 		bucketsToFree = new ArrayList<DelayedFree>();
 		commitID = 1; // Must start > 0.
+		containerStore = new PersistentContainerStore(fg, this);
 	}
 	
 	public void setDiskSpaceChecker(DiskSpaceChecker checker) {
@@ -134,35 +148,47 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 	    }
 	}
 	
-	/** Notify the bucket factory that a file is a temporary file, and not to be deleted. FIXME this is not
-	 * currently used. @see #completedInit() */
+	/** Notify the bucket factory that a file is a temporary file, and not to be deleted. Files 
+	 * registered before completedInit() may be registered again afterwards, e.g. when a request
+	 * whose resumption was deferred, and which claimed its storage during startup, is resumed.
+	 * @see #completedInit() */
 	@Override
 	public void register(File file) {
 		synchronized(this) {
-			if(originalFiles == null)
-				throw new IllegalStateException("completed Init has already been called!");
 			file = FileUtil.getCanonicalFile(file);
+			if(originalFiles == null) {
+				// Anything not registered during startup has already been deleted.
+				if(!registeredFiles.contains(file))
+					throw new IllegalStateException("completed Init has already been called!");
+				if(logMINOR) Logger.minor(this, "Registering "+file+" again after completedInit()");
+				return;
+			}
 			if(logMINOR) Logger.minor(this, "Preserving "+file, new Exception("debug"));
-			if(!originalFiles.remove(file))
+			if(!originalFiles.remove(file) && !registeredFiles.contains(file))
 				Logger.error(this, "Preserving "+file+" but it wasn't found!", new Exception("error"));
+			registeredFiles.add(file);
 		}
 	}
 	
 	/**
 	 * Called when boot-up is complete.
-	 * Deletes any old temp files still unclaimed.
+	 * Deletes any old temp files still unclaimed, including unused container files.
 	 */
-	public synchronized void completedInit() {
-	    if(originalFiles == null) {
-	        Logger.error(this, "Completed init called twice", new Exception("error"));
-	        return;
+	public void completedInit() {
+	    // Outside the lock: The store calls register() while resuming.
+	    containerStore.completedInit();
+	    synchronized(this) {
+	        if(originalFiles == null) {
+	            Logger.error(this, "Completed init called twice", new Exception("error"));
+	            return;
+	        }
+	        for(File f: originalFiles) {
+	            if(Logger.shouldLog(LogLevel.MINOR, this))
+	                Logger.minor(this, "Deleting old tempfile "+f);
+	            f.delete();
+	        }
+	        originalFiles = null;
 	    }
-		for(File f: originalFiles) {
-			if(Logger.shouldLog(LogLevel.MINOR, this))
-				Logger.minor(this, "Deleting old tempfile "+f);
-			f.delete();
-		}
-		originalFiles = null;
 	}
 
 	/** Create a persistent temporary bucket. Encrypted if appropriate. Wrapped in a 
@@ -172,8 +198,12 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 	public RandomAccessBucket makeBucket(long size) throws IOException {
 		RandomAccessBucket rawBucket = null;
 		boolean mustWrap = true;
-		if(rawBucket == null)
-			rawBucket = new PersistentTempFileBucket(fg.makeRandomFilename(), fg, this);
+		if(rawBucket == null) {
+		    if(useContainers)
+		        rawBucket = new ContainerBucket(containerStore);
+		    else
+		        rawBucket = new PersistentTempFileBucket(fg.makeRandomFilename(), fg, this);
+		}
 		synchronized(encryptLock) {
 		    if(encrypt) {
                 rawBucket = new PaddedRandomAccessBucket(rawBucket);
@@ -203,8 +233,11 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
     /** Returns a list of buckets to free. The caller should write the buckets to the checkpoint, 
      * and free them after the checkpoint has written successfully, by calling postCommit(). */
 	public DelayedFree[] grabBucketsToFree() {
+		// Outside the lock, the container store calls us with its lock held.
+		DelayedFree extents = containerStore.grabFreedExtents();
 		synchronized(this) {
-			if(bucketsToFree.isEmpty()) return null;
+			if(bucketsToFree.isEmpty() && extents == null) return null;
+			if(extents != null) bucketsToFree.add(extents);
 			DelayedFree[] buckets = bucketsToFree.toArray(new DelayedFree[bucketsToFree.size()]);
 			bucketsToFree.clear();
 			commitID++;
@@ -236,6 +269,20 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 	    }
 	}
 
+	public PersistentContainerStore getContainerStore() {
+	    return containerStore;
+	}
+	
+	public boolean isUsingContainers() {
+	    return useContainers;
+	}
+	
+	/** Set whether to put new persistent temp buckets in container files. Old buckets are not 
+	 * converted. */
+	public void setUseContainers(boolean useContainers) {
+	    this.useContainers = useContainers;
+	}
+
 	/**
 	 * Set whether to encrypt new persistent temp buckets. Note that we do not encrypt/decrypt old ones when
 	 * this changes.
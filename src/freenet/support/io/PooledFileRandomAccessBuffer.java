@@ -2,13 +2,21 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.async.ClientContext;
 import freenet.support.Logger;
@@ -16,8 +24,12 @@ import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.math.MersenneTwister;
 
 /** Random access files with a limited number of open files, using a pool. 
- * LOCKING OPTIMISATION: Contention on closables likely here. It's not clear how to avoid that, FIXME.
- * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ... 
+ * 
+ * Reads and writes use positional FileChannel I/O, so they don't need to be serialised. An open
+ * FD is locked by atomically incrementing its reference count, so the common case, where the file
+ * is already open, doesn't take any shared lock. When we run out of FDs we close the least 
+ * recently used unlocked one. Open FDs are kept in a concurrent set, so opening and closing files
+ * is striped rather than serialised on a single monitor. We only block when every FD is locked.
  * 
  * FIXME does this need a shutdown hook? I don't see why it would matter ... ??? */
 public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
@@ -28,21 +40,30 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     }
     
     private static final long serialVersionUID = 1L;
-    private static int MAX_OPEN_FDS = 100;
-    /** Total number of currently open FDs */
-    static int totalOpenFDs = 0;
-    static final LinkedHashSet<PooledFileRandomAccessBuffer> closables = new LinkedHashSet<PooledFileRandomAccessBuffer>();
+    private static volatile int MAX_OPEN_FDS = 100;
+    /** Total number of currently open FDs, including those being opened. */
+    private static final AtomicInteger totalOpenFDs = new AtomicInteger();
+    /** All open FDs, locked or not. */
+    private static final Set<OpenFD> openFDs = 
+        Collections.newSetFromMap(new ConcurrentHashMap<OpenFD, Boolean>());
+    /** Threads waiting for an FD wait on this. Only touched when we run out of FDs. */
+    private static final Object fdWaiters = new Object();
+    private static final AtomicInteger waitingForFD = new AtomicInteger();
+    /** Number of times we had to open a file. */
+    private static final AtomicLong fdOpens = new AtomicLong();
+    /** Number of times we closed an unlocked FD to make room for another. */
+    private static final AtomicLong fdEvictions = new AtomicLong();
+    /** Hits on FDs which have since been closed. Hits on open FDs are counted on the FD, so the
+     * fast path doesn't share a counter between files. */
+    private static final AtomicLong closedFDHits = new AtomicLong();
     
     public final File file;
     private final boolean readOnly;
-    /** >0 means locked. We will wait until we get the lock if necessary, this is always accurate. 
-     * LOCKING: Synchronized on closables (i.e. static, but not the class). */
-    private int lockLevel;
-    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
-     * LOCKING: Always take (this) last, i.e. after closables. */
-    private transient RandomAccessFile raf;
+    /** The currently open FD, if any. May have been closed, in which case its reference count 
+     * will be negative. Only replaced while holding (this). */
+    private transient volatile OpenFD fd;
     private final long length;
-    private boolean closed;
+    private volatile boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the 
      * prefix changes. */
     private final long persistentTempID;
@@ -62,11 +83,10 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         this.readOnly = readOnly;
         this.persistentTempID = persistentTempID;
         this.deleteOnFree = deleteOnFree;
-        lockLevel = 0;
         // Check the parameters and get the length.
-        // Also, unlock() adds to the closeables queue, which is essential.
-        RAFLock lock = lockOpen();
+        OpenFD fd = lock(false);
         try {
+            RandomAccessFile raf = fd.raf;
             long currentLength = raf.length();
             if(forceLength >= 0 && forceLength != currentLength) {
                 if(readOnly) throw new IOException("Read only but wrong length");
@@ -88,14 +108,12 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 currentLength = forceLength;
             }
             this.length = currentLength;
-            lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
-                raf.close();
-                raf = null;
-            }
+            fd.unlock();
+            close();
             throw e;
         }
+        fd.unlock();
     }
 
     public PooledFileRandomAccessBuffer(File file, String mode, byte[] initialContents,
@@ -105,18 +123,15 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         this.length = size;
         this.persistentTempID = persistentTempID;
         this.deleteOnFree = deleteOnFree;
-        lockLevel = 0;
-        RAFLock lock = lockOpen(true);
+        OpenFD fd = lock(true);
         try {
-            raf.write(initialContents, offset, size);
-            lock.unlock();
+            fd.raf.write(initialContents, offset, size);
         } catch (IOException e) {
-            synchronized(this) {
-                raf.close();
-                raf = null;
-            }
+            fd.unlock();
+            close();
             throw e;
         }
+        fd.unlock();
     }
     
     protected PooledFileRandomAccessBuffer() {
@@ -136,15 +151,22 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     @Override
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
-        RAFLock lock = lockOpen();
-        try {
-            // FIXME Use NIO! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.readFully(buf, bufOffset, length);
+        ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+        while(bb.hasRemaining()) {
+            OpenFD fd = lock(false);
+            try {
+                while(bb.hasRemaining()) {
+                    if(fd.channel.read(bb, fileOffset + bb.position() - bufOffset) == -1)
+                        throw new EOFException();
+                }
+            } catch (ClosedChannelException e) {
+                // Closed by an interrupt, either ours or another thread's. Reopen it.
+                fd.broken = true;
+                // The interrupted thread gives up. Others retry.
+                if(e instanceof ClosedByInterruptException) throw e;
+            } finally {
+                fd.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -152,112 +174,218 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
         if(readOnly) throw new IOException("Read only");
-        RAFLock lock = lockOpen();
-        try {
-            if(fileOffset + length > this.length)
-                throw new IOException("Length limit exceeded");
-            // FIXME Use NIO (which has proper pwrite, with concurrency)! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.write(buf, bufOffset, length);
+        if(fileOffset + length > this.length)
+            throw new IOException("Length limit exceeded");
+        ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+        while(bb.hasRemaining()) {
+            OpenFD fd = lock(false);
+            try {
+                while(bb.hasRemaining())
+                    fd.channel.write(bb, fileOffset + bb.position() - bufOffset);
+            } catch (ClosedChannelException e) {
+                fd.broken = true;
+                if(e instanceof ClosedByInterruptException) throw e;
+            } finally {
+                fd.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
     @Override
     public void close() {
         if(logMINOR) Logger.minor(this, "Closing "+this, new Exception("debug"));
-        synchronized(closables) {
-            if(lockLevel != 0)
-                throw new IllegalStateException("Must unlock first!");
-            closed = true;
-            // Essential to avoid memory leak!
-            // Potentially slow but only happens on close(). Plus the size of closables is bounded anyway by the fd limit.
-            closables.remove(this);
-            closeRAF();
-        }
+        OpenFD fd = this.fd;
+        if(fd != null && fd.refs.get() > 0)
+            throw new IllegalStateException("Must unlock first!");
+        closed = true;
+        // Anyone opening it concurrently will see closed and close it.
+        if(fd != null)
+            fd.tryClose();
     }
 
     @Override
     public RAFLock lockOpen() throws IOException {
-        return lockOpen(false);
-    }
-    
-    private RAFLock lockOpen(boolean forceWrite) throws IOException {
-        RAFLock lock = new RAFLock() {
+        final OpenFD fd = lock(false);
+        return new RAFLock() {
 
             @Override
             protected void innerUnlock() {
-                PooledFileRandomAccessBuffer.this.unlock();
+                fd.unlock();
             }
             
         };
-        synchronized(closables) {
+    }
+    
+    /** Lock the file open, opening it if necessary. The caller must unlock the returned FD. */
+    private OpenFD lock(boolean forceWrite) throws IOException {
+        OpenFD fd = this.fd;
+        if(fd != null && fd.tryLock()) {
+            if(closed) {
+                fd.unlock();
+                throw new IOException("Already closed "+this);
+            }
+            fd.hits.incrementAndGet();
+            return fd;
+        }
+        synchronized(this) {
+            if(closed) throw new IOException("Already closed "+this);
+            fd = this.fd;
+            if(fd != null && fd.tryLock()) {
+                // Opened by another thread while we were waiting.
+                fd.hits.incrementAndGet();
+                return fd;
+            }
+            // If the old FD is broken it will be closed when its last lock is released.
+            reserveFD();
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+            } catch (IOException e) {
+                releaseFD();
+                throw e;
+            }
+            fd = new OpenFD(this, raf);
+            openFDs.add(fd);
+            fdOpens.incrementAndGet();
+            this.fd = fd;
+        }
+        if(closed) {
+            fd.unlock();
+            throw new IOException("Already closed "+this);
+        }
+        return fd;
+    }
+    
+    /** An open file. Closed when it is evicted, when the buffer is closed, or when the channel 
+     * has been closed under us by an interrupt. */
+    private static final class OpenFD {
+        
+        final PooledFileRandomAccessBuffer owner;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        /** Number of locks held. -1 means closed, after which it can't be locked again. Starts 
+         * locked by the thread which opened it. */
+        final AtomicInteger refs = new AtomicInteger(1);
+        final AtomicLong hits = new AtomicLong();
+        /** System.nanoTime() when last unlocked, for picking the least recently used FD. */
+        volatile long lastUsed;
+        /** The channel has been closed asynchronously, so it must not be used again. */
+        volatile boolean broken;
+        
+        OpenFD(PooledFileRandomAccessBuffer owner, RandomAccessFile raf) {
+            this.owner = owner;
+            this.raf = raf;
+            this.channel = raf.getChannel();
+        }
+        
+        boolean tryLock() {
             while(true) {
-                closables.remove(this);
-                if(closed) throw new IOException("Already closed "+this);
-                if(raf != null) {
-                    lockLevel++; // Already open, may or may not be already locked.
-                    return lock;
-                } else if(totalOpenFDs < MAX_OPEN_FDS) {
-                    raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
-                    lockLevel++;
-                    totalOpenFDs++;
-                    return lock;
-                } else {
-                    PooledFileRandomAccessBuffer closable = pollFirstClosable();
-                    if(closable != null) {
-                        closable.closeRAF();
-                        continue;
-                    }
+                if(broken) return false;
+                int r = refs.get();
+                if(r < 0) return false;
+                if(refs.compareAndSet(r, r+1)) return true;
+            }
+        }
+        
+        void unlock() {
+            lastUsed = System.nanoTime();
+            int r = refs.decrementAndGet();
+            if(r < 0) throw new IllegalStateException("Unlocked too many times");
+            if(r > 0) return;
+            if(broken || owner.closed)
+                tryClose();
+            else
+                wakeWaiters();
+        }
+        
+        /** Close the FD if it isn't locked.
+         * @return True if we closed it. */
+        boolean tryClose() {
+            if(!refs.compareAndSet(0, -1)) return false;
+            openFDs.remove(this);
+            closedFDHits.addAndGet(hits.get());
+            try {
+                raf.close();
+            } catch (IOException e) {
+                Logger.error(this, "Error closing "+owner+" : "+e, e);
+            }
+            releaseFD();
+            return true;
+        }
+        
+    }
+    
+    private static boolean tryReserveFD() {
+        while(true) {
+            int open = totalOpenFDs.get();
+            if(open >= MAX_OPEN_FDS) return false;
+            if(totalOpenFDs.compareAndSet(open, open+1)) return true;
+        }
+    }
+    
+    /** Reserve an FD, closing the least recently used unlocked FD if necessary, and waiting if 
+     * they are all locked. */
+    private static void reserveFD() {
+        while(true) {
+            if(tryReserveFD()) return;
+            if(evictOne()) continue;
+            waitingForFD.incrementAndGet();
+            try {
+                synchronized(fdWaiters) {
+                    // Anything unlocked after this point will wake us up.
+                    if(tryReserveFD()) return;
+                    if(evictOne()) continue;
                     try {
-                        closables.wait();
+                        fdWaiters.wait();
                     } catch (InterruptedException e) {
                         // Ignore
                     }
                 }
+            } finally {
+                waitingForFD.decrementAndGet();
             }
         }
     }
     
-    private PooledFileRandomAccessBuffer pollFirstClosable() {
-        synchronized(closables) {
-            Iterator<PooledFileRandomAccessBuffer> it = closables.iterator();
-            if (it.hasNext()) {
-                PooledFileRandomAccessBuffer first = it.next();
-                it.remove();
-                return first;
-            }
-            return null;
+    private static void releaseFD() {
+        totalOpenFDs.decrementAndGet();
+        wakeWaiters();
+    }
+    
+    private static void wakeWaiters() {
+        if(waitingForFD.get() == 0) return;
+        synchronized(fdWaiters) {
+            fdWaiters.notifyAll();
         }
     }
-
-    /** Exposed for tests only. Used internally. Must be unlocked. */
-    protected void closeRAF() {
-        synchronized(closables) {
-            if(lockLevel != 0) throw new IllegalStateException();
-            if(raf == null) return;
-            try {
-                raf.close();
-            } catch (IOException e) {
-                Logger.error(this, "Error closing "+this+" : "+e, e);
+    
+    /** Close the least recently used unlocked FD.
+     * @return False if there are no unlocked FDs. */
+    private static boolean evictOne() {
+        while(true) {
+            OpenFD oldest = null;
+            for(OpenFD fd : openFDs) {
+                if(fd.refs.get() != 0) continue;
+                if(oldest == null || fd.lastUsed - oldest.lastUsed < 0)
+                    oldest = fd;
             }
-            raf = null;
-            totalOpenFDs--;
+            if(oldest == null) return false;
+            if(oldest.tryClose()) {
+                fdEvictions.incrementAndGet();
+                return true;
+            }
+            // Locked or closed by somebody else in the meantime.
         }
     }
 
-    private void unlock() {
-        synchronized(closables) {
-            lockLevel--;
-            if(lockLevel > 0) return;
-            closables.add(this);
-            closables.notify();
-        }
+    /** Exposed for tests only. Must be unlocked. */
+    protected void closeRAF() {
+        OpenFD fd = this.fd;
+        if(fd == null) return;
+        if(fd.refs.get() > 0) throw new IllegalStateException();
+        fd.tryClose();
     }
-    
+
     public void setSecureDelete(boolean secureDelete) {
         this.secureDelete = secureDelete;
     }
@@ -280,33 +408,55 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     
     /** Set the size of the fd pool */
     public static void setMaxFDs(int max) {
-        synchronized(closables) {
-            if(max <= 0) throw new IllegalArgumentException();
-            MAX_OPEN_FDS = max;
-        }
+        if(max <= 0) throw new IllegalArgumentException();
+        MAX_OPEN_FDS = max;
+        wakeWaiters();
     }
 
     /** How many fd's are open right now? Mainly for tests but also for stats. */
     public static int getOpenFDs() {
-        return totalOpenFDs;
+        return totalOpenFDs.get();
+    }
+    
+    /** How many times have we had to open a file? */
+    public static long getFDOpens() {
+        return fdOpens.get();
     }
     
+    /** How many times have we closed an idle file to make room for another? */
+    public static long getFDEvictions() {
+        return fdEvictions.get();
+    }
+    
+    /** How many times was the file already open when we needed it? */
+    public static long getFDHits() {
+        long hits = closedFDHits.get();
+        for(OpenFD fd : openFDs)
+            hits += fd.hits.get();
+        return hits;
+    }
+    
+    /** Number of open but unlocked FDs */
     static int getClosableFDs() {
-        synchronized(closables) {
-            return closables.size();
-        }
+        int count = 0;
+        for(OpenFD fd : openFDs)
+            if(fd.refs.get() == 0) count++;
+        return count;
     }
     
     boolean isOpen() {
-        synchronized(closables) {
-            return raf != null;
-        }
+        OpenFD fd = this.fd;
+        return fd != null && fd.refs.get() >= 0;
     }
     
     boolean isLocked() {
-        synchronized(closables) {
-            return lockLevel != 0;
-        }
+        OpenFD fd = this.fd;
+        return fd != null && fd.refs.get() > 0;
+    }
+
+    /** @return True if the file is a persistent temp file, registered on resuming. */
+    boolean isPersistentTemp() {
+        return persistentTempID != -1;
     }
 
     @Override
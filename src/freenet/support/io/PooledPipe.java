@@ -0,0 +1,223 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pipe between two threads which hands over whole buffers rather than copying through a small
+ * ring buffer like PipedInputStream does. The buffers are large and are recycled through a
+ * shared pool, so a pipe costs very little to create and the threads only need to synchronize
+ * once per buffer.
+ *
+ * Closing the output gives EOF on the input. Closing the input makes any further write fail, so
+ * the writer doesn't block forever if the reader gives up.
+ */
+public class PooledPipe {
+
+	/** Size of the buffers handed over. */
+	public static final int BUFFER_SIZE = 64 * 1024;
+	/** Number of full buffers which may be waiting for the reader. */
+	static final int QUEUE_LENGTH = 4;
+	/** Number of free buffers kept for reuse. */
+	static final int MAX_POOLED_BUFFERS = 64;
+
+	private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(MAX_POOLED_BUFFERS);
+
+	static byte[] allocate() {
+		byte[] buf = pool.poll();
+		if(buf == null) buf = new byte[BUFFER_SIZE];
+		return buf;
+	}
+
+	static void release(byte[] buf) {
+		// If the pool is full, leave it to the GC.
+		pool.offer(buf);
+	}
+
+	/** A buffer handed over to the reader. */
+	private static class Filled {
+		final byte[] buf;
+		final int length;
+		Filled(byte[] buf, int length) {
+			this.buf = buf;
+			this.length = length;
+		}
+	}
+
+	private static final Filled EOF = new Filled(null, 0);
+
+	private final BlockingQueue<Filled> queue = new ArrayBlockingQueue<Filled>(QUEUE_LENGTH);
+	private volatile boolean readerClosed;
+	private final Input input = new Input();
+	private final Output output = new Output();
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	private class Output extends OutputStream {
+
+		private byte[] buf;
+		private int offset;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] data, int off, int length) throws IOException {
+			if(closed) throw new IOException("Pipe closed");
+			while(length > 0) {
+				if(buf == null) {
+					buf = allocate();
+					offset = 0;
+				}
+				int x = Math.min(length, buf.length - offset);
+				System.arraycopy(data, off, buf, offset, x);
+				offset += x;
+				off += x;
+				length -= x;
+				if(offset == buf.length) handOver();
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if(closed) throw new IOException("Pipe closed");
+			if(buf != null && offset > 0) handOver();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if(closed) return;
+			closed = true;
+			if(buf != null) {
+				if(offset > 0) {
+					handOver();
+				} else {
+					release(buf);
+					buf = null;
+				}
+			}
+			put(EOF);
+		}
+
+		private void handOver() throws IOException {
+			Filled f = new Filled(buf, offset);
+			buf = null;
+			offset = 0;
+			put(f);
+		}
+
+		private void put(Filled f) throws IOException {
+			while(true) {
+				if(readerClosed) {
+					if(f.buf != null) release(f.buf);
+					// Nobody will read the data, so we can't be sure it has been used.
+					if(f != EOF) throw new IOException("Pipe closed by reader");
+					return;
+				}
+				try {
+					if(queue.offer(f, 100, TimeUnit.MILLISECONDS)) return;
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+
+	}
+
+	private class Input extends InputStream {
+
+		private Filled current;
+		private int offset;
+		private boolean eof;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int x = read(b, 0, 1);
+			if(x <= 0) return -1;
+			return b[0] & 0xFF;
+		}
+
+		@Override
+		public synchronized int read(byte[] data, int off, int length) throws IOException {
+			if(readerClosed) throw new IOException("Pipe closed");
+			if(length == 0) return 0;
+			if(!next()) return -1;
+			int x = Math.min(length, current.length - offset);
+			System.arraycopy(current.buf, offset, data, off, x);
+			offset += x;
+			return x;
+		}
+
+		@Override
+		public synchronized long skip(long n) throws IOException {
+			if(readerClosed) throw new IOException("Pipe closed");
+			if(n <= 0 || !next()) return 0;
+			int x = (int) Math.min(n, current.length - offset);
+			offset += x;
+			return x;
+		}
+
+		@Override
+		public synchronized int available() {
+			if(current == null) return 0;
+			return current.length - offset;
+		}
+
+		/** Make sure there is something to read.
+		 * @return False at EOF. */
+		private boolean next() {
+			while(current == null || offset == current.length) {
+				if(eof) return false;
+				if(current != null) {
+					release(current.buf);
+					current = null;
+				}
+				Filled f;
+				try {
+					f = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(f == EOF) {
+					eof = true;
+					return false;
+				}
+				current = f;
+				offset = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public synchronized void close() {
+			if(readerClosed) return;
+			readerClosed = true;
+			if(current != null) {
+				release(current.buf);
+				current = null;
+			}
+			Filled f;
+			while((f = queue.poll()) != null)
+				if(f.buf != null) release(f.buf);
+		}
+
+	}
+
+}
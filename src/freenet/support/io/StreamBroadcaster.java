@@ -0,0 +1,240 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * An OutputStream which passes everything written to it on to any number of readers, each
+ * reading at its own pace on its own thread. Used to let a client have the data from a request
+ * while it is still being fetched.
+ *
+ * Nothing is kept until somebody calls open(), so the data costs nothing if nobody wants it.
+ * After that, the start of the data is kept, so a reader which is added shortly after writing has
+ * started still gets all of it; once more than that has been written, no more readers can be
+ * added.
+ *
+ * Writing never blocks: a reader which falls too far behind is dropped, and gets a
+ * FellBehindException on its next read, so we don't keep the data for it. It can carry on from
+ * the complete data once the request has finished.
+ *
+ * Readers only see the end of the data when the writer calls finish(). If the writer calls
+ * fail() instead, e.g. because a hash didn't match, readers get an IOException rather than the
+ * end of the stream. The data they have read so far may already have been passed on, so the
+ * reader must make sure its client sees the error, e.g. by not ending a chunked reply.
+ */
+public class StreamBroadcaster extends OutputStream {
+
+	private final int maxHead;
+	private final int maxBuffered;
+	/** The data written so far, or null if we haven't been opened, there is too much of it or we
+	 * have finished. */
+	private ArrayList<byte[]> head;
+	private long headSize;
+	private boolean opened;
+	private boolean written;
+	private final ArrayList<Reader> readers = new ArrayList<Reader>();
+	private boolean closed;
+	private boolean finished;
+	private IOException error;
+
+	/**
+	 * @param maxHead The amount of data to keep for readers added after writing starts.
+	 * @param maxBuffered The most data we will hold for a single reader before dropping it. Must
+	 * be at least maxHead.
+	 */
+	public StreamBroadcaster(int maxHead, int maxBuffered) {
+		if(maxBuffered < maxHead) throw new IllegalArgumentException();
+		this.maxHead = maxHead;
+		this.maxBuffered = maxBuffered;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buf, int offset, int length) throws IOException {
+		if(length == 0) return;
+		byte[] data = Arrays.copyOfRange(buf, offset, offset + length);
+		synchronized(this) {
+			if(closed) throw new IOException("Already closed");
+			written = true;
+			if(head != null) {
+				if(headSize + length > maxHead) {
+					head = null;
+				} else {
+					head.add(data);
+					headSize += length;
+				}
+			}
+			for(Iterator<Reader> i = readers.iterator(); i.hasNext();) {
+				if(!i.next().offer(data)) i.remove();
+			}
+			notifyAll();
+		}
+	}
+
+	/** No more data will be written, but readers won't see the end until finish() is called. */
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+
+	/** All the data has been written and is good. Readers will see the end of the stream. */
+	public synchronized void finish() {
+		if(finished) return;
+		closed = true;
+		finished = true;
+		head = null;
+		notifyAll();
+	}
+
+	/** The data is incomplete or bad. Readers will get an IOException as soon as possible. */
+	public synchronized void fail(IOException e) {
+		if(finished) return;
+		closed = true;
+		finished = true;
+		error = e;
+		head = null;
+		readers.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Start keeping the data so readers can be added. Must be called before writing starts.
+	 * @return False if it is too late.
+	 */
+	public synchronized boolean open() {
+		if(!opened && !written && !closed) {
+			opened = true;
+			head = new ArrayList<byte[]>();
+		}
+		return head != null;
+	}
+
+	/**
+	 * Add a reader, which will start at the beginning of the data.
+	 * @return The reader, or null if we weren't opened in time, too much has been written
+	 * already or we have finished.
+	 */
+	public synchronized Reader addReader() {
+		if(head == null) return null;
+		Reader reader = new Reader();
+		for(byte[] data : head)
+			reader.offer(data);
+		readers.add(reader);
+		return reader;
+	}
+
+	/** Have we finished, whether we succeeded or failed? */
+	public synchronized boolean hasFinished() {
+		return finished;
+	}
+
+	/** Thrown by a reader which fell too far behind the data being written. */
+	public static class FellBehindException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public FellBehindException() {
+			super("Fell too far behind the data being written");
+		}
+
+	}
+
+	/** Reads the data as it is written. Must be closed if the caller stops reading early. */
+	public class Reader extends InputStream {
+
+		// Protected by the StreamBroadcaster's lock.
+		private final ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+		private long queued;
+		private byte[] current;
+		private int currentOffset;
+		private boolean dropped;
+		private boolean readerClosed;
+
+		private Reader() {
+			// Created by addReader().
+		}
+
+		/** @return False if we have fallen too far behind. */
+		private boolean offer(byte[] data) {
+			if(queued + data.length > maxBuffered) {
+				dropped = true;
+				queue.clear();
+				queued = 0;
+				current = null;
+				return false;
+			}
+			queue.add(data);
+			queued += data.length;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int r = read(buf, 0, 1);
+			return r == -1 ? -1 : (buf[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			synchronized(StreamBroadcaster.this) {
+				while(true) {
+					if(readerClosed) throw new IOException("Closed");
+					if(dropped) throw new FellBehindException();
+					if(error != null) throw new IOException("Failed: "+error, error);
+					if(current == null || currentOffset == current.length) {
+						current = queue.poll();
+						currentOffset = 0;
+						if(current != null) queued -= current.length;
+					}
+					if(current != null) {
+						int count = Math.min(length, current.length - currentOffset);
+						System.arraycopy(current, currentOffset, buf, offset, count);
+						currentOffset += count;
+						return count;
+					}
+					if(finished) return -1;
+					try {
+						StreamBroadcaster.this.wait();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized(StreamBroadcaster.this) {
+				int available = current == null ? 0 : current.length - currentOffset;
+				return (int) Math.min(Integer.MAX_VALUE, available + queued);
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized(StreamBroadcaster.this) {
+				readerClosed = true;
+				queue.clear();
+				queued = 0;
+				current = null;
+				readers.remove(this);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,467 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+/**
+ * Off-heap storage for TempBucketFactory's arena mode. Temp buckets and temp RAFs are made of
+ * fixed size chunks. A chunk is either in RAM, in a direct ByteBuffer taken from a pool of
+ * CHUNK_SIZE slices of larger slabs, or in one slot of a single preallocated (and normally
+ * encrypted) spill file. When more than MAX_USAGE_HIGH of the RAM limit is in use, a background
+ * job writes the least recently used chunks to the spill file until we are below MAX_USAGE_LOW.
+ * If a chunk is needed and none are free, the caller has to spill one itself, which we count as
+ * a migration stall. A spilled chunk is read back into RAM when it is used and RAM is not
+ * scarce. If RAM and the spill file are both full, allocation fails, and the caller falls back
+ * to a separate file, as TempBucketFactory does without the arena.
+ *
+ * Pooled buffers are never returned to the JVM, so we grow the pool lazily, a slab at a time.
+ *
+ * LOCKING: The arena lock protects the pool, the slot map, the LRU list and the statistics. Each
+ * Chunk's lock protects its contents and location. Chunk locks may be taken before the arena
+ * lock but never after it, so actual I/O happens outside the arena lock. The transfer buffer's
+ * lock is taken inside a chunk lock, and never together with the arena lock.
+ */
+public class TempArena {
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+            @Override
+            public void shouldUpdate(){
+                logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+            }
+        });
+    }
+
+    /** One CHK block. */
+    public static final int CHUNK_SIZE = 32768;
+    /** Chunks per direct buffer allocated from the JVM. */
+    static final int CHUNKS_PER_SLAB = 32;
+    /** Zeroes a chunk in one go. Never written to. */
+    private static final byte[] ZEROES = new byte[CHUNK_SIZE];
+
+    /** Thrown when we can't allocate a chunk because both RAM and the spill file are full. No
+     * data has been written when this is thrown. */
+    static class ArenaFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ArenaFullException() {
+            super("Temp arena is full");
+        }
+    }
+
+    final class Chunk {
+        /** The contents if in RAM, otherwise null. */
+        private ByteBuffer buf;
+        /** The slot in the spill file if spilled, otherwise -1. */
+        private int slot = -1;
+        private boolean freed;
+    }
+
+    private final Executor executor;
+    private final LockableRandomAccessBuffer spillFile;
+    private final int spillSlots;
+    private final BitSet usedSlots;
+    private int usedSlotCount;
+    /** Pooled buffers not currently in use. */
+    private final ArrayDeque<ByteBuffer> freeBuffers;
+    /** Copies chunks between direct buffers and the spill file. Protected by its own lock. */
+    private final byte[] transferBuffer = new byte[CHUNK_SIZE];
+    /** Chunks in RAM, least recently used first. */
+    private final LinkedHashSet<Chunk> resident;
+    /** Number of buffers taken from the JVM, whether free or in use. */
+    private int allocatedChunks;
+    private int maxChunks;
+    private boolean runningSpiller;
+    private boolean closed;
+
+    private long ramHits;
+    private long ramMisses;
+    private long spilledBytes;
+    private long migrationStalls;
+    private long migrationStallTime;
+
+    /**
+     * @param executor Runs the background spiller.
+     * @param maxRam The maximum number of bytes to keep in RAM. Rounded down to whole chunks.
+     * @param spillFile The spill file. Its size is rounded down to whole chunks. We take
+     * ownership and will free it on close().
+     */
+    TempArena(Executor executor, long maxRam, LockableRandomAccessBuffer spillFile) {
+        this.executor = executor;
+        this.spillFile = spillFile;
+        this.spillSlots = (int) Math.min(Integer.MAX_VALUE, spillFile.size() / CHUNK_SIZE);
+        this.usedSlots = new BitSet(spillSlots);
+        this.freeBuffers = new ArrayDeque<ByteBuffer>();
+        this.resident = new LinkedHashSet<Chunk>();
+        setMaxRamUsed(maxRam);
+    }
+
+    synchronized void setMaxRamUsed(long maxRam) {
+        maxChunks = (int) Math.min(Integer.MAX_VALUE, maxRam / CHUNK_SIZE);
+        // Surplus buffers are dropped as they are freed.
+        while(allocatedChunks > maxChunks && !freeBuffers.isEmpty()) {
+            freeBuffers.pop();
+            allocatedChunks--;
+        }
+        maybeStartSpiller();
+    }
+
+    /** Allocate chunks covering at least the given number of bytes.
+     * @param zero If true, the chunks will be zeroed, as for a new RandomAccessBuffer.
+     * @throws ArenaFullException If there isn't enough space. Any chunks we did allocate have
+     * been freed. */
+    void allocate(List<Chunk> chunks, long bytes, boolean zero) throws IOException {
+        int count = (int) ((bytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int start = chunks.size();
+        boolean success = false;
+        try {
+            for(int i=0;i<count;i++)
+                chunks.add(allocate(zero));
+            success = true;
+        } finally {
+            if(!success) {
+                while(chunks.size() > start)
+                    free(chunks.remove(chunks.size()-1));
+            }
+        }
+    }
+
+    private Chunk allocate(boolean zero) throws IOException {
+        Chunk chunk = new Chunk();
+        long stallStart = -1;
+        while(true) {
+            Chunk victim;
+            synchronized(this) {
+                if(closed) throw new IOException("Closed");
+                ByteBuffer buf = takeBuffer();
+                if(buf != null) {
+                    chunk.buf = buf;
+                    resident.add(chunk);
+                    if(stallStart != -1) {
+                        migrationStalls++;
+                        migrationStallTime += System.currentTimeMillis() - stallStart;
+                    }
+                    maybeStartSpiller();
+                    break;
+                }
+                if(usedSlotCount == spillSlots || resident.isEmpty())
+                    throw new ArenaFullException();
+                victim = removeOldest();
+                if(stallStart == -1) stallStart = System.currentTimeMillis();
+            }
+            // Spill on our own thread, outside the arena lock.
+            spill(victim);
+        }
+        if(zero) {
+            // Only we can see the chunk so far.
+            ByteBuffer buf = chunk.buf;
+            buf.clear();
+            buf.put(ZEROES);
+        }
+        return chunk;
+    }
+
+    /** Caller must hold the arena lock. */
+    private ByteBuffer takeBuffer() {
+        if(!freeBuffers.isEmpty()) return freeBuffers.pop();
+        if(allocatedChunks >= maxChunks) return null;
+        int count = Math.min(CHUNKS_PER_SLAB, maxChunks - allocatedChunks);
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * CHUNK_SIZE);
+        for(int i=1;i<count;i++) {
+            slab.limit((i+1) * CHUNK_SIZE);
+            slab.position(i * CHUNK_SIZE);
+            freeBuffers.push(slab.slice());
+        }
+        allocatedChunks += count;
+        slab.clear();
+        slab.limit(CHUNK_SIZE);
+        return slab.slice();
+    }
+
+    /** Caller must hold the arena lock. */
+    private void returnBuffer(ByteBuffer buf) {
+        if(allocatedChunks > maxChunks)
+            allocatedChunks--;
+        else
+            freeBuffers.push(buf);
+    }
+
+    /** Caller must hold the arena lock. */
+    private Chunk removeOldest() {
+        Iterator<Chunk> it = resident.iterator();
+        Chunk oldest = it.next();
+        it.remove();
+        return oldest;
+    }
+
+    /** Write a chunk which has been removed from the LRU list to the spill file and return its
+     * buffer to the pool. */
+    private void spill(Chunk chunk) throws IOException {
+        synchronized(chunk) {
+            // Free'd in the meantime: Its buffer has already gone back to the pool.
+            if(chunk.freed) return;
+            int slot;
+            synchronized(this) {
+                slot = usedSlots.nextClearBit(0);
+                if(slot >= spillSlots) {
+                    // Somebody else filled it.
+                    resident.add(chunk);
+                    return;
+                }
+                usedSlots.set(slot);
+                usedSlotCount++;
+            }
+            boolean success = false;
+            try {
+                synchronized(transferBuffer) {
+                    chunk.buf.clear();
+                    chunk.buf.get(transferBuffer);
+                    spillFile.pwrite((long)slot * CHUNK_SIZE, transferBuffer, 0, CHUNK_SIZE);
+                }
+                success = true;
+            } finally {
+                synchronized(this) {
+                    if(success) {
+                        returnBuffer(chunk.buf);
+                        chunk.buf = null;
+                        chunk.slot = slot;
+                        spilledBytes += CHUNK_SIZE;
+                    } else {
+                        usedSlots.clear(slot);
+                        usedSlotCount--;
+                        resident.add(chunk);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Bring a spilled chunk back into RAM if we can do so without spilling anything else.
+     * Caller must hold the chunk lock. */
+    private void maybeUnspill(Chunk chunk) throws IOException {
+        ByteBuffer buf;
+        synchronized(this) {
+            if(closed || resident.size() >= maxChunks * TempBucketFactory.MAX_USAGE_LOW) return;
+            buf = takeBuffer();
+            if(buf == null) return;
+        }
+        boolean success = false;
+        try {
+            synchronized(transferBuffer) {
+                spillFile.pread((long)chunk.slot * CHUNK_SIZE, transferBuffer, 0, CHUNK_SIZE);
+                buf.clear();
+                buf.put(transferBuffer);
+            }
+            success = true;
+        } finally {
+            synchronized(this) {
+                if(success) {
+                    usedSlots.clear(chunk.slot);
+                    usedSlotCount--;
+                    chunk.slot = -1;
+                    chunk.buf = buf;
+                    resident.add(chunk);
+                } else {
+                    returnBuffer(buf);
+                }
+            }
+        }
+    }
+
+    void free(Chunk chunk) {
+        synchronized(chunk) {
+            if(chunk.freed) return;
+            chunk.freed = true;
+            synchronized(this) {
+                if(chunk.buf != null) {
+                    // May already have been removed by a spiller, which will check freed.
+                    resident.remove(chunk);
+                    returnBuffer(chunk.buf);
+                } else {
+                    usedSlots.clear(chunk.slot);
+                    usedSlotCount--;
+                }
+            }
+            chunk.buf = null;
+        }
+    }
+
+    void free(List<Chunk> chunks) {
+        for(Chunk chunk : chunks)
+            free(chunk);
+    }
+
+    /** Read from a sequence of chunks as if they were one buffer. Caller must check bounds. */
+    void read(List<Chunk> chunks, long offset, byte[] buf, int bufOffset, int length)
+    throws IOException {
+        while(length > 0) {
+            int chunkOffset = (int) (offset % CHUNK_SIZE);
+            int toRead = Math.min(length, CHUNK_SIZE - chunkOffset);
+            access(chunks.get((int) (offset / CHUNK_SIZE)), chunkOffset, buf, bufOffset, toRead, false);
+            offset += toRead;
+            bufOffset += toRead;
+            length -= toRead;
+        }
+    }
+
+    /** Write to a sequence of chunks as if they were one buffer. Caller must check bounds. */
+    void write(List<Chunk> chunks, long offset, byte[] buf, int bufOffset, int length)
+    throws IOException {
+        while(length > 0) {
+            int chunkOffset = (int) (offset % CHUNK_SIZE);
+            int toWrite = Math.min(length, CHUNK_SIZE - chunkOffset);
+            access(chunks.get((int) (offset / CHUNK_SIZE)), chunkOffset, buf, bufOffset, toWrite, true);
+            offset += toWrite;
+            bufOffset += toWrite;
+            length -= toWrite;
+        }
+    }
+
+    private void access(Chunk chunk, int offset, byte[] buf, int bufOffset, int length,
+            boolean write) throws IOException {
+        boolean hit;
+        synchronized(chunk) {
+            if(chunk.freed) throw new IOException("Already freed");
+            hit = chunk.buf != null;
+            if(!hit) maybeUnspill(chunk);
+            if(chunk.buf != null) {
+                chunk.buf.clear();
+                chunk.buf.position(offset);
+                if(write)
+                    chunk.buf.put(buf, bufOffset, length);
+                else
+                    chunk.buf.get(buf, bufOffset, length);
+            } else {
+                long fileOffset = (long)chunk.slot * CHUNK_SIZE + offset;
+                if(write)
+                    spillFile.pwrite(fileOffset, buf, bufOffset, length);
+                else
+                    spillFile.pread(fileOffset, buf, bufOffset, length);
+            }
+        }
+        synchronized(this) {
+            if(hit) {
+                ramHits++;
+                // Most recently used goes last. If it's being spilled it isn't on the list.
+                if(resident.remove(chunk))
+                    resident.add(chunk);
+            } else {
+                ramMisses++;
+                maybeStartSpiller();
+            }
+        }
+    }
+
+    /** Caller must hold the arena lock. */
+    private void maybeStartSpiller() {
+        if(runningSpiller || closed) return;
+        if(resident.size() < maxChunks * TempBucketFactory.MAX_USAGE_HIGH) return;
+        if(usedSlotCount == spillSlots) return;
+        runningSpiller = true;
+        executor.execute(spiller, "Temp arena spiller");
+    }
+
+    private final Runnable spiller = new Runnable() {
+
+        @Override
+        public void run() {
+            int count = 0;
+            try {
+                while(true) {
+                    Chunk victim;
+                    synchronized(TempArena.this) {
+                        if(closed || resident.isEmpty() || usedSlotCount == spillSlots) break;
+                        if(resident.size() <= maxChunks * TempBucketFactory.MAX_USAGE_LOW) break;
+                        victim = removeOldest();
+                    }
+                    spill(victim);
+                    count++;
+                }
+            } catch (IOException e) {
+                Logger.error(this, "Unable to write to temp spill file: "+e, e);
+            } finally {
+                synchronized(TempArena.this) {
+                    runningSpiller = false;
+                }
+            }
+            if(logMINOR) Logger.minor(this, "Spilled "+count+" chunks");
+        }
+
+    };
+
+    /** Free the spill file. Buckets using the arena must not be used afterwards. */
+    void close() {
+        synchronized(this) {
+            if(closed) return;
+            closed = true;
+            freeBuffers.clear();
+        }
+        spillFile.close();
+        spillFile.free();
+    }
+
+    /** @return The number of bytes of chunks in use in RAM. */
+    public synchronized long getRamUsed() {
+        return (long)resident.size() * CHUNK_SIZE;
+    }
+
+    /** @return The number of bytes of direct memory allocated for the pool. */
+    public synchronized long getPoolSize() {
+        return (long)allocatedChunks * CHUNK_SIZE;
+    }
+
+    public synchronized long getSpillUsed() {
+        return (long)usedSlotCount * CHUNK_SIZE;
+    }
+
+    public long getSpillSize() {
+        return (long)spillSlots * CHUNK_SIZE;
+    }
+
+    /** @return The number of reads and writes that found their chunk in RAM. */
+    public synchronized long getRamHits() {
+        return ramHits;
+    }
+
+    /** @return The number of reads and writes that found their chunk in the spill file. */
+    public synchronized long getRamMisses() {
+        return ramMisses;
+    }
+
+    public synchronized double getRamHitRatio() {
+        long total = ramHits + ramMisses;
+        return total == 0 ? 1.0 : ((double) ramHits) / total;
+    }
+
+    /** @return The total number of bytes written to the spill file. */
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /** @return The number of times an allocation had to wait for chunks to be spilled. */
+    public synchronized long getMigrationStalls() {
+        return migrationStalls;
+    }
+
+    /** @return The total time in milliseconds allocations have spent waiting for chunks to be
+     * spilled. */
+    public synchronized long getMigrationStallTime() {
+        return migrationStallTime;
+    }
+
+}
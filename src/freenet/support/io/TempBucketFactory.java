@@ -54,6 +54,12 @@ import freenet.support.api.RandomAccessBucket;
  * Currently they are two factors considered for a migration:
  *	- if they are long-lived or not (@see RAMBUCKET_MAX_AGE)
  *	- if their size is over RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ * 
+ * If enableArena() has been called, new buckets and RAFs which would have been kept in RAM are
+ * instead ArenaBuckets and ArenaRandomAccessBuffers in a TempArena of maxRamUsed bytes. These 
+ * are not migrated as a whole when the pool is full: The arena writes individual chunks to its 
+ * spill file in the background. Only oversized buckets, or buckets which can't grow because 
+ * the arena and its spill file are both full, are migrated to a FileBucket.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 	public final static long defaultIncrement = 4096;
@@ -67,6 +73,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final Executor executor;
 	private volatile boolean reallyEncrypt;
 	private final MasterSecret secret;
+	/** If non-null, we keep small buckets in the arena instead of in ArrayBuckets. */
+	private volatile TempArena arena;
 	
 	/** How big can the defaultSize be for us to consider using RAMBuckets? */
 	private long maxRAMBucketSize;
@@ -156,8 +164,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		public final boolean migrateToDisk() throws IOException {
 			Bucket toMigrate = null;
 			long size;
+			boolean wasRAMBucket;
 			synchronized(this) {
-				if(!isRAMBucket() || hasBeenFreed)
+				wasRAMBucket = isRAMBucket();
+				if(!(wasRAMBucket || isArenaBucket()) || hasBeenFreed)
 					// Nothing to migrate! We don't want to switch back to ram, do we?					
 					return false;
 				toMigrate = currentBucket;
@@ -191,14 +201,18 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			if(logMINOR)
 				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
 			
-			synchronized(ramBucketQueue) {
-				ramBucketQueue.remove(getReference());
+			if(wasRAMBucket) {
+				synchronized(ramBucketQueue) {
+					ramBucketQueue.remove(getReference());
+				}
 			}
 			
-			// We can free it on-thread as it's a rambucket
+			// We can free it on-thread as it's a rambucket or in the arena
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
-			_hasFreed(size);
+			// The arena does its own accounting.
+			if(wasRAMBucket)
+				_hasFreed(size);
 			return true;
 		}
 		
@@ -206,6 +220,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			return (currentBucket instanceof ArrayBucket);
 		}
 		
+		public synchronized final boolean isArenaBucket() {
+			return (currentBucket instanceof ArenaBucket);
+		}
+		
 		@Override
 		public OutputStream getOutputStream() throws IOException {
 		    return new BufferedOutputStream(getOutputStreamUnbuffered());
@@ -257,6 +275,13 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 						}
 						migrateToDisk();
 					}
+				} else if(isArenaBucket()) {
+					// The arena spills chunks to disk by itself, so only oversized buckets are migrated.
+					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
+						if(logMINOR)
+							Logger.minor(this, "The bucket "+TempBucket.this+" is over "+SizeUtil.formatSize(maxRAMBucketSize*RAMBUCKET_CONVERSION_FACTOR)+": we will force-migrate it to disk.");
+						migrateToDisk();
+					}
 				} else {
 				    // Check for excess disk usage.
 				    if(futureSize - lastCheckedSize >= CHECK_DISK_EVERY) {
@@ -268,13 +293,27 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				}
 			}
 			
+			/** The arena has no space for the bucket to grow, and has written nothing. Copy what
+			 * we have so far to a FileBucket so the caller can retry the write there. */
+			private void _migrateArenaFull() throws IOException {
+				if(logMINOR)
+					Logger.minor(this, "The arena and its spill file are full: force-migrate "+TempBucket.this+" to disk");
+				if(!migrateToDisk())
+					throw new IOException("Unable to migrate "+TempBucket.this+" out of the arena");
+			}
+			
 			@Override
 			public final void write(int b) throws IOException {
 				synchronized(TempBucket.this) {
                     if(hasBeenFreed) throw new IOException("Already freed");
 					long futureSize = currentSize + 1;
 					_maybeMigrateRamBucket(futureSize);
-					os.write(b);
+					try {
+						os.write(b);
+					} catch (TempArena.ArenaFullException e) {
+						_migrateArenaFull();
+						os.write(b);
+					}
 					currentSize = futureSize;
 					if(isRAMBucket()) // We need to re-check because it might have changed!
 						_hasTaken(1);
@@ -287,7 +326,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				    if(hasBeenFreed) throw new IOException("Already freed");
 					long futureSize = currentSize + len;
 					_maybeMigrateRamBucket(futureSize);
-					os.write(b, off, len);
+					try {
+						os.write(b, off, len);
+					} catch (TempArena.ArenaFullException e) {
+						_migrateArenaFull();
+						os.write(b, off, len);
+					}
 					currentSize = futureSize;
 					if(isRAMBucket()) // We need to re-check because it might have changed!
 						_hasTaken(len);
@@ -572,11 +616,14 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	}
 	
 	public synchronized long getRamUsed() {
-		return bytesInUse;
+		TempArena arena = this.arena;
+		return bytesInUse + (arena == null ? 0 : arena.getRamUsed());
 	}
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		if(arena != null)
+			arena.setMaxRamUsed(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -605,6 +652,39 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public boolean isEncrypting() {
 	    return reallyEncrypt;
 	}
+	
+	/**
+	 * Keep new temp buckets and RAFs in a TempArena of maxRamUsed bytes, spilling chunks to a
+	 * single preallocated spill file, rather than in ArrayBuckets. Buckets created earlier are 
+	 * not affected. The spill file is encrypted if encryption is enabled now, and it stays that 
+	 * way even if it is disabled later.
+	 * @param spillFileSize The size of the spill file. Rounded down to whole chunks.
+	 * @throws IOException If we can't create the spill file.
+	 */
+	public synchronized void enableArena(long spillFileSize) throws IOException {
+		if(arena != null) throw new IllegalStateException("Arena already enabled");
+		long size = spillFileSize / TempArena.CHUNK_SIZE * TempArena.CHUNK_SIZE;
+		if(size <= 0) throw new IllegalArgumentException("Spill file too small: "+spillFileSize);
+		LockableRandomAccessBuffer spillFile;
+		if(reallyEncrypt) {
+			spillFile = diskRAFFactory.makeRAF(size + CRYPT_TYPE.headerLen);
+			try {
+				spillFile = new EncryptedRandomAccessBuffer(CRYPT_TYPE, spillFile, secret, true);
+			} catch (GeneralSecurityException e) {
+				spillFile.free();
+				throw new IOException("Cannot create encrypted spill file: "+e, e);
+			}
+		} else {
+			spillFile = diskRAFFactory.makeRAF(size);
+		}
+		arena = new TempArena(executor, maxRamUsed, spillFile);
+		if(logMINOR) Logger.minor(this, "Using temp arena with spill file of "+SizeUtil.formatSize(size));
+	}
+	
+	/** @return The arena, or null if it is not enabled. Mainly for statistics. */
+	public TempArena getArena() {
+		return arena;
+	}
 
 	static final double MAX_USAGE_LOW = 0.8;
 	static final double MAX_USAGE_HIGH = 0.9;
@@ -625,10 +705,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	public TempBucket makeBucket(long size, float factor, long increment) throws IOException {
 		RandomAccessBucket realBucket = null;
 		boolean useRAMBucket = false;
+		boolean useArena = false;
 		long now = System.currentTimeMillis();
+		TempArena arena = this.arena;
 		
 		synchronized(this) {
-			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+			if(arena != null) {
+				// The arena takes care of the RAM limit.
+				useArena = (size > 0) && (size <= maxRAMBucketSize);
+			} else if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
 				useRAMBucket = true;
 			}
 			if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
@@ -638,14 +723,17 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		if(useArena)
+			realBucket = new ArenaBucket(arena);
+		else
+			realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
 			synchronized(ramBucketQueue) {
 				ramBucketQueue.add(toReturn.getReference());
 			}
-		} else {
+		} else if(!useArena) {
 		    // If we know the disk space requirement in advance, check it.
 		    if(size != -1 && size != Long.MAX_VALUE) {
 		        if(filenameGenerator.getDir().getUsableSpace() + size < minDiskSpace)
@@ -924,10 +1012,19 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	    long now = System.currentTimeMillis();
 	    
+	    TempArena arena = this.arena;
+	    if(arena != null && size > 0 && size <= getMaxRAMBucketSize()) {
+	        try {
+	            return new ArenaRandomAccessBuffer(arena, size);
+	        } catch (TempArena.ArenaFullException e) {
+	            // Use a separate file.
+	        }
+	    }
+	    
 	    TempRandomAccessBuffer raf = null;
 	    
 	    synchronized(this) {
-	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+	        if(arena == null && (size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
 	            raf = new TempRandomAccessBuffer((int)size, now);
 	            bytesInUse += size;
 	        }
@@ -972,10 +1069,22 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         
         long now = System.currentTimeMillis();
         
+        TempArena arena = this.arena;
+        if(arena != null && size > 0 && size <= getMaxRAMBucketSize()) {
+            try {
+                ArenaRandomAccessBuffer ret = new ArenaRandomAccessBuffer(arena, size);
+                ret.pwrite(0, initialContents, offset, size);
+                if(readOnly) ret.setReadOnly();
+                return ret;
+            } catch (TempArena.ArenaFullException e) {
+                // Use a separate file.
+            }
+        }
+        
         TempRandomAccessBuffer raf = null;
         
         synchronized(this) {
-            if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+            if(arena == null && (size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
                 raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
                 bytesInUse += size;
             }
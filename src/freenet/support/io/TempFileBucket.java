@@ -144,6 +144,12 @@ public class TempFileBucket extends BaseFileBucket implements Bucket, Serializab
 	    }
 	}
 
+    /** @return The file innerResume() will use, before we have resumed. */
+    File getFileToResume(FilenameGenerator generator) {
+        if(file != null && file.exists()) return file;
+        return generator.getFilename(filenameID);
+    }
+
     @Override
     public final void onResume(ClientContext context) throws ResumeFailedException {
         if(!persistent()) throw new UnsupportedOperationException();
@@ -1,12 +1,20 @@
 package freenet.client;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 import junit.framework.TestCase;
 
 import freenet.client.events.SimpleEventProducer;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.support.TestProperty;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.StorageFormatException;
@@ -29,4 +37,66 @@ public class FetchContextTest extends TestCase {
         bucket.free();
     }
 
+    private static final int BENCHMARK_REQUESTS = 50000;
+    
+    /** Compare reading a queue of downloads serialized with Java serialization with reading it
+     * in the compact binary format used by ClientLayerPersister, using the two biggest parts of
+     * a download: The URI and the FetchContext. */
+    public void testBenchmarkCompactFormat() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        FreenetURI base = InsertableClientSSK.createRandom(new DummyRandomSource(1234), "test").getURI();
+        FetchContext context = 
+            HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE, Long.MAX_VALUE, 
+                    new ArrayBucketFactory(), new SimpleEventProducer());
+        FreenetURI[] uris = new FreenetURI[BENCHMARK_REQUESTS];
+        for(int i=0;i<uris.length;i++)
+            uris[i] = base.setDocName("file"+i);
+        // Warm up on the first iteration.
+        for(int i=0;i<2;i++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            for(FreenetURI uri : uris) {
+                // ClientLayerPersister writes each request with a new ObjectOutputStream.
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                ObjectOutputStream inner = new ObjectOutputStream(record);
+                inner.writeObject(uri);
+                inner.writeObject(context);
+                inner.close();
+                oos.writeInt(record.size());
+                oos.write(record.toByteArray());
+            }
+            oos.close();
+            byte[] serialized = baos.toByteArray();
+            long start = System.nanoTime();
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+            for(int j=0;j<uris.length;j++) {
+                byte[] record = new byte[ois.readInt()];
+                ois.readFully(record);
+                ObjectInputStream inner = new ObjectInputStream(new ByteArrayInputStream(record));
+                assertEquals(uris[j], inner.readObject());
+                assertNotNull(inner.readObject());
+            }
+            long serializedTime = System.nanoTime() - start;
+            baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            for(FreenetURI uri : uris) {
+                dos.writeUTF(uri.toString());
+                context.writeTo(dos);
+            }
+            dos.close();
+            byte[] compact = baos.toByteArray();
+            start = System.nanoTime();
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(compact));
+            for(int j=0;j<uris.length;j++) {
+                assertEquals(uris[j], new FreenetURI(dis.readUTF()));
+                new FetchContext(dis);
+            }
+            long compactTime = System.nanoTime() - start;
+            if(i == 0) continue;
+            System.out.println(BENCHMARK_REQUESTS+" downloads: serialized "+serialized.length+
+                    " bytes read in "+(serializedTime / 1000000)+"ms, compact "+compact.length+
+                    " bytes read in "+(compactTime / 1000000)+"ms");
+        }
+    }
+
 }
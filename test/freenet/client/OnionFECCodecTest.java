@@ -14,7 +14,7 @@ public class OnionFECCodecTest extends TestCase {
     private static final int BLOCK_SIZE = 4096;
     private static final int MAX_SEGMENT_SIZE = 255;
     
-    private final OnionFECCodec codec = new OnionFECCodec();
+    private final FECCodec codec = createCodec();
     private byte[][] originalDataBlocks;
     private byte[][] dataBlocks;
     private byte[][] originalCheckBlocks;
@@ -22,6 +22,10 @@ public class OnionFECCodecTest extends TestCase {
     private boolean[] checkBlocksPresent;
     private boolean[] dataBlocksPresent;
     
+    protected FECCodec createCodec() {
+        return new OnionFECCodec();
+    }
+    
     public void testDecodeRandomSubset() {
         Random r = new Random(19412106);
         int iterations = TestProperty.EXTENSIVE ? 100 : 10;
@@ -0,0 +1,151 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+
+/** Runs all of OnionFECCodecTest against ParallelFECCodec, plus checks that it produces the same
+ * check blocks as OnionFECCodec and works with blocks larger than one stripe. */
+public class ParallelFECCodecTest extends OnionFECCodecTest {
+
+    private static final int LARGE_BLOCK_SIZE = 32768;
+
+    @Override
+    protected FECCodec createCodec() {
+        return new ParallelFECCodec();
+    }
+
+    public void testKnownAnswer() {
+        // For k=2, n=3 the check block is 3*d0 + 2*d1.
+        assertTrue(Arrays.equals(new int[] { 3, 2 }, ParallelFECCodec.createCheckMatrix(2, 3)[0]));
+        byte[][] data = new byte[][] { new byte[] { 1, 0, 7, (byte)0xff }, new byte[] { 0, 1, 5, 1 } };
+        byte[][] check = new byte[][] { new byte[4] };
+        new ParallelFECCodec().encode(data, check, new boolean[1], 4);
+        for(int i=0;i<4;i++) {
+            int expected = ParallelFECCodec.multiply(3, data[0][i] & 0xff) ^
+                ParallelFECCodec.multiply(2, data[1][i] & 0xff);
+            assertEquals(expected, check[0][i] & 0xff);
+        }
+        assertEquals(3, check[0][0]);
+        assertEquals(2, check[0][1]);
+    }
+
+    public void testSameAsOnionFECCodec() {
+        Random r = new Random(29102106);
+        FECCodec onion = new OnionFECCodec();
+        FECCodec parallel = new ParallelFECCodec();
+        int[][] sizes = new int[][] { { 2, 3 }, { 128, 128 }, { 100, 155 }, { 200, 55 } };
+        for(int[] size : sizes) {
+            byte[][] data = createBlocks(r, size[0], LARGE_BLOCK_SIZE);
+            byte[][] onionCheck = createBlocks(null, size[1], LARGE_BLOCK_SIZE);
+            byte[][] parallelCheck = createBlocks(null, size[1], LARGE_BLOCK_SIZE);
+            onion.encode(data, onionCheck, new boolean[size[1]], LARGE_BLOCK_SIZE);
+            parallel.encode(data, parallelCheck, new boolean[size[1]], LARGE_BLOCK_SIZE);
+            for(int i=0;i<size[1];i++)
+                assertTrue(Arrays.equals(onionCheck[i], parallelCheck[i]));
+        }
+    }
+
+    public void testLargeBlocks() {
+        Random r = new Random(29112106);
+        // Not a multiple of the stripe size.
+        int blockLength = LARGE_BLOCK_SIZE + 100;
+        int data = 64;
+        int check = 64;
+        FECCodec codec = new ParallelFECCodec();
+        byte[][] original = createBlocks(r, data, blockLength);
+        byte[][] dataBlocks = copy(original);
+        byte[][] checkBlocks = createBlocks(null, check, blockLength);
+        codec.encode(dataBlocks, checkBlocks, new boolean[check], blockLength);
+        byte[][] originalCheck = copy(checkBlocks);
+        boolean[] dataBlocksPresent = new boolean[data];
+        boolean[] checkBlocksPresent = new boolean[check];
+        Arrays.fill(checkBlocksPresent, true);
+        // Lose every other data block and the first few check blocks.
+        for(int i=0;i<data;i++) {
+            dataBlocksPresent[i] = (i % 2 == 1);
+            if(!dataBlocksPresent[i]) Arrays.fill(dataBlocks[i], (byte)0);
+        }
+        for(int i=0;i<check/4;i++) {
+            checkBlocksPresent[i] = false;
+            Arrays.fill(checkBlocks[i], (byte)0);
+        }
+        codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength);
+        for(int i=0;i<data;i++)
+            assertTrue(Arrays.equals(original[i], dataBlocks[i]));
+        Arrays.fill(dataBlocksPresent, true);
+        codec.encode(dataBlocks, checkBlocks, checkBlocksPresent, blockLength);
+        for(int i=0;i<check;i++)
+            assertTrue(Arrays.equals(originalCheck[i], checkBlocks[i]));
+    }
+
+    public void testDecodeThrowsOnTooFewBlocks() {
+        Random r = new Random(29122106);
+        FECCodec codec = new ParallelFECCodec();
+        byte[][] dataBlocks = createBlocks(r, 10, BLOCK_LENGTH_SMALL);
+        byte[][] checkBlocks = createBlocks(null, 10, BLOCK_LENGTH_SMALL);
+        boolean[] dataBlocksPresent = new boolean[10];
+        boolean[] checkBlocksPresent = new boolean[10];
+        dataBlocksPresent[0] = true;
+        checkBlocksPresent[0] = true;
+        try {
+            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, BLOCK_LENGTH_SMALL);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    private static final int BLOCK_LENGTH_SMALL = 1024;
+
+    /** Encode and decode a 128/128 segment of 32KB blocks, as used for splitfiles. */
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(29132106);
+        benchmark(new OnionFECCodec(), r);
+        benchmark(new ParallelFECCodec(), r);
+    }
+
+    private void benchmark(FECCodec codec, Random r) {
+        int data = 128;
+        int check = 128;
+        byte[][] original = createBlocks(r, data, LARGE_BLOCK_SIZE);
+        byte[][] checkBlocks = createBlocks(null, check, LARGE_BLOCK_SIZE);
+        int iterations = 20;
+        long encodeTime = 0;
+        long decodeTime = 0;
+        // Warm up on the first iteration.
+        for(int i=0;i<=iterations;i++) {
+            byte[][] dataBlocks = copy(original);
+            long start = System.nanoTime();
+            codec.encode(dataBlocks, checkBlocks, new boolean[check], LARGE_BLOCK_SIZE);
+            long end = System.nanoTime();
+            if(i > 0) encodeTime += end - start;
+            // Worst case: All data blocks missing.
+            boolean[] dataBlocksPresent = new boolean[data];
+            boolean[] checkBlocksPresent = new boolean[check];
+            Arrays.fill(checkBlocksPresent, true);
+            for(byte[] block : dataBlocks) Arrays.fill(block, (byte)0);
+            start = System.nanoTime();
+            codec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, LARGE_BLOCK_SIZE);
+            end = System.nanoTime();
+            if(i > 0) decodeTime += end - start;
+            assertTrue(Arrays.equals(original[0], dataBlocks[0]));
+        }
+        long segmentBytes = (long)data * LARGE_BLOCK_SIZE;
+        System.out.println(codec.getClass().getSimpleName()+": encode "+
+                (segmentBytes * iterations * 1000 / encodeTime)+" MB/s, decode "+
+                (segmentBytes * iterations * 1000 / decodeTime)+" MB/s");
+    }
+
+    private static byte[][] createBlocks(Random r, int count, int blockLength) {
+        byte[][] blocks = new byte[count][];
+        for(int i=0;i<count;i++) {
+            blocks[i] = new byte[blockLength];
+            if(r != null) r.nextBytes(blocks[i]);
+        }
+        return blocks;
+    }
+
+}
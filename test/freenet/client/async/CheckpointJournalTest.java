@@ -0,0 +1,149 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import freenet.clients.fcp.RequestIdentifier;
+import junit.framework.TestCase;
+
+public class CheckpointJournalTest extends TestCase {
+    
+    private final RequestIdentifier a = makeID("a");
+    private final RequestIdentifier b = makeID("b");
+    
+    /** Make an identifier for a request on the global queue. */
+    static RequestIdentifier makeID(String identifier) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(0x25ebd38d); // RequestIdentifier.MAGIC
+            dos.writeShort(1); // RequestIdentifier.VERSION
+            dos.writeBoolean(true);
+            dos.writeUTF(identifier);
+            dos.writeShort(0); // GET
+            dos.close();
+            return new RequestIdentifier(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+    
+    private static Set<RequestIdentifier> set(RequestIdentifier... ids) {
+        Set<RequestIdentifier> ret = new HashSet<RequestIdentifier>();
+        Collections.addAll(ret, ids);
+        return ret;
+    }
+    
+    public void testFirstCheckpointCompacts() {
+        CheckpointJournal journal = new CheckpointJournal();
+        assertTrue(journal.startCheckpoint());
+        assertTrue(journal.add(a));
+        assertTrue(journal.removed(set(a)).isEmpty());
+        journal.onCompacted(1000);
+        assertFalse(journal.startCheckpoint());
+        // Already written, so only written again if it has changed.
+        assertFalse(journal.add(a));
+        assertTrue(journal.add(b));
+        assertTrue(journal.removed(set(a, b)).isEmpty());
+    }
+    
+    public void testRemovalJournalledOnce() {
+        CheckpointJournal journal = compacted(a, b);
+        assertFalse(journal.startCheckpoint());
+        journal.add(b);
+        assertEquals(set(a), journal.removed(set(b)));
+        journal.onJournalWritten(100);
+        assertFalse(journal.startCheckpoint());
+        journal.add(b);
+        assertTrue(journal.removed(set(b)).isEmpty());
+        assertEquals(1, journal.size());
+    }
+    
+    /** A request we tried to write may be on disk even if writing it failed, so its removal 
+     * must still be journalled. */
+    public void testRemovalAfterFailedWrite() {
+        CheckpointJournal journal = compacted();
+        assertFalse(journal.startCheckpoint());
+        assertTrue(journal.add(a)); // Writing the request fails, but the journal is written.
+        journal.removed(set(a));
+        journal.onJournalWritten(100);
+        assertFalse(journal.startCheckpoint());
+        assertEquals(set(a), journal.removed(set()));
+    }
+    
+    public void testFailedCheckpointCompacts() {
+        CheckpointJournal journal = compacted(a);
+        assertFalse(journal.startCheckpoint());
+        journal.add(a);
+        journal.removed(set(a));
+        // Writing the journal file failed.
+        journal.mustCompact();
+        assertTrue(journal.startCheckpoint());
+        assertTrue(journal.add(a));
+        assertEquals(0, journal.getSequence());
+    }
+    
+    public void testCompactAfterTooManyJournalFiles() {
+        CheckpointJournal journal = compacted(a);
+        for(int i=0;i<CheckpointJournal.MAX_JOURNAL_FILES;i++) {
+            assertFalse(journal.startCheckpoint());
+            assertEquals(i, journal.getSequence());
+            journal.add(a);
+            journal.removed(set(a));
+            journal.onJournalWritten(10);
+        }
+        assertTrue(journal.startCheckpoint());
+        journal.add(a);
+        journal.removed(set(a));
+        journal.onCompacted(1000);
+        assertEquals(0, journal.getSequence());
+        assertEquals(0, journal.getJournalBytes());
+        assertFalse(journal.startCheckpoint());
+    }
+    
+    public void testCompactWhenJournalBig() {
+        CheckpointJournal journal = compacted(a);
+        journal.onCompacted(CheckpointJournal.MIN_JOURNAL_BYTES_COMPACT * 2);
+        assertFalse(journal.startCheckpoint());
+        journal.onJournalWritten(CheckpointJournal.MIN_JOURNAL_BYTES_COMPACT * 2 - 1);
+        // Smaller than client.dat.
+        assertFalse(journal.startCheckpoint());
+        journal.onJournalWritten(2);
+        assertTrue(journal.startCheckpoint());
+        // Never compact just because client.dat is tiny.
+        journal = compacted(a);
+        journal.onCompacted(10);
+        journal.onJournalWritten(CheckpointJournal.MIN_JOURNAL_BYTES_COMPACT - 1);
+        assertFalse(journal.startCheckpoint());
+    }
+    
+    public void testCompactPeriodically() {
+        CheckpointJournal journal = new CheckpointJournal();
+        assertTrue(journal.startCheckpoint(1000));
+        journal.add(a);
+        journal.removed(set(a));
+        journal.onCompacted(1000, 1000);
+        assertFalse(journal.startCheckpoint(1000 + CheckpointJournal.MAX_JOURNAL_AGE - 1));
+        journal.onJournalWritten(10);
+        assertTrue(journal.startCheckpoint(1000 + CheckpointJournal.MAX_JOURNAL_AGE));
+        // Everything is written again.
+        assertTrue(journal.add(a));
+    }
+    
+    private static CheckpointJournal compacted(RequestIdentifier... ids) {
+        CheckpointJournal journal = new CheckpointJournal();
+        assertTrue(journal.startCheckpoint());
+        for(RequestIdentifier id : ids)
+            journal.add(id);
+        journal.removed(set(ids));
+        journal.onCompacted(1000);
+        return journal;
+    }
+
+}
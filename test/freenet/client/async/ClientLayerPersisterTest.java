@@ -0,0 +1,151 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import freenet.client.FetchContext;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.async.ClientLayerPersister.PartialLoad;
+import freenet.client.async.ClientLayerPersister.RequestImage;
+import freenet.client.async.ClientLayerPersister.RequestLoadStatus;
+import freenet.client.events.SimpleEventProducer;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.support.TestProperty;
+import freenet.support.io.ArrayBucketFactory;
+import junit.framework.TestCase;
+
+/** Tests replaying the journal on top of client.dat. Files are read in the order 
+ * ClientLayerPersister reads them: client.dat, client.dat.bak, then the journal files. */
+public class ClientLayerPersisterTest extends TestCase {
+    
+    private final RequestIdentifier a = CheckpointJournalTest.makeID("a");
+    private final RequestIdentifier b = CheckpointJournalTest.makeID("b");
+    
+    private static final byte[] OLD = new byte[] { 1 };
+    private static final byte[] NEW = new byte[] { 2 };
+    private static final byte[] NEWER = new byte[] { 3 };
+    
+    public void testJournalReplacesClientDat() {
+        PartialLoad loaded = new PartialLoad();
+        loaded.addCompactRequest(a, OLD);
+        loaded.addCompactRequest(b, OLD);
+        // Backup is only used if the request is missing from client.dat.
+        loaded.addCompactRequest(a, NEWER);
+        assertSame(OLD, loaded.get(a).clientDetail);
+        loaded.addJournalledCompactRequest(a, NEW);
+        loaded.addJournalledCompactRequest(a, NEWER);
+        assertSame(NEWER, loaded.get(a).clientDetail);
+        assertSame(OLD, loaded.get(b).clientDetail);
+    }
+    
+    public void testJournalRemoval() {
+        PartialLoad loaded = new PartialLoad();
+        loaded.addCompactRequest(a, OLD);
+        loaded.addCompactRequest(b, OLD);
+        loaded.removeRequest(a);
+        assertNull(loaded.get(a));
+        assertNotNull(loaded.get(b));
+        // Re-added by a later journal file.
+        loaded.addJournalledCompactRequest(a, NEW);
+        assertSame(NEW, loaded.get(a).clientDetail);
+        loaded.removeRequest(a);
+        assertNull(loaded.get(a));
+    }
+    
+    public void testRemovedNotRestoredFromOlderFile() {
+        PartialLoad loaded = new PartialLoad();
+        loaded.removeRequest(a);
+        loaded.addCompactRequest(a, OLD);
+        assertNull(loaded.get(a));
+    }
+    
+    /** If we can't read the latest version from the journal, we use an older one. */
+    public void testFailedJournalRecordKeepsOlder() {
+        PartialLoad loaded = new PartialLoad();
+        loaded.addCompactRequest(a, OLD);
+        loaded.addJournalledRequest(a, null, RequestLoadStatus.FAILED, null);
+        assertSame(OLD, loaded.get(a).clientDetail);
+        assertTrue(loaded.needsMore());
+    }
+    
+    /** A serialized version from an older file is kept in case the compact record can't be 
+     * restored. */
+    public void testFallbackToSerialized() {
+        PartialLoad loaded = new PartialLoad();
+        loaded.addCompactRequest(a, NEW);
+        loaded.addPartiallyLoadedRequest(a, null, RequestLoadStatus.RESTORED_RESTARTED, null);
+        loaded.addPartiallyLoadedRequest(a, null, RequestLoadStatus.LOADED, null);
+        assertSame(NEW, loaded.get(a).clientDetail);
+        assertSame(RequestLoadStatus.LOADED, loaded.getFallback(a).status);
+        assertNull(loaded.getFallback(b));
+    }
+    
+    public void testFallbackReplacedByJournal() {
+        PartialLoad loaded = new PartialLoad();
+        loaded.addPartiallyLoadedRequest(a, null, RequestLoadStatus.RESTORED_FULLY, null);
+        loaded.addJournalledCompactRequest(a, NEW);
+        assertSame(NEW, loaded.get(a).clientDetail);
+        assertSame(RequestLoadStatus.RESTORED_FULLY, loaded.getFallback(a).status);
+        loaded.removeRequest(a);
+        assertNull(loaded.getFallback(a));
+        // Failed versions are no use.
+        loaded.addJournalledRequest(b, null, RequestLoadStatus.FAILED, null);
+        loaded.addJournalledCompactRequest(b, NEW);
+        assertNull(loaded.getFallback(b));
+    }
+
+    private static final int BENCHMARK_REQUESTS = 50000;
+    
+    /** Time the first stage of startup for a queue of 50,000 downloads written in the compact 
+     * format: Reading client.dat into a PartialLoad. Restoring the requests from their recovery
+     * data needs a node. The recovery data here is a URI and a FetchContext, the biggest parts 
+     * of a ClientGet's. */
+    public void testBenchmarkLoadQueue() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        ClientLayerPersister persister = 
+            new ClientLayerPersister(null, null, null, null, null, null, null);
+        ClientContext context = new ClientContext(0, null, null, null, null, null, null, null, 
+                null, null, null, null, null, null, null, null, null, null, null, null, null, 
+                new PersistentRequestRoot(), null, null, null, null);
+        FreenetURI base = InsertableClientSSK.createRandom(new DummyRandomSource(1234), "test").getURI();
+        FetchContext fctx = 
+            HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE, Long.MAX_VALUE, 
+                    new ArrayBucketFactory(), new SimpleEventProducer());
+        RequestIdentifier[] ids = new RequestIdentifier[BENCHMARK_REQUESTS];
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        for(int i=0;i<ids.length;i++) {
+            ids[i] = CheckpointJournalTest.makeID("request"+i);
+            ByteArrayOutputStream detail = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(detail);
+            dos.writeUTF(base.setDocName("file"+i).toString());
+            fctx.writeTo(dos);
+            dos.close();
+            persister.writeImage(oos, new RequestImage(ids[i], true, null, detail.toByteArray()));
+        }
+        oos.close();
+        byte[] data = baos.toByteArray();
+        // Warm up on the first iteration.
+        for(int i=0;i<2;i++) {
+            long start = System.nanoTime();
+            PartialLoad loaded = new PartialLoad();
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+            for(int j=0;j<ids.length;j++)
+                persister.readRequest(loaded, ois, data.length, context, false, true, false);
+            long time = System.nanoTime() - start;
+            for(RequestIdentifier id : ids)
+                assertTrue(loaded.get(id).isCompact());
+            if(i == 0) continue;
+            System.out.println(BENCHMARK_REQUESTS+" downloads: "+data.length+" bytes read in "+
+                    (time / 1000000)+"ms");
+        }
+    }
+
+}
@@ -32,6 +32,7 @@ import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
@@ -39,6 +40,9 @@ import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -323,6 +327,169 @@ public class ClientRequestSelectorTest extends TestCase {
         
     }
     
+    /** A NullSendableInsert which can be queued at a given priority for a given client. */
+    class QueuedSendableInsert extends NullSendableInsert {
+        
+        private final short prio;
+        private final RequestClient client;
+
+        public QueuedSendableInsert(short prio, RequestClient client) {
+            super(false, false);
+            this.prio = prio;
+            this.client = client;
+        }
+        
+        @Override
+        public short getPriorityClass() {
+            return prio;
+        }
+        
+        @Override
+        public RequestClient getClient() {
+            return client;
+        }
+        
+    }
+    
+    class MyRequestClient implements RequestClient {
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public boolean realTimeFlag() {
+            return false;
+        }
+        
+    }
+    
+    class MySchedulerGroup implements ClientRequestSchedulerGroup {
+        // Just a label.
+    }
+    
+    private static final RandomGrabArrayItemExclusionList EXCLUDE_NOTHING = 
+        new RandomGrabArrayItemExclusionList() {
+
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+        
+    };
+    
+    private ClientContext makeContext(Random random) {
+        return new ClientContext(0, null, executor, null, null, null, null, null, null, null, 
+                random, ticker, null, null, null, null, null, null, null, null, null, null, null, 
+                null, null, null);
+    }
+    
+    /** Fill a selector with requests spread over the given number of clients and groups, at
+     * random fetchable priorities. */
+    private void fillSelector(ClientRequestSelector selector, int requests, int clients, 
+            int groups, Random random, ClientContext context) {
+        RequestClient[] requestClients = new RequestClient[clients];
+        for(int i=0;i<clients;i++)
+            requestClients[i] = new MyRequestClient();
+        ClientRequestSchedulerGroup[] schedulerGroups = new ClientRequestSchedulerGroup[groups];
+        for(int i=0;i<groups;i++)
+            schedulerGroups[i] = new MySchedulerGroup();
+        for(int i=0;i<requests;i++) {
+            short prio = (short) random.nextInt(RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS+1);
+            // Groups always belong to the same client, as they do in the real tree.
+            int group = random.nextInt(groups);
+            RequestClient client = requestClients[group % clients];
+            QueuedSendableInsert insert = new QueuedSendableInsert(prio, client);
+            selector.addToGrabArray(prio, client, schedulerGroups[group], insert, context);
+        }
+    }
+    
+    public void testChooseHighestPriority() {
+        Random r = new Random(12123);
+        ClientContext context = makeContext(r);
+        RandomSource random = new DummyRandomSource(12123);
+        ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        long now = System.currentTimeMillis();
+        assertEquals(Long.MAX_VALUE, selector.chooseRequestInner(0, random, null, 
+                EXCLUDE_NOTHING, false, context, now).wakeupTime);
+        RequestClient client = new MyRequestClient();
+        ClientRequestSchedulerGroup group = new MySchedulerGroup();
+        QueuedSendableInsert bulk = 
+            new QueuedSendableInsert(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, client);
+        QueuedSendableInsert interactive = 
+            new QueuedSendableInsert(RequestStarter.INTERACTIVE_PRIORITY_CLASS, client);
+        selector.addToGrabArray(bulk.getPriorityClass(), client, group, bulk, context);
+        assertEquals(bulk, selector.chooseRequestInner(0, random, null, EXCLUDE_NOTHING, false, 
+                context, now).req);
+        selector.addToGrabArray(interactive.getPriorityClass(), client, group, interactive, context);
+        for(int i=0;i<10;i++)
+            assertEquals(interactive, selector.chooseRequestInner(0, random, null, 
+                    EXCLUDE_NOTHING, false, context, now).req);
+        interactive.getParentGrabArray().remove(interactive, context);
+        assertEquals(bulk, selector.chooseRequestInner(0, random, null, EXCLUDE_NOTHING, false, 
+                context, now).req);
+    }
+    
+    public void testChooseRequestConcurrentRegistration() throws InterruptedException {
+        final Random r = new Random(12124);
+        final ClientContext context = makeContext(r);
+        RandomSource random = new DummyRandomSource(12124);
+        final ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        Thread[] adders = new Thread[4];
+        for(int i=0;i<adders.length;i++) {
+            final int seed = i;
+            adders[i] = new Thread() {
+                @Override
+                public void run() {
+                    fillSelector(selector, 1000, 10, 100, new Random(seed), context);
+                }
+            };
+            adders[i].start();
+        }
+        int chosen = 0;
+        for(Thread adder : adders) {
+            while(adder.isAlive()) {
+                if(selector.chooseRequestInner(-1, random, null, EXCLUDE_NOTHING, false, context, 
+                        System.currentTimeMillis()).req != null)
+                    chosen++;
+            }
+            adder.join();
+        }
+        for(int i=0;i<100;i++) {
+            assertNotNull(selector.chooseRequestInner(-1, random, null, EXCLUDE_NOTHING, false, 
+                    context, System.currentTimeMillis()).req);
+        }
+        if(TestProperty.VERBOSE)
+            System.out.println("Chose "+chosen+" requests while registering");
+    }
+    
+    public void testChooseRequestBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        int[] sizes = new int[] { 100, 1000, 10000, 50000, 200000 };
+        for(int size : sizes) {
+            Random r = new Random(12125);
+            ClientContext context = makeContext(r);
+            RandomSource random = new DummyRandomSource(12125);
+            ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+            fillSelector(selector, size, Math.max(1, size / 1000), Math.max(1, size / 10), r, 
+                    context);
+            int iterations = 100000;
+            // Warm up.
+            for(int i=0;i<iterations/10;i++)
+                selector.chooseRequestInner(-1, random, null, EXCLUDE_NOTHING, false, context, 
+                        System.currentTimeMillis());
+            long start = System.nanoTime();
+            for(int i=0;i<iterations;i++) {
+                assertNotNull(selector.chooseRequestInner(-1, random, null, EXCLUDE_NOTHING, 
+                        false, context, System.currentTimeMillis()).req);
+            }
+            long end = System.nanoTime();
+            System.out.println("Queue size "+size+" : "+(iterations * 1000L * 1000 * 1000 / 
+                    (end - start))+" chooseRequest() per second");
+        }
+    }
+
     public void testSmallSplitfileChooseCompletion() throws IOException, InsertException, MissingKeyException {
         Random r = new Random(12121);
         long size = 65536; // Exact multiple, so no last block
@@ -0,0 +1,188 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+import freenet.support.TestProperty;
+
+public class KeyListenerIndexTest extends TestCase {
+
+	/** Only the index looks at this, so none of the methods do anything. */
+	private static class DummyKeyListener implements KeyListener {
+
+		@Override
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			return false;
+		}
+
+		@Override
+		public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+			return -1;
+		}
+
+		@Override
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+			return null;
+		}
+
+		@Override
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+			return false;
+		}
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass() {
+			return 0;
+		}
+
+		@Override
+		public long countKeys() {
+			return 0;
+		}
+
+		@Override
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		@Override
+		public void onRemove() {
+			// Do nothing.
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return false;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+	}
+
+	private static byte[][] makeKeys(Random r, int count) {
+		byte[][] keys = new byte[count][];
+		for(int i=0;i<count;i++) {
+			keys[i] = new byte[32];
+			r.nextBytes(keys[i]);
+		}
+		return keys;
+	}
+
+	private static long[] hashes(byte[][] keys) {
+		long[] ret = new long[keys.length];
+		for(int i=0;i<keys.length;i++)
+			ret[i] = KeyListenerIndex.hashSaltedKey(keys[i]);
+		return ret;
+	}
+
+	private static List<KeyListener> lookup(KeyListenerIndex index, byte[] key) {
+		List<KeyListener> ret = new ArrayList<KeyListener>();
+		index.getCandidates(key, ret);
+		return ret;
+	}
+
+	public void testAddLookupRemove() {
+		Random r = new Random(1234);
+		KeyListenerIndex index = new KeyListenerIndex();
+		KeyListener[] listeners = new KeyListener[50];
+		byte[][][] keys = new byte[listeners.length][][];
+		for(int i=0;i<listeners.length;i++) {
+			listeners[i] = new DummyKeyListener();
+			// Enough keys to force the table to grow several times.
+			keys[i] = makeKeys(r, 100 + i * 10);
+			assertTrue(index.add(listeners[i], hashes(keys[i])));
+		}
+		assertEquals(listeners.length, index.size());
+		for(int i=0;i<listeners.length;i++) {
+			for(byte[] key : keys[i]) {
+				List<KeyListener> found = lookup(index, key);
+				assertTrue(found.contains(listeners[i]));
+			}
+		}
+		for(byte[] key : makeKeys(r, 1000))
+			assertTrue(lookup(index, key).isEmpty());
+		// Remove enough to trigger compaction.
+		for(int i=0;i<listeners.length;i+=2) {
+			assertTrue(index.remove(listeners[i]));
+			assertFalse(index.remove(listeners[i]));
+			assertFalse(index.contains(listeners[i]));
+		}
+		assertEquals(listeners.length / 2, index.size());
+		for(int i=0;i<listeners.length;i++) {
+			for(byte[] key : keys[i]) {
+				List<KeyListener> found = lookup(index, key);
+				assertEquals(i % 2 == 1, found.contains(listeners[i]));
+			}
+		}
+		// Add them back, reusing the freed ids.
+		for(int i=0;i<listeners.length;i+=2)
+			assertTrue(index.add(listeners[i], hashes(keys[i])));
+		for(int i=0;i<listeners.length;i++) {
+			for(byte[] key : keys[i])
+				assertTrue(lookup(index, key).contains(listeners[i]));
+		}
+	}
+
+	public void testSharedKey() {
+		Random r = new Random(5678);
+		KeyListenerIndex index = new KeyListenerIndex();
+		byte[][] keys = makeKeys(r, 10);
+		KeyListener a = new DummyKeyListener();
+		KeyListener b = new DummyKeyListener();
+		// Duplicate keys within one listener are reported once.
+		long[] aHashes = hashes(keys);
+		long[] doubled = new long[aHashes.length * 2];
+		System.arraycopy(aHashes, 0, doubled, 0, aHashes.length);
+		System.arraycopy(aHashes, 0, doubled, aHashes.length, aHashes.length);
+		index.add(a, doubled);
+		index.add(b, new long[] { KeyListenerIndex.hashSaltedKey(keys[3]) });
+		List<KeyListener> found = lookup(index, keys[3]);
+		assertEquals(2, found.size());
+		assertTrue(found.contains(a));
+		assertTrue(found.contains(b));
+		found = lookup(index, keys[4]);
+		assertEquals(1, found.size());
+		assertEquals(a, found.get(0));
+		index.remove(a);
+		found = lookup(index, keys[3]);
+		assertEquals(1, found.size());
+		assertEquals(b, found.get(0));
+	}
+
+	public void testLookupBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(91011);
+		for(int listenerCount : new int[] { 10, 100, 1000 }) {
+			KeyListenerIndex index = new KeyListenerIndex();
+			for(int i=0;i<listenerCount;i++)
+				index.add(new DummyKeyListener(), hashes(makeKeys(r, 1000)));
+			byte[][] probes = makeKeys(r, 100000);
+			List<KeyListener> candidates = new ArrayList<KeyListener>();
+			long start = System.nanoTime();
+			int hits = 0;
+			for(byte[] probe : probes) {
+				candidates.clear();
+				index.getCandidates(probe, candidates);
+				hits += candidates.size();
+			}
+			long time = System.nanoTime() - start;
+			System.out.println("Listeners: "+listenerCount+" keys: "+(listenerCount*1000)+
+					" lookups per second: "+(probes.length * 1000L * 1000 * 1000 / time)+
+					" false positives: "+hits);
+		}
+	}
+
+}
@@ -101,6 +101,79 @@ public class PersistentJobRunnerImplTest extends TestCase {
 
     }
     
+    /** Takes a snapshot with jobs suspended, and then writes it in the background, waiting for 
+     * the test to allow each write. */
+    private class BackgroundJobRunner extends PersistentJobRunnerImpl {
+        
+        private int prepared;
+        private int writesStarted;
+        private int writesAllowed;
+        private int written;
+
+        public BackgroundJobRunner(Executor executor, Ticker ticker, long interval) {
+            super(executor, ticker, interval);
+        }
+
+        @Override
+        public boolean newSalt() {
+            return false;
+        }
+
+        @Override
+        protected void innerCheckpoint(boolean shutdown) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        protected synchronized CheckpointWriter prepareCheckpoint(boolean shutdown) {
+            prepared++;
+            return new CheckpointWriter() {
+
+                @Override
+                public void write() {
+                    synchronized(BackgroundJobRunner.this) {
+                        writesStarted++;
+                        BackgroundJobRunner.this.notifyAll();
+                        while(writesAllowed < writesStarted) {
+                            try {
+                                BackgroundJobRunner.this.wait();
+                            } catch (InterruptedException e) {
+                                // Ignore.
+                            }
+                        }
+                        written++;
+                        BackgroundJobRunner.this.notifyAll();
+                    }
+                }
+                
+            };
+        }
+        
+        public synchronized void waitForWriteStarted(int count) {
+            while(writesStarted < count) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+        
+        public synchronized void allowWrite() {
+            writesAllowed++;
+            notifyAll();
+        }
+        
+        public synchronized int prepared() {
+            return prepared;
+        }
+        
+        public synchronized int written() {
+            return written;
+        }
+        
+    }
+    
     private class WaitAndCheckpoint implements Runnable {
 
         private final JobRunner jobRunner;
@@ -169,6 +242,54 @@ public class PersistentJobRunnerImplTest extends TestCase {
         assertTrue(w.finished());
     }
     
+    public void testWriteInBackground() throws PersistenceDisabledException {
+        BackgroundJobRunner runner = new BackgroundJobRunner(exec, ticker, 1000);
+        runner.start(context);
+        runner.onStarted(false);
+        runner.waitForWriteStarted(1);
+        runner.allowWrite();
+        exec.waitForIdle();
+        assertEquals(1, runner.written());
+        // Ask for a checkpoint.
+        runner.queue(new PersistentJob() {
+
+            @Override
+            public boolean run(ClientContext context) {
+                return true;
+            }
+            
+        }, NativeThread.NORM_PRIORITY);
+        runner.waitForWriteStarted(2);
+        assertEquals(2, runner.prepared());
+        assertFalse(runner.mustCheckpoint());
+        // Jobs run while the checkpoint is being written.
+        WakeableJob w = new WakeableJob();
+        runner.queue(w, NativeThread.NORM_PRIORITY);
+        w.waitForStarted();
+        w.wakeUp();
+        // Asking for another checkpoint doesn't hold back jobs until the write has finished.
+        runner.setCheckpointASAP();
+        assertFalse(runner.mustCheckpoint());
+        w = new WakeableJob();
+        runner.queue(w, NativeThread.NORM_PRIORITY);
+        w.waitForStarted();
+        w.wakeUp();
+        assertEquals(2, runner.prepared());
+        assertEquals(1, runner.written());
+        // Once it has finished, we checkpoint again.
+        runner.allowWrite();
+        runner.waitForWriteStarted(3);
+        assertEquals(3, runner.prepared());
+        assertEquals(2, runner.written());
+        runner.allowWrite();
+        exec.waitForIdle();
+        assertEquals(3, runner.written());
+        long total = 0;
+        for(long count : runner.getStallHistogram())
+            total += count;
+        assertEquals(3, total);
+    }
+    
     public void testDisabledCheckpointing() throws PersistenceDisabledException {
         jobRunner.setCheckpointASAP();
         exec.waitForIdle();
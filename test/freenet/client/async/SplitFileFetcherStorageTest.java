@@ -1,8 +1,10 @@
 package freenet.client.async;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collections;
@@ -856,6 +858,136 @@ public class SplitFileFetcherStorageTest extends TestCase {
         }
     }
     
+    /** Receives the data from SplitFileFetcherStorage.streamInOrder(). */
+    private static class StreamWriter implements SplitFileFetcherStorage.OrderedStreamCallback {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean finished;
+        IOException error;
+        
+        StreamWriter(SplitFileFetcherStorage storage) {
+            storage.streamInOrder(this, exec);
+        }
+        
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public synchronized void onWritten() {
+            finished = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFailed(IOException e) {
+            error = e;
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized boolean isFinished() {
+            return finished;
+        }
+
+        synchronized void waitFinished() throws InterruptedException {
+            while(!finished) wait();
+        }
+        
+    }
+    
+    private void fetchDataBlocks(TestSplitfile test, SplitFileFetcherStorage storage, int segNo) throws CHKEncodeException, IOException {
+        SplitFileFetcherSegmentStorage segment = storage.segments[segNo];
+        for(int i=0;i<test.dataBlocks.length;i++) {
+            if(test.segmentFor(i) != segNo) continue;
+            assertTrue(segment.onGotKey(test.getCHK(i), test.encodeBlock(i)));
+        }
+        waitForDecode(segment);
+    }
+    
+    public void testStreamInOrder() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, InterruptedException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, new int[] { 3, 3, 3 }, 
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        StreamWriter writer = new StreamWriter(storage);
+        // Nothing is written until the first segment has been fetched.
+        fetchDataBlocks(test, storage, 2);
+        exec.waitForIdle();
+        assertFalse(writer.isFinished());
+        assertEquals(0, writer.out.size());
+        fetchDataBlocks(test, storage, 0);
+        fetchDataBlocks(test, storage, 1);
+        writer.waitFinished();
+        assertNull(writer.error);
+        assertTrue(Arrays.equals(BucketTools.toByteArray(test.originalData), writer.out.toByteArray()));
+        cb.waitForFinished();
+        cb.checkFailed();
+        storage.finishedFetcher();
+        cb.waitForFree(storage);
+        test.free();
+    }
+    
+    public void testStreamInOrderCancel() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, InterruptedException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, new int[] { 3, 3, 3 }, 
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        StreamWriter writer = new StreamWriter(storage);
+        fetchDataBlocks(test, storage, 0);
+        // The segment is written once it has been checked.
+        while(writer.out.size() < 3*BLOCK_SIZE)
+            Thread.sleep(1);
+        storage.cancel();
+        writer.waitFinished();
+        assertTrue(writer.error instanceof InterruptedIOException);
+        assertEquals(3*BLOCK_SIZE, writer.out.size());
+        test.free();
+    }
+    
+    public void testRangeSource() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException, InterruptedException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, new int[] { 3, 3, 3 }, 
+                new int[] { 4, 4, 4 }, 3, 4, 0, InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        final RangeSource ranges = storage.rangeSource();
+        assertEquals(32768*9-1, ranges.size());
+        // Only needs the middle segment.
+        final long start = 3*BLOCK_SIZE + 100;
+        final long end = 5*BLOCK_SIZE + 50;
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ranges.writeRange(baos, start, end);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        reader.start();
+        fetchDataBlocks(test, storage, 0);
+        reader.join(100);
+        assertTrue(reader.isAlive());
+        fetchDataBlocks(test, storage, 1);
+        reader.join();
+        assertNull(error[0]);
+        byte[] original = BucketTools.toByteArray(test.originalData);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(original, (int)start, (int)end), baos.toByteArray()));
+        // The end of the last segment is truncated to the file length.
+        fetchDataBlocks(test, storage, 2);
+        baos.reset();
+        ranges.writeRange(baos, 7*BLOCK_SIZE, original.length);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(original, 7*BLOCK_SIZE, original.length), baos.toByteArray()));
+        cb.waitForFinished();
+        cb.checkFailed();
+        storage.finishedFetcher();
+        cb.waitForFree(storage);
+        test.free();
+    }
+    
     static class MyKeysFetchingLocally implements KeysFetchingLocally {
         private final HashSet<Key> keys = new HashSet<Key>();
 
@@ -0,0 +1,187 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.USK;
+
+public class USKEditionIndexTest extends TestCase {
+
+	private FreenetURI keyURI;
+
+	@Override
+	protected void setUp() {
+		keyURI = InsertableClientSSK.createRandom(new DummyRandomSource(1234), "test").getURI();
+	}
+
+	private static TreeMap<USK, Object> makeMap() {
+		return new TreeMap<USK, Object>(USK.FAST_COMPARATOR);
+	}
+
+	private USK makeUSK(int i) throws MalformedURLException {
+		return new USK(keyURI.getRoutingKey(), keyURI.getCryptoKey(), keyURI.getExtra(), "site"+i, 0);
+	}
+
+	public void testUpdateAndLookup() throws MalformedURLException {
+		TreeMap<USK, Object> saved = makeMap();
+		USKEditionIndex index = new USKEditionIndex(100, saved, saved);
+		USK usk = makeUSK(0);
+		saved.put(usk, this);
+		assertEquals(-1, index.lookupLatestSlot(usk));
+		assertEquals(-1, index.lookupKnownGood(usk));
+		assertEquals(0, index.lastChecked(usk));
+		assertFalse(index.isDirty());
+		assertTrue(index.updateLatestSlot(usk, 5));
+		assertTrue(index.isDirty());
+		assertFalse(index.updateLatestSlot(usk, 5));
+		assertFalse(index.updateLatestSlot(usk, 3));
+		assertEquals(5, index.lookupLatestSlot(usk));
+		assertEquals(-1, index.lookupKnownGood(usk));
+		assertTrue(index.updateKnownGood(usk, 4));
+		assertFalse(index.updateKnownGood(usk, 2));
+		assertEquals(4, index.lookupKnownGood(usk));
+		assertEquals(5, index.lookupLatestSlot(usk));
+		index.setLastChecked(usk, 1000);
+		assertEquals(1000, index.lastChecked(usk));
+		assertEquals(-1, index.lookupLatestSlot(makeUSK(1)));
+		assertEquals(1, index.size());
+	}
+
+	public void testWriteRead() throws IOException {
+		TreeMap<USK, Object> saved = makeMap();
+		USKEditionIndex index = new USKEditionIndex(100, saved, saved);
+		for(int i=0;i<20;i++) {
+			USK usk = makeUSK(i);
+			saved.put(usk, this);
+			index.updateLatestSlot(usk, i * 2);
+			if(i % 2 == 0)
+				index.updateKnownGood(usk, i);
+			index.setLastChecked(usk, 1000 + i);
+		}
+		USKEditionIndex.Snapshot snapshot = index.snapshot();
+		assertTrue(index.isDirty());
+		index.onWritten(snapshot);
+		assertFalse(index.isDirty());
+		assertEquals(20, snapshot.size());
+		USKEditionIndex copy = new USKEditionIndex(100, makeMap(), makeMap());
+		copy.read(toStream(snapshot));
+		assertEquals(20, copy.size());
+		assertFalse(copy.isDirty());
+		for(int i=0;i<20;i++) {
+			USK usk = makeUSK(i);
+			assertEquals(i * 2, copy.lookupLatestSlot(usk));
+			assertEquals(i % 2 == 0 ? i : -1, copy.lookupKnownGood(usk));
+			assertEquals(1000 + i, copy.lastChecked(usk));
+		}
+		// Don't go backwards if we already know a later edition.
+		copy.updateLatestSlot(makeUSK(1), 100);
+		copy.read(toStream(snapshot));
+		assertEquals(100, copy.lookupLatestSlot(makeUSK(1)));
+	}
+
+	/** Only the USKs we poll in the background are saved: Anything else would be a history of
+	 * the freesites we have visited. */
+	public void testOnlySavesBackgroundUSKs() throws IOException {
+		TreeMap<USK, Object> subscribed = makeMap();
+		TreeMap<USK, Object> saved = makeMap();
+		USKEditionIndex index = new USKEditionIndex(100, subscribed, saved);
+		USK visited = makeUSK(0);
+		USK polled = makeUSK(1);
+		subscribed.put(polled, this);
+		saved.put(polled, this);
+		index.updateLatestSlot(visited, 3);
+		assertFalse(index.isDirty());
+		index.updateLatestSlot(polled, 5);
+		assertTrue(index.isDirty());
+		USKEditionIndex.Snapshot snapshot = index.snapshot();
+		assertEquals(1, snapshot.size());
+		USKEditionIndex copy = new USKEditionIndex(100, makeMap(), makeMap());
+		copy.read(toStream(snapshot));
+		assertEquals(-1, copy.lookupLatestSlot(visited));
+		assertEquals(5, copy.lookupLatestSlot(polled));
+		// Unsubscribing changes what we save.
+		saved.remove(polled);
+		index.savedChanged();
+		assertTrue(index.isDirty());
+		assertEquals(0, index.snapshot().size());
+	}
+
+	/** If writing a snapshot fails, or the index changes after the snapshot, we stay dirty. */
+	public void testDirtyUntilWritten() throws MalformedURLException {
+		TreeMap<USK, Object> saved = makeMap();
+		USKEditionIndex index = new USKEditionIndex(100, saved, saved);
+		USK usk = makeUSK(0);
+		saved.put(usk, this);
+		index.updateLatestSlot(usk, 1);
+		index.snapshot();
+		// Failed to write it.
+		assertTrue(index.isDirty());
+		USKEditionIndex.Snapshot snapshot = index.snapshot();
+		index.updateLatestSlot(usk, 2);
+		index.onWritten(snapshot);
+		assertTrue(index.isDirty());
+		index.onWritten(index.snapshot());
+		assertFalse(index.isDirty());
+		// Writing an empty snapshot also counts.
+		index.updateLatestSlot(usk, 3);
+		index.onWritten(index.emptySnapshot());
+		assertFalse(index.isDirty());
+	}
+
+	public void testReadCorrupt() throws IOException {
+		TreeMap<USK, Object> saved = makeMap();
+		USKEditionIndex index = new USKEditionIndex(100, saved, saved);
+		saved.put(makeUSK(0), this);
+		index.updateLatestSlot(makeUSK(0), 1);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		index.snapshot().writeTo(dos);
+		dos.close();
+		byte[] buf = baos.toByteArray();
+		byte[] truncated = new byte[buf.length - 1];
+		System.arraycopy(buf, 0, truncated, 0, truncated.length);
+		try {
+			new USKEditionIndex(100, makeMap(), makeMap()).read(
+					new DataInputStream(new ByteArrayInputStream(truncated)));
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	private static DataInputStream toStream(USKEditionIndex.Snapshot snapshot) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		snapshot.writeTo(dos);
+		dos.close();
+		return new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+	}
+
+	public void testBoundedKeepsSubscribed() throws MalformedURLException {
+		TreeMap<USK, Object> subscribed = makeMap();
+		USKEditionIndex index = new USKEditionIndex(10, subscribed, makeMap());
+		subscribed.put(makeUSK(0), this);
+		subscribed.put(makeUSK(3), this);
+		for(int i=0;i<30;i++)
+			index.updateLatestSlot(makeUSK(i), i + 1);
+		assertEquals(10, index.size());
+		// Subscribed USKs are kept however old they are.
+		assertEquals(1, index.lookupLatestSlot(makeUSK(0)));
+		assertEquals(4, index.lookupLatestSlot(makeUSK(3)));
+		// Otherwise the most recently updated are kept.
+		for(int i=22;i<30;i++)
+			assertEquals(i + 1, index.lookupLatestSlot(makeUSK(i)));
+		for(int i=4;i<22;i++)
+			assertEquals(-1, index.lookupLatestSlot(makeUSK(i)));
+	}
+
+}
@@ -7,12 +7,15 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import junit.framework.TestCase;
 import freenet.client.filter.CSSParser;
@@ -24,9 +27,11 @@ import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.UnsafeContentTypeException;
 import freenet.client.filter.UnsupportedCharsetInFilterException;
 import freenet.client.filter.CharsetExtractor.BOMDetection;
+import freenet.client.filter.CSSTokenizerFilter.ParsedWord;
 import freenet.client.filter.ContentFilter.FilterStatus;
 import freenet.l10n.NodeL10n;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucket;
@@ -1003,6 +1008,90 @@ public class CSSParserTest extends TestCase {
 		}
 	}
 
+	/** Values of all sorts, to try with every property. */
+	private static final String[] SAMPLE_VALUES = new String[] {
+		"auto", "none", "inherit", "normal", "0", "1", "1.5", "1px", "-2em", "10%", "2em 3em",
+		"1px 2px 3px 4px", "1px 2px 3px 4px 5px", "red", "#fff", "rgba(0,0,0,0.5)", "url(foo.png)",
+		"url(http://www.google.com/foo.png)", "\"a string\"", "left top", "center", "repeat-x",
+		"repeat space", "bold italic 12px/1.5 Arial, sans-serif", "Times New Roman", "solid 1px red",
+		"0 0 2px rgba(0,0,0,0.5)", "rotate(45deg)", "1s ease-in", "legacy left", "counter(x)",
+		"attr(title)", "3 auto", "auto 3", "left 10px top", "x y z w v", "#id", "!important",
+		"1px !important", "square inside", "upper-roman outside url(a.png)", "border-box padding-box"
+	};
+
+	/** The compiled parser expressions must give exactly the same result as the interpreter. */
+	public void testCompiledExpressions() throws URISyntaxException {
+		ArrayList<String> values = new ArrayList<String>();
+		for(String value : SAMPLE_VALUES)
+			values.add(value);
+		Pattern declaration = Pattern.compile("[a-z-]+\\s*:\\s*([^;}]+)");
+		for(String css : propertyTests.keySet()) {
+			Matcher m = declaration.matcher(css);
+			while(m.find())
+				values.add(m.group(1).trim());
+		}
+		FilterCallback cb = makeCallback();
+		// Each verifier is checked separately. Both modes use the same verifiers below them, which
+		// are themselves checked here, so the filter as a whole behaves the same.
+		for(CSSTokenizerFilter.CSSPropertyVerifier verifier : CSSTokenizerFilter.getAllVerifiers()) {
+			// Subclasses check values themselves.
+			if(verifier.getClass() != CSSTokenizerFilter.CSSPropertyVerifier.class) continue;
+			for(String value : values) {
+				// Checking may change the words, e.g. rewriting a URL, so split them for each.
+				ParsedWord[] words = CSSTokenizerFilter.split(value, verifier.allowCommaDelimiters);
+				if(words == null) continue;
+				boolean interpreted = verifier.checkValidityInterpreted(MEDIA, null, words, cb);
+				words = CSSTokenizerFilter.split(value, verifier.allowCommaDelimiters);
+				assertEquals(verifier+": "+value, interpreted, verifier.checkValidity(MEDIA, null, words, cb));
+			}
+		}
+	}
+
+	public void testCompiledExpressionsBenchmark() throws URISyntaxException {
+		if(!TestProperty.BENCHMARK) return;
+		// Shorthand properties are the most expensive to verify.
+		String[] declarations = new String[] {
+			"font: italic small-caps bold 12px/1.5 Georgia, \"Times New Roman\", serif",
+			"background: #fff url(bg.png) no-repeat fixed left top",
+			"border: 1px solid #ccc", "border-top: thick double red",
+			"list-style: square inside url(dot.png)", "text-decoration: underline overline wavy red",
+			"margin: 0 auto 1em 2px", "padding: 1px 2px 3px", "columns: 12em 3",
+			"outline: 2px dashed blue", "text-shadow: 1px 1px 2px black",
+			"transition: opacity 1s ease-in", "background-position: right 10px bottom 5%"
+		};
+		FilterCallback cb = makeCallback();
+		ArrayList<CSSTokenizerFilter.CSSPropertyVerifier> verifiers = new ArrayList<CSSTokenizerFilter.CSSPropertyVerifier>();
+		ArrayList<ParsedWord[]> words = new ArrayList<ParsedWord[]>();
+		for(String d : declarations) {
+			int colon = d.indexOf(':');
+			CSSTokenizerFilter.CSSPropertyVerifier verifier = CSSTokenizerFilter.getVerifier(d.substring(0, colon));
+			if(verifier == null) continue; // Not supported.
+			verifiers.add(verifier);
+			words.add(CSSTokenizerFilter.split(d.substring(colon+1).trim(), verifier.allowCommaDelimiters));
+		}
+		for(int i=0;i<5;i++) {
+			for(boolean interpret : new boolean[] { true, false }) {
+				long start = System.nanoTime();
+				for(int j=0;j<2000;j++) {
+					for(int k=0;k<verifiers.size();k++) {
+						if(interpret)
+							verifiers.get(k).checkValidityInterpreted(MEDIA, null, words.get(k), cb);
+						else
+							verifiers.get(k).checkValidity(MEDIA, null, words.get(k), cb);
+					}
+				}
+				long time = System.nanoTime() - start;
+				System.out.println((interpret ? "Interpreted: " : "Compiled: ") + (time / (2000.0 * verifiers.size())) + " ns per declaration");
+			}
+		}
+	}
+
+	private static final String[] MEDIA = new String[] { "screen" };
+
+	private FilterCallback makeCallback() throws URISyntaxException {
+		return new GenericReadFilterCallback(new URI("/CHK@OR904t6ylZOwoobMJRmSn7HsPGefHSP7zAjoLyenSPw,x2EzszO4Kqot8akqmKYXJbkD-fSj6noOVGB-K2YisZ4,AAIC--8/1-works.html"), null, null, null);
+	}
+
 	private String filter(String css) throws IOException, URISyntaxException {
 		StringWriter w = new StringWriter();
 		GenericReadFilterCallback cb = new GenericReadFilterCallback(new URI("/CHK@OR904t6ylZOwoobMJRmSn7HsPGefHSP7zAjoLyenSPw,x2EzszO4Kqot8akqmKYXJbkD-fSj6noOVGB-K2YisZ4,AAIC--8/1-works.html"), null, null, null);
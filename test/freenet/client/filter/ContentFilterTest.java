@@ -17,6 +17,7 @@ import freenet.client.filter.DataFilterException;
 import freenet.client.filter.GenericReadFilterCallback;
 import freenet.client.filter.HTMLFilter;
 import freenet.client.filter.ContentFilter.FilterStatus;
+import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.HTMLFilter.*;
 import freenet.clients.http.ExternalLinkToadlet;
 import freenet.l10n.NodeL10n;
@@ -517,6 +518,68 @@ public class ContentFilterTest extends TestCase {
 		}
 	}
 	
+	/** Text which crosses the tokenizer's read buffer, with characters to be removed in it. */
+	public void testLongText() throws Exception {
+		new NodeL10n();
+		StringBuilder sb = new StringBuilder();
+		for(int i=0;i<20000;i++) {
+			sb.append((char)('a' + i % 26));
+			if(i % 1000 == 999) sb.append(' ');
+		}
+		String text = sb.toString();
+		String dirty = text.substring(0, 4000) + "\u0000" + text.substring(4000, 8190) + "\u0000\u0000" + text.substring(8190);
+		assertEquals("<p>"+text+"</p><b>x</b>", HTMLFilter("<p>"+dirty+"</p><b>x</b>"));
+		assertEquals("<P title=\"a\">"+text+"</P>", HTMLFilter("<P TITLE=\"a\">"+text+"</P>"));
+	}
+
+	public void testDetectCharset() throws Exception {
+		FilterMIMEType html = ContentFilter.getMIMEType("text/html");
+		byte[] page = "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=iso-8859-1\"></head><body>x</body></html>".getBytes("US-ASCII");
+		assertEquals("iso-8859-1", ContentFilter.detectCharset(page, page.length, html, null));
+		// The same buffer with different contents must be parsed again.
+		page[new String(page, "US-ASCII").indexOf("-1\"") + 1] = '2';
+		assertEquals("iso-8859-2", ContentFilter.detectCharset(page, page.length, html, null));
+	}
+
+	/** Filtering speed and garbage produced for a typical freesite page. */
+	public void testHTMLFilterBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		new NodeL10n();
+		StringBuilder sb = new StringBuilder();
+		sb.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-strict.dtd\">\n");
+		sb.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\" />\n");
+		sb.append("<title>Index</title><link rel=\"stylesheet\" href=\"style.css\" type=\"text/css\" /></head><body>\n");
+		for(int i=0;i<2000;i++) {
+			sb.append("<div class=\"entry\" id=\"e").append(i).append("\"><h2><a href=\"/").append(BASE_KEY).append(i).append("/\">Site number ").append(i).append("</a></h2>\n");
+			sb.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. ");
+			sb.append("Ut enim ad minim veniam, <em>quis nostrud</em> exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.</p>\n");
+			sb.append("<img src=\"activelink.png\" alt=\"\" width=\"108\" height=\"36\" /><br /></div>\n");
+		}
+		sb.append("</body></html>");
+		byte[] page = sb.toString().getBytes("UTF-8");
+		java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = mx instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) mx : null;
+		long tid = Thread.currentThread().getId();
+		URI baseURI = new URI(BASE_URI);
+		for(int i=0;i<5;i++) {
+			int runs = 20;
+			long allocated = allocations == null ? 0 : allocations.getThreadAllocatedBytes(tid);
+			long start = System.nanoTime();
+			for(int j=0;j<runs;j++) {
+				ArrayBucket output = new ArrayBucket();
+				OutputStream os = output.getOutputStream();
+				ContentFilter.filter(new ArrayBucket(page).getInputStream(), os, "text/html", baseURI, null, null, null);
+				os.close();
+			}
+			long time = System.nanoTime() - start;
+			long bytes = (long) page.length * runs;
+			System.out.print("HTML filter: " + (bytes * 1000.0 / time) + " MB/s");
+			if(allocations != null)
+				System.out.print(", " + ((allocations.getThreadAllocatedBytes(tid) - allocated) * 1024 / bytes) + " bytes allocated per KB");
+			System.out.println();
+		}
+	}
+
 	public void testLowerCaseExtensions() {
 		for(FilterMIMEType type : ContentFilter.mimeTypesByName.values()) {
 			String ext = type.primaryExtension;
@@ -0,0 +1,67 @@
+package freenet.clients.fcp;
+
+import java.net.MalformedURLException;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestStarter;
+
+public class RequestStatusCacheTest extends TestCase {
+
+	private static DownloadRequestStatus makeDownload(String identifier) throws MalformedURLException {
+		return new DownloadRequestStatus(identifier, Persistence.FOREVER, true, false, false,
+				100, 50, 0, new Date(), 0, 0, null, false, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS,
+				null, null, -1, null, null, null, new FreenetURI("CHK@"), null, null, false, null,
+				true, false);
+	}
+
+	public void testVersions() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		long version = cache.getVersion();
+		long progressVersion = cache.getProgressVersion();
+		cache.addDownload(makeDownload("test"));
+		assertTrue(cache.getVersion() > version);
+		assertTrue(cache.getProgressVersion() > progressVersion);
+
+		// Progress doesn't change the order of the requests by priority.
+		version = cache.getVersion();
+		progressVersion = cache.getProgressVersion();
+		cache.updateStatus("test", new SplitfileProgressEvent(100, 10, new Date(), 0, 0, null, 50, 50, true));
+		assertEquals(version, cache.getVersion());
+		assertTrue(cache.getProgressVersion() > progressVersion);
+
+		progressVersion = cache.getProgressVersion();
+		cache.setPriority("test", RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+		assertTrue(cache.getVersion() > version);
+		assertTrue(cache.getProgressVersion() > progressVersion);
+
+		// Nothing happens for a request we don't have.
+		version = cache.getVersion();
+		progressVersion = cache.getProgressVersion();
+		cache.updateStatus("nonexistent", new SplitfileProgressEvent(100, 10, new Date(), 0, 0, null, 50, 50, true));
+		assertEquals(version, cache.getVersion());
+		assertEquals(progressVersion, cache.getProgressVersion());
+
+		cache.removeByIdentifier("test");
+		assertTrue(cache.getVersion() > version);
+	}
+
+	public void testGet() throws MalformedURLException {
+		RequestStatusCache cache = new RequestStatusCache();
+		assertNull(cache.get("test"));
+		cache.addDownload(makeDownload("test"));
+		RequestStatus copy = cache.get("test");
+		assertEquals("test", copy.getIdentifier());
+		assertEquals(0, copy.getFetchedBlocks());
+		cache.updateStatus("test", new SplitfileProgressEvent(100, 10, new Date(), 0, 0, null, 50, 50, true));
+		// A copy, not changed by later updates.
+		assertEquals(0, copy.getFetchedBlocks());
+		assertEquals(10, cache.get("test").getFetchedBlocks());
+		cache.removeByIdentifier("test");
+		assertNull(cache.get("test"));
+	}
+
+}
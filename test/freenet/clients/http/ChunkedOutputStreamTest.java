@@ -0,0 +1,75 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ChunkedOutputStreamTest extends TestCase {
+
+	public void testChunks() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ChunkedOutputStream os = new ChunkedOutputStream(baos);
+		os.write('a');
+		os.write("bc".getBytes("US-ASCII"));
+		// Nothing is sent until we have a whole chunk or are flushed.
+		assertEquals(0, baos.size());
+		os.flush();
+		assertEquals("3\r\nabc\r\n", baos.toString("US-ASCII"));
+		os.flush();
+		assertEquals("3\r\nabc\r\n", baos.toString("US-ASCII"));
+		os.close();
+		assertEquals("3\r\nabc\r\n0\r\n\r\n", baos.toString("US-ASCII"));
+		os.close();
+		assertEquals("3\r\nabc\r\n0\r\n\r\n", baos.toString("US-ASCII"));
+		try {
+			os.write('d');
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testEmpty() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new ChunkedOutputStream(baos).close();
+		assertEquals("0\r\n\r\n", baos.toString("US-ASCII"));
+	}
+
+	public void testDecode() throws IOException {
+		byte[] data = new byte[ChunkedOutputStream.CHUNK_SIZE * 5 + 123];
+		new Random(1234).nextBytes(data);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ChunkedOutputStream os = new ChunkedOutputStream(baos);
+		os.write(data, 0, 100);
+		os.write(data, 100, ChunkedOutputStream.CHUNK_SIZE * 3);
+		for(int i = 100 + ChunkedOutputStream.CHUNK_SIZE * 3; i < data.length; i += 1000)
+			os.write(data, i, Math.min(1000, data.length - i));
+		os.close();
+		byte[] encoded = baos.toByteArray();
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		int pos = 0;
+		while(true) {
+			int lineEnd = pos;
+			while(encoded[lineEnd] != '\r') lineEnd++;
+			int length = Integer.parseInt(new String(encoded, pos, lineEnd - pos, "US-ASCII"), 16);
+			assertTrue(length <= ChunkedOutputStream.CHUNK_SIZE);
+			assertEquals('\n', encoded[lineEnd + 1]);
+			pos = lineEnd + 2;
+			decoded.write(encoded, pos, length);
+			pos += length;
+			assertEquals('\r', encoded[pos]);
+			assertEquals('\n', encoded[pos + 1]);
+			pos += 2;
+			if(length == 0) break;
+		}
+		assertEquals(encoded.length, pos);
+		assertTrue(Arrays.equals(data, decoded.toByteArray()));
+	}
+
+}
@@ -0,0 +1,43 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FProxyToadletRangeTest extends TestCase {
+
+	private static long[] resolve(String range, long size) throws HTTPRangeException {
+		return FProxyToadlet.resolveRange(FProxyToadlet.parseRange(range), size);
+	}
+
+	public void testRanges() throws HTTPRangeException {
+		assertTrue(Arrays.equals(new long[] { 0, 999 }, resolve("bytes=0-", 1000)));
+		assertTrue(Arrays.equals(new long[] { 100, 199 }, resolve("bytes=100-199", 1000)));
+		assertTrue(Arrays.equals(new long[] { 0, 0 }, resolve("bytes=0-0", 1000)));
+		// The end is limited to the data.
+		assertTrue(Arrays.equals(new long[] { 900, 999 }, resolve("bytes=900-5000", 1000)));
+		// The last N bytes.
+		assertTrue(Arrays.equals(new long[] { 800, 999 }, resolve("bytes=-200", 1000)));
+		assertTrue(Arrays.equals(new long[] { 0, 999 }, resolve("bytes=-5000", 1000)));
+		// Nothing in the data.
+		assertNull(resolve("bytes=1000-", 1000));
+		assertNull(resolve("bytes=-0", 1000));
+		// Several ranges: send everything.
+		assertNull(FProxyToadlet.parseRange("bytes=0-1,5-6"));
+	}
+
+	public void testBadRanges() {
+		for(String range : new String[] { "bytes=200-100", "bytes=x-", "items=0-", "bytes=-x", "bytes" }) {
+			try {
+				FProxyToadlet.parseRange(range);
+				fail("Accepted "+range);
+			} catch (HTTPRangeException e) {
+				// Expected.
+			}
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.client.FetchContext;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.events.SimpleEventProducer;
+import freenet.client.filter.PushingTagReplacerCallback;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
+import freenet.clients.http.FilteredContentCache.CachedContent;
+import freenet.keys.FreenetURI;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static final String CHK = "CHK@GzHPnk6fPgbDvlThRvdFqSsG4msPWd-6gbBF2m4Wq8w,6OuEVf~gz1v3DlXUytYdTd1ddqmBbeqmVDm59tnqhUo,AAMC--8/test.html";
+
+	private FetchContext fctx() {
+		FetchContext fctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE, Long.MAX_VALUE,
+				new ArrayBucketFactory(), new SimpleEventProducer());
+		fctx.filterData = true;
+		return fctx;
+	}
+
+	private static byte[] data(int size, int seed) {
+		byte[] buf = new byte[size];
+		Arrays.fill(buf, (byte) seed);
+		return buf;
+	}
+
+	public void testCanCache() throws MalformedURLException {
+		FreenetURI chk = new FreenetURI(CHK);
+		FetchContext fctx = fctx();
+		assertTrue(FilteredContentCache.canCache(chk, fctx));
+		fctx.filterData = false;
+		assertFalse(FilteredContentCache.canCache(chk, fctx));
+		fctx = fctx();
+		// Web-pushing puts session specific IDs in the page.
+		fctx.tagReplacer = new PushingTagReplacerCallback(null, 0, null);
+		assertFalse(FilteredContentCache.canCache(chk, fctx));
+		fctx = fctx();
+		assertFalse(FilteredContentCache.canCache(new FreenetURI("USK@GzHPnk6fPgbDvlThRvdFqSsG4msPWd-6gbBF2m4Wq8w,6OuEVf~gz1v3DlXUytYdTd1ddqmBbeqmVDm59tnqhUo,AQACAAE/site/-1/"), fctx));
+		assertTrue(FilteredContentCache.canCache(new FreenetURI("USK@GzHPnk6fPgbDvlThRvdFqSsG4msPWd-6gbBF2m4Wq8w,6OuEVf~gz1v3DlXUytYdTd1ddqmBbeqmVDm59tnqhUo,AQACAAE/site/5/"), fctx));
+	}
+
+	public void testKey() throws MalformedURLException, URISyntaxException {
+		FreenetURI chk = new FreenetURI(CHK);
+		URI base = chk.toURI("/");
+		FetchContext fctx = fctx();
+		String key = FilteredContentCache.makeKey(chk, fctx, REFILTER_POLICY.RE_FILTER, base);
+		assertEquals(key, FilteredContentCache.makeKey(new FreenetURI(CHK), fctx(), REFILTER_POLICY.RE_FILTER, base));
+		assertFalse(key.equals(FilteredContentCache.makeKey(chk, fctx, REFILTER_POLICY.ACCEPT_OLD, base)));
+		assertFalse(key.equals(FilteredContentCache.makeKey(chk, fctx, REFILTER_POLICY.RE_FILTER, chk.toURI("/other/"))));
+		fctx.charset = "UTF-8";
+		assertFalse(key.equals(FilteredContentCache.makeKey(chk, fctx, REFILTER_POLICY.RE_FILTER, base)));
+		fctx = fctx();
+		fctx.overrideMIME = "text/plain";
+		assertFalse(key.equals(FilteredContentCache.makeKey(chk, fctx, REFILTER_POLICY.RE_FILTER, base)));
+	}
+
+	public void testPutGet() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(new ArrayBucketFactory(), 1024 * 1024);
+		assertNull(cache.get("a"));
+		ArrayBucket bucket = new ArrayBucket(data(1000, 1));
+		cache.put("a", bucket, "text/html; charset=UTF-8");
+		// The caller keeps its own copy.
+		bucket.free();
+		CachedContent content = cache.get("a");
+		assertEquals("text/html; charset=UTF-8", content.mimeType);
+		assertTrue(Arrays.equals(data(1000, 1), BucketTools.toByteArray(content.data)));
+		// Freeing the returned data doesn't affect the cache.
+		content.data.free();
+		content = cache.get("a");
+		assertTrue(Arrays.equals(data(1000, 1), BucketTools.toByteArray(content.data)));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2000, cache.getBytesServed());
+		// Replacing an entry.
+		cache.put("a", new ArrayBucket(data(500, 2)), "text/css");
+		assertEquals(500, cache.getTotalSize());
+		assertEquals(1, cache.getCount());
+		assertEquals("text/css", cache.get("a").mimeType);
+	}
+
+	public void testEviction() {
+		FilteredContentCache cache = new FilteredContentCache(new ArrayBucketFactory(), 10000);
+		for(int i=0;i<4;i++)
+			cache.put("k"+i, new ArrayBucket(data(2000, i)), "text/html");
+		assertEquals(8000, cache.getTotalSize());
+		// Use k0, so k1 is the least recently used.
+		assertNotNull(cache.get("k0"));
+		cache.put("k4", new ArrayBucket(data(2000, 4)), "text/html");
+		cache.put("k5", new ArrayBucket(data(2000, 5)), "text/html");
+		assertEquals(10000, cache.getTotalSize());
+		assertNull(cache.get("k1"));
+		assertNotNull(cache.get("k0"));
+		assertNotNull(cache.get("k5"));
+		// Too big compared to the cache.
+		cache.put("big", new ArrayBucket(data(5000, 6)), "text/html");
+		assertNull(cache.get("big"));
+		// Shrinking drops the oldest.
+		cache.setMaxSize(4000);
+		assertEquals(4000, cache.getTotalSize());
+		assertNotNull(cache.get("k5"));
+		assertNull(cache.get("k2"));
+		cache.setMaxSize(0);
+		assertEquals(0, cache.getCount());
+		cache.put("k0", new ArrayBucket(data(10, 0)), "text/html");
+		assertEquals(0, cache.getCount());
+	}
+
+}
@@ -0,0 +1,72 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class IdleConnectionSelectorTest extends TestCase {
+
+	private static class Handled implements IdleConnectionSelector.Handler {
+		private final ArrayList<Socket> socks = new ArrayList<Socket>();
+
+		@Override
+		public synchronized void handle(Socket sock) {
+			socks.add(sock);
+			notifyAll();
+		}
+
+		synchronized Socket waitFor(long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while(socks.isEmpty()) {
+				long now = System.currentTimeMillis();
+				if(now >= end) return null;
+				wait(end - now);
+			}
+			return socks.remove(0);
+		}
+	}
+
+	public void testParkAndWake() throws IOException, InterruptedException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		Socket client = new Socket("127.0.0.1", server.socket().getLocalPort());
+		Socket accepted = server.socket().accept();
+		try {
+			assertTrue(IdleConnectionSelector.canPark(accepted));
+			assertFalse(IdleConnectionSelector.canPark(client));
+			Handled handled = new Handled();
+			IdleConnectionSelector selector = new IdleConnectionSelector(handled);
+			selector.start();
+			for(int i=0;i<3;i++) {
+				selector.park(accepted);
+				// Nothing happens until the client sends something.
+				assertNull(handled.waitFor(100));
+				OutputStream os = client.getOutputStream();
+				os.write(new byte[] { (byte) i, 2, 3 });
+				os.flush();
+				Socket sock = handled.waitFor(10000);
+				assertSame(accepted, sock);
+				// Back in blocking mode, and nothing has been read.
+				InputStream is = sock.getInputStream();
+				assertEquals(i, is.read());
+				assertEquals(2, is.read());
+				assertEquals(3, is.read());
+			}
+		} finally {
+			client.close();
+			accepted.close();
+			server.close();
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+public class ResponseEncodingTest extends TestCase {
+
+	public void testChoose() {
+		assertNull(ResponseEncoding.choose(null));
+		assertNull(ResponseEncoding.choose(""));
+		assertNull(ResponseEncoding.choose("identity"));
+		assertNull(ResponseEncoding.choose("br"));
+		assertEquals("gzip", ResponseEncoding.choose("gzip, deflate"));
+		assertEquals("gzip", ResponseEncoding.choose("deflate, gzip"));
+		assertEquals("gzip", ResponseEncoding.choose("x-gzip"));
+		assertEquals("deflate", ResponseEncoding.choose("deflate"));
+		assertEquals("deflate", ResponseEncoding.choose("gzip;q=0.5, deflate"));
+		assertEquals("deflate", ResponseEncoding.choose("gzip;q=0, *"));
+		assertNull(ResponseEncoding.choose("gzip;q=0, deflate;q=0"));
+		assertEquals("gzip", ResponseEncoding.choose("*"));
+		assertNull(ResponseEncoding.choose("*;q=0"));
+		assertEquals("gzip", ResponseEncoding.choose("GZIP ; q=1.0"));
+	}
+
+	public void testIsCompressible() {
+		assertTrue(ResponseEncoding.isCompressible("text/html; charset=utf-8"));
+		assertTrue(ResponseEncoding.isCompressible("text/css"));
+		assertTrue(ResponseEncoding.isCompressible("application/javascript"));
+		assertTrue(ResponseEncoding.isCompressible("image/svg+xml"));
+		assertFalse(ResponseEncoding.isCompressible("image/png"));
+		assertFalse(ResponseEncoding.isCompressible("application/octet-stream"));
+		assertFalse(ResponseEncoding.isCompressible(null));
+	}
+
+	public void testEncode() throws IOException {
+		byte[] page = new byte[20000];
+		for(int i=0;i<page.length;i++)
+			page[i] = (byte) ("<p>Hello world</p>".charAt(i % 18));
+		byte[] gzipped = ResponseEncoding.encode(page, 0, page.length, "gzip");
+		assertTrue(gzipped.length < page.length);
+		assertTrue(Arrays.equals(page, readAll(new GZIPInputStream(new ByteArrayInputStream(gzipped)))));
+		byte[] deflated = ResponseEncoding.encode(page, 100, 10000, "deflate");
+		assertTrue(Arrays.equals(Arrays.copyOfRange(page, 100, 10100),
+				readAll(new InflaterInputStream(new ByteArrayInputStream(deflated)))));
+		byte[] random = new byte[4096];
+		new Random(2148).nextBytes(random);
+		assertNull(ResponseEncoding.encode(random, 0, random.length, "gzip"));
+	}
+
+	public void testETags() {
+		byte[] data = new byte[] { 1, 2, 3 };
+		String etag = ResponseEncoding.makeETag(data);
+		assertEquals(etag, ResponseEncoding.makeETag(new byte[] { 1, 2, 3 }));
+		assertFalse(etag.equals(ResponseEncoding.makeETag(new byte[] { 1, 2, 4 })));
+		assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+		String gzipTag = ResponseEncoding.encodedETag(etag, "gzip");
+		assertFalse(etag.equals(gzipTag));
+		assertEquals(etag, ResponseEncoding.encodedETag(etag, null));
+		assertTrue(ResponseEncoding.matches(etag, etag));
+		assertTrue(ResponseEncoding.matches(gzipTag, etag));
+		assertTrue(ResponseEncoding.matches("\"foo\", W/" + etag, etag));
+		assertTrue(ResponseEncoding.matches("*", etag));
+		assertFalse(ResponseEncoding.matches(null, etag));
+		assertFalse(ResponseEncoding.matches("\"foo\"", etag));
+		assertFalse(ResponseEncoding.matches(ResponseEncoding.makeETag(new byte[] { 1, 2, 4 }), etag));
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int r;
+		while((r = is.read(buf)) != -1)
+			baos.write(buf, 0, r);
+		is.close();
+		return baos.toByteArray();
+	}
+
+}
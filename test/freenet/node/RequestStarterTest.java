@@ -0,0 +1,403 @@
+package freenet.node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.client.async.ChosenBlock;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequestSelector;
+import freenet.keys.ClientKey;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.NodeStats.RejectReason;
+
+public class RequestStarterTest extends TestCase {
+
+    /** Everything the starter does, in order. */
+    private final List<String> events = new ArrayList<String>();
+    private final ArrayDeque<ChosenBlock> queued = new ArrayDeque<ChosenBlock>();
+    private final HashSet<Key> fetching = new HashSet<Key>();
+    /** Keys which are in the datastore. */
+    private final HashSet<Key> inStore = new HashSet<Key>();
+    private long delay = 1;
+    private int rejectCount;
+    /** Number of times the scheduler returns nothing before returning the queued blocks. */
+    private int emptyGrabs;
+    private MyRequestStarter starter;
+
+    @Override
+    protected void setUp() {
+        starter = new MyRequestStarter();
+        starter.setScheduler(new MyScheduler());
+    }
+
+    public void testUnbatchedWaitsBeforeReserving() {
+        MyBlock a = queue(1);
+        starter.startNext();
+        assertEquals(list("grab", "delay", "reject?", "fetching 1", "send 1"), events);
+        assertTrue(a.sent);
+    }
+
+    public void testUnbatchedRetriesWithoutReserving() {
+        MyBlock a = queue(1);
+        rejectCount = 1;
+        starter.startNext();
+        assertEquals(list("grab", "delay", "reject?"), events);
+        assertTrue(fetching.isEmpty());
+        events.clear();
+        starter.startNext();
+        // The same request again, without visiting the scheduler.
+        assertEquals(list("delay", "reject?", "fetching 1", "send 1"), events);
+        assertTrue(a.sent);
+    }
+
+    public void testUnbatchedLocalRequest() {
+        queued.add(new MyBlock(1, true));
+        starter.startNext();
+        assertEquals(list("grab", "overloaded?", "fetching 1", "send 1"), events);
+    }
+
+    public void testBatch() {
+        starter.setMaxBatchSize(10);
+        MyBlock a = queue(1);
+        MyBlock b = queue(2);
+        MyBlock c = queue(3);
+        starter.startNext();
+        // Reserved while choosing, so a batch can't contain the same key twice.
+        assertEquals(list("delay", "grab", "fetching 1", "grab", "fetching 2", "grab",
+                "fetching 3", "grab", "store 3"), events);
+        assertFalse(a.sent || b.sent || c.sent);
+        events.clear();
+        starter.startNext();
+        assertEquals(list("delay", "reject?", "send 1", "reject?", "send 2", "reject?", "send 3"),
+                events);
+        assertEquals(3.0, starter.getAverageBatchSize());
+    }
+
+    /** The whole batch is looked up in the store at once, and blocks found there are not 
+     * started. */
+    public void testBatchStoreHits() {
+        starter.setMaxBatchSize(10);
+        MyBlock a = queue(1);
+        MyBlock b = queue(2);
+        MyBlock c = queue(3);
+        inStore.add(a.key);
+        inStore.add(c.key);
+        starter.startNext();
+        assertEquals(1, events.indexOf("store 3") - events.lastIndexOf("grab"));
+        assertTrue(a.dumped && c.dumped);
+        assertFalse(fetching.contains(a.key) || fetching.contains(c.key));
+        assertTrue(fetching.contains(b.key));
+        events.clear();
+        starter.startNext();
+        assertEquals(list("delay", "reject?", "send 2"), events);
+        assertFalse(a.sent || c.sent);
+        assertEquals(2, starter.getStoreHits());
+    }
+
+    public void testUnbatchedDoesNotCheckStore() {
+        MyBlock a = queue(1);
+        inStore.add(a.key);
+        starter.startNext();
+        assertTrue(a.sent);
+        assertEquals(0, starter.getStoreHits());
+    }
+
+    public void testBatchLimitedByThrottle() {
+        starter.setMaxBatchSize(10);
+        delay = RequestStarter.BATCH_INTERVAL / 2;
+        for(int i=0;i<5;i++)
+            queue(i);
+        starter.startNext();
+        assertEquals(2, fetching.size());
+        assertEquals(3, queued.size());
+    }
+
+    public void testBatchSameKeyTwice() {
+        starter.setMaxBatchSize(10);
+        MyBlock a = queue(1);
+        MyBlock b = queue(1);
+        starter.startNext();
+        assertTrue(b.dumped);
+        starter.startNext();
+        assertTrue(a.sent);
+        assertFalse(b.sent);
+    }
+
+    public void testBatchOverloaded() {
+        starter.setMaxBatchSize(10);
+        MyBlock a = queue(1);
+        MyBlock b = queue(2);
+        starter.startNext();
+        rejectCount = 1;
+        starter.startNext();
+        assertFalse(a.sent || b.sent);
+        starter.startNext();
+        assertTrue(a.sent && b.sent);
+    }
+
+    public void testCancelledIsReleased() {
+        starter.setMaxBatchSize(10);
+        MyBlock a = queue(1);
+        starter.startNext();
+        assertTrue(fetching.contains(a.key));
+        a.cancelled = true;
+        starter.startNext();
+        assertFalse(a.sent);
+        assertTrue(a.dumped);
+        assertTrue(fetching.isEmpty());
+    }
+
+    /** The batch size statistic includes requests found after waiting for the scheduler. */
+    public void testBatchSizeIncludesFallback() {
+        starter.setMaxBatchSize(10);
+        emptyGrabs = 1; // Nothing when choosing the batch, but one when we look again.
+        queue(1);
+        starter.startNext();
+        starter.startNext();
+        for(int i=2;i<5;i++)
+            queue(i);
+        starter.startNext();
+        starter.startNext();
+        assertEquals(2.0, starter.getAverageBatchSize());
+    }
+
+    private MyBlock queue(int key) {
+        MyBlock block = new MyBlock(key, false);
+        queued.add(block);
+        return block;
+    }
+
+    private static List<String> list(String... strings) {
+        List<String> ret = new ArrayList<String>();
+        for(String s : strings) ret.add(s);
+        return ret;
+    }
+
+    private static Key makeKey(int i) {
+        byte[] routingKey = new byte[32];
+        routingKey[0] = (byte) i;
+        return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    private class MyRequestStarter extends RequestStarter {
+
+        MyRequestStarter() {
+            super(new BaseRequestThrottle() {
+
+                @Override
+                public long getDelay() {
+                    events.add("delay");
+                    return delay;
+                }
+
+            }, "test", false, false, false);
+        }
+
+        @Override
+        RejectReason shouldRejectRequest(ChosenBlock req) {
+            events.add("reject?");
+            if(rejectCount > 0) {
+                rejectCount--;
+                return new RejectReason("test", true);
+            }
+            return null;
+        }
+
+        @Override
+        void waitUntilNotOverloaded() {
+            events.add("overloaded?");
+        }
+
+        @Override
+        boolean[] checkStore(Key[] keys) {
+            events.add("store "+keys.length);
+            boolean[] found = new boolean[keys.length];
+            for(int i=0;i<keys.length;i++)
+                found[i] = inStore.contains(keys[i]);
+            return found;
+        }
+
+        @Override
+        void sendRequest(ChosenBlock req) {
+            MyBlock block = (MyBlock) req;
+            events.add("send "+block.id);
+            block.sent = true;
+        }
+
+    }
+
+    private class MyBlock extends ChosenBlock {
+
+        final int id;
+        boolean cancelled;
+        boolean sent;
+        boolean dumped;
+
+        MyBlock(int id, boolean localOnly) {
+            super(new SendableRequestItem() {
+
+                @Override
+                public void dump() {
+                    // Ignore.
+                }
+
+                @Override
+                public SendableRequestItemKey getKey() {
+                    return null;
+                }
+
+            }, makeKey(id), null, localOnly, false, false, false, false, null);
+            this.id = id;
+        }
+
+        @Override
+        public void onDumped() {
+            dumped = true;
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void onFailure(LowLevelPutException e, ClientContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void onInsertSuccess(ClientKey key, ClientContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void onFailure(LowLevelGetException e, ClientContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void onFetchSuccess(ClientContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public short getPriority() {
+            return RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS;
+        }
+
+        @Override
+        public SendableRequestSender getSender(ClientContext context) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /** A scheduler which only hands out the queued blocks and tracks fetching keys. */
+    private class MyScheduler implements RequestScheduler {
+
+        @Override
+        public ChosenBlock grabRequest() {
+            events.add("grab");
+            if(emptyGrabs > 0) {
+                emptyGrabs--;
+                return null;
+            }
+            return queued.poll();
+        }
+
+        @Override
+        public boolean addToFetching(Key key) {
+            events.add("fetching "+key.getRoutingKey()[0]);
+            return fetching.add(key);
+        }
+
+        @Override
+        public void removeFetchingKey(Key key) {
+            fetching.remove(key);
+        }
+
+        @Override
+        public void succeeded(BaseSendableGet get, boolean persistent) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long countQueuedRequests() {
+            return queued.size();
+        }
+
+        @Override
+        public KeysFetchingLocally fetchingKeys() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void callFailure(SendableGet get, LowLevelGetException e, int prio,
+                boolean persistent) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void callFailure(SendableInsert insert, LowLevelPutException exception, int prio,
+                boolean persistent) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ClientContext getContext() {
+            return null;
+        }
+
+        @Override
+        public void removeRunningRequest(SendableRequest request) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isRunningOrQueuedPersistentRequest(SendableRequest request) {
+            return false;
+        }
+
+        @Override
+        public boolean hasFetchingKey(Key key, BaseSendableGet getterWaiting, boolean persistent) {
+            return fetching.contains(key);
+        }
+
+        @Override
+        public boolean addRunningInsert(SendableInsert insert, SendableRequestItemKey token) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void removeRunningInsert(SendableInsert insert, SendableRequestItemKey token) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void wakeStarter() {
+            // Ignore.
+        }
+
+        @Override
+        public boolean wantKey(Key key) {
+            return false;
+        }
+
+        @Override
+        public ClientRequestSelector getSelector() {
+            return null;
+        }
+
+    }
+
+}
@@ -15,6 +15,9 @@
  */
 package freenet.support;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -713,4 +716,70 @@ public class HTMLNodeTest extends TestCase {
 		
 	}
 
+	/**
+	 * Tests that generate(Writer) writes exactly what generate() returns,
+	 * for a page with a doctype, nested tags, text, attributes which need
+	 * encoding and raw "%" nodes.
+	 */
+	public void testGenerate_toWriter() throws IOException {
+		HTMLNode page = makeSamplePage(10);
+		StringWriter writer = new StringWriter();
+		page.generate(writer);
+		assertEquals(page.generate(), writer.toString());
+	}
+
+	/**
+	 * Compares building a big page in memory with writing it as it is
+	 * generated: how long until the first byte, and how much of the page
+	 * has to be held at once.
+	 */
+	public void testGenerate_toWriterBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		HTMLNode page = makeSamplePage(50000);
+		for(int i=0;i<3;i++) {
+			long start = System.nanoTime();
+			String generated = page.generate();
+			long firstByte = System.nanoTime() - start;
+			System.out.println("generate(): "+generated.length()+" chars, first byte after "+
+					(firstByte / 1000000)+"ms, whole page held in memory");
+			final long writeStart = System.nanoTime();
+			final long[] firstWrite = new long[] { -1 };
+			final long[] written = new long[1];
+			Writer writer = new Writer() {
+				@Override
+				public void write(char[] cbuf, int off, int len) {
+					if(firstWrite[0] == -1) firstWrite[0] = System.nanoTime() - writeStart;
+					written[0] += len;
+				}
+				@Override
+				public void flush() {
+				}
+				@Override
+				public void close() {
+				}
+			};
+			page.generate(writer);
+			long total = System.nanoTime() - writeStart;
+			System.out.println("generate(Writer): "+written[0]+" chars, first byte after "+
+					(firstWrite[0] / 1000)+"us, total "+(total / 1000000)+"ms");
+		}
+	}
+
+	private static HTMLNode makeSamplePage(int rows) {
+		HTMLNode page = new HTMLNode.HTMLDoctype("html", "-//W3C//DTD XHTML 1.1//EN");
+		HTMLNode html = page.addChild("html");
+		html.addChild("head").addChild("title", "A <test> & \"page\"");
+		HTMLNode body = html.addChild("body");
+		body.addChild("%", "<!-- raw -->");
+		HTMLNode table = body.addChild("table", "class", "requests");
+		for(int i=0;i<rows;i++) {
+			HTMLNode row = table.addChild("tr", new String[] { "id", "class" }, new String[] { "row-"+i, "a&b" });
+			row.addChild("td", "CHK@"+i+"/file name <"+i+">.txt");
+			row.addChild("td").addChild("a", "href", "/queue/?a="+i+"&b=c", "link \u00e9");
+			row.addChild("#", "text & more");
+		}
+		body.addChild("br");
+		return page;
+	}
+
 }
@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Test case for {@link freenet.support.compress.ChunkedCompressor} class.
+ */
+public class ChunkedCompressorTest extends TestCase {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private ForkJoinPool pool;
+
+	@Override
+	protected void setUp() {
+		pool = new ForkJoinPool(4);
+	}
+
+	@Override
+	protected void tearDown() {
+		pool.shutdown();
+	}
+
+	private static byte[] makeData(Random r, int length) {
+		byte[] data = new byte[length];
+		// Compressible but not trivially.
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte)('a' + r.nextInt(4));
+		return data;
+	}
+
+	private static byte[] compress(Compressor c, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		c.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private static byte[] decompress(Compressor c, byte[] compressed, long maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		c.decompress(new ByteArrayInputStream(compressed), baos, maxLength, -1);
+		return baos.toByteArray();
+	}
+
+	public void testRoundTrip() throws IOException {
+		Random r = new Random(21162519);
+		ChunkedCompressor c = new ChunkedCompressor((short)1, CHUNK_SIZE, pool);
+		int[] sizes = new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 20 * CHUNK_SIZE + 12345 };
+		for(int size : sizes) {
+			byte[] data = makeData(r, size);
+			byte[] compressed = compress(c, data);
+			if(size > CHUNK_SIZE)
+				assertTrue(compressed.length < size / 2);
+			assertTrue(Arrays.equals(data, decompress(c, compressed, size)));
+			// Anything can decompress it, the chunk size and codec are in the header.
+			assertTrue(Arrays.equals(data, decompress(COMPRESSOR_TYPE.BZIP2_CHUNKED, compressed, size)));
+			byte[] output = new byte[size];
+			assertEquals(size, c.decompress(compressed, 0, compressed.length, output));
+			assertTrue(Arrays.equals(data, output));
+		}
+	}
+
+	/** The output doesn't depend on the number of threads. */
+	public void testDeterministic() throws IOException {
+		byte[] data = makeData(new Random(21162520), 10 * CHUNK_SIZE + 7);
+		ForkJoinPool single = new ForkJoinPool(1);
+		try {
+			byte[] a = compress(new ChunkedCompressor((short)0, CHUNK_SIZE, pool), data);
+			byte[] b = compress(new ChunkedCompressor((short)0, CHUNK_SIZE, single), data);
+			assertTrue(Arrays.equals(a, b));
+		} finally {
+			single.shutdown();
+		}
+	}
+
+	public void testMaxLength() throws IOException {
+		byte[] data = makeData(new Random(21162521), 5 * CHUNK_SIZE);
+		ChunkedCompressor c = new ChunkedCompressor((short)1, CHUNK_SIZE, pool);
+		byte[] compressed = compress(c, data);
+		try {
+			decompress(c, compressed, data.length - 1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+		try {
+			c.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(), data.length, compressed.length - 1);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Expected.
+		}
+	}
+
+	public void testTruncated() throws IOException {
+		byte[] data = makeData(new Random(21162522), 3 * CHUNK_SIZE);
+		ChunkedCompressor c = new ChunkedCompressor((short)1, CHUNK_SIZE, pool);
+		byte[] compressed = compress(c, data);
+		for(int length : new int[] { 1, 7, 20, compressed.length / 2, compressed.length - 4 }) {
+			try {
+				decompress(c, Arrays.copyOf(compressed, length), data.length);
+				fail();
+			} catch (InvalidCompressedDataException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testCorrupt() throws IOException {
+		byte[] data = makeData(new Random(21162523), 3 * CHUNK_SIZE);
+		ChunkedCompressor c = new ChunkedCompressor((short)1, CHUNK_SIZE, pool);
+		byte[] compressed = compress(c, data);
+		// Bad inner codec: can't nest chunked codecs.
+		byte[] bad = compressed.clone();
+		bad[2] = 4;
+		try {
+			decompress(c, bad, data.length);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		// Bad chunk length.
+		bad = compressed.clone();
+		bad[7] = (byte)0x7f;
+		try {
+			decompress(c, bad, data.length);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+		// Bad data.
+		bad = compressed.clone();
+		for(int i=20;i<100;i++)
+			bad[i] ^= 0x55;
+		try {
+			decompress(c, bad, data.length);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Chunks bigger than we ever write are rejected before we allocate anything for them. */
+	public void testChunkSizeLimit() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor((short)1, CHUNK_SIZE, pool);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(ChunkedCompressor.VERSION);
+		dos.writeShort(1);
+		dos.writeInt(ChunkedCompressor.DEFAULT_CHUNK_SIZE + 1);
+		dos.writeInt(ChunkedCompressor.DEFAULT_CHUNK_SIZE + 1);
+		dos.writeInt(1000);
+		try {
+			decompress(c, baos.toByteArray(), Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// Expected.
+		}
+	}
+
+	public void testNotDefault() throws InvalidCompressionCodecException {
+		for(COMPRESSOR_TYPE ct : COMPRESSOR_TYPE.getCompressorsArray(null, false))
+			assertFalse(ct.compressor instanceof ChunkedCompressor);
+		for(COMPRESSOR_TYPE ct : COMPRESSOR_TYPE.getCompressorsArray(null, true))
+			assertFalse(ct.compressor instanceof ChunkedCompressor);
+		assertEquals(COMPRESSOR_TYPE.BZIP2_CHUNKED, COMPRESSOR_TYPE.getCompressorsArray("BZIP2_CHUNKED", false)[0]);
+	}
+
+	/** Compress and decompress 128MB with more and more threads. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = makeData(new Random(21162524), 128 * 1024 * 1024);
+		int threads = Runtime.getRuntime().availableProcessors();
+		for(int i=1;i<=threads;i*=2) {
+			benchmark(data, i);
+			if(i < threads && i * 2 > threads) benchmark(data, threads);
+		}
+	}
+
+	private void benchmark(byte[] data, int threads) throws IOException {
+		ForkJoinPool p = new ForkJoinPool(threads);
+		try {
+			ChunkedCompressor c = new ChunkedCompressor((short)1, ChunkedCompressor.DEFAULT_CHUNK_SIZE, p);
+			long start = System.nanoTime();
+			byte[] compressed = compress(c, data);
+			long compressTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			byte[] output = decompress(c, compressed, data.length);
+			long decompressTime = System.nanoTime() - start;
+			assertTrue(Arrays.equals(data, output));
+			double mb = data.length / (1024.0 * 1024.0);
+			System.out.println("BZIP2 chunked, " + threads + " threads: compress " +
+					(mb * 1000 * 1000 * 1000 / compressTime) + " MB/s, decompress " +
+					(mb * 1000 * 1000 * 1000 / decompressTime) + " MB/s");
+		} finally {
+			p.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.FileUtil;
+
+/**
+ * Test case for {@link freenet.support.compress.DecompressorThreadManager} class.
+ */
+public class DecompressorThreadManagerTest extends TestCase {
+
+	private final PooledExecutor executor = new PooledExecutor();
+
+	private static byte[] makeData(Random r, int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte)('a' + r.nextInt(4));
+		return data;
+	}
+
+	private static byte[] compress(byte[] data, COMPRESSOR_TYPE... codecs) throws IOException {
+		for(COMPRESSOR_TYPE codec : codecs) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			codec.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+			data = baos.toByteArray();
+		}
+		return data;
+	}
+
+	/** Write the data in pieces, as a StreamGenerator would. */
+	private static void writeTo(OutputStream os, byte[] data) throws IOException {
+		for(int offset=0;offset<data.length;offset+=32768)
+			os.write(data, offset, Math.min(32768, data.length - offset));
+		os.close();
+	}
+
+	private byte[] decompress(byte[] compressed, long maxLen, COMPRESSOR_TYPE... codecs) throws Throwable {
+		List<Compressor> decompressors = new ArrayList<Compressor>(Arrays.asList(codecs));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DecompressorThreadManager manager = new DecompressorThreadManager(decompressors, baos, maxLen, executor);
+		assertTrue(decompressors.isEmpty());
+		writeTo(manager.getOutputStream(), compressed);
+		manager.waitFinished();
+		return baos.toByteArray();
+	}
+
+	public void testInline() throws Throwable {
+		byte[] data = makeData(new Random(21162525), 50000);
+		byte[] compressed = compress(data, COMPRESSOR_TYPE.GZIP);
+		assertTrue(compressed.length < DecompressorThreadManager.INLINE_THRESHOLD);
+		assertTrue(Arrays.equals(data, decompress(compressed, data.length, COMPRESSOR_TYPE.GZIP)));
+	}
+
+	public void testStreaming() throws Throwable {
+		byte[] data = new byte[2 * 1024 * 1024];
+		new Random(21162526).nextBytes(data);
+		byte[] compressed = compress(data, COMPRESSOR_TYPE.GZIP);
+		assertTrue(compressed.length > DecompressorThreadManager.INLINE_THRESHOLD);
+		assertTrue(Arrays.equals(data, decompress(compressed, data.length, COMPRESSOR_TYPE.GZIP)));
+	}
+
+	/** Several layers, applied in the order they were used for compressing. */
+	public void testChain() throws Throwable {
+		Random r = new Random(21162527);
+		for(int size : new int[] { 10000, 4 * 1024 * 1024 }) {
+			byte[] data = makeData(r, size);
+			byte[] compressed = compress(data, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.GZIP);
+			assertTrue(Arrays.equals(data, decompress(compressed, data.length, COMPRESSOR_TYPE.BZIP2, COMPRESSOR_TYPE.GZIP)));
+		}
+	}
+
+	public void testTooBig() throws Throwable {
+		Random r = new Random(21162528);
+		for(int size : new int[] { 10000, 4 * 1024 * 1024 }) {
+			byte[] data = new byte[size];
+			r.nextBytes(data);
+			byte[] compressed = compress(data, COMPRESSOR_TYPE.GZIP);
+			try {
+				decompress(compressed, data.length - 1, COMPRESSOR_TYPE.GZIP);
+				fail();
+			} catch (CompressionOutputSizeException e) {
+				// Expected.
+			} catch (IOException e) {
+				// Writing may fail once the decompressor has given up.
+			}
+		}
+	}
+
+	public void testCorrupt() throws Throwable {
+		byte[] data = makeData(new Random(21162529), 10000);
+		byte[] compressed = compress(data, COMPRESSOR_TYPE.GZIP);
+		for(int i=0;i<10;i++)
+			compressed[i] ^= 0x55;
+		try {
+			decompress(compressed, data.length, COMPRESSOR_TYPE.GZIP);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Fetch overhead for small files, and throughput for big ones, compared to the old way of
+	 * piping through a new thread for each decompressor. */
+	public void testBenchmark() throws Throwable {
+		if(!TestProperty.BENCHMARK) return;
+		Random r = new Random(21162530);
+		byte[] small = compress(makeData(r, 16 * 1024), COMPRESSOR_TYPE.GZIP);
+		byte[] big = compress(makeData(r, 64 * 1024 * 1024), COMPRESSOR_TYPE.GZIP);
+		for(int i=0;i<2;i++) {
+			long start = System.nanoTime();
+			for(int j=0;j<5000;j++)
+				decompressPiped(small, 16 * 1024);
+			long piped = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int j=0;j<5000;j++)
+				decompress(small, 16 * 1024, COMPRESSOR_TYPE.GZIP);
+			long pooled = System.nanoTime() - start;
+			System.out.println("Small files: piped threads " + (piped / 5000 / 1000) + "us, pooled " + (pooled / 5000 / 1000) + "us per fetch");
+			start = System.nanoTime();
+			decompressPiped(big, 64 * 1024 * 1024);
+			piped = System.nanoTime() - start;
+			start = System.nanoTime();
+			decompress(big, 64 * 1024 * 1024, COMPRESSOR_TYPE.GZIP);
+			pooled = System.nanoTime() - start;
+			System.out.println("64MB: piped threads " + (64.0 * 1000 * 1000 * 1000 / piped) + " MB/s, pooled " + (64.0 * 1000 * 1000 * 1000 / pooled) + " MB/s");
+		}
+	}
+
+	/** What we used to do: a new thread decompressing from a pipe into another pipe, and another
+	 * thread copying that into the destination. */
+	private void decompressPiped(byte[] compressed, final long maxLen) throws Exception {
+		final PipedInputStream in = new PipedInputStream();
+		PipedOutputStream out = new PipedOutputStream(in);
+		final PipedInputStream decompressed = new PipedInputStream();
+		final PipedOutputStream decompressedOut = new PipedOutputStream(decompressed);
+		Thread decompressor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					COMPRESSOR_TYPE.GZIP.decompress(in, decompressedOut, maxLen, maxLen * 4);
+					decompressedOut.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		Thread copier = new Thread() {
+			@Override
+			public void run() {
+				try {
+					FileUtil.copy(decompressed, new ByteArrayOutputStream(), -1);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		decompressor.start();
+		copier.start();
+		writeTo(out, compressed);
+		decompressor.join();
+		copier.join();
+	}
+
+}
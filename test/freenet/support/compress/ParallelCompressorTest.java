@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.compress.ParallelCompressor.Attempt;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Test case for {@link freenet.support.compress.ParallelCompressor} class.
+ */
+public class ParallelCompressorTest extends TestCase {
+
+	private static final COMPRESSOR_TYPE[] CODECS = new COMPRESSOR_TYPE[] {
+		COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() {
+		executor.shutdown();
+	}
+
+	private byte[] decompress(COMPRESSOR_TYPE codec, Attempt attempt, int length) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = attempt.data.getInputStream();
+		codec.decompress(is, baos, length, length);
+		is.close();
+		return baos.toByteArray();
+	}
+
+	/** Every codec should produce the same output as it would on its own. */
+	public void testCompress() throws IOException {
+		byte[] data = new byte[300 * 1024];
+		Random r = new Random(21162516);
+		// Compressible but not trivially.
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte)('a' + r.nextInt(4));
+		ParallelCompressor compressor = new ParallelCompressor(executor);
+		Attempt[] attempts = compressor.compress(new ByteArrayInputStream(data), CODECS,
+				new ArrayBucketFactory(), data.length, data.length, CHKBlock.DATA_LENGTH);
+		assertEquals(CODECS.length, attempts.length);
+		for(int i=0;i<CODECS.length;i++) {
+			Attempt attempt = attempts[i];
+			assertEquals(CODECS[i], attempt.codec);
+			assertFalse(attempt.aborted);
+			assertNotNull(attempt.data);
+			assertEquals(attempt.data.size(), attempt.compressedSize);
+			assertTrue(attempt.compressedSize < data.length / 2);
+			assertEquals(data.length, attempt.bytesRead);
+			assertTrue(Arrays.equals(data, decompress(CODECS[i], attempt, data.length)));
+			// Same as compressing it on its own.
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			CODECS[i].compress(new ByteArrayInputStream(data), baos, data.length, data.length);
+			assertTrue(Arrays.equals(baos.toByteArray(), BucketTools.toByteArray(attempt.data)));
+			attempt.data.free();
+		}
+	}
+
+	/** Random data can't be compressed, so all the codecs fail. */
+	public void testIncompressible() throws IOException {
+		byte[] data = new byte[100 * 1024];
+		new Random(21162517).nextBytes(data);
+		ParallelCompressor compressor = new ParallelCompressor(executor);
+		Attempt[] attempts = compressor.compress(new ByteArrayInputStream(data), CODECS,
+				new ArrayBucketFactory(), data.length, data.length, CHKBlock.DATA_LENGTH);
+		for(Attempt attempt : attempts) {
+			assertNull(attempt.data);
+			assertEquals(-1, attempt.compressedSize);
+			assertFalse(attempt.aborted);
+		}
+	}
+
+	/** GZIP can't see repeats further back than 32KB, so it should be aborted once BZIP2 has shown
+	 * that it is doing far better. */
+	public void testAbortLosingCodec() throws IOException {
+		byte[] block = new byte[128 * 1024];
+		new Random(21162518).nextBytes(block);
+		byte[] data = new byte[block.length * 32];
+		for(int i=0;i<32;i++)
+			System.arraycopy(block, 0, data, i * block.length, block.length);
+		COMPRESSOR_TYPE[] codecs = new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+		ParallelCompressor compressor = new ParallelCompressor(executor, 1024 * 1024);
+		Attempt[] attempts = compressor.compress(new ByteArrayInputStream(data), codecs,
+				new ArrayBucketFactory(), data.length, data.length, CHKBlock.DATA_LENGTH);
+		assertTrue(attempts[0].aborted);
+		assertNull(attempts[0].data);
+		assertTrue(attempts[0].bytesRead < data.length);
+		assertFalse(attempts[1].aborted);
+		assertTrue(attempts[1].compressedSize < data.length / 4);
+		assertTrue(Arrays.equals(data, decompress(COMPRESSOR_TYPE.BZIP2, attempts[1], data.length)));
+		attempts[1].data.free();
+	}
+
+}
@@ -0,0 +1,290 @@
+package freenet.support.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+public class PersistentContainerStoreTest extends TestCase {
+
+    private final File dir = new File("tmp.persistent-container-store-test");
+    private FilenameGenerator fg;
+    private RegisteringTracker tracker;
+    private PersistentContainerStore store;
+
+    /** Remembers which files were registered while resuming. */
+    private static class RegisteringTracker extends TrivialPersistentFileTracker {
+
+        final HashSet<File> registered = new HashSet<File>();
+
+        RegisteringTracker(File dir, FilenameGenerator fg) {
+            super(dir, fg);
+        }
+
+        @Override
+        public void register(File file) {
+            registered.add(file);
+        }
+
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        fg = new FilenameGenerator(new Random(12345), false, dir, "container-test-");
+        tracker = new RegisteringTracker(dir, fg);
+        store = new PersistentContainerStore(fg, tracker);
+    }
+
+    @Override
+    protected void tearDown() {
+        store.close();
+        FileUtil.removeAll(dir);
+    }
+
+    private ContainerBucket write(PersistentContainerStore store, byte[] data) throws IOException {
+        ContainerBucket bucket = new ContainerBucket(store);
+        OutputStream os = bucket.getOutputStream();
+        os.write(data);
+        os.close();
+        return bucket;
+    }
+
+    private void check(Bucket bucket, byte[] data) throws IOException {
+        assertEquals(data.length, bucket.size());
+        byte[] buf = new byte[data.length];
+        InputStream is = bucket.getInputStream();
+        new DataInputStream(is).readFully(buf);
+        assertEquals(-1, is.read());
+        is.close();
+        assertTrue(Arrays.equals(data, buf));
+    }
+
+    /** Free the space freed since the last checkpoint, as if a checkpoint had been written. */
+    private void checkpoint(PersistentContainerStore store) {
+        DelayedFree freed = store.grabFreedExtents();
+        if(freed != null) freed.realFree();
+    }
+
+    private long containerBytes() {
+        long total = 0;
+        for(File f : dir.listFiles())
+            total += f.length();
+        return total;
+    }
+
+    public void testWriteRead() throws IOException {
+        Random r = new Random(21162512);
+        int[] sizes = new int[] { 0, 1, 4095, 4096, 4097, 100000, 3 * 1024 * 1024 + 7 };
+        ContainerBucket[] buckets = new ContainerBucket[sizes.length];
+        byte[][] data = new byte[sizes.length][];
+        for(int i=0;i<sizes.length;i++) {
+            data[i] = new byte[sizes[i]];
+            r.nextBytes(data[i]);
+            buckets[i] = write(store, data[i]);
+        }
+        for(int i=0;i<sizes.length;i++)
+            check(buckets[i], data[i]);
+        // All in one file.
+        assertEquals(1, store.getContainerCount());
+        assertEquals(1, dir.listFiles().length);
+        for(ContainerBucket bucket : buckets)
+            bucket.free();
+    }
+
+    public void testReuseFreeSpace() throws IOException {
+        Random r = new Random(21162513);
+        byte[][] data = new byte[10][];
+        ContainerBucket[] buckets = new ContainerBucket[10];
+        for(int i=0;i<buckets.length;i++) {
+            data[i] = new byte[5000 + i * 1000];
+            r.nextBytes(data[i]);
+            buckets[i] = write(store, data[i]);
+        }
+        long length = containerBytes();
+        for(int i=0;i<buckets.length;i+=2)
+            buckets[i].free();
+        checkpoint(store);
+        for(int i=0;i<buckets.length;i+=2) {
+            r.nextBytes(data[i]);
+            buckets[i] = write(store, data[i]);
+        }
+        assertEquals(length, containerBytes());
+        for(int i=0;i<buckets.length;i++)
+            check(buckets[i], data[i]);
+        // Overwriting reuses the bucket's own space.
+        byte[] small = new byte[10];
+        r.nextBytes(small);
+        OutputStream os = buckets[1].getOutputStream();
+        os.write(small);
+        os.close();
+        checkpoint(store);
+        check(buckets[1], small);
+        check(buckets[3], data[3]);
+        for(ContainerBucket bucket : buckets)
+            bucket.free();
+    }
+
+    public void testFreeAfterCheckpoint() throws IOException {
+        Random r = new Random(21162516);
+        byte[] data = new byte[10000];
+        r.nextBytes(data);
+        ContainerBucket freed = write(store, data);
+        ContainerBucket shrunk = write(store, data);
+        ContainerBucket last = write(store, data);
+        freed.free();
+        OutputStream os = shrunk.getOutputStream();
+        os.write(data, 0, 10);
+        os.close();
+        // The last checkpoint may still refer to the space, so it can't be reused yet.
+        long length = containerBytes();
+        ContainerBucket other = write(store, data);
+        assertTrue(containerBytes() > length);
+        other.free();
+        check(last, data);
+        checkpoint(store);
+        length = containerBytes();
+        other = write(store, data);
+        assertEquals(length, containerBytes());
+        check(other, data);
+        check(last, data);
+        check(shrunk, Arrays.copyOf(data, 10));
+        // Nothing else to free.
+        checkpoint(store);
+        assertNull(store.grabFreedExtents());
+    }
+
+    public void testToRandomAccessBuffer() throws IOException {
+        Random r = new Random(21162514);
+        byte[] data = new byte[2 * PersistentContainerStore.MAX_EXTENT + 12345];
+        r.nextBytes(data);
+        ContainerBucket bucket = write(store, data);
+        LockableRandomAccessBuffer raf = bucket.toRandomAccessBuffer();
+        assertEquals(data.length, raf.size());
+        for(int i=0;i<100;i++) {
+            int offset = r.nextInt(data.length);
+            int length = r.nextInt(Math.min(100000, data.length - offset));
+            byte[] buf = new byte[length];
+            raf.pread(offset, buf, 0, length);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data, offset, offset + length), buf));
+        }
+        try {
+            raf.pwrite(0, data, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        // The RAF owns the space now.
+        bucket.free();
+        ContainerBucket other = write(store, new byte[PersistentContainerStore.MAX_EXTENT]);
+        byte[] buf = new byte[data.length];
+        raf.pread(0, buf, 0, data.length);
+        assertTrue(Arrays.equals(data, buf));
+        raf.free();
+        other.free();
+    }
+
+    private byte[] storeTo(Bucket bucket) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        bucket.storeTo(dos);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    private byte[] storeTo(LockableRandomAccessBuffer raf) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        raf.storeTo(dos);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    private DataInputStream dis(byte[] buf) {
+        return new DataInputStream(new ByteArrayInputStream(buf));
+    }
+
+    public void testRestart() throws Exception {
+        Random r = new Random(21162515);
+        byte[][] data = new byte[6][];
+        byte[][] stored = new byte[6][];
+        for(int i=0;i<data.length;i++) {
+            data[i] = new byte[30000];
+            r.nextBytes(data[i]);
+            ContainerBucket bucket = write(store, data[i]);
+            stored[i] = storeTo(bucket);
+        }
+        ContainerBucket converted = write(store, data[0]);
+        byte[] storedRAF = storeTo(converted.toRandomAccessBuffer());
+        long length = containerBytes();
+        store.close();
+
+        // Restart. Bucket 2 was freed, and bucket 5 was never checkpointed.
+        store = new PersistentContainerStore(fg, tracker);
+        ContainerBucket[] buckets = new ContainerBucket[5];
+        for(int i=0;i<buckets.length;i++) {
+            if(i == 2) continue;
+            buckets[i] = (ContainerBucket) BucketTools.restoreFrom(dis(stored[i]), fg, tracker, null);
+            buckets[i].resume(store);
+        }
+        ContainerRandomAccessBuffer raf = (ContainerRandomAccessBuffer)
+            BucketTools.restoreRAFFrom(dis(storedRAF), fg, tracker, null);
+        raf.resume(store);
+        assertEquals(1, tracker.registered.size());
+        // Until we have finished resuming, we don't know what is free.
+        ContainerBucket early = write(store, data[1]);
+        assertEquals(2, store.getContainerCount());
+        early.free();
+        checkpoint(store);
+        store.completedInit();
+        for(int i=0;i<buckets.length;i++)
+            if(buckets[i] != null) check(buckets[i], data[i]);
+        byte[] buf = new byte[data[0].length];
+        raf.pread(0, buf, 0, buf.length);
+        assertTrue(Arrays.equals(data[0], buf));
+        // The space used by the lost buckets is reused.
+        ContainerBucket reused = write(store, data[2]);
+        ContainerBucket reused2 = write(store, data[5]);
+        assertTrue(containerBytes() <= length);
+        for(int i=0;i<buckets.length;i++)
+            if(buckets[i] != null) check(buckets[i], data[i]);
+        check(reused, data[2]);
+        check(reused2, data[5]);
+        raf.pread(0, buf, 0, buf.length);
+        assertTrue(Arrays.equals(data[0], buf));
+    }
+
+    public void testResumeOverlapping() throws Exception {
+        Random r = new Random(21162517);
+        byte[] data = new byte[30000];
+        r.nextBytes(data);
+        byte[] stored = storeTo(write(store, data));
+        store.close();
+
+        store = new PersistentContainerStore(fg, tracker);
+        ContainerBucket bucket = (ContainerBucket) BucketTools.restoreFrom(dis(stored), fg, tracker, null);
+        bucket.resume(store);
+        ContainerBucket copy = (ContainerBucket) BucketTools.restoreFrom(dis(stored), fg, tracker, null);
+        try {
+            copy.resume(store);
+            fail();
+        } catch (ResumeFailedException e) {
+            // Expected.
+        }
+        store.completedInit();
+        check(bucket, data);
+    }
+
+}
@@ -0,0 +1,128 @@
+package freenet.support.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+public class PersistentTempBucketFactoryTest extends TestCase {
+
+    private static final String PREFIX = "freenet-temp-";
+
+    private final File dir = new File("tmp.persistent-temp-bucket-factory-test");
+    private final Random random = new Random(18729451);
+
+    /** Stands in for a download whose resumption is deferred on startup. */
+    private static class Download implements Serializable {
+        private static final long serialVersionUID = 1L;
+        Bucket data;
+        LockableRandomAccessBuffer raf;
+
+        /** What the storage's onResume() methods do, without a ClientContext. */
+        void claimStorage(PersistentTempBucketFactory factory) throws ResumeFailedException {
+            ((ContainerBucket) data).resume(factory.getContainerStore());
+            factory.register(((PooledFileRandomAccessBuffer) raf).file);
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    /** A request resumed after completedInit() keeps its storage if it was claimed during 
+     * startup. */
+    public void testClaimDeferred() throws Exception {
+        PersistentTempBucketFactory factory = makeFactory();
+        byte[] data = new byte[30000];
+        random.nextBytes(data);
+        Download download = new Download();
+        download.data = new ContainerBucket(factory.getContainerStore());
+        OutputStream os = download.data.getOutputStream();
+        os.write(data);
+        os.close();
+        long id = factory.fg.makeRandomFilename();
+        download.raf = new PooledFileRandomAccessBuffer(factory.fg.getFilename(id), false,
+                1024, random, id, true);
+        File orphan = factory.fg.getFilename(factory.fg.makeRandomFilename());
+        orphan.createNewFile();
+        byte[] stored = serialize(download);
+        factory.getContainerStore().close();
+
+        // Restart.
+        factory = makeFactory();
+        download = (Download) deserialize(stored);
+        download.claimStorage(factory);
+        factory.completedInit();
+        assertFalse(orphan.exists());
+        File rafFile = ((PooledFileRandomAccessBuffer) download.raf).file;
+        assertTrue(rafFile.exists());
+
+        // Resume it later.
+        download.claimStorage(factory);
+        // Anything else was deleted, so registering it is a bug.
+        try {
+            factory.register(orphan);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // New buckets don't reuse its space.
+        ContainerBucket other = new ContainerBucket(factory.getContainerStore());
+        os = other.getOutputStream();
+        os.write(new byte[data.length]);
+        os.close();
+        byte[] buf = new byte[data.length];
+        InputStream is = download.data.getInputStream();
+        new DataInputStream(is).readFully(buf);
+        is.close();
+        assertTrue(Arrays.equals(data, buf));
+        factory.getContainerStore().close();
+    }
+
+    private PersistentTempBucketFactory makeFactory() throws IOException {
+        PersistentTempBucketFactory factory =
+            new PersistentTempBucketFactory(dir, PREFIX, null, random, false);
+        factory.setDiskSpaceChecker(new DiskSpaceChecker() {
+
+            @Override
+            public boolean checkDiskSpace(File file, int toWrite, int bufferSize) {
+                return true;
+            }
+
+        });
+        return factory;
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(o);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] buf) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf));
+        return ois.readObject();
+    }
+
+}
@@ -152,7 +152,8 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         // Open and open FD -> locked
         RAFLock la = a.lockOpen();
         assertEquals(PooledFileRandomAccessBuffer.getOpenFDs(), 1);
-        assertEquals(PooledFileRandomAccessBuffer.getClosableFDs(), 1);
+        // b was closed by closeRAF(), so it is not an open FD that could be closed.
+        assertEquals(PooledFileRandomAccessBuffer.getClosableFDs(), 0);
         RAFLock lb = b.lockOpen();
         assertEquals(PooledFileRandomAccessBuffer.getOpenFDs(), 2);
         assertEquals(PooledFileRandomAccessBuffer.getClosableFDs(), 0);
@@ -281,6 +282,90 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
+    /** Test that we evict the least recently used FD, and count hits, opens and evictions. */
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        int sz = 1024;
+        PooledFileRandomAccessBuffer.setMaxFDs(2);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        PooledFileRandomAccessBuffer b = construct(sz);
+        byte[] buf = new byte[sz];
+        long hits = PooledFileRandomAccessBuffer.getFDHits();
+        long opens = PooledFileRandomAccessBuffer.getFDOpens();
+        long evictions = PooledFileRandomAccessBuffer.getFDEvictions();
+        a.pread(0, buf, 0, sz);
+        assertEquals(hits + 1, PooledFileRandomAccessBuffer.getFDHits());
+        // b is now the least recently used.
+        PooledFileRandomAccessBuffer c = construct(sz);
+        assertTrue(a.isOpen());
+        assertFalse(b.isOpen());
+        assertTrue(c.isOpen());
+        assertEquals(opens + 1, PooledFileRandomAccessBuffer.getFDOpens());
+        assertEquals(evictions + 1, PooledFileRandomAccessBuffer.getFDEvictions());
+        b.pread(0, buf, 0, sz);
+        assertFalse(a.isOpen());
+        assertEquals(opens + 2, PooledFileRandomAccessBuffer.getFDOpens());
+        assertEquals(evictions + 2, PooledFileRandomAccessBuffer.getFDEvictions());
+        a.close();
+        b.close();
+        c.close();
+        assertEquals(PooledFileRandomAccessBuffer.getOpenFDs(), 0);
+        a.free();
+        b.free();
+        c.free();
+    }
+    
+    /** Many threads reading and writing more files than there are FDs. */
+    public void testConcurrentAccess() throws Exception {
+        final int sz = 4096;
+        final int files = 8;
+        PooledFileRandomAccessBuffer.setMaxFDs(3);
+        final PooledFileRandomAccessBuffer[] rafs = new PooledFileRandomAccessBuffer[files];
+        for(int i=0;i<files;i++)
+            rafs[i] = construct(sz);
+        final Throwable[] failed = new Throwable[1];
+        Thread[] threads = new Thread[files];
+        for(int i=0;i<files;i++) {
+            final int seed = i;
+            threads[i] = new Thread() {
+                
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        // Each thread writes to its own 512 byte slice of each file.
+                        byte[] buf = new byte[512];
+                        byte[] cmp = new byte[512];
+                        for(int j=0;j<200;j++) {
+                            PooledFileRandomAccessBuffer raf = rafs[r.nextInt(files)];
+                            r.nextBytes(buf);
+                            raf.pwrite(seed * 512, buf, 0, buf.length);
+                            raf.pread(seed * 512, cmp, 0, cmp.length);
+                            assertTrue(Arrays.equals(buf, cmp));
+                        }
+                    } catch (Throwable t) {
+                        synchronized(failed) {
+                            failed[0] = t;
+                        }
+                    }
+                }
+                
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        synchronized(failed) {
+            if(failed[0] != null) throw new AssertionError(failed[0]);
+        }
+        assertTrue(PooledFileRandomAccessBuffer.getOpenFDs() <= 3);
+        assertEquals(PooledFileRandomAccessBuffer.getOpenFDs(), PooledFileRandomAccessBuffer.getClosableFDs());
+        for(PooledFileRandomAccessBuffer raf : rafs) {
+            raf.close();
+            raf.free();
+        }
+        assertEquals(PooledFileRandomAccessBuffer.getOpenFDs(), 0);
+    }
+    
     // FIXME more tests???
     
 }
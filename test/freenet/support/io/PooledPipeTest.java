@@ -0,0 +1,87 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PooledPipeTest extends TestCase {
+
+	/** Writes the data in random sized pieces on another thread. */
+	private Thread startWriter(final OutputStream os, final byte[] data, final long seed, final Throwable[] error) {
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				Random r = new Random(seed);
+				try {
+					int offset = 0;
+					while(offset < data.length) {
+						int length = Math.min(data.length - offset, r.nextInt(3 * PooledPipe.BUFFER_SIZE));
+						if(length == 1)
+							os.write(data[offset]);
+						else
+							os.write(data, offset, length);
+						offset += length;
+						if(r.nextInt(10) == 0) os.flush();
+					}
+					os.close();
+				} catch (Throwable e) {
+					error[0] = e;
+				}
+			}
+
+		});
+		t.start();
+		return t;
+	}
+
+	public void testCopy() throws Exception {
+		for(int size : new int[] { 0, 1, PooledPipe.BUFFER_SIZE, 10 * PooledPipe.BUFFER_SIZE + 17 }) {
+			byte[] data = new byte[size];
+			new Random(size).nextBytes(data);
+			PooledPipe pipe = new PooledPipe();
+			Throwable[] error = new Throwable[1];
+			Thread t = startWriter(pipe.getOutputStream(), data, size, error);
+			InputStream is = pipe.getInputStream();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			Random r = new Random(size + 1);
+			while(true) {
+				int x = is.read(buf, 0, 1 + r.nextInt(buf.length - 1));
+				if(x < 0) break;
+				baos.write(buf, 0, x);
+			}
+			assertEquals(-1, is.read());
+			is.close();
+			t.join();
+			assertNull(error[0]);
+			assertTrue(Arrays.equals(data, baos.toByteArray()));
+		}
+	}
+
+	/** If the reader gives up, the writer must not block forever. */
+	public void testReaderClosed() throws Exception {
+		byte[] data = new byte[100 * PooledPipe.BUFFER_SIZE];
+		PooledPipe pipe = new PooledPipe();
+		Throwable[] error = new Throwable[1];
+		Thread t = startWriter(pipe.getOutputStream(), data, 1, error);
+		InputStream is = pipe.getInputStream();
+		is.read(new byte[100]);
+		is.close();
+		t.join(10000);
+		assertFalse(t.isAlive());
+		assertTrue(error[0] instanceof IOException);
+		try {
+			is.read();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
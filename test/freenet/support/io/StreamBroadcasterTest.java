@@ -0,0 +1,127 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class StreamBroadcasterTest extends TestCase {
+
+	/** Reads everything on another thread. */
+	private static class ReaderThread extends Thread {
+		private final InputStream is;
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IOException error;
+
+		ReaderThread(InputStream is) {
+			this.is = is;
+			start();
+		}
+
+		@Override
+		public void run() {
+			byte[] buf = new byte[1000];
+			try {
+				int read;
+				while((read = is.read(buf)) != -1)
+					out.write(buf, 0, read);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+
+	private static byte[] data(int size, long seed) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	public void testReaders() throws Exception {
+		byte[] data = data(100000, 2118);
+		StreamBroadcaster sb = new StreamBroadcaster(20000, 200000);
+		assertTrue(sb.open());
+		ReaderThread first = new ReaderThread(sb.addReader());
+		sb.write(data, 0, 10000);
+		sb.write(data[10000]);
+		// Joining late still gets the start.
+		ReaderThread second = new ReaderThread(sb.addReader());
+		sb.write(data, 10001, 10000);
+		// Too late now.
+		assertNull(sb.addReader());
+		sb.write(data, 20001, data.length - 20001);
+		sb.close();
+		// Not finished until finish() is called.
+		first.join(100);
+		assertTrue(first.isAlive());
+		sb.finish();
+		first.join();
+		second.join();
+		assertNull(first.error);
+		assertNull(second.error);
+		assertTrue(Arrays.equals(data, first.out.toByteArray()));
+		assertTrue(Arrays.equals(data, second.out.toByteArray()));
+		assertNull(sb.addReader());
+	}
+
+	public void testFail() throws Exception {
+		StreamBroadcaster sb = new StreamBroadcaster(20000, 200000);
+		sb.open();
+		ReaderThread reader = new ReaderThread(sb.addReader());
+		sb.write(data(5000, 2119));
+		sb.close();
+		sb.fail(new IOException("Hash didn't match"));
+		reader.join();
+		assertNotNull(reader.error);
+		assertFalse(reader.error instanceof StreamBroadcaster.FellBehindException);
+	}
+
+	/** Nothing is kept unless we are opened before writing starts. */
+	public void testNotOpened() throws IOException {
+		StreamBroadcaster sb = new StreamBroadcaster(20000, 200000);
+		assertNull(sb.addReader());
+		sb.write(new byte[1000]);
+		assertFalse(sb.open());
+		assertNull(sb.addReader());
+	}
+
+	public void testSlowReader() throws IOException {
+		StreamBroadcaster sb = new StreamBroadcaster(1000, 10000);
+		sb.open();
+		InputStream slow = sb.addReader();
+		InputStream fast = sb.addReader();
+		byte[] buf = new byte[5000];
+		for(int i=0;i<4;i++) {
+			sb.write(data(5000, i));
+			assertEquals(5000, fast.read(buf));
+		}
+		sb.finish();
+		assertEquals(-1, fast.read(buf));
+		try {
+			slow.read(buf);
+			fail();
+		} catch (StreamBroadcaster.FellBehindException e) {
+			// Expected.
+		}
+	}
+
+	public void testClosedReaderIsDropped() throws IOException {
+		StreamBroadcaster sb = new StreamBroadcaster(1000, 1000);
+		sb.open();
+		InputStream reader = sb.addReader();
+		reader.close();
+		// Doesn't count against the buffer limit any more.
+		for(int i=0;i<10;i++)
+			sb.write(new byte[1000]);
+		try {
+			reader.read();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,205 @@
+package freenet.support.io;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import junit.framework.TestCase;
+import freenet.crypt.MasterSecret;
+import freenet.support.Executor;
+import freenet.support.SerialExecutor;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.TempBucketFactory.TempBucket;
+
+public class TempArenaTest extends TestCase {
+
+    private static final int CHUNK = TempArena.CHUNK_SIZE;
+
+    static final MasterSecret secret = new MasterSecret();
+
+    static{
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private Random weakPRNG = new Random(12341);
+    // Never started, so the background spiller doesn't run and only stalls spill chunks.
+    private Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+    private File f = new File("temp-arena-test");
+    private FilenameGenerator fg;
+    private TempBucketFactory factory;
+
+    @Override
+    public void setUp() throws IOException {
+        FileUtil.removeAll(f);
+        f.mkdir();
+        fg = new FilenameGenerator(weakPRNG, true, f, "temp-arena-test-");
+    }
+
+    @Override
+    public void tearDown() {
+        if(factory != null) {
+            // Everything should have been free()'ed.
+            assertEquals(0, factory.getRamUsed());
+            assertEquals(0, factory.getArena().getSpillUsed());
+            factory.getArena().close();
+            factory = null;
+        }
+        assertEquals(0, f.listFiles().length);
+        FileUtil.removeAll(f);
+    }
+
+    private void makeFactory(int ramChunks, int spillChunks, boolean encrypt) throws IOException {
+        factory = new TempBucketFactory(exec, fg, 2 * CHUNK, ramChunks * CHUNK, weakPRNG, encrypt, 1024*1024, secret);
+        factory.enableArena(spillChunks * CHUNK);
+        assertEquals(1, f.listFiles().length);
+    }
+
+    private TempBucket write(byte[] data) throws IOException {
+        TempBucket bucket = (TempBucket) factory.makeBucket(data.length);
+        OutputStream os = bucket.getOutputStream();
+        os.write(data);
+        os.close();
+        return bucket;
+    }
+
+    private void check(TempBucket bucket, byte[] data) throws IOException {
+        assertEquals(data.length, bucket.size());
+        byte[] buf = new byte[data.length];
+        InputStream is = bucket.getInputStream();
+        new DataInputStream(is).readFully(buf);
+        assertEquals(-1, is.read());
+        is.close();
+        assertTrue(Arrays.equals(data, buf));
+    }
+
+    public void testSpillChunks() throws IOException {
+        innerTestSpillChunks(false);
+    }
+
+    public void testSpillChunksEncrypted() throws IOException {
+        innerTestSpillChunks(true);
+    }
+
+    private void innerTestSpillChunks(boolean encrypt) throws IOException {
+        makeFactory(4, 16, encrypt);
+        TempArena arena = factory.getArena();
+        Random r = new Random(21162507);
+        byte[][] data = new byte[6][];
+        TempBucket[] buckets = new TempBucket[6];
+        for(int i=0;i<buckets.length;i++) {
+            data[i] = new byte[CHUNK];
+            r.nextBytes(data[i]);
+            buckets[i] = write(data[i]);
+            assertTrue(buckets[i].isArenaBucket());
+        }
+        // The two oldest chunks had to be spilled while allocating.
+        assertEquals(4 * CHUNK, arena.getRamUsed());
+        assertEquals(2 * CHUNK, arena.getSpillUsed());
+        assertEquals(2 * CHUNK, arena.getSpilledBytes());
+        assertEquals(2, arena.getMigrationStalls());
+        assertEquals(0, arena.getRamMisses());
+        for(int i=0;i<buckets.length;i++)
+            check(buckets[i], data[i]);
+        assertTrue(arena.getRamMisses() > 0);
+        assertTrue(arena.getRamHitRatio() < 1.0);
+        for(TempBucket bucket : buckets)
+            bucket.free();
+    }
+
+    public void testFallbackWhenFull() throws IOException {
+        makeFactory(2, 2, false);
+        Random r = new Random(21162508);
+        byte[][] data = new byte[5][];
+        TempBucket[] buckets = new TempBucket[5];
+        for(int i=0;i<buckets.length;i++) {
+            data[i] = new byte[CHUNK + 100];
+            r.nextBytes(data[i]);
+        }
+        buckets[0] = write(data[0]);
+        buckets[1] = write(data[1]);
+        assertTrue(buckets[0].isArenaBucket());
+        assertTrue(buckets[1].isArenaBucket());
+        // The arena is full, so the next bucket is migrated to a file when it runs out.
+        buckets[2] = write(data[2]);
+        assertFalse(buckets[2].isArenaBucket());
+        for(int i=0;i<3;i++)
+            check(buckets[i], data[i]);
+        // Free space is reused.
+        buckets[0].free();
+        buckets[3] = write(data[3]);
+        assertTrue(buckets[3].isArenaBucket());
+        check(buckets[3], data[3]);
+        for(int i=1;i<4;i++)
+            buckets[i].free();
+    }
+
+    public void testOversizedBucket() throws IOException {
+        makeFactory(4, 4, false);
+        byte[] data = new byte[2 * CHUNK * TempBucketFactory.RAMBUCKET_CONVERSION_FACTOR + 1];
+        new Random(21162509).nextBytes(data);
+        TempBucket bucket = write(data);
+        assertFalse(bucket.isArenaBucket());
+        check(bucket, data);
+        bucket.free();
+    }
+
+    public void testRAF() throws IOException {
+        makeFactory(2, 4, true);
+        Random r = new Random(21162510);
+        int size = CHUNK + CHUNK / 2;
+        LockableRandomAccessBuffer raf = factory.makeRAF(size);
+        assertTrue(raf instanceof ArenaRandomAccessBuffer);
+        assertEquals(size, raf.size());
+        byte[] buf = new byte[100];
+        raf.pread(CHUNK - 50, buf, 0, 100);
+        assertTrue(Arrays.equals(new byte[100], buf));
+        byte[] data = new byte[size];
+        r.nextBytes(data);
+        raf.pwrite(0, data, 0, size);
+        // Spill it.
+        LockableRandomAccessBuffer other = factory.makeRAF(2 * CHUNK);
+        assertEquals(2 * CHUNK, factory.getArena().getSpillUsed());
+        byte[] read = new byte[size];
+        raf.pread(0, read, 0, size);
+        assertTrue(Arrays.equals(data, read));
+        other.free();
+        raf.free();
+        raf = factory.makeRAF(data, 0, size, true);
+        read = new byte[size];
+        raf.pread(0, read, 0, size);
+        assertTrue(Arrays.equals(data, read));
+        try {
+            raf.pwrite(0, data, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        raf.free();
+    }
+
+    public void testBucketToRAF() throws IOException {
+        makeFactory(4, 4, false);
+        byte[] data = new byte[CHUNK * 2 - 1];
+        new Random(21162511).nextBytes(data);
+        TempBucket bucket = write(data);
+        assertTrue(bucket.isArenaBucket());
+        long ramUsed = factory.getRamUsed();
+        LockableRandomAccessBuffer raf = bucket.toRandomAccessBuffer();
+        // No copying.
+        assertEquals(ramUsed, factory.getRamUsed());
+        assertEquals(data.length, raf.size());
+        byte[] read = new byte[data.length];
+        raf.pread(0, read, 0, data.length);
+        assertTrue(Arrays.equals(data, read));
+        raf.free();
+        bucket.free();
+    }
+
+}